@@ -4,9 +4,11 @@ import static org.sagebionetworks.bridge.BridgeConstants.ADMIN_GROUP;
 import static org.sagebionetworks.bridge.BridgeConstants.BRIDGE_HOST_HEADER;
 import static org.sagebionetworks.bridge.BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS;
 import static org.sagebionetworks.bridge.BridgeConstants.BRIDGE_STUDY_HEADER;
+import static org.sagebionetworks.bridge.BridgeConstants.JSON_MIME_TYPE;
 import static org.sagebionetworks.bridge.BridgeConstants.SESSION_TOKEN_HEADER;
 
 import java.util.Collection;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 
@@ -15,6 +17,7 @@ import models.RequestUtils;
 import models.StatusMessage;
 
 import org.sagebionetworks.bridge.cache.CacheProvider;
+import org.sagebionetworks.bridge.cache.ViewCache.CachedView;
 import org.sagebionetworks.bridge.config.BridgeConfig;
 import org.sagebionetworks.bridge.exceptions.ConsentRequiredException;
 import org.sagebionetworks.bridge.exceptions.InvalidEntityException;
@@ -41,6 +44,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 
 public abstract class BaseController extends Controller {
@@ -242,6 +246,78 @@ public abstract class BaseController extends Controller {
         return ok(json);
     }
 
+    /**
+     * Returns a cached view as JSON, with the view's content hash as its ETag. If the client already has this version
+     * of the view (the request's If-None-Match header has the ETag), returns 304 Not Modified without the JSON. If the
+     * client accepts gzip, the view's pre-compressed JSON is returned with Content-Encoding: gzip, which the gzip
+     * filter passes through as is.
+     */
+    Result cachedViewResult(CachedView view) {
+        response().setHeader(ETAG, view.getEtag());
+        response().setHeader(VARY, ACCEPT_ENCODING);
+        if (etagMatches(request().getHeader(IF_NONE_MATCH), view.getEtag())) {
+            return status(NOT_MODIFIED);
+        }
+        if (acceptsGzip(request().getHeader(ACCEPT_ENCODING))) {
+            response().setHeader(CONTENT_ENCODING, "gzip");
+            return ok(view.getGzippedJson()).as(JSON_MIME_TYPE);
+        }
+        return ok(view.getJson()).as(JSON_MIME_TYPE);
+    }
+
+    /**
+     * True if the If-None-Match header value matches the ETag, using weak comparison, as If-None-Match requires. This
+     * is package-scoped to facilitate unit tests.
+     */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = stripWeakPrefix(etag);
+        for (String oneTag : Splitter.on(',').trimResults().omitEmptyStrings().split(ifNoneMatch)) {
+            if ("*".equals(oneTag) || opaqueTag.equals(stripWeakPrefix(oneTag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Weak comparison ignores the W/ prefix on either tag.
+    private static String stripWeakPrefix(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * True if the Accept-Encoding header value accepts gzip, that is, lists gzip, or failing that *, without q=0. This
+     * is package-scoped to facilitate unit tests.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean gzipAccepted = null;
+        Boolean anyAccepted = null;
+        for (String oneEncoding : Splitter.on(',').trimResults().omitEmptyStrings().split(acceptEncoding)) {
+            List<String> parts = Splitter.on(';').trimResults().splitToList(oneEncoding);
+            boolean accepted = true;
+            for (String oneParam : parts.subList(1, parts.size())) {
+                if (oneParam.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(oneParam.substring(2)) > 0.0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if ("gzip".equalsIgnoreCase(parts.get(0))) {
+                gzipAccepted = accepted;
+            } else if ("*".equals(parts.get(0))) {
+                anyAccepted = accepted;
+            }
+        }
+        return gzipAccepted != null ? gzipAccepted : Boolean.TRUE.equals(anyAccepted);
+    }
+
     Result createdResult(Object obj) throws Exception {
         return created((JsonNode)mapper.valueToTree(obj));
     }
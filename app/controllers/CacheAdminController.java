@@ -2,6 +2,7 @@ package controllers;
 
 import java.util.Set;
 
+import org.sagebionetworks.bridge.models.CacheItemPage;
 import org.sagebionetworks.bridge.services.CacheAdminService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
@@ -24,6 +25,13 @@ public class CacheAdminController extends BaseController {
         Set<String> keys = cacheAdminService.listItems();
         return okResult(keys);
     }
+
+    public Result listItemPage(String type, String cursor, int pageSize) throws Exception {
+        getAuthenticatedAdminSession();
+
+        CacheItemPage page = cacheAdminService.listItems(type, cursor, pageSize);
+        return okResult(page);
+    }
     
     public Result removeItem(String cacheKey) {
         getAuthenticatedAdminSession();
@@ -32,4 +40,11 @@ public class CacheAdminController extends BaseController {
         return ok("Item removed from cache.");
     }
 
+    public Result removeItems(String type) {
+        getAuthenticatedAdminSession();
+
+        long removed = cacheAdminService.removeItems(type);
+        return ok(removed + " items removed from cache.");
+    }
+
 }
@@ -0,0 +1,138 @@
+package controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Resource;
+
+import org.sagebionetworks.bridge.crypto.CmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CmsEncryptorCachePreloader;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
+import org.sagebionetworks.bridge.upload.UploadValidationMetrics;
+import org.sagebionetworks.bridge.upload.UploadValidationScheduler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
+import play.mvc.Result;
+
+@Controller("metricsAdminController")
+public class MetricsAdminController extends BaseController {
+
+    private UploadValidationMetrics uploadValidationMetrics;
+    private UploadValidationScheduler uploadValidationScheduler;
+    private LoadingCache<String, CmsEncryptor> cmsEncryptorCache;
+    private CmsEncryptorCachePreloader cmsEncryptorCachePreloader;
+    private JedisStringOps jedisStringOps;
+
+    @Autowired
+    public void setUploadValidationMetrics(UploadValidationMetrics uploadValidationMetrics) {
+        this.uploadValidationMetrics = uploadValidationMetrics;
+    }
+
+    @Resource(name = "uploadValidationScheduler")
+    public void setUploadValidationScheduler(UploadValidationScheduler uploadValidationScheduler) {
+        this.uploadValidationScheduler = uploadValidationScheduler;
+    }
+
+    @Resource(name = "cmsEncryptorCache")
+    public void setCmsEncryptorCache(LoadingCache<String, CmsEncryptor> cmsEncryptorCache) {
+        this.cmsEncryptorCache = cmsEncryptorCache;
+    }
+
+    @Resource(name = "cmsEncryptorCachePreloader")
+    public void setCmsEncryptorCachePreloader(CmsEncryptorCachePreloader cmsEncryptorCachePreloader) {
+        this.cmsEncryptorCachePreloader = cmsEncryptorCachePreloader;
+    }
+
+    @Autowired
+    public void setJedisStringOps(JedisStringOps jedisStringOps) {
+        this.jedisStringOps = jedisStringOps;
+    }
+
+    /**
+     * Returns upload validation metrics for this server: handler latency histograms and success/failure counts,
+     * overall and per study, plus validation queue gauges.
+     */
+    public Result getUploadValidationMetrics() {
+        getAuthenticatedAdminSession();
+
+        Map<String, Object> schedulerGauges = new LinkedHashMap<>();
+        schedulerGauges.put("queueDepth", uploadValidationScheduler.getQueueDepth());
+        schedulerGauges.put("maxQueueDepth", uploadValidationScheduler.getMaxQueueDepth());
+        schedulerGauges.put("runningCount", uploadValidationScheduler.getRunningCount());
+        schedulerGauges.put("workerCount", uploadValidationScheduler.getWorkerCount());
+        schedulerGauges.put("oldestQueuedWaitMillis", uploadValidationScheduler.getOldestQueuedWaitMillis());
+        schedulerGauges.put("lastWaitMillis", uploadValidationScheduler.getLastWaitMillis());
+        schedulerGauges.put("averageWaitMillis", uploadValidationScheduler.getAverageWaitMillis());
+        schedulerGauges.put("maxWaitMillis", uploadValidationScheduler.getMaxWaitMillis());
+        schedulerGauges.put("dispatchedCount", uploadValidationScheduler.getDispatchedCount());
+        schedulerGauges.put("rejectedCount", uploadValidationScheduler.getRejectedCount());
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("handlers", uploadValidationMetrics.getHandlerSnapshots());
+        metrics.put("studies", uploadValidationMetrics.getStudySnapshots());
+        metrics.put("scheduler", schedulerGauges);
+        return okResult(metrics);
+    }
+
+    public Result resetUploadValidationMetrics() {
+        getAuthenticatedAdminSession();
+
+        uploadValidationMetrics.reset();
+        return okResult("Upload validation metrics reset.");
+    }
+
+    /**
+     * Returns CMS encryptor cache metrics for this server: hit, miss, and load counts and load times since startup,
+     * plus the results of warming the cache at startup.
+     */
+    public Result getCmsEncryptorCacheMetrics() {
+        getAuthenticatedAdminSession();
+
+        CacheStats stats = cmsEncryptorCache.stats();
+        Map<String, Object> cacheStats = new LinkedHashMap<>();
+        cacheStats.put("size", cmsEncryptorCache.size());
+        cacheStats.put("hitCount", stats.hitCount());
+        cacheStats.put("missCount", stats.missCount());
+        cacheStats.put("hitRate", stats.hitRate());
+        cacheStats.put("loadSuccessCount", stats.loadSuccessCount());
+        cacheStats.put("loadExceptionCount", stats.loadExceptionCount());
+        cacheStats.put("averageLoadMillis", stats.averageLoadPenalty() / 1000000.0);
+        cacheStats.put("totalLoadMillis", stats.totalLoadTime() / 1000000);
+        cacheStats.put("evictionCount", stats.evictionCount());
+
+        Map<String, Object> preloadStats = new LinkedHashMap<>();
+        preloadStats.put("studyCount", cmsEncryptorCachePreloader.getStudyCount());
+        preloadStats.put("loadedCount", cmsEncryptorCachePreloader.getLoadedCount());
+        preloadStats.put("failedCount", cmsEncryptorCachePreloader.getFailedCount());
+        preloadStats.put("durationMillis", cmsEncryptorCachePreloader.getDurationMillis());
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("cache", cacheStats);
+        metrics.put("preload", preloadStats);
+        return okResult(metrics);
+    }
+
+    /**
+     * Returns Redis connection pool metrics for this server: how long callers waited to borrow a connection, pool
+     * gauges, and the configured maximum, for sizing redis.max.total.
+     */
+    public Result getRedisPoolMetrics() {
+        getAuthenticatedAdminSession();
+
+        Map<String, Object> poolGauges = new LinkedHashMap<>();
+        poolGauges.put("maxTotal", bridgeConfig.getPropertyAsInt("redis.max.total"));
+        poolGauges.put("activeCount", jedisStringOps.getActiveConnectionCount());
+        poolGauges.put("idleCount", jedisStringOps.getIdleConnectionCount());
+        poolGauges.put("waitingCount", jedisStringOps.getWaitingCount());
+        poolGauges.put("brokenConnectionCount", jedisStringOps.getBrokenConnectionCount());
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("borrowWaitMicros", jedisStringOps.getBorrowWaitMicros());
+        metrics.put("pool", poolGauges);
+        return okResult(metrics);
+    }
+}
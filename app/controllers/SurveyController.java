@@ -1,11 +1,10 @@
 package controllers;
 
-import static org.sagebionetworks.bridge.BridgeConstants.JSON_MIME_TYPE;
-
 import java.util.List;
 
 import org.sagebionetworks.bridge.BridgeConstants;
 import org.sagebionetworks.bridge.cache.ViewCache;
+import org.sagebionetworks.bridge.cache.ViewCache.CachedView;
 import org.sagebionetworks.bridge.cache.ViewCache.ViewCacheKey;
 import org.sagebionetworks.bridge.dynamodb.DynamoSurvey;
 import org.sagebionetworks.bridge.exceptions.UnauthorizedException;
@@ -22,6 +21,7 @@ import org.springframework.stereotype.Controller;
 import play.mvc.Result;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 
 @Controller("surveyController")
 public class SurveyController extends BaseController {
@@ -73,7 +73,7 @@ public class SurveyController extends BaseController {
         final UserSession session = getAuthenticatedAndConsentedSession();
 
         ViewCacheKey<Survey> cacheKey = viewCache.getCacheKey(Survey.class, surveyGuid, createdOnString); 
-        String json = viewCache.getView(cacheKey, new Supplier<Survey>() {
+        CachedView view = viewCache.getCachedView(cacheKey, new Supplier<Survey>() {
             @Override public Survey get() {
                 StudyIdentifier studyId = session.getStudyIdentifier();
                 long createdOn = DateUtils.convertToMillisFromEpoch(createdOnString);
@@ -84,14 +84,14 @@ public class SurveyController extends BaseController {
                 return surveyService.getSurvey(keys);
             }
         });
-        return ok(json).as(JSON_MIME_TYPE);
+        return cachedViewResult(view);
     }
 
     public Result getSurveyMostRecentlyPublishedVersionForUser(final String surveyGuid) throws Exception {
         final UserSession session = getAuthenticatedAndConsentedSession();
         
         ViewCacheKey<Survey> cacheKey = viewCache.getCacheKey(Survey.class, surveyGuid, PUBLISHED_KEY);
-        String json = viewCache.getView(cacheKey, new Supplier<Survey>() {
+        CachedView view = viewCache.getCachedView(cacheKey, new Supplier<Survey>() {
             @Override public Survey get() {
                 StudyIdentifier studyId = session.getStudyIdentifier();
                 Survey survey = surveyService.getSurveyMostRecentlyPublishedVersion(studyId, surveyGuid);
@@ -99,7 +99,7 @@ public class SurveyController extends BaseController {
                 return survey;
             }
         });
-        return ok(json).as(JSON_MIME_TYPE);
+        return cachedViewResult(view);
     }
     
     // Otherwise you don't need consent but you must be a researcher or an administrator
@@ -108,7 +108,7 @@ public class SurveyController extends BaseController {
         final StudyIdentifier studyId = session.getStudyIdentifier();
         
         ViewCacheKey<Survey> cacheKey = viewCache.getCacheKey(Survey.class, surveyGuid, createdOnString); 
-        String json = viewCache.getView(cacheKey, new Supplier<Survey>() {
+        CachedView view = viewCache.getCachedView(cacheKey, new Supplier<Survey>() {
             @Override public Survey get() {
                 long createdOn = DateUtils.convertToMillisFromEpoch(createdOnString);
                 GuidCreatedOnVersionHolder keys = new GuidCreatedOnVersionHolderImpl(surveyGuid, createdOn);
@@ -117,7 +117,7 @@ public class SurveyController extends BaseController {
                 return survey;
             }
         });
-        return ok(json).as(JSON_MIME_TYPE);
+        return cachedViewResult(view);
     }
     
     public Result getSurveyMostRecentVersion(final String surveyGuid) throws Exception {
@@ -125,14 +125,14 @@ public class SurveyController extends BaseController {
         final StudyIdentifier studyId = session.getStudyIdentifier();
         
         ViewCacheKey<Survey> cacheKey = viewCache.getCacheKey(Survey.class, surveyGuid, MOSTRECENT_KEY);
-        String json = viewCache.getView(cacheKey, new Supplier<Survey>() {
+        CachedView view = viewCache.getCachedView(cacheKey, new Supplier<Survey>() {
             @Override public Survey get() {
                 Survey survey = surveyService.getSurveyMostRecentVersion(studyId, surveyGuid);
                 verifySurveyIsInStudy(session, studyId, survey);
                 return survey;
             }
         });
-        return ok(json).as(JSON_MIME_TYPE);
+        return cachedViewResult(view);
     }
     
     public Result getSurveyMostRecentlyPublishedVersion(final String surveyGuid) throws Exception {
@@ -140,14 +140,14 @@ public class SurveyController extends BaseController {
         final StudyIdentifier studyId = session.getStudyIdentifier();
         
         ViewCacheKey<Survey> cacheKey = viewCache.getCacheKey(Survey.class, surveyGuid, PUBLISHED_KEY);
-        String json = viewCache.getView(cacheKey, new Supplier<Survey>() {
+        CachedView view = viewCache.getCachedView(cacheKey, new Supplier<Survey>() {
             @Override public Survey get() {
                 Survey survey = surveyService.getSurveyMostRecentlyPublishedVersion(studyId, surveyGuid);
                 verifySurveyIsInStudy(session, studyId, survey);
                 return survey;
             }
         });
-        return ok(json).as(JSON_MIME_TYPE);
+        return cachedViewResult(view);
     }
     
     public Result getMostRecentPublishedSurveyVersionByIdentifier(String identifier) throws Exception {
@@ -284,9 +284,10 @@ public class SurveyController extends BaseController {
     private void expireCache(String surveyGuid, String createdOnString) {
         // Don't screw around trying to figure out if *this* survey instance is the same survey
         // as the most recent or published version, expire all versions in the cache
-        viewCache.removeView(viewCache.getCacheKey(Survey.class, surveyGuid, createdOnString));
-        viewCache.removeView(viewCache.getCacheKey(Survey.class, surveyGuid, PUBLISHED_KEY));
-        viewCache.removeView(viewCache.getCacheKey(Survey.class, surveyGuid, MOSTRECENT_KEY));
+        viewCache.removeViews(ImmutableList.<ViewCacheKey<?>>of(
+                viewCache.getCacheKey(Survey.class, surveyGuid, createdOnString),
+                viewCache.getCacheKey(Survey.class, surveyGuid, PUBLISHED_KEY),
+                viewCache.getCacheKey(Survey.class, surveyGuid, MOSTRECENT_KEY)));
     }
     
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package controllers;
 
 import models.Metrics;
 
+import org.sagebionetworks.bridge.exceptions.ServiceUnavailableException;
 import org.sagebionetworks.bridge.models.accounts.UserSession;
 import org.sagebionetworks.bridge.models.studies.Study;
 import org.sagebionetworks.bridge.models.upload.Upload;
@@ -54,7 +55,9 @@ public class UploadController extends BaseController {
 
     /**
      * Signals to the Bridge server that the upload is complete. This kicks off the asynchronous validation process
-     * through the Upload Validation Service.
+     * through the Upload Validation Service, unless the upload is a duplicate of an earlier successful upload. If the
+     * validation queue is full, this returns a 503 with a Retry-After header, and the client should call this again
+     * later.
      */
     public Result uploadComplete(String uploadId) throws Exception {
 
@@ -65,15 +68,32 @@ public class UploadController extends BaseController {
 
         UserSession session = getAuthenticatedAndConsentedSession();
 
+        // Check the validation queue before marking the upload as complete, so we don't pile up work in memory.
+        if (!uploadValidationService.hasCapacity()) {
+            throw validationQueueFull(uploadId);
+        }
+
         // mark upload as complete
         Upload upload = uploadService.getUpload(session.getUser(), uploadId);
-        uploadService.uploadComplete(upload);
+        if (!uploadService.uploadComplete(upload)) {
+            // duplicate of an earlier upload, nothing to validate
+            return ok("Upload " + uploadId + " complete!");
+        }
 
-        // kick off upload validation
+        // Kick off upload validation. The queue may have filled up since we checked. Calling uploadComplete again for
+        // an upload that's already complete will still kick off validation, so it's safe to ask the client to retry.
         Study study = studyService.getStudy(session.getStudyIdentifier());
-        uploadValidationService.validateUpload(study, session.getUser(), upload);
+        if (!uploadValidationService.validateUpload(study, session.getUser(), upload)) {
+            throw validationQueueFull(uploadId);
+        }
 
         return ok("Upload " + uploadId + " complete!");
     }
 
+    private ServiceUnavailableException validationQueueFull(String uploadId) {
+        response().setHeader(RETRY_AFTER, bridgeConfig.getProperty("upload.validation.retry.after.seconds"));
+        return new ServiceUnavailableException("Upload validation queue is full. Please retry upload " + uploadId +
+                " complete later.");
+    }
+
 }
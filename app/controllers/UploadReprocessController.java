@@ -0,0 +1,47 @@
+package controllers;
+
+import javax.annotation.Resource;
+
+import org.sagebionetworks.bridge.models.upload.UploadReprocessRequest;
+import org.sagebionetworks.bridge.upload.UploadReprocessJob;
+import org.sagebionetworks.bridge.upload.UploadReprocessor;
+import org.springframework.stereotype.Controller;
+
+import play.mvc.Result;
+
+@Controller("uploadReprocessController")
+public class UploadReprocessController extends BaseController {
+
+    private UploadReprocessor uploadReprocessor;
+
+    @Resource(name = "uploadReprocessor")
+    public void setUploadReprocessor(UploadReprocessor uploadReprocessor) {
+        this.uploadReprocessor = uploadReprocessor;
+    }
+
+    /**
+     * Starts reprocessing the uploads in an upload date range, or a list of uploads, through the upload validation
+     * handlers. Re-submitting a job ID resumes that job from its checkpoint.
+     */
+    public Result startReprocessing() {
+        getAuthenticatedAdminSession();
+
+        UploadReprocessRequest request = parseJson(request(), UploadReprocessRequest.class);
+        UploadReprocessJob job = uploadReprocessor.submit(request);
+        return okResult(job);
+    }
+
+    /** Returns the progress and per-stage throughput of a reprocessing job on this server. */
+    public Result getReprocessingJob(String jobId) {
+        getAuthenticatedAdminSession();
+
+        return okResult(uploadReprocessor.getJob(jobId));
+    }
+
+    public Result cancelReprocessingJob(String jobId) {
+        getAuthenticatedAdminSession();
+
+        return okResult(uploadReprocessor.cancel(jobId));
+    }
+
+}
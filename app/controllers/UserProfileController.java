@@ -2,8 +2,8 @@ package controllers;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
-import org.sagebionetworks.bridge.BridgeConstants;
 import org.sagebionetworks.bridge.cache.ViewCache;
+import org.sagebionetworks.bridge.cache.ViewCache.CachedView;
 import org.sagebionetworks.bridge.cache.ViewCache.ViewCacheKey;
 import org.sagebionetworks.bridge.dao.ParticipantOption;
 import org.sagebionetworks.bridge.exceptions.InvalidEntityException;
@@ -48,12 +48,12 @@ public class UserProfileController extends BaseController {
         final Study study = studyService.getStudy(session.getStudyIdentifier());
         
         ViewCacheKey<UserProfile> cacheKey = viewCache.getCacheKey(UserProfile.class, session.getUser().getId(), study.getIdentifier());
-        String json = viewCache.getView(cacheKey, new Supplier<UserProfile>() {
+        CachedView view = viewCache.getCachedView(cacheKey, new Supplier<UserProfile>() {
             @Override public UserProfile get() {
                 return userProfileService.getProfile(study, session.getUser().getEmail());
             }
         });
-        return ok(json).as(BridgeConstants.JSON_MIME_TYPE);
+        return cachedViewResult(view);
     }
 
     public Result updateUserProfile() throws Exception {
@@ -12,6 +12,7 @@ import play.api.Application
 import play.api.GlobalSettings
 import play.api.Logger
 import play.api.http.ContentTypes.JSON
+import play.api.http.HeaderNames.CONTENT_ENCODING
 import play.api.http.HeaderNames.CONTENT_TYPE
 import play.api.http.HeaderNames.X_FORWARDED_PROTO
 import play.api.http.Status.MOVED_PERMANENTLY
@@ -32,8 +33,10 @@ object GlobalWithFilters extends WithFilters (
 
     CorsFilter,
 
+    // Responses that are already compressed, such as cached views, are passed through as is
     new GzipFilter(shouldGzip = (request, response) =>
-        response.headers.get(CONTENT_TYPE).exists(_.contains(JSON)))
+        response.headers.get(CONTENT_TYPE).exists(_.contains(JSON)) &&
+        response.headers.get(CONTENT_ENCODING).isEmpty)
 
   ) with GlobalSettings {
 
@@ -36,10 +36,17 @@ public class BridgeConstants {
     // 24 hrs after last activity
     public static final int BRIDGE_SESSION_EXPIRE_IN_SECONDS = 24 * 60 * 60;
 
+    // Sessions and cached studies are only touched when their TTL drops below this, so a busy session is touched at
+    // most once an hour, and expires 23 to 24 hrs after last activity
+    public static final int BRIDGE_SESSION_REFRESH_BELOW_SECONDS = BRIDGE_SESSION_EXPIRE_IN_SECONDS - 60 * 60;
+
     public static final int BRIDGE_UPDATE_ATTEMPT_EXPIRE_IN_SECONDS = 5 * 60;
     
     public static final int BRIDGE_VIEW_EXPIRE_IN_SECONDS = 5 * 60 * 60;
 
+    // Views are refreshed in the background, while the old view is still served, once they are an hour old
+    public static final int BRIDGE_VIEW_REFRESH_BELOW_SECONDS = BRIDGE_VIEW_EXPIRE_IN_SECONDS - 60 * 60;
+
     public static final String SCHEDULE_STRATEGY_PACKAGE = "org.sagebionetworks.bridge.models.schedules.";
 
     public static final String PHONE_ATTRIBUTE = "phone";
@@ -0,0 +1,77 @@
+package org.sagebionetworks.bridge.cache;
+
+import java.io.IOException;
+import javax.annotation.Nonnull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.sagebionetworks.bridge.json.BridgeObjectMapper;
+
+/**
+ * <p>
+ * Encodes values stored in Redis. Values are written as a version byte followed by Smile (binary JSON), which is
+ * smaller than JSON text and cheaper to parse. The Smile mapper has the same configuration as
+ * {@link BridgeObjectMapper}, so values round-trip exactly as they would through JSON.
+ * </p>
+ * <p>
+ * Values written as JSON text, by servers from before this codec, can still be read. JSON text always starts with a
+ * printable character, never with a version byte. While rolling this out, configure redis.cache.codec.smile as false
+ * until every server can read Smile, so servers that can't are never handed a Smile value.
+ * </p>
+ */
+public class CacheCodec {
+    /** Version byte for Smile values. */
+    /* package-scoped */ static final byte VERSION_SMILE_1 = 1;
+
+    private static final BridgeObjectMapper SMILE_MAPPER = new BridgeObjectMapper(new SmileFactory());
+
+    private final boolean writeSmile;
+
+    /**
+     * @param writeSmile
+     *         true to write values as versioned Smile, false to write JSON text (which every server can read)
+     */
+    public CacheCodec(boolean writeSmile) {
+        this.writeSmile = writeSmile;
+    }
+
+    /** Encodes the value. */
+    public byte[] encode(@Nonnull Object value) throws IOException {
+        if (!writeSmile) {
+            return BridgeObjectMapper.get().writeValueAsBytes(value);
+        }
+        byte[] smileBytes = SMILE_MAPPER.writeValueAsBytes(value);
+        byte[] bytes = new byte[smileBytes.length + 1];
+        bytes[0] = VERSION_SMILE_1;
+        System.arraycopy(smileBytes, 0, bytes, 1, smileBytes.length);
+        return bytes;
+    }
+
+    /** Decodes a value as the given class. */
+    public <T> T decode(@Nonnull byte[] bytes, @Nonnull Class<T> clazz) throws IOException {
+        ObjectMapper mapper = getMapper(bytes);
+        int offset = mapper == SMILE_MAPPER ? 1 : 0;
+        return mapper.readValue(bytes, offset, bytes.length - offset, clazz);
+    }
+
+    /** Decodes a value as a JSON tree, for classes that are deserialized by hand, like cached studies. */
+    public JsonNode decodeTree(@Nonnull byte[] bytes) throws IOException {
+        return decode(bytes, JsonNode.class);
+    }
+
+    private static ObjectMapper getMapper(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new IOException("Empty cache value");
+        }
+        if (bytes[0] == VERSION_SMILE_1) {
+            return SMILE_MAPPER;
+        }
+        if (bytes[0] >= 0 && bytes[0] < ' ' && bytes[0] != '\t' && bytes[0] != '\r' && bytes[0] != '\n') {
+            throw new IOException("Unknown cache value version " + bytes[0]);
+        }
+        // Legacy JSON text.
+        return BridgeObjectMapper.get();
+    }
+}
@@ -1,36 +1,120 @@
 package org.sagebionetworks.bridge.cache;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.sagebionetworks.bridge.BridgeConstants;
 import org.sagebionetworks.bridge.config.BridgeConfigFactory;
 import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
 import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
-import org.sagebionetworks.bridge.json.BridgeObjectMapper;
 import org.sagebionetworks.bridge.models.accounts.UserSession;
 import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
 import org.sagebionetworks.bridge.redis.JedisStringOps;
 import org.sagebionetworks.bridge.redis.RedisKey;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
 /**
+ * <p>
  * A wrapper around whatever cache provider we ultimately decide to go with (probably Redis). 
  * Assuming for the moment that we can store objects, by serialization if we have to.
+ * </p>
+ * <p>
+ * Studies are read on almost every request, so they are also cached in-process, in front of Redis, keyed by Redis
+ * key. Setting or removing a study invalidates it on every server through the {@link CacheInvalidationBus}, and a read
+ * that races the invalidation is never cached. Entries also expire after a minute, as a safety net for missed
+ * invalidations. The in-process cache holds its own copy of
+ * each study and hands out copies, so a caller changing a study never affects other requests.
+ * </p>
+ * <p>
+ * Sessions and studies are stored in Redis through the {@link CacheCodec}, as versioned Smile. Sessions and studies
+ * stored as JSON text by older servers can still be read.
+ * </p>
  */
 @Component
 public class CacheProvider {
-    
+
+    /** Name of the in-process study cache, for cache invalidation. Keys are study Redis keys. */
+    public static final String STUDY_CACHE_NAME = "study";
+
+    private static final long STUDY_CACHE_EXPIRE_SECONDS = 60;
+    private static final long STUDY_CACHE_MAX_SIZE = 1000;
+
+    // Deletes KEYS[1] if its value is ARGV[1]. Returns 1 if deleted, 0 if not.
+    private static final String REMOVE_IF_EQUALS_SCRIPT =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "    return redis.call('DEL', KEYS[1])\n" +
+            "end\n" +
+            "return 0";
+
+    /** A cached binary value and its remaining time-to-live. */
+    public static final class CachedBytes {
+        private final byte[] value;
+        private final long ttlSeconds;
+
+        public CachedBytes(byte[] value, long ttlSeconds) {
+            this.value = value;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        /** Remaining time-to-live in seconds, or a negative number if the value never expires. */
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+    }
+
+    private final Cache<String, StudyCacheEntry> studyCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(STUDY_CACHE_EXPIRE_SECONDS, TimeUnit.SECONDS).maximumSize(STUDY_CACHE_MAX_SIZE).build();
+
+    private CacheCodec codec = new CacheCodec(Boolean.parseBoolean(BridgeConfigFactory.getConfig().getProperty(
+            "redis.cache.codec.smile")));
     private JedisStringOps stringOps;
+    private CacheInvalidationBus cacheInvalidationBus;
 
     @Autowired
     public void setStringOps(JedisStringOps stringOps) {
         this.stringOps = stringOps;
     }
 
+    /** Codec for sessions and studies stored in Redis. Defaults to the configured codec. */
+    public void setCodec(CacheCodec codec) {
+        this.codec = codec;
+    }
+
+    /** Propagates study cache invalidations to other servers. This is configured by Spring. */
+    @Autowired
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        cacheInvalidationBus.addListener(STUDY_CACHE_NAME, new CacheInvalidationBus.Listener() {
+            @Override
+            public void invalidate(String key) {
+                studyCache.invalidate(key);
+            }
+
+            @Override
+            public void invalidateAll() {
+                studyCache.invalidateAll();
+            }
+        });
+    }
+
     public void setUserSession(String key, UserSession session) {
         try {
-            String ser = BridgeObjectMapper.get().writeValueAsString(session);
+            byte[] ser = codec.encode(session);
             String redisKey = RedisKey.SESSION.getRedisKey(key);
-            String result = stringOps.setex(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS, ser);
+            String result = stringOps.setexBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS, ser);
             if (!"OK".equals(result)) {
                 throw new BridgeServiceException("Session storage error");
             }
@@ -43,10 +127,10 @@ public class CacheProvider {
     public UserSession getUserSession(String key) {
         try {
             String redisKey = RedisKey.SESSION.getRedisKey(key);
-            String ser = stringOps.get(redisKey);
+            byte[] ser = stringOps.getAndTouchBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS,
+                    BridgeConstants.BRIDGE_SESSION_REFRESH_BELOW_SECONDS);
             if (ser != null) {
-                stringOps.expire(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS);
-                return BridgeObjectMapper.get().readValue(ser, UserSession.class);
+                return codec.decode(ser, UserSession.class);
             }
         } catch (Throwable e) {
             promptToStartRedisIfLocalEnv(e);
@@ -67,12 +151,18 @@ public class CacheProvider {
     
     public void setStudy(Study study) {
         try {
-            String ser = BridgeObjectMapper.get().writeValueAsString(study);
+            byte[] ser = codec.encode(study);
             String redisKey = RedisKey.STUDY.getRedisKey(study.getIdentifier());
-            String result = stringOps.setex(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS, ser);
+            String result = stringOps.setexBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS, ser);
             if (!"OK".equals(result)) {
                 throw new BridgeServiceException("Study storage error");
             }
+
+            // Other servers may have cached an older copy, for example one read while this study was being updated.
+            invalidateStudyCache(redisKey);
+            if (study instanceof DynamoStudy) {
+                studyCache.put(redisKey, new StudyCacheEntry(((DynamoStudy) study).copy()));
+            }
         } catch (Throwable e) {
             promptToStartRedisIfLocalEnv(e);
             throw new BridgeServiceException(e);
@@ -82,10 +172,18 @@ public class CacheProvider {
     public Study getStudy(String identifier) {
         try {
             String redisKey = RedisKey.STUDY.getRedisKey(identifier);
-            String ser = stringOps.get(redisKey);
+            StudyCacheEntry cacheEntry = getStudyCacheEntry(redisKey);
+            DynamoStudy cachedStudy = cacheEntry.study;
+            if (cachedStudy != null) {
+                return cachedStudy.copy();
+            }
+
+            byte[] ser = stringOps.getAndTouchBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS,
+                    BridgeConstants.BRIDGE_SESSION_REFRESH_BELOW_SECONDS);
             if (ser != null) {
-                stringOps.expire(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS);
-                return DynamoStudy.fromCacheJson(BridgeObjectMapper.get().readTree(ser));
+                DynamoStudy study = DynamoStudy.fromCacheJson(codec.decodeTree(ser));
+                cacheEntry.study = study.copy();
+                return study;
             }
         } catch (Throwable e) {
             promptToStartRedisIfLocalEnv(e);
@@ -98,6 +196,7 @@ public class CacheProvider {
         try {
             String redisKey = RedisKey.STUDY.getRedisKey(identifier);
             stringOps.delete(redisKey);
+            invalidateStudyCache(redisKey);
         } catch(Throwable e) {
             promptToStartRedisIfLocalEnv(e);
             throw new BridgeServiceException(e);
@@ -113,6 +212,50 @@ public class CacheProvider {
         }
     }
 
+    /** Gets a cached binary value, or null if it's not cached. */
+    public byte[] getBytes(String cacheKey) {
+        try {
+            return stringOps.getBytes(cacheKey);
+        } catch (Throwable e) {
+            promptToStartRedisIfLocalEnv(e);
+            throw new BridgeServiceException(e);
+        }
+    }
+
+    /** Gets a cached binary value and its remaining time-to-live in one round trip, or null if it's not cached. */
+    public CachedBytes getBytesAndTtl(String cacheKey) {
+        final byte[] redisKey = SafeEncoder.encode(cacheKey);
+        try {
+            List<Object> results = stringOps.pipeline(new JedisStringOps.PipelineCallback() {
+                @Override
+                public void queue(Pipeline pipeline) {
+                    pipeline.get(redisKey);
+                    pipeline.ttl(redisKey);
+                }
+            });
+            if (results == null || results.get(0) == null) {
+                return null;
+            }
+            return new CachedBytes((byte[]) results.get(0), (Long) results.get(1));
+        } catch (Throwable e) {
+            promptToStartRedisIfLocalEnv(e);
+            throw new BridgeServiceException(e);
+        }
+    }
+
+    /** Caches a binary value, such as a view, for as long as views are cached. */
+    public void setBytes(String cacheKey, byte[] value) {
+        try {
+            String result = stringOps.setexBytes(cacheKey, BridgeConstants.BRIDGE_VIEW_EXPIRE_IN_SECONDS, value);
+            if (!"OK".equals(result)) {
+                throw new BridgeServiceException("View storage error");
+            }
+        } catch (Throwable e) {
+            promptToStartRedisIfLocalEnv(e);
+            throw new BridgeServiceException(e);
+        }
+    }
+
     public void setString(String cacheKey, String value) {
         try {
             String result = stringOps.setex(cacheKey, BridgeConstants.BRIDGE_VIEW_EXPIRE_IN_SECONDS, value);
@@ -125,6 +268,16 @@ public class CacheProvider {
         }
     }
 
+    /** Caches the string for the given number of seconds, if it isn't already cached. Returns true if it was set. */
+    public boolean setStringIfAbsent(String cacheKey, String value, int expireInSeconds) {
+        try {
+            return "OK".equals(stringOps.setexIfAbsent(cacheKey, expireInSeconds, value));
+        } catch (Throwable e) {
+            promptToStartRedisIfLocalEnv(e);
+            throw new BridgeServiceException(e);
+        }
+    }
+
     public void removeString(String cacheKey) {
         try {
             stringOps.delete(cacheKey);
@@ -133,11 +286,71 @@ public class CacheProvider {
             throw new BridgeServiceException(e);
         }
     }
+
+    /**
+     * Removes the cached string only if its value is still the given value, in a single round trip. Returns true if
+     * it was removed. Use this to release something only its holder should release, like a lease that may have
+     * expired and been taken by someone else.
+     */
+    public boolean removeStringIfEquals(String cacheKey, String value) {
+        try {
+            Object result = stringOps.eval(REMOVE_IF_EQUALS_SCRIPT, ImmutableList.of(cacheKey),
+                    ImmutableList.of(value));
+            return Long.valueOf(1L).equals(result);
+        } catch(Throwable e) {
+            promptToStartRedisIfLocalEnv(e);
+            throw new BridgeServiceException(e);
+        }
+    }
     
+    /** Removes several cached strings with a single Redis command. */
+    public void removeStrings(List<String> cacheKeys) {
+        try {
+            stringOps.delete(cacheKeys);
+        } catch(Throwable e) {
+            promptToStartRedisIfLocalEnv(e);
+            throw new BridgeServiceException(e);
+        }
+    }
+
+    /**
+     * Gets the in-process cache entry for the given study, creating an empty one if needed. Reads write into the entry
+     * rather than into the cache, so if the entry is invalidated while a read is in flight, the read only writes to
+     * the orphaned entry and never resurrects a stale study.
+     */
+    private StudyCacheEntry getStudyCacheEntry(String redisKey) {
+        StudyCacheEntry cacheEntry = studyCache.getIfPresent(redisKey);
+        if (cacheEntry == null) {
+            StudyCacheEntry newEntry = new StudyCacheEntry(null);
+            cacheEntry = studyCache.asMap().putIfAbsent(redisKey, newEntry);
+            if (cacheEntry == null) {
+                cacheEntry = newEntry;
+            }
+        }
+        return cacheEntry;
+    }
+
+    private void invalidateStudyCache(String redisKey) {
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(STUDY_CACHE_NAME, redisKey);
+        } else {
+            studyCache.invalidate(redisKey);
+        }
+    }
+
     private void promptToStartRedisIfLocalEnv(Throwable e) {
         if (BridgeConfigFactory.getConfig().isLocal()) {
             throw new BridgeServiceException("Cannot find cache service, have you started a Redis server? (original message: "+e.getMessage()+")");
         }
     }
 
+    /** In-process cached study. Empty until the study is read. */
+    private static class StudyCacheEntry {
+        private volatile DynamoStudy study;
+
+        StudyCacheEntry(DynamoStudy study) {
+            this.study = study;
+        }
+    }
+
 }
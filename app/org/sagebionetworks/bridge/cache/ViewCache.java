@@ -1,7 +1,30 @@
 package org.sagebionetworks.bridge.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Resource;
+
+import org.sagebionetworks.bridge.BridgeConstants;
+import org.sagebionetworks.bridge.BridgeUtils;
+import org.sagebionetworks.bridge.config.BridgeConfigFactory;
 import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
 import org.sagebionetworks.bridge.json.BridgeObjectMapper;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
 import org.sagebionetworks.bridge.redis.RedisKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,13 +32,60 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+/**
+ * Caches the JSON of views in Redis. Views are also cached in-process, in front of Redis, keyed by Redis key. Removing
+ * a view invalidates it on every server through the {@link CacheInvalidationBus}, and a read that races the
+ * invalidation is never cached. Entries also expire after a minute, as a safety net for missed invalidations.
+ * <p>
+ * A popular view expiring or being removed must not send every request for it to the database at once. Concurrent
+ * misses for a view on one server share a single load, and across servers, only the server holding a short Redis
+ * lease loads it while the others wait for it to appear. Views an hour old are still served while a single caller
+ * refreshes them in the background, so busy views don't expire at all.
+ * <p>
+ * Views are stored in Redis gzipped, which also lets them be served to clients with Content-Encoding: gzip, without
+ * compressing them on every request. Plain JSON views, written by older servers or with view.cache.gzip turned off,
+ * can still be read.
+ */
 @Component
 public class ViewCache {
     
     private static final Logger logger = LoggerFactory.getLogger(ViewCache.class);
+
+    /** Name of the in-process view cache, for cache invalidation. Keys are view Redis keys. */
+    public static final String CACHE_NAME = "view";
+
+    private static final long CACHE_EXPIRE_SECONDS = 60;
+    private static final long CACHE_MAX_SIZE = 1000;
+
+    // A server loading a view holds a lease in Redis, so other servers wait for its view instead of loading their own.
+    // The lease expires in case that server dies.
+    private static final int LEASE_EXPIRE_IN_SECONDS = 10;
+    private static final long LEASE_WAIT_MILLIS = 2000;
+    private static final long LEASE_POLL_MILLIS = 50;
+
+    // The first two bytes of gzipped data. JSON text never starts with these.
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+
+    private final ConcurrentMap<String, FutureTask<CachedView>> inFlightLoads = new ConcurrentHashMap<>();
+    private long leaseWaitMillis = LEASE_WAIT_MILLIS;
+    private boolean gzipEnabled = Boolean.parseBoolean(BridgeConfigFactory.getConfig().getProperty(
+            "view.cache.gzip"));
+
+    private final Cache<String, ViewCacheEntry> localCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(CACHE_EXPIRE_SECONDS, TimeUnit.SECONDS).maximumSize(CACHE_MAX_SIZE).build();
     
     public final class ViewCacheKey<T> {
         private final String key;
@@ -27,32 +97,154 @@ public class ViewCache {
         }
     };
     
+    /**
+     * The JSON of a view, the same JSON gzipped, and its content hash as a weak HTTP ETag. The ETag is weak because
+     * the gzipped and plain responses carry the same one, and they aren't byte-for-byte the same. These are computed
+     * once, when the view is cached in-process, so requests neither gzip nor hash the JSON. The gzipped bytes are
+     * shared, so callers must not modify them.
+     */
+    public static final class CachedView {
+        private final String json;
+        private final byte[] gzippedJson;
+        private final String etag;
+
+        private CachedView(String json, byte[] gzippedJson) {
+            this.json = json;
+            this.gzippedJson = gzippedJson;
+            this.etag = "W/\"" + Hashing.md5().hashString(json, Charsets.UTF_8).toString() + "\"";
+        }
+
+        /** Creates the view from its JSON. */
+        static CachedView fromJson(String json) {
+            return new CachedView(json, gzip(json));
+        }
+
+        /**
+         * Creates the view from its form in Redis: gzipped JSON, or plain JSON, if it was written by an older server
+         * or with compression turned off.
+         */
+        static CachedView fromRedis(byte[] bytes) {
+            if (bytes.length >= 2 && (bytes[0] & 0xff) == GZIP_MAGIC_0 && (bytes[1] & 0xff) == GZIP_MAGIC_1) {
+                return new CachedView(gunzip(bytes), bytes);
+            }
+            return fromJson(new String(bytes, Charsets.UTF_8));
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public byte[] getGzippedJson() {
+            return gzippedJson;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        private static byte[] gzip(String json) {
+            try {
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream)) {
+                    gzipStream.write(json.getBytes(Charsets.UTF_8));
+                }
+                return byteStream.toByteArray();
+            } catch (IOException e) {
+                throw new BridgeServiceException(e);
+            }
+        }
+
+        private static String gunzip(byte[] bytes) {
+            try (InputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                return new String(ByteStreams.toByteArray(gzipStream), Charsets.UTF_8);
+            } catch (IOException e) {
+                throw new BridgeServiceException(e);
+            }
+        }
+    }
+
     private CacheProvider cache;
+    private CacheInvalidationBus cacheInvalidationBus;
+    private ExecutorService executorService = MoreExecutors.sameThreadExecutor();
     
     @Autowired
     public void setCacheProvider(CacheProvider cacheProvider) {
         this.cache = cacheProvider;
     }
+
+    /** Executor for refreshing stale views in the background. This is configured by Spring. */
+    @Resource(name = "viewCacheExecutorService")
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * True to store views in Redis gzipped, false to store them as plain JSON. This is package-scoped for unit tests.
+     */
+    /* package-scoped */ void setGzipEnabled(boolean gzipEnabled) {
+        this.gzipEnabled = gzipEnabled;
+    }
+
+    /** How long to wait for another server's view, on a cache miss. This is package-scoped for unit tests. */
+    /* package-scoped */ void setLeaseWaitMillis(long leaseWaitMillis) {
+        this.leaseWaitMillis = leaseWaitMillis;
+    }
+
+    /** Propagates view cache invalidations to other servers. This is configured by Spring. */
+    @Autowired
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        cacheInvalidationBus.addListener(CACHE_NAME, new CacheInvalidationBus.Listener() {
+            @Override
+            public void invalidate(String key) {
+                localCache.invalidate(key);
+            }
+
+            @Override
+            public void invalidateAll() {
+                localCache.invalidateAll();
+            }
+        });
+    }
     
     /**
      * Get the JSON for the viewCacheKey, or if nothing has been cached, call the supplier, 
-     * cache the JSON representation of the object returned, and return that JSON.
+     * cache the JSON representation of the object returned, and return that JSON. Once the
+     * cached JSON is an hour old, it is still returned, but is refreshed in the background.
      * @param key
      * @param supplier
      * @return
      */
     public <T> String getView(ViewCacheKey<T> key, Supplier<T> supplier) {
-        try {
-            String value = cache.getString(key.getKey());
-            if (value == null) {
-                value = cacheView(key, supplier);
-            } else {
-                logger.debug("Retrieving " +key.getKey()+"' JSON from cache");
+        return getCachedView(key, supplier).getJson();
+    }
+
+    /**
+     * Get the view for the viewCacheKey, as with {@link #getView}, along with its ETag.
+     * @param key
+     * @param supplier
+     * @return
+     */
+    public <T> CachedView getCachedView(ViewCacheKey<T> key, Supplier<T> supplier) {
+        ViewCacheEntry cacheEntry = getCacheEntry(key.getKey());
+        CachedView view = cacheEntry.view;
+        if (view != null) {
+            return view;
+        }
+
+        CacheProvider.CachedBytes cached = cache.getBytesAndTtl(key.getKey());
+        if (cached == null) {
+            view = loadView(key, supplier);
+        } else {
+            logger.debug("Retrieving " +key.getKey()+"' JSON from cache");
+            view = CachedView.fromRedis(cached.getValue());
+            long ttlSeconds = cached.getTtlSeconds();
+            if (ttlSeconds >= 0 && ttlSeconds < BridgeConstants.BRIDGE_VIEW_REFRESH_BELOW_SECONDS) {
+                refreshView(key, supplier);
             }
-            return value;
-        } catch(JsonProcessingException e) {
-            throw new BridgeServiceException(e);
         }
+        cacheEntry.view = view;
+        return view;
     }
 
     /**
@@ -62,6 +254,31 @@ public class ViewCache {
     public <T> void removeView(ViewCacheKey<T> key) {
         logger.debug("Deleting JSON for '" +key.getKey() +"'");
         cache.removeString(key.getKey());
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(CACHE_NAME, key.getKey());
+        } else {
+            localCache.invalidate(key.getKey());
+        }
+    }
+    
+    /**
+     * Remove the JSON for several views at once, with a single Redis command.
+     * @param keys
+     */
+    public void removeViews(List<ViewCacheKey<?>> keys) {
+        List<String> redisKeys = Lists.newArrayListWithCapacity(keys.size());
+        for (ViewCacheKey<?> oneKey : keys) {
+            redisKeys.add(oneKey.getKey());
+        }
+        logger.debug("Deleting JSON for " + redisKeys);
+        cache.removeStrings(redisKeys);
+        for (String oneRedisKey : redisKeys) {
+            if (cacheInvalidationBus != null) {
+                cacheInvalidationBus.invalidate(CACHE_NAME, oneRedisKey);
+            } else {
+                localCache.invalidate(oneRedisKey);
+            }
+        }
     }
     
     /**
@@ -76,12 +293,162 @@ public class ViewCache {
         return new ViewCacheKey<T>(RedisKey.VIEW.getRedisKey(id + ":" + clazz.getName()));
     }
     
-    private <T> String cacheView(ViewCacheKey<T> key, Supplier<T> supplier) throws JsonProcessingException {
+    /**
+     * Gets the in-process cache entry for the given view, creating an empty one if needed. Reads write into the entry
+     * rather than into the cache, so if the entry is invalidated while a read is in flight, the read only writes to
+     * the orphaned entry and never resurrects a removed view.
+     */
+    private ViewCacheEntry getCacheEntry(String redisKey) {
+        ViewCacheEntry cacheEntry = localCache.getIfPresent(redisKey);
+        if (cacheEntry == null) {
+            ViewCacheEntry newEntry = new ViewCacheEntry();
+            cacheEntry = localCache.asMap().putIfAbsent(redisKey, newEntry);
+            if (cacheEntry == null) {
+                cacheEntry = newEntry;
+            }
+        }
+        return cacheEntry;
+    }
+
+    /**
+     * Loads the view on a cache miss. Concurrent misses for the same key on this server share a single load. Across
+     * servers, the server that takes the Redis loading lease loads the view, while the others wait for it to appear
+     * in Redis, up to a limit.
+     */
+    private <T> CachedView loadView(ViewCacheKey<T> key, Supplier<T> supplier) {
+        FutureTask<CachedView> task = newLoadTask(key, supplier, false);
+        FutureTask<CachedView> inFlightTask = inFlightLoads.putIfAbsent(key.getKey(), task);
+        if (inFlightTask == null) {
+            runLoadTask(key, task);
+            inFlightTask = task;
+        }
+        CachedView view = getLoadResult(inFlightTask);
+        if (view == null) {
+            // We joined a background refresh that found the view removed out from under it.
+            FutureTask<CachedView> retryTask = newLoadTask(key, supplier, false);
+            retryTask.run();
+            view = getLoadResult(retryTask);
+        }
+        return view;
+    }
+
+    /**
+     * Refreshes a stale view in the background, unless this server is already loading it, or another server holds
+     * the loading lease.
+     */
+    private <T> void refreshView(final ViewCacheKey<T> key, Supplier<T> supplier) {
+        final FutureTask<CachedView> task = newLoadTask(key, supplier, true);
+        if (inFlightLoads.putIfAbsent(key.getKey(), task) != null) {
+            return;
+        }
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runLoadTask(key, task);
+                    try {
+                        task.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        logger.warn("Could not refresh " + key.getKey() + ": " + e.getCause().getMessage(),
+                                e.getCause());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down. The stale view is served until the next request.
+            inFlightLoads.remove(key.getKey(), task);
+        }
+    }
+
+    private <T> FutureTask<CachedView> newLoadTask(final ViewCacheKey<T> key, final Supplier<T> supplier,
+            final boolean refresh) {
+        return new FutureTask<>(new Callable<CachedView>() {
+            @Override
+            public CachedView call() throws Exception {
+                return loadViewWithLease(key, supplier, refresh);
+            }
+        });
+    }
+
+    private <T> void runLoadTask(ViewCacheKey<T> key, FutureTask<CachedView> task) {
+        try {
+            task.run();
+        } finally {
+            inFlightLoads.remove(key.getKey(), task);
+        }
+    }
+
+    private static CachedView getLoadResult(Future<CachedView> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new BridgeServiceException(e.getCause());
+        }
+    }
+
+    /**
+     * Takes the Redis loading lease, then loads and caches the view. If another server holds the lease, a refresh
+     * returns the view currently cached, and a load on a cache miss waits for the other server's view.
+     */
+    private <T> CachedView loadViewWithLease(ViewCacheKey<T> key, Supplier<T> supplier, boolean refresh)
+            throws JsonProcessingException {
+        // The lease holds a token unique to this load, so we only ever release our own lease, never one another server
+        // took after ours expired.
+        String leaseKey = RedisKey.VIEW_LEASE.getRedisKey(key.getKey());
+        String leaseToken = BridgeUtils.generateGuid();
+        boolean leased = cache.setStringIfAbsent(leaseKey, leaseToken, LEASE_EXPIRE_IN_SECONDS);
+        if (!leased) {
+            if (refresh) {
+                byte[] bytes = cache.getBytes(key.getKey());
+                return bytes != null ? CachedView.fromRedis(bytes) : null;
+            }
+            CachedView view = waitForView(key);
+            if (view != null) {
+                return view;
+            }
+            // The other server is slow or failed. Load the view ourselves.
+        }
+        try {
+            return cacheView(key, supplier);
+        } finally {
+            if (leased) {
+                cache.removeStringIfEquals(leaseKey, leaseToken);
+            }
+        }
+    }
+
+    private <T> CachedView waitForView(ViewCacheKey<T> key) {
+        long deadline = System.currentTimeMillis() + leaseWaitMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LEASE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            byte[] bytes = cache.getBytes(key.getKey());
+            if (bytes != null) {
+                return CachedView.fromRedis(bytes);
+            }
+        }
+        return null;
+    }
+
+    private <T> CachedView cacheView(ViewCacheKey<T> key, Supplier<T> supplier) throws JsonProcessingException {
         logger.debug("Caching JSON for " +key.getKey()+"'");
         T object = supplier.get();
-        String value = BridgeObjectMapper.get().writeValueAsString(object);
-        cache.setString(key.getKey(), value);
-        return value;
+        String json = BridgeObjectMapper.get().writeValueAsString(object);
+        CachedView view = CachedView.fromJson(json);
+        cache.setBytes(key.getKey(), gzipEnabled ? view.getGzippedJson() : json.getBytes(Charsets.UTF_8));
+        return view;
     }
     
+
+    /** In-process cached view. Empty until the view is read. */
+    private static class ViewCacheEntry {
+        private volatile CachedView view;
+    }
 }
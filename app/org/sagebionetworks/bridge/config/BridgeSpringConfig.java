@@ -1,14 +1,21 @@
 package org.sagebionetworks.bridge.config;
 
+import java.io.File;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
 import org.sagebionetworks.bridge.crypto.AesGcmEncryptor;
 import org.sagebionetworks.bridge.crypto.CmsEncryptor;
 import org.sagebionetworks.bridge.crypto.CmsEncryptorCacheLoader;
+import org.sagebionetworks.bridge.crypto.CmsEncryptorCachePreloader;
+import org.sagebionetworks.bridge.dao.DistributedLockDao;
+import org.sagebionetworks.bridge.dao.HealthCodeDao;
+import org.sagebionetworks.bridge.dao.UploadDao;
 import org.sagebionetworks.bridge.dynamodb.DynamoHealthDataAttachment;
 import org.sagebionetworks.bridge.dynamodb.DynamoHealthDataRecord;
 import org.sagebionetworks.bridge.dynamodb.DynamoIndexHelper;
@@ -18,15 +25,24 @@ import org.sagebionetworks.bridge.dynamodb.DynamoTaskEvent;
 import org.sagebionetworks.bridge.dynamodb.DynamoUpload2;
 import org.sagebionetworks.bridge.dynamodb.DynamoUploadSchema;
 import org.sagebionetworks.bridge.dynamodb.TableNameOverrideFactory;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
+import org.sagebionetworks.bridge.redis.RedisLeaseQueue;
 import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.services.StudyService;
 import org.sagebionetworks.bridge.upload.DecryptHandler;
+import org.sagebionetworks.bridge.upload.DurableUploadValidationQueue;
 import org.sagebionetworks.bridge.upload.IosSchemaValidationHandler2;
 import org.sagebionetworks.bridge.upload.ParseJsonHandler;
 import org.sagebionetworks.bridge.upload.S3DownloadHandler;
+import org.sagebionetworks.bridge.upload.StreamingUnpackHandler;
 import org.sagebionetworks.bridge.upload.TranscribeConsentHandler;
 import org.sagebionetworks.bridge.upload.UnzipHandler;
 import org.sagebionetworks.bridge.upload.UploadArtifactsHandler;
+import org.sagebionetworks.bridge.upload.UploadPayloadMemoryBudget;
+import org.sagebionetworks.bridge.upload.UploadReprocessor;
 import org.sagebionetworks.bridge.upload.UploadValidationHandler;
+import org.sagebionetworks.bridge.upload.UploadValidationScheduler;
+import org.sagebionetworks.bridge.upload.UploadValidationTaskFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -49,6 +65,7 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.stormpath.sdk.api.ApiKey;
@@ -132,16 +149,116 @@ public class BridgeSpringConfig {
         return Executors.newFixedThreadPool(bridgeConfig.getPropertyAsInt("async.worker.thread.count"));
     }
 
+    @Bean(name = "viewCacheExecutorService", destroyMethod = "shutdownNow")
+    @Resource(name = "bridgeConfig")
+    public ExecutorService viewCacheExecutorService(BridgeConfig bridgeConfig) {
+        // Refreshes stale views in ViewCache. At most one refresh per view is queued at a time.
+        return Executors.newFixedThreadPool(bridgeConfig.getPropertyAsInt("view.cache.refresh.threads"));
+    }
+
+    @Bean(name = "uploadValidationScheduler", destroyMethod = "shutdown")
+    @Resource(name = "bridgeConfig")
+    public UploadValidationScheduler uploadValidationScheduler(BridgeConfig bridgeConfig) {
+        return new UploadValidationScheduler(bridgeConfig.getPropertyAsInt("upload.validation.worker.count"),
+                bridgeConfig.getPropertyAsInt("upload.validation.queue.max"),
+                bridgeConfig.getPropertyAsInt("upload.validation.study.concurrency"));
+    }
+
+    @Bean(name = "durableUploadValidationQueue", initMethod = "start", destroyMethod = "shutdown")
+    @Autowired
+    public DurableUploadValidationQueue durableUploadValidationQueue(BridgeConfig bridgeConfig,
+            JedisStringOps stringOps, UploadValidationScheduler uploadValidationScheduler, StudyService studyService,
+            UploadDao uploadDao, UploadValidationTaskFactory uploadValidationTaskFactory) {
+        RedisLeaseQueue leaseQueue = new RedisLeaseQueue(DurableUploadValidationQueue.QUEUE_NAME, stringOps,
+                bridgeConfig.getPropertyAsInt("upload.validation.queue.lease.seconds"),
+                bridgeConfig.getPropertyAsInt("upload.validation.queue.max.attempts"));
+        DurableUploadValidationQueue queue = new DurableUploadValidationQueue(leaseQueue, uploadValidationScheduler,
+                bridgeConfig.getPropertyAsInt("upload.validation.queue.durable.max"),
+                Boolean.parseBoolean(bridgeConfig.getProperty("upload.validation.queue.durable")),
+                Boolean.parseBoolean(bridgeConfig.getProperty("upload.validation.queue.worker.enabled")),
+                bridgeConfig.getPropertyAsInt("upload.validation.queue.poll.millis"));
+        queue.setStudyService(studyService);
+        queue.setUploadDao(uploadDao);
+        queue.setTaskFactory(uploadValidationTaskFactory);
+        return queue;
+    }
+
+    @Bean(name = "uploadReprocessor", destroyMethod = "shutdown")
+    @Autowired
+    public UploadReprocessor uploadReprocessor(BridgeConfig bridgeConfig, DistributedLockDao lockDao,
+            HealthCodeDao healthCodeDao, StudyService studyService, JedisStringOps stringOps, UploadDao uploadDao,
+            UploadValidationTaskFactory uploadValidationTaskFactory) {
+        UploadReprocessor reprocessor = new UploadReprocessor(
+                bridgeConfig.getPropertyAsInt("upload.reprocess.worker.count"),
+                bridgeConfig.getPropertyAsInt("upload.reprocess.ddb.ops.per.second"));
+        reprocessor.setLockDao(lockDao);
+        reprocessor.setHealthCodeDao(healthCodeDao);
+        reprocessor.setStudyService(studyService);
+        reprocessor.setStringOps(stringOps);
+        reprocessor.setUploadDao(uploadDao);
+        reprocessor.setTaskFactory(uploadValidationTaskFactory);
+        return reprocessor;
+    }
+
+    @Bean(name = "uploadAttachmentExecutorService")
+    @Resource(name = "bridgeConfig")
+    public ExecutorService uploadAttachmentExecutorService(BridgeConfig bridgeConfig) {
+        // Bounded I/O pool for S3 attachment puts, shared by all upload validation workers
+        return Executors.newFixedThreadPool(bridgeConfig.getPropertyAsInt("upload.attachment.thread.count"));
+    }
+
+    @Bean(name = "uploadJsonParsePool")
+    @Resource(name = "bridgeConfig")
+    public ForkJoinPool uploadJsonParsePool(BridgeConfig bridgeConfig) {
+        return new ForkJoinPool(bridgeConfig.getPropertyAsInt("upload.json.parse.parallelism"));
+    }
+
+    @Bean(name = "uploadPayloadMemoryBudget")
+    @Resource(name = "bridgeConfig")
+    public UploadPayloadMemoryBudget uploadPayloadMemoryBudget(BridgeConfig bridgeConfig) {
+        // Shared by all upload validation workers in uploadValidationScheduler
+        UploadPayloadMemoryBudget budget = new UploadPayloadMemoryBudget(
+                Long.parseLong(bridgeConfig.getProperty("upload.payload.memory.budget")),
+                bridgeConfig.getPropertyAsInt("upload.payload.spill.threshold"),
+                new File(bridgeConfig.getProperty("upload.payload.spill.dir")));
+        budget.deleteStaleSpillFiles();
+        return budget;
+    }
+
     @Bean(name = "supportEmail")
     @Resource(name = "bridgeConfig")
     public String supportEmail(BridgeConfig bridgeConfig) {
         return bridgeConfig.getProperty("support.email");
     }
 
+    @Bean(name = "cmsEncryptorExecutorService", destroyMethod = "shutdownNow")
+    @Resource(name = "bridgeConfig")
+    public ExecutorService cmsEncryptorExecutorService(BridgeConfig bridgeConfig) {
+        // Loads CMS encryptors from S3, for warming and for refreshing the encryptor cache
+        return Executors.newFixedThreadPool(bridgeConfig.getPropertyAsInt("upload.cms.cache.load.threads"));
+    }
+
     @Bean(name = "cmsEncryptorCache")
     @Autowired
-    public LoadingCache<String, CmsEncryptor> cmsEncryptorCache(CmsEncryptorCacheLoader cacheLoader) {
-        return CacheBuilder.newBuilder().build(cacheLoader);
+    public LoadingCache<String, CmsEncryptor> cmsEncryptorCache(BridgeConfig bridgeConfig,
+            CmsEncryptorCacheLoader cacheLoader) {
+        // Refresh in the background, so rotated keys are picked up without reads ever blocking on S3. If a refresh
+        // fails, the old encryptor is kept. Studies nobody uploads to eventually drop out.
+        return CacheBuilder.newBuilder()
+                .refreshAfterWrite(bridgeConfig.getPropertyAsInt("upload.cms.cache.refresh.minutes"), TimeUnit.MINUTES)
+                .expireAfterAccess(bridgeConfig.getPropertyAsInt("upload.cms.cache.expire.hours"), TimeUnit.HOURS)
+                .recordStats()
+                .build(CacheLoader.asyncReload(cacheLoader, cmsEncryptorExecutorService(bridgeConfig)));
+    }
+
+    @Bean(name = "cmsEncryptorCachePreloader", initMethod = "start")
+    @Autowired
+    public CmsEncryptorCachePreloader cmsEncryptorCachePreloader(BridgeConfig bridgeConfig,
+            LoadingCache<String, CmsEncryptor> cmsEncryptorCache, StudyService studyService) {
+        CmsEncryptorCachePreloader preloader = new CmsEncryptorCachePreloader(cmsEncryptorCache,
+                cmsEncryptorExecutorService(bridgeConfig));
+        preloader.setStudyService(studyService);
+        return preloader;
     }
 
     @Bean(name = "healthDataAttachmentDdbMapper")
@@ -267,11 +384,18 @@ public class BridgeSpringConfig {
 
     @Bean(name = "uploadValidationHandlerList")
     @Autowired
-    public List<UploadValidationHandler> uploadValidationHandlerList(S3DownloadHandler s3DownloadHandler,
-            DecryptHandler decryptHandler, UnzipHandler unzipHandler, ParseJsonHandler parseJsonHandler,
+    public List<UploadValidationHandler> uploadValidationHandlerList(BridgeConfig bridgeConfig,
+            S3DownloadHandler s3DownloadHandler, DecryptHandler decryptHandler, UnzipHandler unzipHandler,
+            ParseJsonHandler parseJsonHandler, StreamingUnpackHandler streamingUnpackHandler,
             IosSchemaValidationHandler2 iosSchemaValidationHandler2, TranscribeConsentHandler transcribeConsentHandler,
             UploadArtifactsHandler uploadArtifactsHandler) {
 
+        // In streaming mode, download, decrypt, unzip, and parse JSON are chained in a single handler, so the raw and
+        // decrypted archives are never held in memory.
+        if (Boolean.parseBoolean(bridgeConfig.getProperty("upload.validation.streaming"))) {
+            return ImmutableList.of(streamingUnpackHandler, iosSchemaValidationHandler2, transcribeConsentHandler,
+                    uploadArtifactsHandler);
+        }
         return ImmutableList.of(s3DownloadHandler, decryptHandler, unzipHandler, parseJsonHandler,
                 iosSchemaValidationHandler2, transcribeConsentHandler, uploadArtifactsHandler);
     }
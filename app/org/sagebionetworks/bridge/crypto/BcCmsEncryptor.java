@@ -3,33 +3,40 @@ package org.sagebionetworks.bridge.crypto;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.PrivateKey;
 import java.security.Security;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 
-import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.CMSEnvelopedData;
 import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
+import org.bouncycastle.cms.CMSEnvelopedDataParser;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSTypedData;
-import org.bouncycastle.cms.KeyTransRecipientId;
+import org.bouncycastle.cms.CMSTypedStream;
 import org.bouncycastle.cms.Recipient;
 import org.bouncycastle.cms.RecipientId;
 import org.bouncycastle.cms.RecipientInfoGenerator;
 import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.RecipientInformationStore;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
 import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.OutputEncryptor;
 
+/**
+ * CMS encryptor backed by Bouncy Castle. The recipient identity and recipient for decryption are computed once, when
+ * the encryptor is created, rather than on every call, since encryptors are cached per study.
+ */
 public final class BcCmsEncryptor implements CmsEncryptor {
 
     private final CMSEnvelopedDataGenerator generator;
-    private final X509Certificate cert;
-    private final PrivateKey privateKey;
+    private final RecipientId recipientId;
+    private final Recipient recipient;
 
     public BcCmsEncryptor(X509Certificate cert, PrivateKey privateKey) throws CertificateEncodingException {
         checkNotNull(cert);
@@ -39,8 +46,8 @@ public final class BcCmsEncryptor implements CmsEncryptor {
         RecipientInfoGenerator recipientInfoGenerator =
                 new JceKeyTransRecipientInfoGenerator(cert).setProvider(BcCmsConstants.PROVIDER);
         generator.addRecipientInfoGenerator(recipientInfoGenerator);
-        this.cert = cert;
-        this.privateKey = privateKey;
+        recipientId = new JceKeyTransRecipientId(cert);
+        recipient = new JceKeyTransEnvelopedRecipient(privateKey);
     }
 
     @Override
@@ -58,11 +65,26 @@ public final class BcCmsEncryptor implements CmsEncryptor {
     public byte[] decrypt(byte[] bytes) throws CMSException, CertificateEncodingException, IOException {
         checkNotNull(bytes);
         CMSEnvelopedData envelopedData = new CMSEnvelopedData(bytes);
-        X509CertificateHolder certHolder = new X509CertificateHolder(cert.getEncoded());
-        RecipientId recipientId = new KeyTransRecipientId(certHolder.getIssuer(), certHolder.getSerialNumber());
-        RecipientInformation recInfo = envelopedData.getRecipientInfos().get(recipientId);
-        Recipient recipient = new JceKeyTransEnvelopedRecipient(privateKey);
+        RecipientInformation recInfo = getRecipientInfo(envelopedData.getRecipientInfos());
         byte[] decrypted = recInfo.getContent(recipient);
         return decrypted;
     }
+
+    @Override
+    public InputStream decrypt(InputStream stream) throws CMSException, CertificateEncodingException, IOException {
+        checkNotNull(stream);
+        CMSEnvelopedDataParser envelopedDataParser = new CMSEnvelopedDataParser(stream);
+        RecipientInformation recInfo = getRecipientInfo(envelopedDataParser.getRecipientInfos());
+        CMSTypedStream decryptedStream = recInfo.getContentStream(recipient);
+        return decryptedStream.getContentStream();
+    }
+
+    // Finds the recipient info for this encryptor's certificate.
+    private RecipientInformation getRecipientInfo(RecipientInformationStore recipientInfoStore) throws CMSException {
+        RecipientInformation recInfo = recipientInfoStore.get(recipientId);
+        if (recInfo == null) {
+            throw new CMSException("No recipient info found for this encryptor's certificate");
+        }
+        return recInfo;
+    }
 }
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.crypto;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.cert.CertificateEncodingException;
 
 import org.bouncycastle.cms.CMSException;
@@ -13,4 +14,10 @@ public interface CmsEncryptor {
     byte[] encrypt(byte[] bytes) throws CMSException, IOException;
 
     byte[] decrypt(byte[] bytes) throws CMSException, CertificateEncodingException, IOException;
+
+    /**
+     * Decrypts the given CMS stream. The returned stream yields the decrypted content as the encrypted stream is
+     * read, so the full payload is never held in memory. The caller is responsible for closing the source stream.
+     */
+    InputStream decrypt(InputStream stream) throws CMSException, CertificateEncodingException, IOException;
 }
@@ -0,0 +1,131 @@
+package org.sagebionetworks.bridge.crypto;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.services.StudyService;
+
+/**
+ * Warms the CMS encryptor cache at startup, so the first upload for each study after a deploy doesn't block on S3 and
+ * PEM parsing. Studies are loaded in parallel on the given executor, in the background, so startup isn't held up
+ * either. Uploads that arrive for a study before it's warmed simply load it themselves, and the cache makes sure it's
+ * only loaded once.
+ */
+public class CmsEncryptorCachePreloader {
+    private static final Logger logger = LoggerFactory.getLogger(CmsEncryptorCachePreloader.class);
+
+    private final LoadingCache<String, CmsEncryptor> cmsEncryptorCache;
+    private final ExecutorService executorService;
+
+    private final AtomicInteger studyCount = new AtomicInteger();
+    private final AtomicInteger loadedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicInteger remainingCount = new AtomicInteger();
+    private final AtomicLong durationMillis = new AtomicLong(-1);
+
+    private StudyService studyService;
+
+    /**
+     * Creates the preloader. Call {@link #start} to start warming the cache.
+     *
+     * @param cmsEncryptorCache
+     *         cache to warm, must be non-null
+     * @param executorService
+     *         executor to load encryptors on, must be non-null. This is shared with the cache's asynchronous refresh.
+     */
+    public CmsEncryptorCachePreloader(@Nonnull LoadingCache<String, CmsEncryptor> cmsEncryptorCache,
+            @Nonnull ExecutorService executorService) {
+        this.cmsEncryptorCache = Preconditions.checkNotNull(cmsEncryptorCache);
+        this.executorService = Preconditions.checkNotNull(executorService);
+    }
+
+    /** Study service, used to list the studies to warm. This is configured by Spring. */
+    public void setStudyService(StudyService studyService) {
+        this.studyService = studyService;
+    }
+
+    /** Lists all studies and loads their encryptors in the background. */
+    public void start() {
+        final long startMillis = System.currentTimeMillis();
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Study> studyList;
+                try {
+                    studyList = studyService.getStudies();
+                } catch (RuntimeException ex) {
+                    logger.error("Could not list studies to warm CMS encryptor cache: " + ex.getMessage(), ex);
+                    return;
+                }
+
+                studyCount.set(studyList.size());
+                remainingCount.set(studyList.size());
+                if (studyList.isEmpty()) {
+                    durationMillis.set(System.currentTimeMillis() - startMillis);
+                    return;
+                }
+                for (Study oneStudy : studyList) {
+                    submitLoad(oneStudy.getIdentifier(), startMillis);
+                }
+            }
+        });
+    }
+
+    private void submitLoad(final String studyId, final long startMillis) {
+        Runnable loadTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cmsEncryptorCache.get(studyId);
+                    loadedCount.incrementAndGet();
+                } catch (Exception ex) {
+                    // Uploads for this study will retry the load on demand.
+                    failedCount.incrementAndGet();
+                    logger.warn("Could not warm CMS encryptor for study " + studyId + ": " + ex.getMessage(), ex);
+                } finally {
+                    if (remainingCount.decrementAndGet() == 0) {
+                        durationMillis.set(System.currentTimeMillis() - startMillis);
+                        logger.info(String.format("Warmed CMS encryptor cache: %d loaded, %d failed, %d ms",
+                                loadedCount.get(), failedCount.get(), durationMillis.get()));
+                    }
+                }
+            }
+        };
+        try {
+            executorService.execute(loadTask);
+        } catch (RejectedExecutionException ex) {
+            // Shutting down.
+            remainingCount.decrementAndGet();
+        }
+    }
+
+    /** Number of studies to warm, or 0 if the studies haven't been listed yet. */
+    public int getStudyCount() {
+        return studyCount.get();
+    }
+
+    /** Number of study encryptors warmed. */
+    public int getLoadedCount() {
+        return loadedCount.get();
+    }
+
+    /** Number of study encryptors that could not be warmed. */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /** How long warming took, in milliseconds, or -1 if it hasn't finished. */
+    public long getDurationMillis() {
+        return durationMillis.get();
+    }
+}
@@ -31,6 +31,12 @@ public interface BackfillDao {
      */
     List<? extends BackfillTask> getTasks(String taskName, long since);
 
+    /**
+     * Gets the most recent task of the specified name with the specified status, however long ago it started.
+     * Returns null if there is no such task.
+     */
+    BackfillTask getLatestTask(String taskName, BackfillStatus status);
+
     /**
      * Creates a new backfill record for the specified task.
      */
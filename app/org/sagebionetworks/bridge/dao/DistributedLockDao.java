@@ -1,7 +1,7 @@
 package org.sagebionetworks.bridge.dao;
 
 /**
- * Lock on an identifier for any specific class of system objects 
+ * Lock on an identifier for any specific class of system objects
  * (thought to make this BridgeEntity but that's not used systematically
  * at this point).
  */
@@ -11,5 +11,36 @@ public interface DistributedLockDao {
 
     String acquireLock(Class<?> clazz, String identifier, int expireInSeconds);
 
+    /**
+     * Same as {@link #acquireLock(Class, String, int)}, but if the lock is held, retries with backoff until the lock
+     * is acquired or waitMillis have passed. Throws ConcurrentModificationException if the lock is still held.
+     */
+    String acquireLock(Class<?> clazz, String identifier, int expireInSeconds, long waitMillis);
+
+    /**
+     * Resets the lock to expire in expireInSeconds, if it is still held by the given lock. Returns false if the lock
+     * has expired or is held by someone else.
+     */
+    boolean renewLock(Class<?> clazz, String identifier, String lock, int expireInSeconds);
+
+    /**
+     * Keeps renewing the lock in the background, to expire in expireInSeconds, until it's released. This is for tasks
+     * that run longer than a lock should be held if the server holding it dies.
+     */
+    void startRenewal(Class<?> clazz, String identifier, String lock, int expireInSeconds);
+
+    /**
+     * Same as {@link #startRenewal(Class, String, String, int)}, but calls onLockLost if the lock is found to have
+     * expired or been taken by someone else. The holder should stop work it can no longer safely do. onLockLost is
+     * called once, on the renewal thread, so it must not block.
+     */
+    void startRenewal(Class<?> clazz, String identifier, String lock, int expireInSeconds, Runnable onLockLost);
+
+    /**
+     * Fencing token of the lock. Each time a lock is acquired on an identifier, it gets a higher token than the last
+     * time, so storage that records the token can reject writes from a holder whose lock has since expired.
+     */
+    long getFencingToken(String lock);
+
     boolean releaseLock(Class<?> clazz, String identifier, String lock);
 }
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.dao;
 
 import javax.annotation.Nonnull;
+import java.util.List;
 
 import org.sagebionetworks.bridge.models.healthdata.HealthDataAttachment;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataAttachmentBuilder;
@@ -18,6 +19,17 @@ public interface HealthDataAttachmentDao {
      */
     String createOrUpdateAttachment(@Nonnull HealthDataAttachment attachment);
 
+    /**
+     * DAO method used by worker apps to create or update multiple health data attachments in batch. Attachments
+     * without IDs are created with new IDs, attachments with IDs are updated, same as
+     * {@link #createOrUpdateAttachment}.
+     *
+     * @param attachmentList
+     *         list of attachments to create or update
+     * @return list of IDs of the created or updated attachments, in the same order as the attachment list
+     */
+    List<String> createOrUpdateAttachments(@Nonnull List<HealthDataAttachment> attachmentList);
+
     /** Gets a builder instance, used for building prototype health data records for create or update. */
     HealthDataAttachmentBuilder getRecordBuilder();
 }
@@ -47,6 +47,18 @@ public interface HealthDataDao {
      */
     List<HealthDataRecord> getRecordsForUploadDate(@Nonnull String uploadDate);
 
+    /**
+     * DAO method used by upload reprocessing to find the health data records already written for an upload, so that
+     * reprocessing replaces them rather than adding duplicates.
+     *
+     * @param healthCode
+     *         health code of the user who sent the upload, must be non-null and non-empty
+     * @param uploadId
+     *         upload ID of the records, must be non-null and non-empty
+     * @return list of health records for that upload, generally at most one
+     */
+    List<HealthDataRecord> getRecordsForUpload(@Nonnull String healthCode, @Nonnull String uploadId);
+
     /**
      * Gets a builder instance, used for building prototype health data records. This is generally used by worker apps
      * to unpack uploads.
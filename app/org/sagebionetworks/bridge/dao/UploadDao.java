@@ -3,6 +3,8 @@ package org.sagebionetworks.bridge.dao;
 import javax.annotation.Nonnull;
 import java.util.List;
 
+import org.joda.time.LocalDate;
+
 import org.sagebionetworks.bridge.models.upload.Upload;
 import org.sagebionetworks.bridge.models.upload.UploadRequest;
 import org.sagebionetworks.bridge.models.upload.UploadStatus;
@@ -28,6 +30,18 @@ public interface UploadDao {
      */
     Upload getUpload(@Nonnull String uploadId);
 
+    /**
+     * Gets the IDs of all completed uploads whose upload date is in the given range. This scans the whole upload
+     * table, so it should only be used by admin tools, such as upload reprocessing.
+     *
+     * @param startDate
+     *         first upload date to include, must be non-null
+     * @param endDate
+     *         last upload date to include, must be non-null and not before the start date
+     * @return list of upload IDs, in no particular order
+     */
+    List<String> getUploadIdsForDateRange(@Nonnull LocalDate startDate, @Nonnull LocalDate endDate);
+
     /**
      * Signals to the Bridge server that the file has been uploaded. This also kicks off upload validation.
      *
@@ -0,0 +1,33 @@
+package org.sagebionetworks.bridge.dao;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Index of recent uploads by health code and content MD5, used to detect clients uploading the same archive more than
+ * once. Entries expire after a rolling window, which bounds the size of the index.
+ */
+public interface UploadDedupDao {
+    /**
+     * Gets the upload ID of a recent upload with the same health code and content MD5, and extends the entry's expiry
+     * window. Returns null if there is no such upload or if the index is unavailable.
+     *
+     * @param healthCode
+     *         user's health code, must be non-null and non-empty
+     * @param contentMd5
+     *         base64-encoded MD5 of the upload archive, must be non-null and non-empty
+     * @return upload ID of the recent upload, or null if there is none
+     */
+    String getDuplicateUploadId(@Nonnull String healthCode, @Nonnull String contentMd5);
+
+    /**
+     * Registers the given upload in the index, replacing any existing entry for the same health code and content MD5.
+     *
+     * @param healthCode
+     *         user's health code, must be non-null and non-empty
+     * @param contentMd5
+     *         base64-encoded MD5 of the upload archive, must be non-null and non-empty
+     * @param uploadId
+     *         ID of the upload to register, must be non-null and non-empty
+     */
+    void registerUpload(@Nonnull String healthCode, @Nonnull String contentMd5, @Nonnull String uploadId);
+}
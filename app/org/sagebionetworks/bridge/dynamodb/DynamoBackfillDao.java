@@ -83,6 +83,23 @@ public class DynamoBackfillDao implements BackfillDao {
         return results.subList(0, results.size());
     }
 
+    @Override
+    public BackfillTask getLatestTask(String taskName, BackfillStatus status) {
+        checkArgument(isNotBlank(taskName));
+        checkNotNull(status);
+        DynamoBackfillTask hashKey = new DynamoBackfillTask();
+        hashKey.setName(taskName);
+        DynamoDBQueryExpression<DynamoBackfillTask> queryExpression = new DynamoDBQueryExpression<DynamoBackfillTask>()
+                .withHashKeyValues(hashKey)
+                .withScanIndexForward(false)
+                .withQueryFilterEntry("status", new Condition()
+                        .withComparisonOperator(ComparisonOperator.EQ)
+                        .withAttributeValueList(new AttributeValue().withS(status.name())));
+        // The filter is applied after each page is read, so page through rather than reading a single page.
+        Iterator<DynamoBackfillTask> results = taskMapper.query(DynamoBackfillTask.class, queryExpression).iterator();
+        return results.hasNext() ? results.next() : null;
+    }
+
     @Override
     public BackfillRecord createRecord(String taskId, String studyId, String accountId, String operation) {
         checkArgument(isNotBlank(taskId));
@@ -2,8 +2,11 @@ package org.sagebionetworks.bridge.dynamodb;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Component;
 
@@ -26,17 +29,42 @@ public class DynamoHealthDataAttachmentDao implements HealthDataAttachmentDao {
     /** {@inheritDoc} */
     @Override
     public String createOrUpdateAttachment(@Nonnull HealthDataAttachment attachment) {
-        DynamoHealthDataAttachment dynamoAttachment = (DynamoHealthDataAttachment) attachment;
+        DynamoHealthDataAttachment dynamoAttachment = assignIdIfMissing(attachment);
+
+        // persist to DDB
+        mapper.save(dynamoAttachment);
+        return dynamoAttachment.getId();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public List<String> createOrUpdateAttachments(@Nonnull List<HealthDataAttachment> attachmentList) {
+        if (attachmentList.isEmpty()) {
+            return new ArrayList<>();
+        }
 
+        List<DynamoHealthDataAttachment> dynamoAttachmentList = new ArrayList<>();
+        List<String> idList = new ArrayList<>();
+        for (HealthDataAttachment oneAttachment : attachmentList) {
+            DynamoHealthDataAttachment dynamoAttachment = assignIdIfMissing(oneAttachment);
+            dynamoAttachmentList.add(dynamoAttachment);
+            idList.add(dynamoAttachment.getId());
+        }
+
+        // persist to DDB in batches (the mapper splits these into batches of 25)
+        List<FailedBatch> failures = mapper.batchSave(dynamoAttachmentList);
+        BridgeUtils.ifFailuresThrowException(failures);
+        return idList;
+    }
+
+    // If the attachment doesn't have its ID assigned yet (new attachment), create an ID and assign it.
+    private static DynamoHealthDataAttachment assignIdIfMissing(HealthDataAttachment attachment) {
+        DynamoHealthDataAttachment dynamoAttachment = (DynamoHealthDataAttachment) attachment;
         if (StringUtils.isBlank(dynamoAttachment.getId())) {
-            // The attachment doesn't have its ID assigned yet (new attachment). Create an ID and assign it.
             String id = BridgeUtils.generateGuid();
             dynamoAttachment.setId(id);
         }
-
-        // persist to DDB
-        mapper.save(dynamoAttachment);
-        return dynamoAttachment.getId();
+        return dynamoAttachment;
     }
 
     /** {@inheritDoc} */
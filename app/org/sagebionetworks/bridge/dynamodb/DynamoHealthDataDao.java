@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.dynamodb;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.sagebionetworks.bridge.BridgeUtils;
@@ -86,6 +87,21 @@ public class DynamoHealthDataDao implements HealthDataDao {
         return uploadDateIndex.query(HealthDataRecord.class, "uploadDate", uploadDate);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public List<HealthDataRecord> getRecordsForUpload(@Nonnull String healthCode, @Nonnull String uploadId) {
+        // There's no index on upload ID, so query the user's records and filter by upload ID.
+        List<HealthDataRecord> userRecordList = healthCodeIndex.query(HealthDataRecord.class, "healthCode",
+                healthCode);
+        List<HealthDataRecord> recordList = new ArrayList<>();
+        for (HealthDataRecord oneRecord : userRecordList) {
+            if (uploadId.equals(oneRecord.getUploadId())) {
+                recordList.add(oneRecord);
+            }
+        }
+        return recordList;
+    }
+
     /** {@inheritDoc} */
     @Override
     public HealthDataRecordBuilder getRecordBuilder() {
@@ -76,6 +76,25 @@ public class DynamoStudy implements Study {
     public DynamoStudy() {
         profileAttributes = new HashSet<>();
     }
+
+    /**
+     * Returns a copy of this study. The cache provider caches copies, so that requests sharing a cached study never
+     * see each other's changes.
+     */
+    public DynamoStudy copy() {
+        DynamoStudy copy = new DynamoStudy();
+        copy.name = name;
+        copy.setIdentifier(identifier);
+        copy.researcherRole = researcherRole;
+        copy.stormpathHref = stormpathHref;
+        copy.supportEmail = supportEmail;
+        copy.consentNotificationEmail = consentNotificationEmail;
+        copy.minAgeOfConsent = minAgeOfConsent;
+        copy.maxNumOfParticipants = maxNumOfParticipants;
+        copy.version = version;
+        copy.profileAttributes = profileAttributes != null ? new HashSet<>(profileAttributes) : null;
+        return copy;
+    }
     
     @Override
     @DynamoDBAttribute
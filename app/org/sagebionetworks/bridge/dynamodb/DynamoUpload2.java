@@ -52,6 +52,25 @@ public class DynamoUpload2 implements Upload {
         uploadId = BridgeUtils.generateGuid();
     }
 
+    /**
+     * Returns a copy of this upload. The upload DAO caches copies, so that threads sharing a cached upload never see
+     * each other's in-flight changes.
+     */
+    public DynamoUpload2 copy() {
+        DynamoUpload2 copy = new DynamoUpload2();
+        copy.contentLength = contentLength;
+        copy.contentMd5 = contentMd5;
+        copy.contentType = contentType;
+        copy.filename = filename;
+        copy.healthCode = healthCode;
+        copy.status = status;
+        copy.uploadDate = uploadDate;
+        copy.uploadId = uploadId;
+        copy.validationMessageList.addAll(validationMessageList);
+        copy.version = version;
+        return copy;
+    }
+
     /** {@inheritDoc} */
     @DynamoDBIgnore
     @Override
@@ -71,7 +90,8 @@ public class DynamoUpload2 implements Upload {
         this.contentLength = contentLength;
     }
 
-    /** The base64-encoded, 128-bit MD5 digest of the object body. */
+    /** {@inheritDoc} */
+    @Override
     public String getContentMd5() {
         return contentMd5;
     }
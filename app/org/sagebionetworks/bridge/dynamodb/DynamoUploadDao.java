@@ -6,9 +6,19 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Resource;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig.ConsistentReads;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.LocalDate;
@@ -16,14 +26,44 @@ import org.joda.time.LocalDate;
 import org.sagebionetworks.bridge.BridgeConstants;
 import org.sagebionetworks.bridge.dao.UploadDao;
 import org.sagebionetworks.bridge.exceptions.NotFoundException;
+import org.sagebionetworks.bridge.json.DateUtils;
 import org.sagebionetworks.bridge.models.upload.Upload;
 import org.sagebionetworks.bridge.models.upload.UploadRequest;
 import org.sagebionetworks.bridge.models.upload.UploadStatus;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * <p>
+ * DynamoDB implementation of the upload DAO.
+ * </p>
+ * <p>
+ * Uploads are cached in-process for a short time, write-through, so that completing an upload, validating it, and
+ * polling its validation status don't each go back to DynamoDB. Every write invalidates the upload on the other
+ * servers through the {@link CacheInvalidationBus}, so status polls are served from cache until the validation status
+ * changes. The cache holds private copies, and hands out copies, so callers are free to modify the uploads they get.
+ * Uploads are loaded into the cache with consistent reads, and a load that races an invalidation is never cached.
+ * </p>
+ */
 @Component
 public class DynamoUploadDao implements UploadDao {
+    /** Name of the upload cache, for cache invalidation. */
+    /* package-scoped */ static final String CACHE_NAME = "upload";
+
+    // Validation usually finishes within seconds of upload complete, and clients poll for a few minutes at most.
+    private static final long CACHE_EXPIRE_SECONDS = 60;
+    private static final long CACHE_MAX_SIZE = 10000;
+
+    // The cache is filled by reads, and the next write saves the version it read, so reads must not be stale.
+    private static final DynamoDBMapperConfig CONSISTENT_READ_CONFIG = new DynamoDBMapperConfig(
+            ConsistentReads.CONSISTENT);
+
+    private final Cache<String, UploadCacheEntry> uploadCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(CACHE_EXPIRE_SECONDS, TimeUnit.SECONDS).maximumSize(CACHE_MAX_SIZE).build();
+
     private DynamoDBMapper mapper;
+    private CacheInvalidationBus cacheInvalidationBus;
 
     /**
      * This is the DynamoDB mapper that reads from and writes to our DynamoDB table. This is normally configured by
@@ -34,6 +74,23 @@ public class DynamoUploadDao implements UploadDao {
         this.mapper = mapper;
     }
 
+    /** Propagates upload cache invalidations to other servers. This is configured by Spring. */
+    @Autowired
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        cacheInvalidationBus.addListener(CACHE_NAME, new CacheInvalidationBus.Listener() {
+            @Override
+            public void invalidate(String key) {
+                uploadCache.invalidate(key);
+            }
+
+            @Override
+            public void invalidateAll() {
+                uploadCache.invalidateAll();
+            }
+        });
+    }
+
     /** {@inheritDoc} */
     @Override
     public Upload createUpload(@Nonnull UploadRequest uploadRequest, @Nonnull String healthCode) {
@@ -43,25 +100,56 @@ public class DynamoUploadDao implements UploadDao {
         // Always write new uploads to the new upload table.
         DynamoUpload2 upload = new DynamoUpload2(uploadRequest, healthCode);
         mapper.save(upload);
+
+        // Brand new upload ID, so no other server can have it cached.
+        uploadCache.put(upload.getUploadId(), new UploadCacheEntry(upload.copy()));
         return upload;
     }
 
-    // TODO: Cache this, or make it so that calling getUpload() and uploadComplete() in sequence don't cause duplicate
-    // calls to DynamoDB.
     /** {@inheritDoc} */
     @Override
     public Upload getUpload(@Nonnull String uploadId) {
+        UploadCacheEntry cacheEntry = getCacheEntry(uploadId);
+        DynamoUpload2 cachedUpload = cacheEntry.upload;
+        if (cachedUpload != null) {
+            return cachedUpload.copy();
+        }
+
         // Fetch upload from DynamoUpload2
         DynamoUpload2 key = new DynamoUpload2();
         key.setUploadId(uploadId);
-        DynamoUpload2 upload = mapper.load(key);
+        DynamoUpload2 upload = mapper.load(key, CONSISTENT_READ_CONFIG);
         if (upload != null) {
+            cacheEntry.upload = upload.copy();
             return upload;
         }
 
         throw new NotFoundException(String.format("Upload ID %s not found", uploadId));
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public List<String> getUploadIdsForDateRange(@Nonnull LocalDate startDate, @Nonnull LocalDate endDate) {
+        checkNotNull(startDate, "Start date is null");
+        checkNotNull(endDate, "End date is null");
+        checkArgument(!endDate.isBefore(startDate), "End date is before start date");
+
+        // Upload dates are marshalled as YYYY-MM-DD, so string comparison matches date order. Uploads that were never
+        // completed have no upload date and are filtered out.
+        Condition dateCondition = new Condition().withComparisonOperator(ComparisonOperator.BETWEEN)
+                .withAttributeValueList(new AttributeValue(DateUtils.getCalendarDateString(startDate)),
+                        new AttributeValue(DateUtils.getCalendarDateString(endDate)));
+        DynamoDBScanExpression scan = new DynamoDBScanExpression();
+        scan.addFilterCondition("uploadDate", dateCondition);
+
+        // The scan result is paginated and loads lazily, so we only hold on to the IDs.
+        List<String> uploadIdList = new ArrayList<>();
+        for (DynamoUpload2 oneUpload : mapper.scan(DynamoUpload2.class, scan)) {
+            uploadIdList.add(oneUpload.getUploadId());
+        }
+        return uploadIdList;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void uploadComplete(@Nonnull Upload upload) {
@@ -70,7 +158,7 @@ public class DynamoUploadDao implements UploadDao {
 
         // TODO: If we globalize Bridge, we'll need to make this timezone configurable.
         upload2.setUploadDate(LocalDate.now(BridgeConstants.LOCAL_TIME_ZONE));
-        mapper.save(upload2);
+        saveAndCache(upload2);
     }
 
     /**
@@ -88,6 +176,56 @@ public class DynamoUploadDao implements UploadDao {
         upload2.appendValidationMessages(validationMessageList);
 
         // persist
-        mapper.save(upload2);
+        saveAndCache(upload2);
+    }
+
+    // Saves the upload, then replaces the cached copy on this server and drops it on all other servers.
+    private void saveAndCache(DynamoUpload2 upload2) {
+        String uploadId = upload2.getUploadId();
+        try {
+            mapper.save(upload2);
+        } catch (RuntimeException ex) {
+            // DynamoDB may have a newer version than we have cached, for example if the version check failed.
+            invalidateCache(uploadId);
+            throw ex;
+        }
+
+        // The mapper updates the version on save, so the copy we cache can be saved again.
+        invalidateCache(uploadId);
+        uploadCache.put(uploadId, new UploadCacheEntry(upload2.copy()));
+    }
+
+    /**
+     * Gets the cache entry for the given upload, creating an empty one if needed. Loads write into the entry rather
+     * than into the cache, so if the entry is invalidated or written through while a load is in flight, the load only
+     * writes to the orphaned entry and never resurrects a stale upload.
+     */
+    private UploadCacheEntry getCacheEntry(String uploadId) {
+        UploadCacheEntry cacheEntry = uploadCache.getIfPresent(uploadId);
+        if (cacheEntry == null) {
+            UploadCacheEntry newEntry = new UploadCacheEntry(null);
+            cacheEntry = uploadCache.asMap().putIfAbsent(uploadId, newEntry);
+            if (cacheEntry == null) {
+                cacheEntry = newEntry;
+            }
+        }
+        return cacheEntry;
+    }
+
+    private void invalidateCache(String uploadId) {
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(CACHE_NAME, uploadId);
+        } else {
+            uploadCache.invalidate(uploadId);
+        }
+    }
+
+    /** Cached upload. Empty until the upload is loaded. */
+    private static class UploadCacheEntry {
+        private volatile DynamoUpload2 upload;
+
+        UploadCacheEntry(DynamoUpload2 upload) {
+            this.upload = upload;
+        }
     }
 }
@@ -6,6 +6,7 @@ import java.lang.reflect.Method;
 import org.sagebionetworks.bridge.BridgeUtils;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.BeanDescription;
@@ -38,6 +39,20 @@ public class BridgeObjectMapper extends ObjectMapper {
     }
 
     public BridgeObjectMapper() {
+        configureBridge();
+    }
+
+    /**
+     * Creates a mapper with the same configuration, for another data format, such as Smile. Mappers for other formats
+     * aren't part of the API contract, so callers must make sure their output is only read back by the same kind of
+     * mapper.
+     */
+    public BridgeObjectMapper(JsonFactory factory) {
+        super(factory);
+        configureBridge();
+    }
+
+    private void configureBridge() {
         this.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
         this.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         this.registerModule(new SimpleModule() {
@@ -0,0 +1,31 @@
+package org.sagebionetworks.bridge.models;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One page of cache keys, from the admin cache listing. Listing is done when the next cursor is null; until then a
+ * page may hold fewer keys than were asked for, or none at all.
+ */
+public class CacheItemPage {
+
+    private final List<String> items;
+    private final String nextCursor;
+
+    public CacheItemPage(List<String> items, String nextCursor) {
+        this.items = ImmutableList.copyOf(items);
+        this.nextCursor = nextCursor;
+    }
+
+    /** Cache keys in this page. */
+    public List<String> getItems() {
+        return items;
+    }
+
+    /** Cursor to pass in to get the next page, or null if this is the last page. */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+}
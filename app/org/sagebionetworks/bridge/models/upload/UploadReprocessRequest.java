@@ -0,0 +1,55 @@
+package org.sagebionetworks.bridge.models.upload;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.json.BridgeTypeName;
+import org.sagebionetworks.bridge.models.BridgeEntity;
+
+/**
+ * Admin request to reprocess uploads, either every completed upload in an upload date range, or an explicit list of
+ * upload IDs. The job ID names the checkpoint, so re-submitting a request with the same job ID resumes where the
+ * previous run left off.
+ */
+@BridgeTypeName("UploadReprocessRequest")
+public class UploadReprocessRequest implements BridgeEntity {
+    private final String jobId;
+    private final LocalDate startDate;
+    private final LocalDate endDate;
+    private final List<String> uploadIdList;
+
+    /** Creates the request. Either the start and end date or the upload ID list should be specified, but not both. */
+    @JsonCreator
+    public UploadReprocessRequest(@JsonProperty("jobId") String jobId, @JsonProperty("startDate") LocalDate startDate,
+            @JsonProperty("endDate") LocalDate endDate, @JsonProperty("uploadIds") List<String> uploadIdList) {
+        this.jobId = jobId;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.uploadIdList = uploadIdList != null ? ImmutableList.copyOf(uploadIdList) : null;
+    }
+
+    /** Job ID, used to track the job's status and to checkpoint its progress. */
+    public String getJobId() {
+        return jobId;
+    }
+
+    /** First upload date to reprocess, inclusive. */
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    /** Last upload date to reprocess, inclusive. */
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    /** Upload IDs to reprocess. */
+    @JsonProperty("uploadIds")
+    public List<String> getUploadIdList() {
+        return uploadIdList;
+    }
+}
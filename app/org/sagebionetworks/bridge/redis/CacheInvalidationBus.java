@@ -0,0 +1,283 @@
+package org.sagebionetworks.bridge.redis;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nonnull;
+import javax.annotation.PreDestroy;
+
+import com.google.common.base.Joiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.BridgeUtils;
+import org.sagebionetworks.bridge.config.BridgeConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * <p>
+ * Propagates invalidations of in-process caches to every server, through Redis pub/sub. Each in-process cache
+ * registers a listener under a cache name. Invalidating a key notifies the local listener immediately, then publishes
+ * the invalidation so that other servers drop their copies too.
+ * </p>
+ * <p>
+ * Subscribing holds a dedicated Redis connection, outside the Jedis pool, for the lifetime of the server, so it never
+ * takes a connection away from request threads. The subscriber reconnects if the connection drops, and clears all
+ * registered caches on every (re)connect, since messages published while disconnected are lost. In-process caches
+ * should still use a short expiry as a safety net. The subscriber is stopped when the server shuts down.
+ * </p>
+ */
+@Component
+public class CacheInvalidationBus {
+    private static final Logger logger = LoggerFactory.getLogger(CacheInvalidationBus.class);
+
+    /** Redis pub/sub channel for cache invalidation messages. */
+    /* package-scoped */ static final String CHANNEL = "bridge-cache-invalidation";
+
+    private static final String OP_INVALIDATE_KEY = "key";
+    private static final String OP_INVALIDATE_ALL = "all";
+    private static final String MESSAGE_SEPARATOR = "|";
+    private static final Joiner MESSAGE_JOINER = Joiner.on(MESSAGE_SEPARATOR);
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+    /** Listener for invalidations of a single in-process cache. Called on the subscriber thread, so keep it fast. */
+    public interface Listener {
+        /** Drop the given key from the cache. */
+        void invalidate(String key);
+
+        /** Drop everything from the cache. */
+        void invalidateAll();
+    }
+
+    // Identifies this server, so we can skip our own messages. (We've already invalidated locally.)
+    private final String nodeId = BridgeUtils.generateGuid();
+    private final ConcurrentMap<String, Listener> listenersByCacheName = new ConcurrentHashMap<>();
+    private final JedisPubSub pubSub = new InvalidationPubSub();
+
+    private BridgeConfig bridgeConfig;
+    private JedisStringOps jedisStringOps;
+    private Thread subscriberThread;
+    private volatile Jedis subscriberJedis;
+    private volatile boolean stopped = false;
+
+    /** Bridge config, for the Redis host and password of the subscriber connection. This is configured by Spring. */
+    @Autowired
+    public void setBridgeConfig(BridgeConfig bridgeConfig) {
+        this.bridgeConfig = bridgeConfig;
+    }
+
+    /** Jedis string ops, used to publish invalidations. This is configured by Spring. */
+    @Autowired
+    public void setJedisStringOps(JedisStringOps jedisStringOps) {
+        this.jedisStringOps = jedisStringOps;
+    }
+
+    /**
+     * Registers the listener for the given cache, replacing any existing listener for that cache. The first call
+     * starts the subscriber.
+     */
+    public void addListener(@Nonnull String cacheName, @Nonnull Listener listener) {
+        listenersByCacheName.put(cacheName, listener);
+        startSubscriber();
+    }
+
+    /** Invalidates the given key in the named cache, on this server and all other servers. */
+    public void invalidate(@Nonnull String cacheName, @Nonnull String key) {
+        Listener listener = listenersByCacheName.get(cacheName);
+        if (listener != null) {
+            listener.invalidate(key);
+        }
+        publish(MESSAGE_JOINER.join(OP_INVALIDATE_KEY, nodeId, cacheName, key));
+    }
+
+    /** Invalidates everything in the named cache, on this server and all other servers. */
+    public void invalidateAll(@Nonnull String cacheName) {
+        Listener listener = listenersByCacheName.get(cacheName);
+        if (listener != null) {
+            listener.invalidateAll();
+        }
+        publish(MESSAGE_JOINER.join(OP_INVALIDATE_ALL, nodeId, cacheName, ""));
+    }
+
+    private void publish(String message) {
+        Long numReceivers = jedisStringOps.publish(CHANNEL, message);
+        if (numReceivers == null) {
+            // Redis is unreachable. Other servers will catch up when their cache entries expire.
+            logger.warn("Could not publish cache invalidation " + message);
+        }
+    }
+
+    /** Handles a message from the channel. This is package-scoped to facilitate unit tests. */
+    /* package-scoped */ void onMessage(String message) {
+        // op|nodeId|cacheName|key, where the key may itself contain the separator
+        String[] parts = message.split("\\" + MESSAGE_SEPARATOR, 4);
+        if (parts.length != 4) {
+            logger.warn("Malformed cache invalidation message " + message);
+            return;
+        }
+        if (nodeId.equals(parts[1])) {
+            return;
+        }
+
+        Listener listener = listenersByCacheName.get(parts[2]);
+        if (listener == null) {
+            return;
+        }
+        if (OP_INVALIDATE_ALL.equals(parts[0])) {
+            listener.invalidateAll();
+        } else {
+            listener.invalidate(parts[3]);
+        }
+    }
+
+    private void invalidateAllLocal() {
+        for (Listener oneListener : listenersByCacheName.values()) {
+            oneListener.invalidateAll();
+        }
+    }
+
+    private synchronized void startSubscriber() {
+        if (subscriberThread != null || bridgeConfig == null || stopped) {
+            return;
+        }
+        subscriberThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                subscribeLoop();
+            }
+        }, "cache-invalidation-subscriber");
+        subscriberThread.setDaemon(true);
+        subscriberThread.start();
+    }
+
+    /** Unsubscribes, closes the subscriber connection, and stops the subscriber thread. */
+    @PreDestroy
+    public void shutdown() {
+        Thread thread;
+        synchronized (this) {
+            stopped = true;
+            thread = subscriberThread;
+            subscriberThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            if (pubSub.isSubscribed()) {
+                pubSub.unsubscribe();
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Could not unsubscribe from cache invalidation channel: " + ex.getMessage());
+        }
+        // Closing the connection unblocks the subscriber, even if the unsubscribe didn't go through.
+        Jedis jedis = subscriberJedis;
+        if (jedis != null) {
+            closeQuietly(jedis);
+        }
+        thread.interrupt();
+        try {
+            thread.join(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** True if the subscriber thread is running. This is package-scoped to facilitate unit tests. */
+    /* package-scoped */ synchronized boolean isSubscriberRunning() {
+        return subscriberThread != null && subscriberThread.isAlive();
+    }
+
+    /**
+     * Opens the dedicated subscriber connection. This is package-scoped so unit tests can substitute a mock
+     * connection.
+     */
+    /* package-scoped */ Jedis newSubscriberConnection() {
+        Jedis jedis = new Jedis(bridgeConfig.getProperty("redis.host"), bridgeConfig.getPropertyAsInt("redis.port"),
+                bridgeConfig.getPropertyAsInt("redis.timeout"));
+        String password = bridgeConfig.getProperty("redis.password");
+        if (password != null && !password.isEmpty()) {
+            jedis.auth(password);
+        }
+        return jedis;
+    }
+
+    private void subscribeLoop() {
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+            try {
+                subscriberJedis = newSubscriberConnection();
+
+                // We may have missed messages while we weren't subscribed.
+                invalidateAllLocal();
+
+                // blocks until unsubscribed or disconnected
+                subscriberJedis.subscribe(pubSub, CHANNEL);
+            } catch (RuntimeException ex) {
+                if (stopped) {
+                    // Shutting down closed the connection out from under us.
+                    break;
+                } else if (ex instanceof JedisConnectionException) {
+                    logger.warn("Cache invalidation subscriber lost its Redis connection: " + ex.getMessage());
+                } else {
+                    logger.error("Cache invalidation subscriber failed: " + ex.getMessage(), ex);
+                }
+            } finally {
+                Jedis jedis = subscriberJedis;
+                subscriberJedis = null;
+                if (jedis != null) {
+                    closeQuietly(jedis);
+                }
+            }
+
+            if (stopped) {
+                break;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Jedis jedis) {
+        try {
+            jedis.close();
+        } catch (RuntimeException ex) {
+            // The connection is going away regardless.
+        }
+    }
+
+    // Older Jedis versions declare all of these callbacks abstract, so we implement all of them.
+    private class InvalidationPubSub extends JedisPubSub {
+        @Override
+        public void onMessage(String channel, String message) {
+            CacheInvalidationBus.this.onMessage(message);
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            logger.info("Subscribed to cache invalidation channel " + channel);
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+        }
+    }
+}
@@ -1,18 +1,68 @@
 package org.sagebionetworks.bridge.redis;
 
-import java.util.Set;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+
+import org.sagebionetworks.bridge.util.LatencyHistogram;
+
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
 
 @Component
 public class JedisStringOps {
 
+    // Gets the value of KEYS[1]. If the key exists and its TTL is below ARGV[2] seconds (or it has none), resets the
+    // TTL to ARGV[1] seconds.
+    private static final String GET_AND_TOUCH_SCRIPT =
+            "local value = redis.call('GET', KEYS[1])\n" +
+            "if value and redis.call('TTL', KEYS[1]) < tonumber(ARGV[2]) then\n" +
+            "    redis.call('EXPIRE', KEYS[1], ARGV[1])\n" +
+            "end\n" +
+            "return value";
+
+    private static final String NOSCRIPT_ERROR_PREFIX = "NOSCRIPT";
+
+    // Number of keys SCAN examines per call when clearing keys.
+    private static final int CLEAR_SCAN_COUNT = 1000;
+
+    // Number of keys per DEL command. Deleting a key takes time proportional to its size, so multi-key deletes are
+    // kept small enough not to hold up other clients.
+    /* package-scoped */ static final int DELETE_BATCH_SIZE = 100;
+
+    // SHA1 digests of the Lua scripts we've run, so scripts are sent to Redis once, not on every call.
+    private final ConcurrentMap<String, String> scriptShaMap = new ConcurrentHashMap<>();
+
+    // Pool instrumentation. Borrow waits are usually well under a millisecond, so they're recorded in microseconds.
+    private final LatencyHistogram borrowWaitMicros = new LatencyHistogram();
+    private final AtomicLong brokenConnectionCount = new AtomicLong();
+
     private JedisPool jedisPool;
+
+    /** Callback for {@link JedisStringOps#pipeline}. */
+    public interface PipelineCallback {
+        /** Queues commands on the pipeline. Don't sync the pipeline; that's done once the callback returns. */
+        void queue(Pipeline pipeline);
+    }
     
     @Autowired
     public void setJedisPool(JedisPool jedisPool) {
@@ -58,6 +108,26 @@ public class JedisStringOps {
         }.execute();
     }
 
+    /**
+     * Sets the binary value of the key and makes it expire after the specified seconds. Redis values are binary safe,
+     * so this is for values that aren't text.
+     *
+     * @param key
+     *            key of the key-value pair.
+     * @param seconds
+     *            number of seconds until expiration.
+     * @param value
+     *            binary value of the key-value pair.
+     */
+    public String setexBytes(final String key, final int seconds, final byte[] value) {
+        return new AbstractJedisTemplate<String>() {
+            @Override
+            String execute(Jedis jedis) {
+                return jedis.setex(SafeEncoder.encode(key), seconds, value);
+            }
+        }.execute();
+    }
+
     /**
      * Sets the value of the key if and only if the key does not already have a
      * value.
@@ -78,6 +148,28 @@ public class JedisStringOps {
         }.execute();
     }
 
+    /**
+     * Sets the value of the key and makes it expire after the specified seconds, if and only if the key does not
+     * already have a value. Unlike {@link #setnx} followed by {@link #expire}, this is atomic, so the key can never be
+     * left without an expiration.
+     *
+     * @param key
+     *            key of the key-value pair.
+     * @param seconds
+     *            number of seconds until expiration.
+     * @param value
+     *            value of the key-value pair.
+     * @return "OK" if the key was set, null if not
+     */
+    public String setexIfAbsent(final String key, final int seconds, final String value) {
+        return new AbstractJedisTemplate<String>() {
+            @Override
+            String execute(Jedis jedis) {
+                return jedis.set(key, value, "NX", "EX", seconds);
+            }
+        }.execute();
+    }
+
     /**
      * Gets the value of the specified key. If the key does not exist null is
      * returned.
@@ -91,6 +183,52 @@ public class JedisStringOps {
         }.execute();
     }
 
+    /**
+     * Same as {@link #get}, but returns the binary value of the key, for values written by {@link #setexBytes}.
+     */
+    public byte[] getBytes(final String key) {
+        return new AbstractJedisTemplate<byte[]>() {
+            @Override
+            byte[] execute(Jedis jedis) {
+                return jedis.get(SafeEncoder.encode(key));
+            }
+        }.execute();
+    }
+
+    /**
+     * Gets the binary value of the specified key and, if the key's time-to-live has dropped below the refresh
+     * threshold, resets it, in a single atomic round trip. Keys that are read often are therefore touched at most once
+     * per (seconds - refreshBelowSeconds), rather than on every read. This is for values written by
+     * {@link #setexBytes}. If the key does not exist null is returned.
+     *
+     * @param key
+     *            target key
+     * @param seconds
+     *            number of seconds until expiration, when the key is touched
+     * @param refreshBelowSeconds
+     *            the key is only touched if it expires in fewer than this many seconds
+     * @return the value of the key, or null if it doesn't exist
+     */
+    public byte[] getAndTouchBytes(final String key, final int seconds, final int refreshBelowSeconds) {
+        final String sha = getScriptSha(GET_AND_TOUCH_SCRIPT);
+        final List<byte[]> keys = ImmutableList.of(SafeEncoder.encode(key));
+        final List<byte[]> args = ImmutableList.of(SafeEncoder.encode(String.valueOf(seconds)),
+                SafeEncoder.encode(String.valueOf(refreshBelowSeconds)));
+        return new AbstractJedisTemplate<byte[]>() {
+            @Override
+            byte[] execute(Jedis jedis) {
+                try {
+                    return (byte[]) jedis.evalsha(SafeEncoder.encode(sha), keys, args);
+                } catch (JedisDataException ex) {
+                    if (!isNoScriptError(ex)) {
+                        throw ex;
+                    }
+                    return (byte[]) jedis.eval(SafeEncoder.encode(GET_AND_TOUCH_SCRIPT), keys, args);
+                }
+            }
+        }.execute();
+    }
+
     /**
      * Deletes the value of the specified key.
      *
@@ -108,6 +246,93 @@ public class JedisStringOps {
         }.execute();
     }
 
+    /**
+     * Gets the values of the specified keys, in a single round trip.
+     *
+     * @param keys
+     *            keys to get
+     * @return values, in the same order as the keys, with null for keys that don't exist
+     */
+    public List<String> mget(final List<String> keys) {
+        return new AbstractJedisTemplate<List<String>>() {
+            @Override
+            List<String> execute(Jedis jedis) {
+                return jedis.mget(keys.toArray(new String[keys.size()]));
+            }
+        }.execute();
+    }
+
+    /**
+     * Sets the values of the specified keys and makes them all expire after the specified seconds, in a single round
+     * trip. Redis has no multi-key SETEX, so the commands are pipelined. They are not atomic.
+     *
+     * @param keyValueMap
+     *            keys and values to set
+     * @param seconds
+     *            number of seconds until expiration.
+     * @return number of keys set
+     */
+    public Long setex(final Map<String, String> keyValueMap, final int seconds) {
+        List<Object> resultList = pipeline(new PipelineCallback() {
+            @Override
+            public void queue(Pipeline pipeline) {
+                for (Map.Entry<String, String> oneEntry : keyValueMap.entrySet()) {
+                    pipeline.setex(oneEntry.getKey(), seconds, oneEntry.getValue());
+                }
+            }
+        });
+        if (resultList == null) {
+            return null;
+        }
+        long setCount = 0;
+        for (Object oneResult : resultList) {
+            if ("OK".equals(oneResult)) {
+                setCount++;
+            }
+        }
+        return setCount;
+    }
+
+    /**
+     * Deletes the values of the specified keys, in a single round trip. The keys are deleted in batches of
+     * {@link #DELETE_BATCH_SIZE} keys per command, so a large delete doesn't block Redis.
+     *
+     * @param keys
+     *            keys to delete
+     * @return numKeysDeleted
+     *          the number of keys deleted
+     */
+    public Long delete(final Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return 0L;
+        }
+        return new AbstractJedisTemplate<Long>() {
+            @Override
+            Long execute(Jedis jedis) {
+                return deleteInBatches(jedis, ImmutableList.copyOf(keys));
+            }
+        }.execute();
+    }
+
+    /**
+     * Runs the commands queued by the callback in a single round trip, on a single pooled connection. The commands are
+     * not atomic; use {@link #eval} for that.
+     *
+     * @param callback
+     *            queues the commands to run
+     * @return the replies of the commands, in the order they were queued
+     */
+    public List<Object> pipeline(final PipelineCallback callback) {
+        return new AbstractJedisTemplate<List<Object>>() {
+            @Override
+            List<Object> execute(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                callback.queue(pipeline);
+                return pipeline.syncAndReturnAll();
+            }
+        }.execute();
+    }
+
     /**
      * Determines the time until expiration for a key (time-to-live).
      *
@@ -125,19 +350,74 @@ public class JedisStringOps {
         }.execute();
     }
 
+    /**
+     * Returns one page of the keys matching the pattern, using SCAN. Unlike KEYS, each call only examines about count
+     * keys, so walking a large keyspace never blocks other clients for long. Start with
+     * {@link ScanParams#SCAN_POINTER_START} and pass the returned cursor to the next call; iteration is done when the
+     * returned cursor is the start cursor again. A page may be empty even if iteration isn't done, and a key may be
+     * returned more than once.
+     *
+     * @param cursor
+     *            cursor returned by the previous call, or {@link ScanParams#SCAN_POINTER_START} to start
+     * @param keyPattern
+     *            glob-style pattern of the keys to return
+     * @param count
+     *            number of keys to examine (not return) in this call
+     * @return the keys in this page and the cursor of the next page
+     */
+    public ScanResult<String> scan(final String cursor, final String keyPattern, final int count) {
+        return new AbstractJedisTemplate<ScanResult<String>>() {
+            @Override
+            ScanResult<String> execute(Jedis jedis) {
+                return jedis.scan(cursor, new ScanParams().match(keyPattern).count(count));
+            }
+        }.execute();
+    }
+
+    /**
+     * Deletes every key matching the pattern. Keys are found with SCAN and deleted page by page, with pipelined
+     * batches of DEL commands, so Redis keeps serving other clients while a large number of keys are deleted.
+     *
+     * @param keyPattern
+     *            glob-style pattern of the keys to delete
+     * @return the number of keys deleted
+     */
     public Long clearRedis(final String keyPattern) {
         return new AbstractJedisTemplate<Long>() {
             @Override
             Long execute(Jedis jedis) {
-                Set<String> keys = jedis.keys(keyPattern);
-                for (String key : keys) {
-                    jedis.del(key);
-                }
-                return new Long(keys.size());
+                ScanParams params = new ScanParams().match(keyPattern).count(CLEAR_SCAN_COUNT);
+                String cursor = ScanParams.SCAN_POINTER_START;
+                long deletedCount = 0;
+                do {
+                    ScanResult<String> page = jedis.scan(cursor, params);
+                    deletedCount += deleteInBatches(jedis, page.getResult());
+                    cursor = page.getStringCursor();
+                } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+                return deletedCount;
             }
         }.execute();
     }
 
+    // Deletes the keys with one DEL per batch, all in one pipelined round trip. Returns the number of keys deleted.
+    private static long deleteInBatches(Jedis jedis, List<String> keys) {
+        if (keys.isEmpty()) {
+            return 0L;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<Long>> responseList = Lists.newArrayList();
+        for (List<String> batch : Lists.partition(keys, DELETE_BATCH_SIZE)) {
+            responseList.add(pipeline.del(batch.toArray(new String[batch.size()])));
+        }
+        pipeline.sync();
+
+        long deletedCount = 0;
+        for (Response<Long> response : responseList) {
+            deletedCount += response.get();
+        }
+        return deletedCount;
+    }
+
     /**
      * Increment the value by one
      * @param key
@@ -166,12 +446,151 @@ public class JedisStringOps {
         }.execute();
     }
 
+    /**
+     * Publishes a message to a pub/sub channel.
+     *
+     * @param channel
+     *            channel to publish to
+     * @param message
+     *            message to publish
+     * @return number of subscribers that received the message
+     */
+    public Long publish(final String channel, final String message) {
+        return new AbstractJedisTemplate<Long>() {
+            @Override
+            Long execute(Jedis jedis) {
+                return jedis.publish(channel, message);
+            }
+        }.execute();
+    }
+
+    /**
+     * Pushes a value onto the head (left) of a list.
+     *
+     * @param key
+     *            key of the list
+     * @param value
+     *            value to push
+     * @return length of the list after the push
+     */
+    public Long lpush(final String key, final String value) {
+        return new AbstractJedisTemplate<Long>() {
+            @Override
+            Long execute(Jedis jedis) {
+                return jedis.lpush(key, value);
+            }
+        }.execute();
+    }
+
+    /**
+     * Gets the length of a list.
+     *
+     * @param key
+     *            key of the list
+     * @return length of the list, 0 if the key doesn't exist
+     */
+    public Long llen(final String key) {
+        return new AbstractJedisTemplate<Long>() {
+            @Override
+            Long execute(Jedis jedis) {
+                return jedis.llen(key);
+            }
+        }.execute();
+    }
+
+    /**
+     * Gets the number of members in a sorted set.
+     *
+     * @param key
+     *            key of the sorted set
+     * @return number of members, 0 if the key doesn't exist
+     */
+    public Long zcard(final String key) {
+        return new AbstractJedisTemplate<Long>() {
+            @Override
+            Long execute(Jedis jedis) {
+                return jedis.zcard(key);
+            }
+        }.execute();
+    }
+
+    /**
+     * Runs a Lua script atomically on the Redis server. The script is run by its SHA1 digest (EVALSHA), and only sent
+     * in full if Redis doesn't have it cached yet.
+     *
+     * @param script
+     *            Lua script
+     * @param keys
+     *            keys the script accesses, available to the script as KEYS
+     * @param args
+     *            additional arguments, available to the script as ARGV
+     * @return the script's return value: a Long for integers, a String for strings, a List for tables, or null for
+     *          nil or false
+     */
+    public Object eval(final String script, final List<String> keys, final List<String> args) {
+        return new AbstractJedisTemplate<Object>() {
+            @Override
+            Object execute(Jedis jedis) {
+                try {
+                    return jedis.evalsha(getScriptSha(script), keys, args);
+                } catch (JedisDataException ex) {
+                    if (!isNoScriptError(ex)) {
+                        throw ex;
+                    }
+                    // Not cached yet (or Redis was restarted). EVAL caches it for next time.
+                    return jedis.eval(script, keys, args);
+                }
+            }
+        }.execute();
+    }
+
+    private String getScriptSha(String script) {
+        String sha = scriptShaMap.get(script);
+        if (sha == null) {
+            sha = Hashing.sha1().hashString(script, Charsets.UTF_8).toString();
+            scriptShaMap.put(script, sha);
+        }
+        return sha;
+    }
+
+    private static boolean isNoScriptError(JedisDataException ex) {
+        return ex.getMessage() != null && ex.getMessage().startsWith(NOSCRIPT_ERROR_PREFIX);
+    }
+
+    /** Pool instrumentation: how long callers waited to borrow a connection from the pool, in microseconds. */
+    public LatencyHistogram.Snapshot getBorrowWaitMicros() {
+        return borrowWaitMicros.getSnapshot();
+    }
+
+    /** Pool instrumentation: number of connections that were returned to the pool as broken. */
+    public long getBrokenConnectionCount() {
+        return brokenConnectionCount.get();
+    }
+
+    /** Pool gauge: number of connections currently borrowed from the pool. */
+    public int getActiveConnectionCount() {
+        return jedisPool.getNumActive();
+    }
+
+    /** Pool gauge: number of idle connections in the pool. */
+    public int getIdleConnectionCount() {
+        return jedisPool.getNumIdle();
+    }
+
+    /** Pool gauge: number of callers currently waiting for a connection. */
+    public int getWaitingCount() {
+        return jedisPool.getNumWaiters();
+    }
+
     private abstract class AbstractJedisTemplate<T> {
         public T execute() {
+            long borrowStartNanos = System.nanoTime();
             Jedis jedis = jedisPool.getResource();
+            borrowWaitMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - borrowStartNanos));
             try {
                 return execute(jedis);
             } catch (JedisConnectionException e) {
+                brokenConnectionCount.incrementAndGet();
                 if (jedis != null) {
                     jedisPool.returnBrokenResource(jedis);
                     jedis = null;
@@ -3,6 +3,18 @@ package org.sagebionetworks.bridge.redis;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.sagebionetworks.bridge.BridgeUtils;
@@ -10,10 +22,64 @@ import org.sagebionetworks.bridge.dao.DistributedLockDao;
 import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
 import org.sagebionetworks.bridge.exceptions.ConcurrentModificationException;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Locks are Redis keys whose value is the lock, "{fencing token}:{guid}". Acquiring, renewing, and releasing a lock
+ * each take a single round trip, in a Lua script, so a lock is never left without an expiration and is only ever
+ * renewed or released by its holder.
+ * </p>
+ * <p>
+ * Fencing tokens come from a counter next to each lock key. The counter outlives any lock by a wide margin, so tokens
+ * keep increasing for as long as an identifier is in use.
+ * </p>
+ */
 @Component
 public class RedisDistributedLockDao implements DistributedLockDao {
 
+    private static final Logger logger = LoggerFactory.getLogger(RedisDistributedLockDao.class);
+
+    // Sets KEYS[1] to "{token}:ARGV[1]", expiring in ARGV[2] seconds, unless it's already set. The token is the next
+    // value of the counter in KEYS[2], which is kept for ARGV[3] seconds. Returns the token, or 0 if the lock is held.
+    // Locks set by older servers could be left without an expiration, so those get one.
+    private static final String ACQUIRE_SCRIPT =
+            "if redis.call('EXISTS', KEYS[1]) == 1 then\n" +
+            "    if redis.call('TTL', KEYS[1]) < 0 then\n" +
+            "        redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+            "    end\n" +
+            "    return 0\n" +
+            "end\n" +
+            "local token = redis.call('INCR', KEYS[2])\n" +
+            "redis.call('EXPIRE', KEYS[2], ARGV[3])\n" +
+            "redis.call('SET', KEYS[1], token .. ':' .. ARGV[1], 'EX', ARGV[2])\n" +
+            "return token";
+
+    // Resets KEYS[1] to expire in ARGV[2] seconds if its value is ARGV[1]. Returns 1 if renewed, 0 if not.
+    private static final String RENEW_SCRIPT =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "    return redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+            "end\n" +
+            "return 0";
+
+    // Deletes KEYS[1] if its value is ARGV[1]. Returns 1 if deleted, 0 if not.
+    private static final String RELEASE_SCRIPT =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "    return redis.call('DEL', KEYS[1])\n" +
+            "end\n" +
+            "return 0";
+
     private static final int EXPIRATION_IN_SECONDS = 3 * 60;
+    private static final int FENCE_EXPIRATION_IN_SECONDS = 30 * 24 * 60 * 60;
+    private static final long MIN_BACKOFF_MILLIS = 25;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+    private static final String TOKEN_SEPARATOR = ":";
+
+    private final ScheduledExecutorService renewalExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("lock-renewal-%d").setDaemon(true).build());
+    private final ConcurrentMap<String, ScheduledFuture<?>> renewalMap = new ConcurrentHashMap<>();
+
     private JedisStringOps stringOps;
 
     @Autowired
@@ -21,6 +87,15 @@ public class RedisDistributedLockDao implements DistributedLockDao {
         this.stringOps = stringOps;
     }
 
+    /**
+     * Stops renewing locks on shutdown. Locks still held expire on their own, so another server can take them over.
+     */
+    @PreDestroy
+    public void shutdown() {
+        renewalExecutor.shutdownNow();
+        renewalMap.clear();
+    }
+
     @Override
     public String acquireLock(final Class<?> clazz, final String identifier) {
         return acquireLock(clazz, identifier, EXPIRATION_IN_SECONDS);
@@ -31,48 +106,146 @@ public class RedisDistributedLockDao implements DistributedLockDao {
         checkNotNull(clazz);
         checkNotNull(identifier);
         checkArgument(expireInSeconds > 0);
-        final String redisKey = createRedisKey(clazz, identifier);
-        final String lock = BridgeUtils.generateGuid();
-        final Long result = stringOps.setnx(redisKey, lock);
-        if (result != 1L) {
-            Long expire = stringOps.ttl(redisKey);
-            if (expire < 0L) {
-                expire(redisKey, expireInSeconds);
-            }
+        final String key = createKey(clazz, identifier);
+        final String guid = BridgeUtils.generateGuid();
+        Long token = (Long) stringOps.eval(ACQUIRE_SCRIPT,
+                ImmutableList.of(RedisKey.LOCK.getRedisKey(key), RedisKey.LOCK_FENCE.getRedisKey(key)),
+                ImmutableList.of(guid, Integer.toString(expireInSeconds),
+                        Integer.toString(FENCE_EXPIRATION_IN_SECONDS)));
+        if (token == null) {
+            throw new BridgeServiceException("Lock not set.");
+        }
+        if (token == 0L) {
             throw new ConcurrentModificationException("Lock already set.");
         }
-        expire(redisKey, expireInSeconds);
-        return lock;
+        return token + TOKEN_SEPARATOR + guid;
     }
 
     @Override
-    public boolean releaseLock(Class<?> clazz, String identifier, String lock) {
+    public String acquireLock(Class<?> clazz, String identifier, int expireInSeconds, long waitMillis) {
+        checkArgument(waitMillis >= 0);
+        final long deadline = System.currentTimeMillis() + waitMillis;
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                return acquireLock(clazz, identifier, expireInSeconds);
+            } catch (ConcurrentModificationException e) {
+                long remainingMillis = deadline - System.currentTimeMillis();
+                if (remainingMillis <= 0) {
+                    throw e;
+                }
+                // Jitter keeps servers waiting on the same lock from retrying in lockstep.
+                long sleepMillis = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+                try {
+                    Thread.sleep(Math.min(sleepMillis, remainingMillis));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    @Override
+    public boolean renewLock(Class<?> clazz, String identifier, String lock, int expireInSeconds) {
         checkNotNull(clazz);
         checkNotNull(identifier);
         checkNotNull(lock);
-        final String redisKey = createRedisKey(clazz, identifier);
-        final String redisLockId = stringOps.get(redisKey);
-        if (!lock.equals(redisLockId)) {
-            return false;
+        checkArgument(expireInSeconds > 0);
+        Long result = (Long) stringOps.eval(RENEW_SCRIPT,
+                ImmutableList.of(RedisKey.LOCK.getRedisKey(createKey(clazz, identifier))),
+                ImmutableList.of(lock, Integer.toString(expireInSeconds)));
+        if (result == null) {
+            throw new BridgeServiceException("Lock not renewed.");
         }
-        Long result = stringOps.delete(redisKey);
-        if (result != 1L) {
+        return result == 1L;
+    }
+
+    @Override
+    public void startRenewal(Class<?> clazz, String identifier, String lock, int expireInSeconds) {
+        startRenewal(clazz, identifier, lock, expireInSeconds, null);
+    }
+
+    /**
+     * Renews the lock every third of expireInSeconds, so a couple of failed renewals (Redis briefly unreachable, say)
+     * don't lose it. If the lock is found to have expired, renewal stops, the loss is logged, and onLockLost (if any)
+     * is called.
+     */
+    @Override
+    public void startRenewal(final Class<?> clazz, final String identifier, final String lock,
+            final int expireInSeconds, final Runnable onLockLost) {
+        checkNotNull(clazz);
+        checkNotNull(identifier);
+        checkNotNull(lock);
+        checkArgument(expireInSeconds > 0);
+        final long periodSeconds = Math.max(1, expireInSeconds / 3);
+        ScheduledFuture<?> future = renewalExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                boolean renewed;
+                try {
+                    renewed = renewLock(clazz, identifier, lock, expireInSeconds);
+                } catch (RuntimeException e) {
+                    // Try again next time.
+                    logger.warn("Could not renew lock on " + identifier + ": " + e.getMessage(), e);
+                    return;
+                }
+                if (!renewed) {
+                    logger.error("Lock on " + identifier + " expired before it could be renewed.");
+                    stopRenewal(lock);
+                    if (onLockLost != null) {
+                        try {
+                            onLockLost.run();
+                        } catch (RuntimeException e) {
+                            logger.error("Lost lock callback on " + identifier + " failed: " + e.getMessage(), e);
+                        }
+                    }
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        ScheduledFuture<?> previous = renewalMap.put(lock, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    @Override
+    public long getFencingToken(String lock) {
+        checkNotNull(lock);
+        int index = lock.indexOf(TOKEN_SEPARATOR);
+        checkArgument(index > 0, "Lock has no fencing token.");
+        return Long.parseLong(lock.substring(0, index));
+    }
+
+    @Override
+    public boolean releaseLock(Class<?> clazz, String identifier, String lock) {
+        checkNotNull(clazz);
+        checkNotNull(identifier);
+        checkNotNull(lock);
+        stopRenewal(lock);
+        Long result = (Long) stringOps.eval(RELEASE_SCRIPT,
+                ImmutableList.of(RedisKey.LOCK.getRedisKey(createKey(clazz, identifier))),
+                ImmutableList.of(lock));
+        if (result == null) {
             throw new BridgeServiceException("Lock not released.");
         }
-        return true;
+        return result == 1L;
     }
 
-    private String createRedisKey(Class<?> clazz, String identifier) {
-        String key = identifier + RedisKey.SEPARATOR + clazz.getCanonicalName();
-        return RedisKey.LOCK.getRedisKey(key);
+    /** True if the lock is being renewed in the background. This is package-scoped to facilitate unit tests. */
+    /* package-scoped */ boolean isRenewing(String lock) {
+        return renewalMap.containsKey(lock);
     }
 
-    private void expire(final String redisKey, final int expireInSeconds) {
-        Long result = stringOps.expire(redisKey, expireInSeconds);
-        if (result != 1L) {
-            // Try to recover by deleting the key
-            stringOps.delete(redisKey);
-            throw new BridgeServiceException("Lock expiration not set.");
+    private void stopRenewal(String lock) {
+        ScheduledFuture<?> future = renewalMap.remove(lock);
+        if (future != null) {
+            future.cancel(false);
         }
     }
+
+    private static String createKey(Class<?> clazz, String identifier) {
+        return identifier + RedisKey.SEPARATOR + clazz.getCanonicalName();
+    }
 }
@@ -32,6 +32,9 @@ public interface RedisKey {
     /** User (email). */
     RedisKey USER = new SimpleKey("user");
     
+    /** Counter of fencing tokens for a lock, by lock key. */
+    RedisKey LOCK_FENCE = new SimpleKey("lock-fence");
+
     /** Health code lock. */
     RedisKey HEALTH_CODE_LOCK = new CompoundKey((SimpleKey)HEALTH_CODE, (SimpleKey)LOCK);
     
@@ -43,6 +46,18 @@ public interface RedisKey {
     
     /** A cached JSON response. */
     RedisKey VIEW = new SimpleKey("view");
+
+    /** Lease held by the server loading a cached JSON response, by view key. */
+    RedisKey VIEW_LEASE = new SimpleKey("view-lease");
+
+    /** Durable work queues (ready list, leased set, and dead letter list), by queue name. */
+    RedisKey WORK_QUEUE = new SimpleKey("work-queue");
+
+    /** Upload ID of a recent upload, by health code and content MD5. */
+    RedisKey UPLOAD_DEDUP = new SimpleKey("upload-dedup");
+
+    /** Checkpoint (last contiguously reprocessed upload ID) of an upload reprocessing job, by job ID. */
+    RedisKey UPLOAD_REPROCESS_CHECKPOINT = new SimpleKey("upload-reprocess-checkpoint");
     
     String SEPARATOR = ":";
 
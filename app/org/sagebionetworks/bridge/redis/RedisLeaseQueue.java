@@ -0,0 +1,259 @@
+package org.sagebionetworks.bridge.redis;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang3.StringUtils;
+
+import org.sagebionetworks.bridge.BridgeUtils;
+
+/**
+ * <p>
+ * Durable work queue in Redis, with worker leases. Payloads wait in a ready list. Claiming a payload atomically moves
+ * it into a sorted set of leased payloads, scored by lease expiration time. The worker renews its lease with
+ * heartbeats while it works, and completes the lease when it's done, or releases it if it can't take the work on after
+ * all. If a worker dies, its lease expires, and {@link #reclaimExpired} moves the payload back to the ready list, where
+ * any worker can claim it. Payloads that have been claimed the maximum number of times without completing are moved to
+ * a dead letter list instead.
+ * </p>
+ * <p>
+ * Delivery is at-least-once. A payload can be processed twice if a worker stalls past its lease expiration without
+ * dying, so work should be idempotent or check for prior completion.
+ * </p>
+ * <p>
+ * Lease expiration uses the clock of the calling server, since Redis scripts can't write based on the Redis server's
+ * clock. Lease durations should be much longer than the expected clock skew between servers.
+ * </p>
+ */
+public class RedisLeaseQueue {
+    // Ready items are attempt|payload. Leased members are token|attempt|payload, so only the lease holder can renew or
+    // complete its lease, even if the same payload has since been reclaimed and claimed by another worker.
+    private static final String SEPARATOR = "|";
+
+    // KEYS: ready, leased. ARGV: lease expiration, lease token. Returns the leased member, or nil if the queue is
+    // empty.
+    private static final String CLAIM_SCRIPT =
+            "local item = redis.call('rpop', KEYS[1])\n" +
+            "if not item then return nil end\n" +
+            "local sep = string.find(item, '|', 1, true)\n" +
+            "local attempt = tonumber(string.sub(item, 1, sep - 1)) + 1\n" +
+            "local member = ARGV[2] .. '|' .. attempt .. '|' .. string.sub(item, sep + 1)\n" +
+            "redis.call('zadd', KEYS[2], ARGV[1], member)\n" +
+            "return member";
+
+    // KEYS: leased. ARGV: new lease expiration, leased member. Returns 1 if renewed, 0 if the lease was lost.
+    private static final String RENEW_SCRIPT =
+            "if redis.call('zscore', KEYS[1], ARGV[2]) then\n" +
+            "  redis.call('zadd', KEYS[1], ARGV[1], ARGV[2])\n" +
+            "  return 1\n" +
+            "end\n" +
+            "return 0";
+
+    // KEYS: leased. ARGV: leased member. Returns 1 if completed, 0 if the lease was lost.
+    private static final String COMPLETE_SCRIPT = "return redis.call('zrem', KEYS[1], ARGV[1])";
+
+    // KEYS: leased, ready. ARGV: leased member. Moves the payload back to the front of the ready list, giving back the
+    // attempt it was claimed with. Returns 1 if released, 0 if the lease was lost.
+    private static final String RELEASE_SCRIPT =
+            "if redis.call('zrem', KEYS[1], ARGV[1]) == 0 then return 0 end\n" +
+            "local item = string.sub(ARGV[1], string.find(ARGV[1], '|', 1, true) + 1)\n" +
+            "local sep = string.find(item, '|', 1, true)\n" +
+            "local attempt = tonumber(string.sub(item, 1, sep - 1)) - 1\n" +
+            "redis.call('rpush', KEYS[2], attempt .. '|' .. string.sub(item, sep + 1))\n" +
+            "return 1";
+
+    // KEYS: leased, ready, dead. ARGV: now, max attempts, max members to reclaim. Returns the number of payloads moved
+    // back to the ready list, followed by the payloads moved to the dead letter list.
+    private static final String RECLAIM_SCRIPT =
+            "local expired = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[3])\n" +
+            "local result = {0}\n" +
+            "for i, member in ipairs(expired) do\n" +
+            "  redis.call('zrem', KEYS[1], member)\n" +
+            "  local item = string.sub(member, string.find(member, '|', 1, true) + 1)\n" +
+            "  local sep = string.find(item, '|', 1, true)\n" +
+            "  if tonumber(string.sub(item, 1, sep - 1)) >= tonumber(ARGV[2]) then\n" +
+            "    redis.call('lpush', KEYS[3], item)\n" +
+            "    table.insert(result, string.sub(item, sep + 1))\n" +
+            "  else\n" +
+            "    redis.call('rpush', KEYS[2], item)\n" +
+            "    result[1] = result[1] + 1\n" +
+            "  end\n" +
+            "end\n" +
+            "return result";
+
+    private static final int RECLAIM_BATCH_SIZE = 100;
+
+    private final JedisStringOps stringOps;
+    private final String readyKey;
+    private final String leasedKey;
+    private final String deadKey;
+    private final long leaseMillis;
+    private final int maxAttempts;
+
+    /**
+     * Creates a queue.
+     *
+     * @param queueName
+     *         name of the queue, used to build the Redis keys, must be non-null and non-empty
+     * @param stringOps
+     *         Redis operations, must be non-null
+     * @param leaseSeconds
+     *         how long a lease lasts without a heartbeat, must be positive
+     * @param maxAttempts
+     *         how many times a payload can be claimed before it's moved to the dead letter list, must be positive
+     */
+    public RedisLeaseQueue(@Nonnull String queueName, @Nonnull JedisStringOps stringOps, int leaseSeconds,
+            int maxAttempts) {
+        checkArgument(StringUtils.isNotBlank(queueName));
+        checkNotNull(stringOps);
+        checkArgument(leaseSeconds > 0);
+        checkArgument(maxAttempts > 0);
+
+        this.stringOps = stringOps;
+        this.readyKey = RedisKey.WORK_QUEUE.getRedisKey(queueName + RedisKey.SEPARATOR + "ready");
+        this.leasedKey = RedisKey.WORK_QUEUE.getRedisKey(queueName + RedisKey.SEPARATOR + "leased");
+        this.deadKey = RedisKey.WORK_QUEUE.getRedisKey(queueName + RedisKey.SEPARATOR + "dead");
+        this.leaseMillis = leaseSeconds * 1000L;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /** How long a lease lasts without a heartbeat, in milliseconds. */
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Adds a payload to the back of the queue.
+     *
+     * @param payload
+     *         payload to add, must be non-null and non-empty
+     * @return true if the payload was added, false if Redis is unavailable
+     */
+    public boolean enqueue(@Nonnull String payload) {
+        checkArgument(StringUtils.isNotEmpty(payload));
+        return stringOps.lpush(readyKey, "0" + SEPARATOR + payload) != null;
+    }
+
+    /**
+     * Claims the payload at the front of the queue, leasing it to the caller.
+     *
+     * @return the lease, or null if the queue is empty or Redis is unavailable
+     */
+    public Lease claim() {
+        String token = BridgeUtils.generateGuid();
+        Object member = stringOps.eval(CLAIM_SCRIPT, ImmutableList.of(readyKey, leasedKey),
+                ImmutableList.of(String.valueOf(System.currentTimeMillis() + leaseMillis), token));
+        if (member == null) {
+            return null;
+        }
+        return Lease.fromMember((String) member);
+    }
+
+    /**
+     * Extends the given lease by the lease duration, starting now.
+     *
+     * @return true if renewed, false if the lease was lost (expired and reclaimed) or Redis is unavailable
+     */
+    public boolean renew(@Nonnull Lease lease) {
+        Object result = stringOps.eval(RENEW_SCRIPT, ImmutableList.of(leasedKey),
+                ImmutableList.of(String.valueOf(System.currentTimeMillis() + leaseMillis), lease.member));
+        return Long.valueOf(1L).equals(result);
+    }
+
+    /**
+     * Completes the given lease, removing its payload from the queue for good.
+     *
+     * @return true if completed, false if the lease was lost (expired and reclaimed) or Redis is unavailable
+     */
+    public boolean complete(@Nonnull Lease lease) {
+        Object result = stringOps.eval(COMPLETE_SCRIPT, ImmutableList.of(leasedKey), ImmutableList.of(lease.member));
+        return Long.valueOf(1L).equals(result);
+    }
+
+    /**
+     * Gives up the given lease without processing its payload, for example because the worker is too busy after all.
+     * The payload goes back to the front of the ready list, and the claim doesn't count against its maximum attempts.
+     *
+     * @return true if released, false if the lease was lost (expired and reclaimed) or Redis is unavailable
+     */
+    public boolean release(@Nonnull Lease lease) {
+        Object result = stringOps.eval(RELEASE_SCRIPT, ImmutableList.of(leasedKey, readyKey),
+                ImmutableList.of(lease.member));
+        return Long.valueOf(1L).equals(result);
+    }
+
+    /**
+     * Moves payloads with expired leases back to the ready list, or to the dead letter list if they've been claimed the
+     * maximum number of times. Safe to call from any number of servers.
+     *
+     * @return payloads moved to the dead letter list, so the caller can record the failure; empty if none or if Redis
+     *         is unavailable
+     */
+    public List<String> reclaimExpired() {
+        Object result = stringOps.eval(RECLAIM_SCRIPT, ImmutableList.of(leasedKey, readyKey, deadKey),
+                ImmutableList.of(String.valueOf(System.currentTimeMillis()), String.valueOf(maxAttempts),
+                        String.valueOf(RECLAIM_BATCH_SIZE)));
+        if (!(result instanceof List)) {
+            return ImmutableList.of();
+        }
+
+        // First element is the number of payloads moved back to the ready list. The rest are dead payloads.
+        List<?> resultList = (List<?>) result;
+        List<String> deadPayloadList = new ArrayList<>();
+        for (int i = 1; i < resultList.size(); i++) {
+            deadPayloadList.add((String) resultList.get(i));
+        }
+        return deadPayloadList;
+    }
+
+    /** Number of payloads waiting to be claimed, or null if Redis is unavailable. */
+    public Long getReadyCount() {
+        return stringOps.llen(readyKey);
+    }
+
+    /** Number of payloads currently leased, or null if Redis is unavailable. */
+    public Long getLeasedCount() {
+        return stringOps.zcard(leasedKey);
+    }
+
+    /** Number of payloads in the dead letter list, or null if Redis is unavailable. */
+    public Long getDeadCount() {
+        return stringOps.llen(deadKey);
+    }
+
+    /** A claimed payload, held by a single worker until it completes or the lease expires. */
+    public static class Lease {
+        private final String member;
+        private final int attempt;
+        private final String payload;
+
+        private Lease(String member, int attempt, String payload) {
+            this.member = member;
+            this.attempt = attempt;
+            this.payload = payload;
+        }
+
+        // member is token|attempt|payload
+        private static Lease fromMember(String member) {
+            int tokenEnd = member.indexOf(SEPARATOR);
+            int attemptEnd = member.indexOf(SEPARATOR, tokenEnd + 1);
+            int attempt = Integer.parseInt(member.substring(tokenEnd + 1, attemptEnd));
+            return new Lease(member, attempt, member.substring(attemptEnd + 1));
+        }
+
+        /** Which attempt this is, starting at 1. */
+        public int getAttempt() {
+            return attempt;
+        }
+
+        /** The claimed payload. */
+        public String getPayload() {
+            return payload;
+        }
+    }
+}
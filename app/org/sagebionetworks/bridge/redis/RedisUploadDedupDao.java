@@ -0,0 +1,66 @@
+package org.sagebionetworks.bridge.redis;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.BridgeConfigFactory;
+import org.sagebionetworks.bridge.dao.UploadDedupDao;
+
+/**
+ * Redis implementation of the upload dedup index. Each entry is a key of health code and content MD5, whose value is
+ * the upload ID. Entries expire after a configured window, and every lookup that finds an entry starts the window
+ * over, so an archive a client keeps retrying stays in the index for as long as the retries continue.
+ */
+@Component
+public class RedisUploadDedupDao implements UploadDedupDao {
+    private static final Logger logger = LoggerFactory.getLogger(RedisUploadDedupDao.class);
+
+    private int windowSeconds = BridgeConfigFactory.getConfig().getPropertyAsInt("upload.dedup.window.seconds");
+    private JedisStringOps stringOps;
+
+    @Autowired
+    public void setStringOps(JedisStringOps stringOps) {
+        this.stringOps = stringOps;
+    }
+
+    /** Expiry window, in seconds. This is package-scoped to facilitate unit tests. */
+    /* package-scoped */ void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDuplicateUploadId(@Nonnull String healthCode, @Nonnull String contentMd5) {
+        String redisKey = createRedisKey(healthCode, contentMd5);
+        String uploadId = stringOps.get(redisKey);
+        if (uploadId != null) {
+            // rolling window
+            stringOps.expire(redisKey, windowSeconds);
+        }
+        return uploadId;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void registerUpload(@Nonnull String healthCode, @Nonnull String contentMd5, @Nonnull String uploadId) {
+        checkArgument(StringUtils.isNotBlank(uploadId));
+        String result = stringOps.setex(createRedisKey(healthCode, contentMd5), windowSeconds, uploadId);
+        if (result == null) {
+            // Redis is unavailable. This only means a retry of this upload will be validated again.
+            logger.warn("Could not register upload " + uploadId + " in the dedup index");
+        }
+    }
+
+    private static String createRedisKey(String healthCode, String contentMd5) {
+        checkArgument(StringUtils.isNotBlank(healthCode));
+        checkArgument(StringUtils.isNotBlank(contentMd5));
+        return RedisKey.UPLOAD_DEDUP.getRedisKey(healthCode + RedisKey.SEPARATOR + contentMd5);
+    }
+}
@@ -43,6 +43,21 @@ public class S3Helper {
         }
     }
 
+    /**
+     * Opens the given S3 file as a stream. Unlike {@link #readS3FileAsBytes}, the file contents are not buffered in
+     * memory. The caller is responsible for closing the stream.
+     *
+     * @param bucket
+     *         S3 bucket to read from, must be non-null and non-empty
+     * @param key
+     *         S3 key (filename), must be non-null and non-empty
+     * @return stream of the S3 file contents
+     */
+    public InputStream getS3FileAsStream(@Nonnull String bucket, @Nonnull String key) {
+        S3Object s3File = s3Client.getObject(bucket, key);
+        return s3File.getObjectContent();
+    }
+
     /**
      * Read the given S3 file contents as a string. The encoding is assumed to be UTF-8.
      *
@@ -64,4 +79,16 @@ public class S3Helper {
             s3Client.putObject(bucket, key, dataInputStream, null);
         }
     }
+
+    /**
+     * Deletes the given S3 file. Deleting a file that doesn't exist is not an error.
+     *
+     * @param bucket
+     *         S3 bucket to delete from, must be non-null and non-empty
+     * @param key
+     *         S3 key (filename), must be non-null and non-empty
+     */
+    public void deleteS3File(@Nonnull String bucket, @Nonnull String key) {
+        s3Client.deleteObject(bucket, key);
+    }
 }
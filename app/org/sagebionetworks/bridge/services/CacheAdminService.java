@@ -1,49 +1,131 @@
 package org.sagebionetworks.bridge.services;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.sagebionetworks.bridge.cache.CacheProvider;
+import org.sagebionetworks.bridge.cache.ViewCache;
+import org.sagebionetworks.bridge.exceptions.BadRequestException;
 import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
+import org.sagebionetworks.bridge.models.CacheItemPage;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
 import org.sagebionetworks.bridge.redis.RedisKey;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 
 @Component
 public class CacheAdminService {
 
-    private final String SUFFIX = RedisKey.SEPARATOR + RedisKey.SESSION.getSuffix(); 
+    /** Page size of the cache listing, when none is given. */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** Largest page size of the cache listing. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    // Most SCAN calls made to fill one page. When listing a type that is rare among many other keys, the page is
+    // returned short rather than walking the whole keyspace in one request.
+    /* package-scoped */ static final int MAX_SCANS_PER_PAGE = 20;
+
+    // Key types that can be listed and removed, by suffix. Sessions are left out, as they can't be removed.
+    private static final Map<String, RedisKey> KEY_TYPES = indexBySuffix(RedisKey.STUDY, RedisKey.HEALTH_CODE,
+            RedisKey.USER, RedisKey.LOCK, RedisKey.HEALTH_CODE_LOCK, RedisKey.USER_LOCK, RedisKey.NUM_OF_PARTICIPANTS,
+            RedisKey.VIEW, RedisKey.VIEW_LEASE, RedisKey.WORK_QUEUE, RedisKey.UPLOAD_DEDUP,
+            RedisKey.UPLOAD_REPROCESS_CHECKPOINT);
+
+    private final String SUFFIX = RedisKey.SEPARATOR + RedisKey.SESSION.getSuffix();
     private JedisPool jedisPool;
-    
+    private JedisStringOps stringOps;
+    private CacheInvalidationBus cacheInvalidationBus;
+
     @Autowired
     public void setJedisPool(JedisPool jedisPool) {
         this.jedisPool = jedisPool;
     }
 
+    /** Used to remove all items of a type. This is configured by Spring. */
+    @Autowired
+    public void setStringOps(JedisStringOps stringOps) {
+        this.stringOps = stringOps;
+    }
+
+    /** Drops removed items from the in-process study and view caches on every server. This is configured by Spring. */
+    @Autowired
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+    }
+
     /**
-     * Returns all keys in the cache that are not user session keys.
+     * Returns all keys in the cache that are not user session keys. The keys are read a page at a time, so other
+     * clients aren't blocked while a large cache is listed; use {@link #listItems(String, String, int)} to page
+     * through the keys instead.
      * @return
      */
     public Set<String> listItems() {
-        Jedis jedis = jedisPool.getResource();
-        
-        Set<String> allKeys = jedis.keys("*");
-        
         Set<String> set = Sets.newHashSet();
-        for (String key : allKeys) {
-            if (!key.endsWith(SUFFIX)) {
-                set.add(key);
-            }
-        }
+        String cursor = null;
+        do {
+            CacheItemPage page = listItems(null, cursor, MAX_PAGE_SIZE);
+            set.addAll(page.getItems());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
         return set;
     }
-    
+
+    /**
+     * Returns one page of the keys in the cache that are not user session keys, using SCAN. A page may hold somewhat
+     * more or fewer keys than the page size, and the same key may be returned in more than one page.
+     *
+     * @param type
+     *            key type, the suffix of a {@link RedisKey} such as "study" or "view", or null for all keys
+     * @param cursor
+     *            next cursor of the previous page, or null for the first page
+     * @param pageSize
+     *            number of keys to return, from 1 to {@link #MAX_PAGE_SIZE}
+     * @return the page of keys, and the cursor of the next page
+     */
+    public CacheItemPage listItems(String type, String cursor, int pageSize) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new BadRequestException("pageSize must be from 1 to " + MAX_PAGE_SIZE);
+        }
+        ScanParams params = new ScanParams().match(keyPattern(type)).count(pageSize);
+        String nextCursor = isBlank(cursor) ? ScanParams.SCAN_POINTER_START : cursor;
+
+        List<String> items = Lists.newArrayList();
+        Jedis jedis = jedisPool.getResource();
+        try {
+            int scanCount = 0;
+            do {
+                ScanResult<String> result = jedis.scan(nextCursor, params);
+                for (String key : result.getResult()) {
+                    if (!key.endsWith(SUFFIX)) {
+                        items.add(key);
+                    }
+                }
+                nextCursor = result.getStringCursor();
+                scanCount++;
+            } while (items.size() < pageSize && scanCount < MAX_SCANS_PER_PAGE
+                    && !ScanParams.SCAN_POINTER_START.equals(nextCursor));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+        return new CacheItemPage(items, ScanParams.SCAN_POINTER_START.equals(nextCursor) ? null : nextCursor);
+    }
+
     /**
      * Delete an item by its key from the cache (cannot delete sessions).
      * @param cacheKey
@@ -53,11 +135,58 @@ public class CacheAdminService {
         Long removed = null;
         if (!cacheKey.endsWith(SUFFIX)) {
             Jedis jedis = jedisPool.getResource();
-            removed = jedis.del(cacheKey);
+            try {
+                removed = jedis.del(cacheKey);
+            } finally {
+                jedisPool.returnResource(jedis);
+            }
         }
         if (removed == null || removed == 0) {
-            throw new BridgeServiceException("Item could not be removed from cache: does key '"+cacheKey+"' exist?"); 
+            throw new BridgeServiceException("Item could not be removed from cache: does key '"+cacheKey+"' exist?");
         };
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(CacheProvider.STUDY_CACHE_NAME, cacheKey);
+            cacheInvalidationBus.invalidate(ViewCache.CACHE_NAME, cacheKey);
+        }
+    }
+
+    /**
+     * Delete all items of a type from the cache (cannot delete sessions). Keys are deleted in batches, so Redis keeps
+     * serving other clients while they are removed.
+     * @param type
+     *            key type, the suffix of a {@link RedisKey} such as "study" or "view"
+     * @return the number of items removed
+     */
+    public long removeItems(String type) {
+        checkArgument(isNotBlank(type));
+        Long removed = stringOps.clearRedis(keyPattern(type));
+        if (removed == null) {
+            throw new BridgeServiceException("Items of type '"+type+"' could not be removed from cache.");
+        }
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidateAll(CacheProvider.STUDY_CACHE_NAME);
+            cacheInvalidationBus.invalidateAll(ViewCache.CACHE_NAME);
+        }
+        return removed;
+    }
+
+    private static String keyPattern(String type) {
+        if (isBlank(type)) {
+            return "*";
+        }
+        RedisKey redisKey = KEY_TYPES.get(type);
+        if (redisKey == null) {
+            throw new BadRequestException("'" + type + "' is not a cache item type. Types are " + KEY_TYPES.keySet());
+        }
+        return "*" + RedisKey.SEPARATOR + redisKey.getSuffix();
+    }
+
+    private static Map<String, RedisKey> indexBySuffix(RedisKey... redisKeys) {
+        ImmutableMap.Builder<String, RedisKey> builder = ImmutableMap.builder();
+        for (RedisKey redisKey : redisKeys) {
+            builder.put(redisKey.getSuffix(), redisKey);
+        }
+        return builder.build();
     }
 
 }
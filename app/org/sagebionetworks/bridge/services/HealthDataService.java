@@ -122,6 +122,29 @@ public class HealthDataService {
         return healthDataDao.getRecordsForUploadDate(uploadDate);
     }
 
+    /**
+     * Returns the health data records already written for the given upload. This is used by upload reprocessing, so
+     * that the reprocessed record replaces the existing one.
+     *
+     * @param healthCode
+     *         health code of the user who sent the upload, must be non-null and non-empty
+     * @param uploadId
+     *         upload ID, must be non-null and non-empty
+     * @return list of health data records for the upload, generally at most one
+     */
+    public List<HealthDataRecord> getRecordsForUpload(String healthCode, String uploadId) {
+        // validate health code and upload ID
+        if (StringUtils.isBlank(healthCode)) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_BLANK, "healthCode"));
+        }
+        if (StringUtils.isBlank(uploadId)) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_BLANK, "uploadId"));
+        }
+
+        // call through to DAO
+        return healthDataDao.getRecordsForUpload(healthCode, uploadId);
+    }
+
     /* HEALTH DATA ATTACHMENT APIs */
 
     /**
@@ -145,6 +168,29 @@ public class HealthDataService {
         return healthDataAttachmentDao.createOrUpdateAttachment(attachment);
     }
 
+    /**
+     * Creates or updates multiple health data attachments in batch. Each attachment is created or updated the same way
+     * as in {@link #createOrUpdateAttachment}.
+     *
+     * @param attachmentList
+     *         list of health data attachments to create or update
+     * @return list of attachment IDs of the created or updated attachments, in the same order as the attachment list
+     */
+    public List<String> createOrUpdateAttachments(List<HealthDataAttachment> attachmentList) {
+        // validate attachments
+        if (attachmentList == null) {
+            throw new InvalidEntityException(String.format(Validate.CANNOT_BE_NULL, "HealthDataAttachment list"));
+        }
+        for (HealthDataAttachment oneAttachment : attachmentList) {
+            if (oneAttachment == null) {
+                throw new InvalidEntityException(String.format(Validate.CANNOT_BE_NULL, "HealthDataAttachment"));
+            }
+        }
+
+        // call through to DAO
+        return healthDataAttachmentDao.createOrUpdateAttachments(attachmentList);
+    }
+
     /* BUILDERS */
 
     /** Returns a builder object, used for building attachments, for create or update. */
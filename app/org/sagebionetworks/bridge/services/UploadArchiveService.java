@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.services;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.cert.CertificateEncodingException;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -32,7 +33,8 @@ public class UploadArchiveService {
 
     private final static Zipper ZIPPER = new Zipper(
             BridgeConfigFactory.getConfig().getPropertyAsInt("max.zip.entry.size"),
-            BridgeConfigFactory.getConfig().getPropertyAsInt("max.num.zip.entries"));
+            BridgeConfigFactory.getConfig().getPropertyAsInt("max.num.zip.entries"),
+            BridgeConfigFactory.getConfig().getPropertyAsInt("max.zip.compression.ratio"));
 
     private LoadingCache<String, CmsEncryptor> cmsEncryptorCache;
 
@@ -106,6 +108,38 @@ public class UploadArchiveService {
         }
     }
 
+    /**
+     * Decrypts the specified stream, using the encryption materials for the specified study. Decryption happens as
+     * the returned stream is read, so the decrypted data is never buffered in full.
+     *
+     * @param studyId
+     *         study ID, must be non-null, non-empty, and refer to a valid study
+     * @param stream
+     *         stream of data to decrypt, must be non-null
+     * @return stream of decrypted data
+     * @throws BridgeServiceException
+     *         if we fail to load the encryptor, or if decryption fails
+     */
+    public InputStream decrypt(@Nonnull String studyId, @Nonnull InputStream stream) throws BridgeServiceException {
+        // validate
+        if (Strings.isNullOrEmpty(studyId)) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_BLANK, "studyId"));
+        }
+        if (stream == null) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_NULL, "stream"));
+        }
+
+        // get encryptor from cache
+        CmsEncryptor encryptor = getEncryptorForStudy(studyId);
+
+        // decrypt
+        try {
+            return encryptor.decrypt(stream);
+        } catch (CertificateEncodingException | CMSException | IOException ex) {
+            throw new BridgeServiceException(ex);
+        }
+    }
+
     /**
      * Helper function to get the encryptor for the given study.
      *
@@ -177,4 +211,75 @@ public class UploadArchiveService {
             throw new BadRequestException(e);
         }
     }
+
+    /**
+     * <p>
+     * Unzips the given stream, handing each entry to the consumer as soon as it is read. Unlike
+     * {@link #unzip(byte[])}, this never holds more than one entry in memory at a time.
+     * </p>
+     * <p>
+     * This method will throw a BadRequestException if the zip file somehow contains duplicate filenames.
+     * </p>
+     *
+     * @param stream
+     *         stream containing the raw data to unzip, must be non-null
+     * @param consumer
+     *         callback that receives each unzipped entry, keyed by filename, must be non-null
+     * @throws BridgeServiceException
+     *         if unzipping fails
+     */
+    public void unzip(@Nonnull InputStream stream, @Nonnull Zipper.EntryConsumer consumer)
+            throws BridgeServiceException {
+        if (stream == null) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_NULL, "stream"));
+        }
+        if (consumer == null) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_NULL, "consumer"));
+        }
+        try {
+            ZIPPER.unzip(stream, consumer);
+        } catch (IOException e) {
+            throw new BridgeServiceException(e);
+        } catch (ZipOverflowException e) {
+            throw new BadRequestException(e);
+        } catch (DuplicateZipEntryException e) {
+            throw new BadRequestException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Unzips the given stream like {@link #unzip(InputStream, Zipper.EntryConsumer)}, but hands the consumer a view of
+     * each entry in a reused buffer. The buffer is only valid during the callback, so consumers that keep an entry
+     * must copy it.
+     * </p>
+     * <p>
+     * This method will throw a BadRequestException if the zip file somehow contains duplicate filenames.
+     * </p>
+     *
+     * @param stream
+     *         stream containing the raw data to unzip, must be non-null
+     * @param consumer
+     *         callback that receives a view of each unzipped entry, keyed by filename, must be non-null
+     * @throws BridgeServiceException
+     *         if unzipping fails
+     */
+    public void unzipView(@Nonnull InputStream stream, @Nonnull Zipper.EntryViewConsumer consumer)
+            throws BridgeServiceException {
+        if (stream == null) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_NULL, "stream"));
+        }
+        if (consumer == null) {
+            throw new BadRequestException(String.format(Validate.CANNOT_BE_NULL, "consumer"));
+        }
+        try {
+            ZIPPER.unzipView(stream, consumer);
+        } catch (IOException e) {
+            throw new BridgeServiceException(e);
+        } catch (ZipOverflowException e) {
+            throw new BadRequestException(e);
+        } catch (DuplicateZipEntryException e) {
+            throw new BadRequestException(e);
+        }
+    }
 }
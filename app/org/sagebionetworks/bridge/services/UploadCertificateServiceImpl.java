@@ -14,13 +14,16 @@ import javax.annotation.Resource;
 import org.sagebionetworks.bridge.config.BridgeConfig;
 import org.sagebionetworks.bridge.config.BridgeConfigFactory;
 import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
 import org.sagebionetworks.bridge.crypto.CertificateFactory;
+import org.sagebionetworks.bridge.crypto.CmsEncryptor;
 import org.sagebionetworks.bridge.crypto.KeyPairFactory;
 import org.sagebionetworks.bridge.crypto.PemUtils;
 import org.springframework.stereotype.Component;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.cache.LoadingCache;
 
 @Component("uploadCertificateService")
 public class UploadCertificateServiceImpl implements UploadCertificateService {
@@ -31,6 +34,7 @@ public class UploadCertificateServiceImpl implements UploadCertificateService {
 
     private final CertificateFactory certificateFactory;
     private AmazonS3 s3CmsClient;
+    private LoadingCache<String, CmsEncryptor> cmsEncryptorCache;
 
     public UploadCertificateServiceImpl() {
         certificateFactory = new BcCertificateFactory();
@@ -41,6 +45,15 @@ public class UploadCertificateServiceImpl implements UploadCertificateService {
         this.s3CmsClient = s3CmsClient;
     }
 
+    /**
+     * Loading cache for CMS encryptors, keyed by study ID. New key pairs are put straight into the cache, so the
+     * study's first upload doesn't have to read them back from S3.
+     */
+    @Resource(name = "cmsEncryptorCache")
+    public void setCmsEncryptorCache(LoadingCache<String, CmsEncryptor> cmsEncryptorCache) {
+        this.cmsEncryptorCache = cmsEncryptorCache;
+    }
+
     @Override
     public void createCmsKeyPair(String studyIdentifier) {
         checkNotNull(studyIdentifier);
@@ -51,6 +64,7 @@ public class UploadCertificateServiceImpl implements UploadCertificateService {
         try {
             s3Put(PRIVATE_KEY_BUCKET, name,  PemUtils.toPem(keyPair.getPrivate()));
             s3Put(CERT_BUCKET, name, PemUtils.toPem(cert));
+            cmsEncryptorCache.put(studyIdentifier, new BcCmsEncryptor(cert, keyPair.getPrivate()));
         } catch (CertificateEncodingException e) {
             throw new RuntimeException(e);
         }
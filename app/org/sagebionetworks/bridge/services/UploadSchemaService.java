@@ -1,7 +1,10 @@
 package org.sagebionetworks.bridge.services;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -10,15 +13,35 @@ import org.sagebionetworks.bridge.exceptions.BadRequestException;
 import org.sagebionetworks.bridge.exceptions.InvalidEntityException;
 import org.sagebionetworks.bridge.models.studies.StudyIdentifier;
 import org.sagebionetworks.bridge.models.upload.UploadSchema;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
 import org.sagebionetworks.bridge.validators.UploadSchemaValidator;
 import org.sagebionetworks.bridge.validators.Validate;
 
 /**
+ * <p>
  * Service handler for upload schema APIs. This is called by researchers to create, read, and update upload schemas.
+ * </p>
+ * <p>
+ * Schema lookups are read on every upload, but schemas rarely change, so lookups by schema ID (latest revision) are
+ * cached in-process. Creating, updating, or deleting a schema invalidates its cache entry
+ * on every server through the {@link CacheInvalidationBus}. Entries also expire after a few minutes, as a safety net
+ * for missed invalidations. Schemas returned from the cache are shared, so callers must not modify them.
+ * </p>
  */
 @Component
 public class UploadSchemaService {
+    /** Name of the schema cache, for cache invalidation. */
+    /* package-scoped */ static final String CACHE_NAME = "uploadSchema";
+
+    private static final long CACHE_EXPIRE_MINUTES = 5;
+    private static final long CACHE_MAX_SIZE = 1000;
+
+    // Keyed by studyId:schemaId. Each entry holds the latest revision.
+    private final Cache<String, SchemaCacheEntry> schemaCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(CACHE_EXPIRE_MINUTES, TimeUnit.MINUTES).maximumSize(CACHE_MAX_SIZE).build();
+
     private UploadSchemaDao uploadSchemaDao;
+    private CacheInvalidationBus cacheInvalidationBus;
 
     /** DAO for upload schemas. This is configured by Spring. */
     @Autowired
@@ -26,6 +49,23 @@ public class UploadSchemaService {
         this.uploadSchemaDao = uploadSchemaDao;
     }
 
+    /** Propagates schema cache invalidations to other servers. This is configured by Spring. */
+    @Autowired
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        cacheInvalidationBus.addListener(CACHE_NAME, new CacheInvalidationBus.Listener() {
+            @Override
+            public void invalidate(String key) {
+                schemaCache.invalidate(key);
+            }
+
+            @Override
+            public void invalidateAll() {
+                schemaCache.invalidateAll();
+            }
+        });
+    }
+
     /**
      * <p>
      * Service handler for creating and updating upload schemas. This method creates an upload schema, using the study
@@ -49,7 +89,10 @@ public class UploadSchemaService {
         Validate.entityThrowingException(UploadSchemaValidator.INSTANCE, uploadSchema);
 
         // call through to DAO
-        return uploadSchemaDao.createOrUpdateUploadSchema(studyIdentifier.getIdentifier(), uploadSchema);
+        UploadSchema createdSchema = uploadSchemaDao.createOrUpdateUploadSchema(studyIdentifier.getIdentifier(),
+                uploadSchema);
+        invalidateCache(studyIdentifier.getIdentifier(), uploadSchema.getSchemaId());
+        return createdSchema;
     }
 
     /**
@@ -75,7 +118,12 @@ public class UploadSchemaService {
         if (rev <= 0) {
             throw new BadRequestException("Schema revision must be positive");
         }
-        uploadSchemaDao.deleteUploadSchemaByIdAndRev(studyIdentifier, schemaId, rev);
+        try {
+            uploadSchemaDao.deleteUploadSchemaByIdAndRev(studyIdentifier, schemaId, rev);
+        } finally {
+            // Invalidate even if the delete failed, in case it failed partway through.
+            invalidateCache(studyIdentifier.getIdentifier(), schemaId);
+        }
     }
 
     /**
@@ -96,7 +144,12 @@ public class UploadSchemaService {
         if (StringUtils.isBlank(schemaId)) {
             throw new BadRequestException(String.format("Invalid schema ID %s", schemaId));
         }
-        uploadSchemaDao.deleteUploadSchemaById(studyIdentifier, schemaId);
+        try {
+            uploadSchemaDao.deleteUploadSchemaById(studyIdentifier, schemaId);
+        } finally {
+            // Invalidate even if the delete failed, in case it failed partway through.
+            invalidateCache(studyIdentifier.getIdentifier(), schemaId);
+        }
     }
 
     /**
@@ -119,7 +172,15 @@ public class UploadSchemaService {
         if (StringUtils.isBlank(schemaId)) {
             throw new BadRequestException(String.format("Invalid schema ID %s", schemaId));
         }
-        return uploadSchemaDao.getUploadSchema(studyIdentifier.getIdentifier(), schemaId);
+        String studyId = studyIdentifier.getIdentifier();
+        SchemaCacheEntry cacheEntry = getCacheEntry(studyId, schemaId);
+        UploadSchema schema = cacheEntry.latest;
+        if (schema == null) {
+            // Not cached. This throws if the schema doesn't exist, so we never cache misses.
+            schema = uploadSchemaDao.getUploadSchema(studyId, schemaId);
+            cacheEntry.latest = schema;
+        }
+        return schema;
     }
 
     /**
@@ -138,4 +199,40 @@ public class UploadSchemaService {
     public List<UploadSchema> getUploadSchemasForStudy(StudyIdentifier studyId) {
         return uploadSchemaDao.getUploadSchemasForStudy(studyId);
     }
+
+    /**
+     * Gets the cache entry for the given schema, creating an empty one if needed. Loads write into the entry rather
+     * than into the cache, so if the entry is invalidated while a load is in flight, the load only writes to the
+     * orphaned entry and never resurrects stale data.
+     */
+    private SchemaCacheEntry getCacheEntry(String studyId, String schemaId) {
+        String cacheKey = makeCacheKey(studyId, schemaId);
+        SchemaCacheEntry cacheEntry = schemaCache.getIfPresent(cacheKey);
+        if (cacheEntry == null) {
+            SchemaCacheEntry newEntry = new SchemaCacheEntry();
+            cacheEntry = schemaCache.asMap().putIfAbsent(cacheKey, newEntry);
+            if (cacheEntry == null) {
+                cacheEntry = newEntry;
+            }
+        }
+        return cacheEntry;
+    }
+
+    private void invalidateCache(String studyId, String schemaId) {
+        String cacheKey = makeCacheKey(studyId, schemaId);
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(CACHE_NAME, cacheKey);
+        } else {
+            schemaCache.invalidate(cacheKey);
+        }
+    }
+
+    private static String makeCacheKey(String studyId, String schemaId) {
+        return studyId + ":" + schemaId;
+    }
+
+    /** Cached latest revision of a single schema. */
+    private static class SchemaCacheEntry {
+        private volatile UploadSchema latest;
+    }
 }
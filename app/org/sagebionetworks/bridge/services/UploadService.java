@@ -9,6 +9,8 @@ import javax.annotation.Resource;
 import java.net.URL;
 import java.util.Date;
 
+import com.google.common.collect.ImmutableList;
+
 import com.amazonaws.AmazonClientException;
 import com.google.common.base.Strings;
 
@@ -16,6 +18,7 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.sagebionetworks.bridge.config.BridgeConfigFactory;
 import org.sagebionetworks.bridge.dao.UploadDao;
+import org.sagebionetworks.bridge.dao.UploadDedupDao;
 import org.sagebionetworks.bridge.exceptions.BadRequestException;
 import org.sagebionetworks.bridge.exceptions.NotFoundException;
 import org.sagebionetworks.bridge.exceptions.UnauthorizedException;
@@ -23,6 +26,7 @@ import org.sagebionetworks.bridge.models.accounts.User;
 import org.sagebionetworks.bridge.models.upload.Upload;
 import org.sagebionetworks.bridge.models.upload.UploadRequest;
 import org.sagebionetworks.bridge.models.upload.UploadSession;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
 import org.sagebionetworks.bridge.validators.UploadValidator;
 import org.sagebionetworks.bridge.validators.Validate;
 import org.slf4j.Logger;
@@ -42,12 +46,16 @@ public class UploadService {
     private static final Logger logger = LoggerFactory.getLogger(UploadService.class);
 
     private static final long EXPIRATION = 60 * 1000; // 1 minute
+
+    /** Validation message prefix for uploads linked to an earlier duplicate upload instead of being validated. */
+    public static final String DUPLICATE_MESSAGE_PREFIX = "Duplicate of upload ";
     private static final String BUCKET = BridgeConfigFactory.getConfig().getProperty("upload.bucket");
 
     private UploadSessionCredentialsService uploadCredentailsService;
     private AmazonS3 s3UploadClient;
     private AmazonS3 s3Client;
     private UploadDao uploadDao;
+    private UploadDedupDao uploadDedupDao;
     private Validator validator;
 
     @Autowired
@@ -67,6 +75,10 @@ public class UploadService {
         this.uploadDao = uploadDao;
     }
     @Autowired
+    public void setUploadDedupDao(UploadDedupDao uploadDedupDao) {
+        this.uploadDedupDao = uploadDedupDao;
+    }
+    @Autowired
     public void setValidator(UploadValidator validator) {
         this.validator = validator;
     }
@@ -132,13 +144,28 @@ public class UploadService {
         return upload;
     }
 
-    public void uploadComplete(Upload upload) {
+    /**
+     * <p>
+     * Marks the upload as complete. Returns true if the caller should kick off upload validation.
+     * </p>
+     * <p>
+     * Clients retry aggressively, so the same archive is often uploaded several times under different upload IDs. If
+     * the user successfully uploaded an archive with the same content MD5 recently, this upload is linked to the
+     * earlier upload (marked as succeeded, with a validation message naming the earlier upload), and this method
+     * returns false, so the archive isn't downloaded, decrypted, unzipped, and validated again.
+     * </p>
+     *
+     * @param upload
+     *         upload to mark as complete, must be non-null
+     * @return true if the upload needs validation, false if it was linked to an earlier upload
+     */
+    public boolean uploadComplete(Upload upload) {
         String uploadId = upload.getUploadId();
 
         // We don't want to kick off upload validation on an upload that already has upload validation.
         if (!upload.canBeValidated()) {
             logger.info(String.format("uploadComplete called for upload %s, which is already complete", uploadId));
-            return;
+            return true;
         }
 
         final String objectId = upload.getObjectId();
@@ -152,6 +179,50 @@ public class UploadService {
         if (!AES_256_SERVER_SIDE_ENCRYPTION.equals(sse)) {
             logger.error("Missing S3 server-side encryption (SSE) for presigned upload " + uploadId + ".");
         }
+
+        String healthCode = upload.getHealthCode();
+        String contentMd5 = upload.getContentMd5();
+        String originalUploadId = null;
+        if (uploadDedupDao != null && !Strings.isNullOrEmpty(contentMd5)) {
+            originalUploadId = getSucceededDuplicateUploadId(healthCode, contentMd5, uploadId);
+        }
+
         uploadDao.uploadComplete(upload);
+        if (originalUploadId != null) {
+            logger.info(String.format("Upload %s is a duplicate of upload %s, skipping validation", uploadId,
+                    originalUploadId));
+            uploadDao.writeValidationStatus(upload, UploadStatus.SUCCEEDED, ImmutableList.of(
+                    DUPLICATE_MESSAGE_PREFIX + originalUploadId));
+            return false;
+        }
+
+        if (uploadDedupDao != null && !Strings.isNullOrEmpty(contentMd5)) {
+            uploadDedupDao.registerUpload(healthCode, contentMd5, uploadId);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the ID of a recent upload with the same health code and content MD5, but only if that upload succeeded.
+     * If the earlier upload is still being validated, we can't know yet whether it will succeed, so this upload is
+     * validated on its own. If the earlier upload failed, this upload replaces it in the index.
+     */
+    private String getSucceededDuplicateUploadId(String healthCode, String contentMd5, String uploadId) {
+        String originalUploadId = uploadDedupDao.getDuplicateUploadId(healthCode, contentMd5);
+        if (originalUploadId == null || originalUploadId.equals(uploadId)) {
+            return null;
+        }
+
+        Upload originalUpload;
+        try {
+            originalUpload = uploadDao.getUpload(originalUploadId);
+        } catch (NotFoundException ex) {
+            return null;
+        }
+        if (!healthCode.equals(originalUpload.getHealthCode())) {
+            // This should never happen, since the health code is part of the key.
+            return null;
+        }
+        return originalUpload.getStatus() == UploadStatus.SUCCEEDED ? originalUploadId : null;
     }
 }
@@ -3,26 +3,36 @@ package org.sagebionetworks.bridge.services;
 import javax.annotation.Nonnull;
 import javax.annotation.Resource;
 
-import java.util.concurrent.ExecutorService;
-
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.sagebionetworks.bridge.models.accounts.User;
 import org.sagebionetworks.bridge.models.studies.Study;
 import org.sagebionetworks.bridge.models.upload.Upload;
+import org.sagebionetworks.bridge.upload.DurableUploadValidationQueue;
+import org.sagebionetworks.bridge.upload.UploadValidationScheduler;
 import org.sagebionetworks.bridge.upload.UploadValidationTask;
 import org.sagebionetworks.bridge.upload.UploadValidationTaskFactory;
 
 /** Service handler for upload validation. */
 @Component
 public class UploadValidationService {
-    private ExecutorService asyncExecutorService;
+    private DurableUploadValidationQueue durableQueue;
+    private UploadValidationScheduler scheduler;
     private UploadValidationTaskFactory taskFactory;
 
-    /** Async thread pool. This is configured by Spring. */
-    @Resource(name = "asyncExecutorService")
-    public void setAsyncExecutorService(ExecutorService asyncExecutorService) {
-        this.asyncExecutorService = asyncExecutorService;
+    /**
+     * Durable Redis-backed queue, which uploads go through when enabled, so they survive deploys and crashes. This is
+     * configured by Spring. If not set or not enabled, uploads are submitted straight to the local scheduler.
+     */
+    @Resource(name = "durableUploadValidationQueue")
+    public void setDurableQueue(DurableUploadValidationQueue durableQueue) {
+        this.durableQueue = durableQueue;
+    }
+
+    /** Bounded, per-study fair scheduler that runs validation tasks. This is configured by Spring. */
+    @Resource(name = "uploadValidationScheduler")
+    public void setScheduler(UploadValidationScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
     /** Task factory. This is configured by Spring. */
@@ -31,6 +41,17 @@ public class UploadValidationService {
         this.taskFactory = taskFactory;
     }
 
+    /**
+     * True if the validation queue can accept more uploads. Callers should check this before marking an upload as
+     * complete, and ask the client to retry later if it returns false.
+     */
+    public boolean hasCapacity() {
+        if (isDurable()) {
+            return durableQueue.hasCapacity();
+        }
+        return scheduler.hasCapacity();
+    }
+
     /**
      * <p>
      * Kick off upload validation. Since upload validation can take some time, we handle this asynchronously. This
@@ -47,9 +68,19 @@ public class UploadValidationService {
      *         user uploading
      * @param upload
      *         upload metadata object for the upload
+     * @return true if validation was queued, false if the validation queue is full and the client should retry later
      */
-    public void validateUpload(@Nonnull Study study, @Nonnull User user, @Nonnull Upload upload) {
+    public boolean validateUpload(@Nonnull Study study, @Nonnull User user, @Nonnull Upload upload) {
+        if (isDurable() && durableQueue.enqueue(study, upload)) {
+            return true;
+        }
+
+        // Durable queue is disabled, or Redis is unavailable. Fall back to validating on this server.
         UploadValidationTask task = taskFactory.newTask(study, user, upload);
-        asyncExecutorService.execute(task);
+        return scheduler.trySubmit(study.getIdentifier(), task);
+    }
+
+    private boolean isDurable() {
+        return durableQueue != null && durableQueue.isEnabled();
     }
 }
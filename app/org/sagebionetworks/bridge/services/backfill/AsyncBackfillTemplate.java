@@ -2,12 +2,10 @@ package org.sagebionetworks.bridge.services.backfill;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 import org.sagebionetworks.bridge.dao.BackfillDao;
 import org.sagebionetworks.bridge.dao.DistributedLockDao;
 import org.sagebionetworks.bridge.exceptions.ConcurrentModificationException;
@@ -65,18 +63,17 @@ abstract class AsyncBackfillTemplate implements BackfillService {
         String lock = null;
         try {
             lock = lockDao.acquireLock(clazz, obj, getLockExpireInSeconds());
+            // Backfills can run longer than the lock expiration, so keep the lock until we're done.
+            lockDao.startRenewal(clazz, obj, lock, getLockExpireInSeconds());
             backfillTask(user, name, callback);
         } catch (ConcurrentModificationException e) {
-            long since = DateTime.now(DateTimeZone.UTC).getMillis() - getLockExpireInSeconds() * 1000L;
-            List<? extends BackfillTask> tasks = backfillDao.getTasks(name, since);
-            if (tasks.isEmpty()) {
-                throw new RuntimeException("Failed to acquire lock but there is not recent backfill of " + name);
+            // The lock is renewed for as long as the backfill runs, so the task holding it may have started long
+            // before the lock expiration. Look for the most recent one in progress, however old it is.
+            final BackfillTask recentTask = backfillDao.getLatestTask(name, BackfillStatus.IN_PROCESS);
+            if (recentTask == null) {
+                throw new RuntimeException("Failed to acquire lock but there is no backfill of " + name
+                        + " in progress");
             }
-            // A backfill task may complete well within the lock expiration. If we look back over the
-            // duration of lock expiration, we could get more than one backfill tasks. Only the most
-            // recent one is blocking us; the rest should have finished. Check the most recent one and
-            // report back the progress.
-            final BackfillTask recentTask = tasks.get(tasks.size() - 1);
             final int count = backfillDao.getRecordCount(recentTask.getId());
             final String msg = "Found a recent task of " + name
                     + " started at " + (new DateTime(recentTask.getTimestamp())).toString()
@@ -109,8 +106,8 @@ abstract class AsyncBackfillTemplate implements BackfillService {
     }
 
     /**
-     * How long (in seconds) should the lock expire. This value should be long enough to cover
-     * the duration of the entire backfill.
+     * How long (in seconds) should the lock expire. The lock is renewed while the backfill runs, so
+     * this is how long another backfill is blocked if this server dies mid-backfill.
      */
     abstract int getLockExpireInSeconds();
 
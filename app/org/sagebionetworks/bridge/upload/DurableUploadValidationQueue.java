@@ -0,0 +1,303 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.dao.UploadDao;
+import org.sagebionetworks.bridge.models.accounts.User;
+import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.models.upload.Upload;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
+import org.sagebionetworks.bridge.redis.RedisLeaseQueue;
+import org.sagebionetworks.bridge.services.StudyService;
+
+/**
+ * <p>
+ * Durable upload validation queue, backed by a {@link RedisLeaseQueue}. API servers enqueue uploads to validate. Worker
+ * servers poll the queue, claiming uploads only while their local {@link UploadValidationScheduler} has idle workers,
+ * and hold a lease on each upload until its validation task finishes. Leases are renewed by heartbeat while tasks are
+ * queued or running. If a server is deployed or crashes, its leases expire and other workers (or the same server,
+ * once it restarts) pick the uploads back up, so uploads no longer get stuck in VALIDATION_IN_PROGRESS.
+ * </p>
+ * <p>
+ * The queue can be turned off entirely, in which case uploads are submitted straight to the local scheduler. Worker
+ * polling can also be turned off per server, so validation can be scaled separately from the API servers.
+ * </p>
+ */
+public class DurableUploadValidationQueue {
+    private static final Logger logger = LoggerFactory.getLogger(DurableUploadValidationQueue.class);
+
+    /** Name of the Redis work queue. */
+    public static final String QUEUE_NAME = "upload-validation";
+
+    private static final String PAYLOAD_SEPARATOR = "|";
+
+    // Reclaim expired leases every this many polls. Any server can reclaim, so this doesn't need to be frequent.
+    private static final int RECLAIM_EVERY_N_POLLS = 10;
+
+    private final RedisLeaseQueue queue;
+    private final UploadValidationScheduler scheduler;
+    private final int maxQueueDepth;
+    private final boolean enabled;
+    private final boolean workerEnabled;
+    private final long pollMillis;
+
+    // Leases for tasks queued or running on this server, keyed by payload. Renewed by the heartbeat.
+    private final ConcurrentMap<String, RedisLeaseQueue.Lease> activeLeases = new ConcurrentHashMap<>();
+
+    private StudyService studyService;
+    private UploadDao uploadDao;
+    private UploadValidationTaskFactory taskFactory;
+
+    private ScheduledExecutorService pollExecutor;
+    private int pollCount = 0;
+
+    /**
+     * Creates the queue. Call {@link #start} to start polling.
+     *
+     * @param queue
+     *         Redis lease queue, must be non-null
+     * @param scheduler
+     *         local scheduler that runs claimed validation tasks, must be non-null
+     * @param maxQueueDepth
+     *         maximum number of uploads waiting in the queue, across all servers, must be positive
+     * @param enabled
+     *         true if uploads should go through the durable queue, false if they go straight to the local scheduler
+     * @param workerEnabled
+     *         true if this server should claim and validate uploads, false if it only enqueues them
+     * @param pollMillis
+     *         how often to poll the queue when it's empty or local workers are busy, must be positive
+     */
+    public DurableUploadValidationQueue(@Nonnull RedisLeaseQueue queue, @Nonnull UploadValidationScheduler scheduler,
+            int maxQueueDepth, boolean enabled, boolean workerEnabled, long pollMillis) {
+        Preconditions.checkNotNull(queue);
+        Preconditions.checkNotNull(scheduler);
+        Preconditions.checkArgument(maxQueueDepth > 0, "maxQueueDepth must be positive");
+        Preconditions.checkArgument(pollMillis > 0, "pollMillis must be positive");
+
+        this.queue = queue;
+        this.scheduler = scheduler;
+        this.maxQueueDepth = maxQueueDepth;
+        this.enabled = enabled;
+        this.workerEnabled = workerEnabled;
+        this.pollMillis = pollMillis;
+    }
+
+    /** Study service, used to load the study for a claimed upload. This is configured by Spring. */
+    public void setStudyService(StudyService studyService) {
+        this.studyService = studyService;
+    }
+
+    /** Upload DAO, used to load claimed uploads and fail abandoned ones. This is configured by Spring. */
+    public void setUploadDao(UploadDao uploadDao) {
+        this.uploadDao = uploadDao;
+    }
+
+    /** Task factory, used to create validation tasks for claimed uploads. This is configured by Spring. */
+    public void setTaskFactory(UploadValidationTaskFactory taskFactory) {
+        this.taskFactory = taskFactory;
+    }
+
+    /** True if uploads should go through the durable queue. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds an upload to the queue.
+     *
+     * @return true if the upload was queued, false if Redis is unavailable
+     */
+    public boolean enqueue(@Nonnull Study study, @Nonnull Upload upload) {
+        return queue.enqueue(study.getIdentifier() + PAYLOAD_SEPARATOR + upload.getUploadId());
+    }
+
+    /** True if the queue can accept more uploads. If Redis is unavailable, this falls back to the local scheduler. */
+    public boolean hasCapacity() {
+        Long readyCount = queue.getReadyCount();
+        if (readyCount == null) {
+            return scheduler.hasCapacity();
+        }
+        return readyCount < maxQueueDepth;
+    }
+
+    /** Starts polling, if this server is a worker. */
+    public synchronized void start() {
+        if (!enabled || !workerEnabled || pollExecutor != null) {
+            return;
+        }
+
+        pollExecutor = Executors.newScheduledThreadPool(2);
+        pollExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (RuntimeException ex) {
+                    logger.error("Error polling upload validation queue: " + ex.getMessage(), ex);
+                }
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+
+        // Heartbeat three times per lease, so a single slow or failed renewal doesn't lose the lease.
+        long heartbeatMillis = queue.getLeaseMillis() / 3;
+        pollExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renewLeases();
+                } catch (RuntimeException ex) {
+                    logger.error("Error renewing upload validation leases: " + ex.getMessage(), ex);
+                }
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling. Leases for tasks still queued or running are left to expire, so other workers pick those uploads
+     * back up.
+     */
+    public synchronized void shutdown() {
+        if (pollExecutor != null) {
+            pollExecutor.shutdownNow();
+            pollExecutor = null;
+        }
+    }
+
+    /**
+     * Reclaims expired leases (periodically), then claims uploads while the local scheduler has idle workers. This is
+     * package-scoped to facilitate unit tests.
+     */
+    /* package-scoped */ void poll() {
+        if (pollCount++ % RECLAIM_EVERY_N_POLLS == 0) {
+            reclaim();
+        }
+
+        // Only claim what we can start right away, so we don't hoard uploads that other workers could validate.
+        while (scheduler.getQueueDepth() < scheduler.getWorkerCount() - scheduler.getRunningCount() &&
+                scheduler.hasCapacity()) {
+            RedisLeaseQueue.Lease lease = queue.claim();
+            if (lease == null || !dispatch(lease)) {
+                return;
+            }
+        }
+    }
+
+    private void reclaim() {
+        List<String> deadPayloadList = queue.reclaimExpired();
+        for (String onePayload : deadPayloadList) {
+            String uploadId = onePayload.substring(onePayload.indexOf(PAYLOAD_SEPARATOR) + 1);
+            logger.error("Upload validation abandoned for upload " + uploadId + " after repeated lease expirations");
+            try {
+                Upload upload = uploadDao.getUpload(uploadId);
+                uploadDao.writeValidationStatus(upload, UploadStatus.VALIDATION_FAILED, ImmutableList.of(
+                        "Upload validation did not complete after repeated attempts"));
+            } catch (RuntimeException ex) {
+                logger.error("Could not mark upload " + uploadId + " as failed: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    // Returns false if the local scheduler turned out to be full, so the caller should stop claiming for now.
+    private boolean dispatch(final RedisLeaseQueue.Lease lease) {
+        String payload = lease.getPayload();
+        int separatorIdx = payload.indexOf(PAYLOAD_SEPARATOR);
+        String studyId = payload.substring(0, separatorIdx);
+        String uploadId = payload.substring(separatorIdx + 1);
+
+        UploadValidationTask task;
+        try {
+            Upload upload = uploadDao.getUpload(uploadId);
+            if (upload.getStatus() != UploadStatus.VALIDATION_IN_PROGRESS) {
+                // Already validated, for example by a worker whose lease expired while it was still running.
+                queue.complete(lease);
+                return true;
+            }
+
+            // Validation only needs the user's health code, which is also on the upload.
+            User user = new User();
+            user.setHealthCode(upload.getHealthCode());
+            user.setStudyKey(studyId);
+
+            Study study = studyService.getStudy(studyId);
+            task = taskFactory.newTask(study, user, upload);
+        } catch (RuntimeException ex) {
+            // Study or upload no longer exists. Retrying won't help.
+            logger.error("Could not start upload validation for upload " + uploadId + ": " + ex.getMessage(), ex);
+            queue.complete(lease);
+            return true;
+        }
+
+        if (lease.getAttempt() > 1) {
+            logger.info(String.format("Retrying upload validation for upload %s, attempt %d", uploadId,
+                    lease.getAttempt()));
+        }
+
+        final UploadValidationTask finalTask = task;
+        activeLeases.put(payload, lease);
+        boolean submitted = scheduler.trySubmit(studyId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finalTask.run();
+
+                    // Only complete if the task finished. If it threw, the lease expires and the upload is retried.
+                    if (!queue.complete(lease)) {
+                        logger.warn("Lost lease for upload " + lease.getPayload() + " before validation finished");
+                    }
+                } finally {
+                    activeLeases.remove(lease.getPayload());
+                }
+            }
+        });
+        if (!submitted) {
+            // Local queue filled up since we checked. Put the upload back without using up an attempt, so it isn't
+            // dead-lettered for our lack of capacity. If that fails, the lease expires and the upload is retried.
+            activeLeases.remove(payload);
+            if (!queue.release(lease)) {
+                logger.warn("Could not release lease for upload " + uploadId + ", leaving it to expire");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** Renews the leases of all tasks queued or running on this server. This is package-scoped for unit tests. */
+    /* package-scoped */ void renewLeases() {
+        for (RedisLeaseQueue.Lease oneLease : activeLeases.values()) {
+            if (!queue.renew(oneLease)) {
+                logger.warn("Could not renew lease for upload " + oneLease.getPayload());
+            }
+        }
+    }
+
+    /** Gauge: number of uploads waiting in the queue, across all servers, or null if Redis is unavailable. */
+    public Long getReadyCount() {
+        return queue.getReadyCount();
+    }
+
+    /** Gauge: number of uploads leased to workers, across all servers, or null if Redis is unavailable. */
+    public Long getLeasedCount() {
+        return queue.getLeasedCount();
+    }
+
+    /** Gauge: number of abandoned uploads in the dead letter list, or null if Redis is unavailable. */
+    public Long getDeadCount() {
+        return queue.getDeadCount();
+    }
+
+    /** Gauge: number of leases held by this server. */
+    public int getActiveLeaseCount() {
+        return activeLeases.size();
+    }
+}
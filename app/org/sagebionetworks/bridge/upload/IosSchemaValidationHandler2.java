@@ -1,9 +1,7 @@
 package org.sagebionetworks.bridge.upload;
 
-import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -13,6 +11,9 @@ import javax.annotation.Nonnull;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.apache.commons.lang3.StringUtils;
@@ -27,8 +28,6 @@ import org.sagebionetworks.bridge.json.DateUtils;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataRecordBuilder;
 import org.sagebionetworks.bridge.models.studies.Study;
 import org.sagebionetworks.bridge.models.upload.Upload;
-import org.sagebionetworks.bridge.models.upload.UploadFieldDefinition;
-import org.sagebionetworks.bridge.models.upload.UploadFieldType;
 import org.sagebionetworks.bridge.models.upload.UploadSchema;
 import org.sagebionetworks.bridge.models.upload.UploadSchemaType;
 import org.sagebionetworks.bridge.services.UploadSchemaService;
@@ -53,10 +52,6 @@ import org.sagebionetworks.bridge.services.UploadSchemaService;
  */
 @Component
 public class IosSchemaValidationHandler2 implements UploadValidationHandler {
-    private static final Set<UploadFieldType> ATTACHMENT_TYPE_SET = EnumSet.of(UploadFieldType.ATTACHMENT_BLOB,
-            UploadFieldType.ATTACHMENT_CSV, UploadFieldType.ATTACHMENT_JSON_BLOB,
-            UploadFieldType.ATTACHMENT_JSON_TABLE);
-
     private static final String FILENAME_INFO_JSON = "info.json";
     private static final Pattern FILENAME_TIMESTAMP_PATTERN = Pattern.compile("-\\d{8,}");
     private static final String KEY_FILENAME = "filename";
@@ -80,6 +75,17 @@ public class IosSchemaValidationHandler2 implements UploadValidationHandler {
             .put("TimeOfDay", "dateComponentAnswer")
             .build();
 
+    // Extraction plans, compiled once per schema. UploadSchemaService caches schemas, so this is keyed by schema
+    // identity. When a schema is updated, the service returns a new schema object, which gets a new plan, and the old
+    // plan is garbage collected along with the old schema.
+    private final LoadingCache<UploadSchema, SchemaExtractionPlan> planCache = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<UploadSchema, SchemaExtractionPlan>() {
+                @Override
+                public SchemaExtractionPlan load(@Nonnull UploadSchema schema) {
+                    return SchemaExtractionPlan.compile(schema);
+                }
+            });
+
     private HealthDataDao healthDataDao;
     private UploadSchemaService uploadSchemaService;
 
@@ -163,14 +169,16 @@ public class IosSchemaValidationHandler2 implements UploadValidationHandler {
         recordBuilder.withSchemaId(schema.getSchemaId());
         recordBuilder.withSchemaRevision(schema.getRevision());
 
+        SchemaExtractionPlan plan = planCache.getUnchecked(schema);
+
         UploadSchemaType schemaType = schema.getSchemaType();
         if (schemaType == UploadSchemaType.IOS_SURVEY) {
             // Convert survey format to JSON data format. This means creating a JSON data map where the "filenames" are
             // just the question names (items) and the file data is the answer JSON node.
             Map<String, JsonNode> convertedSurveyMap = convertSurveyToJsonData(context, uploadId, jsonDataMap);
-            handleData(context, uploadId, convertedSurveyMap, unzippedDataMap, schema, dataMap, attachmentMap);
+            handleData(context, uploadId, convertedSurveyMap, unzippedDataMap, plan, dataMap, attachmentMap);
         } else if (schemaType == UploadSchemaType.IOS_DATA) {
-            handleData(context, uploadId, jsonDataMap, unzippedDataMap, schema, dataMap, attachmentMap);
+            handleData(context, uploadId, jsonDataMap, unzippedDataMap, plan, dataMap, attachmentMap);
         } else {
             throw new UploadValidationException(String.format("Invalid schema type %s", schemaType));
         }
@@ -360,64 +368,39 @@ public class IosSchemaValidationHandler2 implements UploadValidationHandler {
     // Note that handleSurvey() converts the survey format into the data format, treating each answer as its own file
     // with filename equal to the question name and JsonNode equal to the answer.
     private static void handleData(UploadValidationContext context, String uploadId,
-            Map<String, JsonNode> jsonDataMap, Map<String, byte[]> unzippedDataMap, UploadSchema schema,
+            Map<String, JsonNode> jsonDataMap, Map<String, byte[]> unzippedDataMap, SchemaExtractionPlan plan,
             ObjectNode dataMap, Map<String, byte[]> attachmentMap) {
-        // Get flattened JSON data map (key is filename.fieldname), because schemas can reference fields either by
-        // filename.fieldname or wholly by filename.
-        Map<String, JsonNode> flattenedJsonDataMap = flattenJsonDataMap(jsonDataMap);
-
-        Set<String> nonJsonFilenameSet = unzippedDataMap.keySet();
-        Set<String> jsonFilenameSet = jsonDataMap.keySet();
-        Set<String> jsonFieldnameSet = flattenedJsonDataMap.keySet();
+        // Using the schema's extraction plan, copy fields over to data map. Or if it's an attachment, add it to the
+        // attachment map. Schemas can reference fields either by filename.fieldname or wholly by filename.
+        for (SchemaExtractionPlan.FieldPlan oneFieldPlan : plan.getFieldPlanList()) {
+            String fieldName = oneFieldPlan.getFieldName();
 
-        // Using schema, copy fields over to data map. Or if it's an attachment, add it to the attachment map.
-        for (UploadFieldDefinition oneFieldDef : schema.getFieldDefinitions()) {
-            String fieldName = oneFieldDef.getName();
-
-            if (nonJsonFilenameSet.contains(fieldName)) {
+            if (unzippedDataMap.containsKey(fieldName)) {
                 attachmentMap.put(fieldName, unzippedDataMap.get(fieldName));
-            } else if (jsonFilenameSet.contains(fieldName)) {
-                copyJsonField(context, uploadId, jsonDataMap.get(fieldName), oneFieldDef, dataMap, attachmentMap);
-            } else if (jsonFieldnameSet.contains(fieldName)) {
-                copyJsonField(context, uploadId, flattenedJsonDataMap.get(fieldName), oneFieldDef, dataMap,
-                        attachmentMap);
-            } else if (oneFieldDef.isRequired()) {
-                // log a message only if the field is required (but missing)
-                context.addMessage(String.format("Upload ID %s is missing required field %s", uploadId, fieldName));
-            }
-        }
-    }
-
-    private static Map<String, JsonNode> flattenJsonDataMap(Map<String, JsonNode> jsonDataMap) {
-        Map<String, JsonNode> dataFieldMap = new HashMap<>();
-        for (Map.Entry<String, JsonNode> oneJsonFile : jsonDataMap.entrySet()) {
-            String filename = oneJsonFile.getKey();
-            if (filename.equals(FILENAME_INFO_JSON)) {
-                // Not info.json. Skip.
-                continue;
-            }
-
-            JsonNode oneJsonFileNode = oneJsonFile.getValue();
-            Iterator<String> fieldNameIter = oneJsonFileNode.fieldNames();
-            while (fieldNameIter.hasNext()) {
-                // Pre-pend file name with field name, so if there are duplicate filenames, they get disambiguated.
-                String oneFieldName = fieldNameIter.next();
-                dataFieldMap.put(filename + "." + oneFieldName, oneJsonFileNode.get(oneFieldName));
+            } else if (jsonDataMap.containsKey(fieldName)) {
+                copyJsonField(context, uploadId, jsonDataMap.get(fieldName), oneFieldPlan, dataMap, attachmentMap);
+            } else {
+                JsonNode fieldValue = oneFieldPlan.findJsonKeyValue(jsonDataMap, FILENAME_INFO_JSON);
+                if (fieldValue != null) {
+                    copyJsonField(context, uploadId, fieldValue, oneFieldPlan, dataMap, attachmentMap);
+                } else if (oneFieldPlan.getFieldDef().isRequired()) {
+                    // log a message only if the field is required (but missing)
+                    context.addMessage(String.format("Upload ID %s is missing required field %s", uploadId,
+                            fieldName));
+                }
             }
         }
-
-        return dataFieldMap;
     }
 
     private static void copyJsonField(UploadValidationContext context, String uploadId, JsonNode fieldValue,
-            UploadFieldDefinition fieldDef, ObjectNode dataMap, Map<String, byte[]> attachmentMap) {
-        String fieldName = fieldDef.getName();
+            SchemaExtractionPlan.FieldPlan fieldPlan, ObjectNode dataMap, Map<String, byte[]> attachmentMap) {
+        String fieldName = fieldPlan.getFieldName();
         if (fieldValue == null || fieldValue.isNull()) {
             context.addMessage(String.format("Upload ID %s field %s is null", uploadId, fieldName));
             return;
         }
 
-        if (ATTACHMENT_TYPE_SET.contains(fieldDef.getType())) {
+        if (fieldPlan.isAttachment()) {
             try {
                 attachmentMap.put(fieldName, BridgeObjectMapper.get().writeValueAsBytes(fieldValue));
             } catch (JsonProcessingException ex) {
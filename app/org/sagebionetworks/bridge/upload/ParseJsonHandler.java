@@ -1,9 +1,15 @@
 package org.sagebionetworks.bridge.upload;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.annotation.Nonnull;
+import javax.annotation.Resource;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.springframework.stereotype.Component;
@@ -11,38 +17,187 @@ import org.springframework.stereotype.Component;
 import org.sagebionetworks.bridge.json.BridgeObjectMapper;
 
 /**
+ * <p>
  * Validation handler for parsing the upload data into JSON, if applicable. This handler reads unzipped data from
  * {@link org.sagebionetworks.bridge.upload.UploadValidationContext#getUnzippedDataMap}. As it iterates over the unzipped
  * data, if it's able to parse any entries into JSON, it will remove it from getUnzippedDataMap, and write it to
  * {@link org.sagebionetworks.bridge.upload.UploadValidationContext#getJsonDataMap}.
+ * </p>
+ * <p>
+ * Entries are classified before parsing, using the filename and the first non-whitespace byte, so that audio and
+ * binary sensor files are never run through the JSON parser. When an archive has many likely-JSON entries, they are
+ * parsed in parallel on a fork-join pool.
+ * </p>
  */
 @Component
 public class ParseJsonHandler implements UploadValidationHandler {
+    /** Archives with at least this many likely-JSON entries are parsed in parallel, if a fork-join pool is set. */
+    /* package-scoped */ static final int PARALLEL_PARSE_THRESHOLD = 8;
+
+    private static final String JSON_FILE_EXTENSION = ".json";
+
+    private ForkJoinPool parsePool;
+
+    /**
+     * Fork-join pool for parsing entries in parallel, shared by all uploads. This is configured by Spring. If not set,
+     * entries are parsed sequentially.
+     */
+    @Resource(name = "uploadJsonParsePool")
+    public void setParsePool(ForkJoinPool parsePool) {
+        this.parsePool = parsePool;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void handle(@Nonnull UploadValidationContext context) {
         Map<String, byte[]> unzippedDataMap = context.getUnzippedDataMap();
         Map<String, JsonNode> jsonDataMap = new HashMap<>();
 
-        // We use the iterator directly, because we may want to modify unzippedDataMap as we iterate it, and this is
-        // the most straightforward way to do that without hitting a ConcurrentModificationException.
-        Iterator<Map.Entry<String, byte[]>> unzippedDataIter = unzippedDataMap.entrySet().iterator();
-        while (unzippedDataIter.hasNext()) {
-            Map.Entry<String, byte[]> oneUnzippedData = unzippedDataIter.next();
+        // Collect the entries that are likely to be JSON. Everything else stays in unzippedDataMap untouched.
+        List<String> candidateNameList = new ArrayList<>();
+        List<byte[]> candidateDataList = new ArrayList<>();
+        for (Map.Entry<String, byte[]> oneUnzippedData : unzippedDataMap.entrySet()) {
             String entryName = oneUnzippedData.getKey();
+            byte[] data = oneUnzippedData.getValue();
+            if (isLikelyJson(entryName, data)) {
+                candidateNameList.add(entryName);
+                candidateDataList.add(data);
+            }
+        }
+
+        // Parse the candidates, in parallel if there are enough of them.
+        JsonNode[] parsedNodes = new JsonNode[candidateDataList.size()];
+        if (parsePool != null && candidateDataList.size() >= PARALLEL_PARSE_THRESHOLD) {
+            parsePool.invoke(new ParseAction(candidateDataList, parsedNodes, 0, parsedNodes.length));
+        } else {
+            for (int i = 0; i < parsedNodes.length; i++) {
+                parsedNodes[i] = parseJsonOrNull(candidateDataList.get(i));
+            }
+        }
 
-            try {
-                // Try to parse it as JSON. If you can, remove the entry from unzippedDataMap and add it to
-                // jsonDataMap.
-                JsonNode jsonNode = BridgeObjectMapper.get().readTree(oneUnzippedData.getValue());
-                jsonDataMap.put(entryName, jsonNode);
-                unzippedDataIter.remove();
-            } catch (Exception ex) {
-                // Can't parse this as a JSON node. This could be normal (for example, for audio files). Ignore the
-                // error and move on.
+        // If an entry parsed, remove the entry from unzippedDataMap and add it to jsonDataMap.
+        for (int i = 0; i < parsedNodes.length; i++) {
+            if (parsedNodes[i] != null) {
+                String entryName = candidateNameList.get(i);
+                jsonDataMap.put(entryName, parsedNodes[i]);
+                unzippedDataMap.remove(entryName);
             }
         }
 
         context.setJsonDataMap(jsonDataMap);
     }
+
+    /**
+     * Parses the given entry as JSON if it's likely to be JSON. Returns null if the entry isn't JSON. This is
+     * package-scoped so the streaming unpack handler can apply the same rules to entries as they are unzipped.
+     */
+    /* package-scoped */ static JsonNode parseJsonOrNull(String entryName, byte[] bytes) {
+        return parseJsonOrNull(entryName, bytes, bytes.length);
+    }
+
+    /**
+     * Same as {@link #parseJsonOrNull(String, byte[])}, but only looks at the first length bytes, so entries can be
+     * parsed straight out of a reused unzip buffer.
+     */
+    /* package-scoped */ static JsonNode parseJsonOrNull(String entryName, byte[] bytes, int length) {
+        if (!isLikelyJson(entryName, bytes, length)) {
+            return null;
+        }
+        try {
+            return BridgeObjectMapper.get().readValue(bytes, 0, length, JsonNode.class);
+        } catch (Exception ex) {
+            // Can't parse this as a JSON node. See parseJsonOrNull(byte[]).
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Fast classification of an entry, without parsing it. Entries with a .json extension are always likely JSON.
+     * Otherwise, we look at the first non-whitespace byte (after an optional UTF-8 byte order mark), which must be one
+     * of the characters that can start a JSON value.
+     * </p>
+     * <p>
+     * This only rules out entries that would fail to parse anyway, with one exception: JSON in UTF-16 or UTF-32
+     * without a .json extension is treated as non-JSON, since those encodings look the same as binary data.
+     * </p>
+     */
+    /* package-scoped */ static boolean isLikelyJson(String entryName, byte[] bytes) {
+        return isLikelyJson(entryName, bytes, bytes.length);
+    }
+
+    /** Same as {@link #isLikelyJson(String, byte[])}, but only looks at the first length bytes. */
+    /* package-scoped */ static boolean isLikelyJson(String entryName, byte[] bytes, int length) {
+        if (entryName.toLowerCase(Locale.ROOT).endsWith(JSON_FILE_EXTENSION)) {
+            return true;
+        }
+
+        int idx = 0;
+        if (length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+            // skip UTF-8 byte order mark
+            idx = 3;
+        }
+        for (; idx < length; idx++) {
+            byte oneByte = bytes[idx];
+            if (oneByte == ' ' || oneByte == '\t' || oneByte == '\r' || oneByte == '\n') {
+                continue;
+            }
+
+            switch (oneByte) {
+                case '{':
+                case '[':
+                case '"':
+                case '-':
+                case 't':
+                case 'f':
+                case 'n':
+                    return true;
+                default:
+                    return oneByte >= '0' && oneByte <= '9';
+            }
+        }
+
+        // empty or all whitespace
+        return false;
+    }
+
+    // Attempts to parse the given bytes as JSON. Returns null if the bytes can't be parsed as JSON.
+    private static JsonNode parseJsonOrNull(byte[] bytes) {
+        try {
+            return BridgeObjectMapper.get().readTree(bytes);
+        } catch (Exception ex) {
+            // Can't parse this as a JSON node. This could be normal (for example, for text files). Ignore the error
+            // and move on.
+            return null;
+        }
+    }
+
+    /** Parses a range of entries, splitting in half until each task has a single entry. */
+    @SuppressWarnings("serial")
+    private static class ParseAction extends RecursiveAction {
+        private final List<byte[]> dataList;
+        private final JsonNode[] results;
+        private final int start;
+        private final int end;
+
+        ParseAction(List<byte[]> dataList, JsonNode[] results, int start, int end) {
+            this.dataList = dataList;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= 1) {
+                if (start < end) {
+                    results[start] = parseJsonOrNull(dataList.get(start));
+                }
+                return;
+            }
+
+            int mid = (start + end) >>> 1;
+            invokeAll(new ParseAction(dataList, results, start, mid), new ParseAction(dataList, results, mid, end));
+        }
+    }
 }
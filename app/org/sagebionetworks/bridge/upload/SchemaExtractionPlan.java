@@ -0,0 +1,142 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+
+import org.sagebionetworks.bridge.models.upload.UploadFieldDefinition;
+import org.sagebionetworks.bridge.models.upload.UploadFieldType;
+import org.sagebionetworks.bridge.models.upload.UploadSchema;
+
+/**
+ * <p>
+ * Immutable extraction plan for an upload schema, compiled once per schema revision. For each field in the schema,
+ * the plan records where the field's data can come from, in order of precedence:
+ * </p>
+ * <ol>
+ *     <li>a non-JSON file whose name is the field name (always an attachment)</li>
+ *     <li>a JSON file whose name is the field name</li>
+ *     <li>a top-level key in a JSON file, where the field name is filename.key</li>
+ * </ol>
+ * <p>
+ * Since filenames can themselves contain dots, a field name like "foo.json.bar" can refer to key "json.bar" in file
+ * "foo" or to key "bar" in file "foo.json". The plan precomputes every such split, so the handler only looks up the
+ * fields the schema asks for, instead of flattening every JSON file into a filename.key map.
+ * </p>
+ */
+public class SchemaExtractionPlan {
+    private static final Set<UploadFieldType> ATTACHMENT_TYPE_SET = EnumSet.of(UploadFieldType.ATTACHMENT_BLOB,
+            UploadFieldType.ATTACHMENT_CSV, UploadFieldType.ATTACHMENT_JSON_BLOB,
+            UploadFieldType.ATTACHMENT_JSON_TABLE);
+
+    private final List<FieldPlan> fieldPlanList;
+
+    private SchemaExtractionPlan(List<FieldPlan> fieldPlanList) {
+        this.fieldPlanList = fieldPlanList;
+    }
+
+    /**
+     * Compiles the extraction plan for the given schema.
+     *
+     * @param schema
+     *         schema to compile, must be non-null
+     * @return compiled plan, will be non-null
+     */
+    public static SchemaExtractionPlan compile(@Nonnull UploadSchema schema) {
+        ImmutableList.Builder<FieldPlan> fieldPlanListBuilder = ImmutableList.builder();
+        for (UploadFieldDefinition oneFieldDef : schema.getFieldDefinitions()) {
+            String fieldName = oneFieldDef.getName();
+
+            ImmutableList.Builder<JsonKeySource> keySourceListBuilder = ImmutableList.builder();
+            for (int i = fieldName.indexOf('.'); i >= 0; i = fieldName.indexOf('.', i + 1)) {
+                keySourceListBuilder.add(new JsonKeySource(fieldName.substring(0, i), fieldName.substring(i + 1)));
+            }
+
+            fieldPlanListBuilder.add(new FieldPlan(oneFieldDef, ATTACHMENT_TYPE_SET.contains(oneFieldDef.getType()),
+                    keySourceListBuilder.build()));
+        }
+        return new SchemaExtractionPlan(fieldPlanListBuilder.build());
+    }
+
+    /** Field plans, in schema order. */
+    public List<FieldPlan> getFieldPlanList() {
+        return fieldPlanList;
+    }
+
+    /** Extraction plan for a single schema field. */
+    public static class FieldPlan {
+        private final UploadFieldDefinition fieldDef;
+        private final boolean attachment;
+        private final List<JsonKeySource> keySourceList;
+
+        private FieldPlan(UploadFieldDefinition fieldDef, boolean attachment, List<JsonKeySource> keySourceList) {
+            this.fieldDef = fieldDef;
+            this.attachment = attachment;
+            this.keySourceList = keySourceList;
+        }
+
+        /** Schema field definition. */
+        public UploadFieldDefinition getFieldDef() {
+            return fieldDef;
+        }
+
+        /** Field name, also the name of the file the field can come from. */
+        public String getFieldName() {
+            return fieldDef.getName();
+        }
+
+        /** True if the field's type is an attachment type, so JSON values are stored as attachments. */
+        public boolean isAttachment() {
+            return attachment;
+        }
+
+        /** Candidate (filename, key) pairs the field can come from, if it's not a whole file. */
+        public List<JsonKeySource> getKeySourceList() {
+            return keySourceList;
+        }
+
+        /**
+         * Finds the field's value in the JSON files, as a top-level key in one of the candidate files. Returns null if
+         * no candidate file has the key. Note that this can return a JSON null node, if the key is present with a
+         * null value. info.json is never a source.
+         */
+        public JsonNode findJsonKeyValue(Map<String, JsonNode> jsonDataMap, String infoJsonFilename) {
+            for (JsonKeySource oneKeySource : keySourceList) {
+                if (oneKeySource.filename.equals(infoJsonFilename)) {
+                    continue;
+                }
+                JsonNode fileNode = jsonDataMap.get(oneKeySource.filename);
+                if (fileNode != null && fileNode.isObject() && fileNode.has(oneKeySource.key)) {
+                    return fileNode.get(oneKeySource.key);
+                }
+            }
+            return null;
+        }
+    }
+
+    /** A top-level key within a JSON file. */
+    public static class JsonKeySource {
+        private final String filename;
+        private final String key;
+
+        private JsonKeySource(String filename, String key) {
+            this.filename = filename;
+            this.key = key;
+        }
+
+        /** Name of the JSON file. */
+        public String getFilename() {
+            return filename;
+        }
+
+        /** Top-level key within the JSON file. */
+        public String getKey() {
+            return key;
+        }
+    }
+}
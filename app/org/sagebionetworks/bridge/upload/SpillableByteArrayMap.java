@@ -0,0 +1,134 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Map of byte arrays whose values are held as {@link org.sagebionetworks.bridge.upload.UploadPayload}s, so large
+ * values can be spilled to disk under memory pressure. Reads of spilled values return a fresh copy from disk. Values
+ * that are removed or replaced are discarded right away, so their budget is released before validation finishes.
+ */
+/* package-scoped */ class SpillableByteArrayMap extends AbstractMap<String, byte[]> {
+    private final UploadPayloadStore payloadStore;
+    private final Map<String, UploadPayload> payloadMap = new HashMap<>();
+
+    /** Constructs an empty map backed by the given store. */
+    /* package-scoped */ SpillableByteArrayMap(UploadPayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+    }
+
+    @Override
+    public int size() {
+        return payloadMap.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return payloadMap.containsKey(key);
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        UploadPayload payload = payloadMap.get(key);
+        return payload != null ? payload.getBytes() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns the replaced value, if there was one. A replaced value that was spilled is read back from disk.
+     * </p>
+     */
+    @Override
+    public byte[] put(String key, byte[] value) {
+        UploadPayload oldPayload = payloadMap.put(key, payloadStore.create(value));
+        if (oldPayload == null) {
+            return null;
+        }
+        byte[] oldValue = oldPayload.getBytes();
+        oldPayload.discard();
+        return oldValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns the removed value, if there was one.
+     * </p>
+     */
+    @Override
+    public byte[] remove(Object key) {
+        UploadPayload payload = payloadMap.remove(key);
+        if (payload == null) {
+            return null;
+        }
+        byte[] value = payload.getBytes();
+        payload.discard();
+        return value;
+    }
+
+    @Override
+    public void clear() {
+        for (UploadPayload onePayload : payloadMap.values()) {
+            onePayload.discard();
+        }
+        payloadMap.clear();
+    }
+
+    @Override
+    public Set<Entry<String, byte[]>> entrySet() {
+        return new AbstractSet<Entry<String, byte[]>>() {
+            @Override
+            public int size() {
+                return payloadMap.size();
+            }
+
+            @Override
+            public Iterator<Entry<String, byte[]>> iterator() {
+                final Iterator<Entry<String, UploadPayload>> payloadIter = payloadMap.entrySet().iterator();
+                return new Iterator<Entry<String, byte[]>>() {
+                    private UploadPayload lastPayload;
+
+                    @Override
+                    public boolean hasNext() {
+                        return payloadIter.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, byte[]> next() {
+                        final Entry<String, UploadPayload> payloadEntry = payloadIter.next();
+                        lastPayload = payloadEntry.getValue();
+
+                        // Values are read lazily, so iterating over keys doesn't read spilled values from disk.
+                        return new Entry<String, byte[]>() {
+                            @Override
+                            public String getKey() {
+                                return payloadEntry.getKey();
+                            }
+
+                            @Override
+                            public byte[] getValue() {
+                                return payloadEntry.getValue().getBytes();
+                            }
+
+                            @Override
+                            public byte[] setValue(byte[] value) {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        payloadIter.remove();
+                        lastPayload.discard();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,84 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Resource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.BridgeConfigFactory;
+import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.services.UploadArchiveService;
+import org.sagebionetworks.bridge.util.Zipper;
+
+/**
+ * <p>
+ * Validation handler that downloads, decrypts, unzips, and parses the upload in a single streaming pass. This handler
+ * reads {@link org.sagebionetworks.bridge.upload.UploadValidationContext#getUpload} and writes to
+ * {@link org.sagebionetworks.bridge.upload.UploadValidationContext#setUnzippedDataMap} and
+ * {@link org.sagebionetworks.bridge.upload.UploadValidationContext#setJsonDataMap}, with the same contents that
+ * S3DownloadHandler, DecryptHandler, UnzipHandler, and ParseJsonHandler would have produced together.
+ * </p>
+ * <p>
+ * The S3 object stream feeds CMS decryption, which feeds zip extraction. Each zip entry is parsed as soon as it is
+ * read, straight out of the unzip buffer, and only entries that aren't JSON are copied out as bytes. The raw and
+ * decrypted archives are never materialized, so
+ * {@link org.sagebionetworks.bridge.upload.UploadValidationContext#getData} and
+ * {@link org.sagebionetworks.bridge.upload.UploadValidationContext#getDecryptedData} remain null.
+ * </p>
+ */
+@Component
+public class StreamingUnpackHandler implements UploadValidationHandler {
+    private static final String UPLOAD_BUCKET = BridgeConfigFactory.getConfig().getProperty("upload.bucket");
+
+    private S3Helper s3Helper;
+    private UploadArchiveService uploadArchiveService;
+
+    /** S3 helper, for streaming the upload from S3. This is configured by Spring. */
+    @Resource(name = "s3Helper")
+    public void setS3Helper(S3Helper s3Helper) {
+        this.s3Helper = s3Helper;
+    }
+
+    /** Upload archive service, which handles decrypting and unzipping of files. This is configured by Spring. */
+    @Autowired
+    public void setUploadArchiveService(UploadArchiveService uploadArchiveService) {
+        this.uploadArchiveService = uploadArchiveService;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void handle(@Nonnull UploadValidationContext context) throws UploadValidationException {
+        // Set the maps on the context up front and fill in the context's copy of the unzipped data map, so that large
+        // entries can be spilled by the payload store as they are read.
+        context.setUnzippedDataMap(new HashMap<String, byte[]>());
+        context.setJsonDataMap(new HashMap<String, JsonNode>());
+        final Map<String, byte[]> unzippedDataMap = context.getUnzippedDataMap();
+        final Map<String, JsonNode> jsonDataMap = context.getJsonDataMap();
+
+        try (InputStream s3Stream = s3Helper.getS3FileAsStream(UPLOAD_BUCKET, context.getUpload().getObjectId())) {
+            InputStream decryptedStream = uploadArchiveService.decrypt(context.getStudy().getIdentifier(), s3Stream);
+            uploadArchiveService.unzipView(decryptedStream, new Zipper.EntryViewConsumer() {
+                @Override
+                public void accept(String entryName, byte[] buffer, int length) {
+                    // Same rules as ParseJsonHandler: JSON entries go to the JSON map, everything else stays as bytes.
+                    // JSON is parsed straight out of the unzip buffer, so only non-JSON entries are copied.
+                    JsonNode jsonNode = ParseJsonHandler.parseJsonOrNull(entryName, buffer, length);
+                    if (jsonNode != null) {
+                        jsonDataMap.put(entryName, jsonNode);
+                    } else {
+                        unzippedDataMap.put(entryName, Arrays.copyOf(buffer, length));
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            throw new UploadValidationException(ex);
+        }
+    }
+}
@@ -1,21 +1,33 @@
 package org.sagebionetworks.bridge.upload;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.annotation.Nonnull;
 import javax.annotation.Resource;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.BridgeUtils;
 import org.sagebionetworks.bridge.config.BridgeConfigFactory;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataAttachment;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataRecord;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataRecordBuilder;
+import org.sagebionetworks.bridge.models.upload.Upload;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.services.HealthDataService;
 
@@ -25,9 +37,19 @@ public class UploadArtifactsHandler implements UploadValidationHandler {
 
     private static final String ATTACHMENT_BUCKET = BridgeConfigFactory.getConfig().getProperty("attachment.bucket");
 
+    private ExecutorService attachmentExecutorService;
     private HealthDataService healthDataService;
     private S3Helper s3Helper;
 
+    /**
+     * Bounded thread pool for uploading attachments to S3 concurrently. This is shared across all uploads and is
+     * configured by Spring.
+     */
+    @Resource(name = "uploadAttachmentExecutorService")
+    public void setAttachmentExecutorService(ExecutorService attachmentExecutorService) {
+        this.attachmentExecutorService = attachmentExecutorService;
+    }
+
     @Autowired
     public void setHealthDataService(HealthDataService healthDataService) {
         this.healthDataService = healthDataService;
@@ -39,63 +61,155 @@ public class UploadArtifactsHandler implements UploadValidationHandler {
     }
 
     @Override
-    public void handle(@Nonnull UploadValidationContext context) {
-        String uploadId = context.getUpload().getUploadId();
-
-        // step 1: upload health data record
+    public void handle(@Nonnull UploadValidationContext context) throws UploadValidationException {
+        Upload upload = context.getUpload();
+        String uploadId = upload.getUploadId();
+
+        // Pre-assign the record ID, so attachments can reference the record before it's written. This lets us write
+        // the record exactly once, with its final attachment references. If the upload is being reprocessed, reuse
+        // the existing record's ID and version, so the existing record is replaced instead of duplicated.
+        HealthDataRecord existingRecord = getExistingRecord(upload);
         HealthDataRecordBuilder recordBuilder = context.getHealthDataRecordBuilder();
-        HealthDataRecord record = recordBuilder.build();
-        String recordId = healthDataService.createOrUpdateRecord(record);
+        String recordId;
+        if (existingRecord != null) {
+            recordId = existingRecord.getId();
+            recordBuilder.setVersion(existingRecord.getVersion());
+        } else {
+            recordId = BridgeUtils.generateGuid();
+        }
+        recordBuilder.withId(recordId);
 
         Map<String, byte[]> attachmentMap = context.getAttachmentsByFieldName();
+        Map<String, Future<?>> s3FuturesByFieldName = new HashMap<>();
+        List<HealthDataAttachment> attachmentMetadataList = new ArrayList<>();
+        Set<String> newAttachmentIdSet = new HashSet<>();
         if (!attachmentMap.isEmpty()) {
-            // step 2: upload health data attachments
+            // step 1: pre-assign attachment IDs
             Map<String, String> attachmentIdsByFieldName = new HashMap<>();
-            for (Map.Entry<String, byte[]> oneAttachment : attachmentMap.entrySet()) {
-                String fieldName = oneAttachment.getKey();
-                byte[] data = oneAttachment.getValue();
-
-                // step 2a: upload attachments to metadata table
-                HealthDataAttachment attachmentMetadata = healthDataService.getAttachmentBuilder()
-                        .withRecordId(recordId).build();
-                String attachmentId = healthDataService.createOrUpdateAttachment(attachmentMetadata);
-                attachmentIdsByFieldName.put(fieldName, attachmentId);
-
-                // step 2b: upload attachments to S3
-                try {
-                    s3Helper.writeBytesToS3(ATTACHMENT_BUCKET, attachmentId, data);
-                } catch (IOException ex) {
-                    addMessageAndWarn(context, String.format("Upload ID %s error uploading attachment for field %s: %s",
-                            uploadId, fieldName, ex.getMessage()), ex);
+            for (String oneFieldName : attachmentMap.keySet()) {
+                String attachmentId = getExistingAttachmentId(existingRecord, oneFieldName);
+                if (attachmentId == null) {
+                    attachmentId = BridgeUtils.generateGuid();
+                    newAttachmentIdSet.add(attachmentId);
                 }
+                attachmentIdsByFieldName.put(oneFieldName, attachmentId);
+                attachmentMetadataList.add(healthDataService.getAttachmentBuilder().withId(attachmentId)
+                        .withRecordId(recordId).build());
+            }
+
+            // step 2: upload attachments to S3, concurrently
+            for (Map.Entry<String, String> oneAttachmentId : attachmentIdsByFieldName.entrySet()) {
+                final String attachmentId = oneAttachmentId.getValue();
+                final byte[] data = attachmentMap.get(oneAttachmentId.getKey());
+                Future<?> s3Future = attachmentExecutorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        s3Helper.writeBytesToS3(ATTACHMENT_BUCKET, attachmentId, data);
+                        return null;
+                    }
+                });
+                s3FuturesByFieldName.put(oneAttachmentId.getKey(), s3Future);
             }
 
-            // step 3: add attachment IDs to health data record
+            // step 3: write attachment fields and IDs (foreign keys / S3 keys) to the record's data map
+            // IosSchemaValidationHandler guarantees getData() to return an ObjectNode. This node was built for this
+            // upload only, so we can add to it directly, without a copy.
+            ObjectNode dataMap = (ObjectNode) recordBuilder.getData();
+            for (Map.Entry<String, String> oneAttachmentId : attachmentIdsByFieldName.entrySet()) {
+                dataMap.put(oneAttachmentId.getKey(), oneAttachmentId.getValue());
+            }
+        }
 
-            // Get the record back from the health data table (as it might have added new fields, like a record ID and
-            // a version.
-            HealthDataRecord downloadedRecord = healthDataService.getRecordById(recordId);
-            HealthDataRecordBuilder updatedRecordBuilder = healthDataService.getRecordBuilder().copyOf(
-                    downloadedRecord);
+        // step 4: upload health data record, once, while the S3 uploads are in flight. If it fails, delete the S3
+        // files of new attachments, so they aren't left behind with nothing pointing to them.
+        HealthDataRecord record = recordBuilder.build();
+        try {
+            healthDataService.createOrUpdateRecord(record);
+        } catch (RuntimeException ex) {
+            deleteNewAttachments(uploadId, s3FuturesByFieldName, newAttachmentIdSet);
+            throw ex;
+        }
 
-            // For code hygiene, make a deep copy of the dataMap. This shouldn't be too expensive, since all the large
-            // fields are shunted off into attachments.
-            // IosSchemaValidationHandler guarantees getData() to return an ObjectNode.
-            ObjectNode downloadedDataMap = (ObjectNode) downloadedRecord.getData();
-            ObjectNode updatedDataMap = downloadedDataMap.deepCopy();
+        // step 5: now that the record exists, write the attachment metadata, in batch
+        if (!attachmentMetadataList.isEmpty()) {
+            healthDataService.createOrUpdateAttachments(attachmentMetadataList);
+        }
 
-            // write attachment fields and IDs (foreign keys / S3 keys) to the updated data map
-            for (Map.Entry<String, String> oneAttachmentId : attachmentIdsByFieldName.entrySet()) {
-                String fieldName = oneAttachmentId.getKey();
-                String attachmentId = oneAttachmentId.getValue();
-                updatedDataMap.put(fieldName, attachmentId);
+        // Wait for all S3 uploads to finish. A failed attachment upload doesn't stop the others, so we record failures
+        // as messages and keep going.
+        for (Map.Entry<String, Future<?>> oneS3Future : s3FuturesByFieldName.entrySet()) {
+            String fieldName = oneS3Future.getKey();
+            try {
+                oneS3Future.getValue().get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                addMessageAndWarn(context, String.format("Upload ID %s error uploading attachment for field %s: %s",
+                        uploadId, fieldName, cause.getMessage()), cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new UploadValidationException(String.format(
+                        "Upload ID %s interrupted while uploading attachments", uploadId), ex);
             }
+        }
+    }
+
+    // Waits for the S3 uploads to finish, then deletes the S3 files of new attachments. Attachments reused from an
+    // existing record are left alone, since that record still points to them. Best effort: failures are logged.
+    private void deleteNewAttachments(String uploadId, Map<String, Future<?>> s3FuturesByFieldName,
+            Set<String> newAttachmentIdSet) {
+        for (Future<?> oneS3Future : s3FuturesByFieldName.values()) {
+            try {
+                oneS3Future.get();
+            } catch (ExecutionException ex) {
+                // Nothing was written, or there's nothing we can do about it. Either way, try to delete.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (String oneAttachmentId : newAttachmentIdSet) {
+            try {
+                s3Helper.deleteS3File(ATTACHMENT_BUCKET, oneAttachmentId);
+            } catch (RuntimeException ex) {
+                logger.warn(String.format("Upload ID %s could not delete attachment %s after the record write failed",
+                        uploadId, oneAttachmentId), ex);
+            }
+        }
+    }
 
-            // Write the updated data map to the record. Write the record to the record table.
-            updatedRecordBuilder.withData(updatedDataMap);
-            HealthDataRecord updatedRecord = updatedRecordBuilder.build();
-            healthDataService.createOrUpdateRecord(updatedRecord);
+    /**
+     * Returns the record already written for this upload, if the upload has been validated before (that is, it's
+     * being reprocessed), or null if there is none. If earlier reprocessing left more than one record, the most
+     * recent one is returned.
+     */
+    private HealthDataRecord getExistingRecord(Upload upload) {
+        UploadStatus status = upload.getStatus();
+        if (status != UploadStatus.SUCCEEDED && status != UploadStatus.VALIDATION_FAILED) {
+            // First validation. Don't pay for the lookup.
+            return null;
+        }
+
+        HealthDataRecord existingRecord = null;
+        for (HealthDataRecord oneRecord : healthDataService.getRecordsForUpload(upload.getHealthCode(),
+                upload.getUploadId())) {
+            if (existingRecord == null || oneRecord.getCreatedOn() > existingRecord.getCreatedOn()) {
+                existingRecord = oneRecord;
+            }
+        }
+        return existingRecord;
+    }
+
+    // The existing record's data holds attachment IDs (which are also the S3 keys) by field name. Reusing them means
+    // the attachment rows and S3 objects are overwritten instead of duplicated.
+    private static String getExistingAttachmentId(HealthDataRecord existingRecord, String fieldName) {
+        if (existingRecord == null || existingRecord.getData() == null) {
+            return null;
+        }
+        JsonNode attachmentIdNode = existingRecord.getData().get(fieldName);
+        if (attachmentIdNode == null || !attachmentIdNode.isTextual()) {
+            return null;
         }
+        return attachmentIdNode.textValue();
     }
 
     private static void addMessageAndWarn(UploadValidationContext context, String message, Throwable ex) {
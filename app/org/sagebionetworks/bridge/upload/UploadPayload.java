@@ -0,0 +1,84 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
+
+/**
+ * A single immutable upload payload, held either on-heap or in a temp file. Payloads are created and owned by an
+ * {@link org.sagebionetworks.bridge.upload.UploadPayloadStore}, which discards them when validation is finished.
+ */
+/* package-scoped */ final class UploadPayload {
+    private static final Logger logger = LoggerFactory.getLogger(UploadPayload.class);
+
+    private final UploadPayloadMemoryBudget budget;
+    private final int length;
+    private final long reservedBytes;
+    private byte[] bytes;
+    private File file;
+    private boolean discarded = false;
+
+    /** Creates an on-heap payload. reservedBytes is the number of bytes reserved against the budget, if any. */
+    /* package-scoped */ UploadPayload(UploadPayloadMemoryBudget budget, byte[] bytes, long reservedBytes) {
+        this.budget = budget;
+        this.length = bytes.length;
+        this.reservedBytes = reservedBytes;
+        this.bytes = bytes;
+    }
+
+    /** Creates a payload that has been spilled to the given file. */
+    /* package-scoped */ UploadPayload(UploadPayloadMemoryBudget budget, File file, int length) {
+        this.budget = budget;
+        this.length = length;
+        this.reservedBytes = 0;
+        this.file = file;
+    }
+
+    /** Payload length in bytes. */
+    /* package-scoped */ int getLength() {
+        return length;
+    }
+
+    /** True if this payload lives in a temp file rather than on-heap. */
+    /* package-scoped */ boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Returns the payload bytes. For on-heap payloads, this is the original array. For spilled payloads, this reads
+     * the temp file into a new array, which the caller should drop as soon as it's done with it.
+     */
+    /* package-scoped */ synchronized byte[] getBytes() {
+        if (discarded) {
+            throw new IllegalStateException("Upload payload has already been discarded");
+        }
+        if (bytes != null) {
+            return bytes;
+        }
+        try {
+            return Files.toByteArray(file);
+        } catch (IOException ex) {
+            throw new BridgeServiceException(ex);
+        }
+    }
+
+    /** Releases this payload's budget reservation and deletes its temp file, if any. Safe to call more than once. */
+    /* package-scoped */ synchronized void discard() {
+        if (discarded) {
+            return;
+        }
+        discarded = true;
+        bytes = null;
+        if (reservedBytes > 0) {
+            budget.release(reservedBytes);
+        }
+        if (file != null && !file.delete()) {
+            logger.warn(String.format("Unable to delete upload payload spill file %s", file.getAbsolutePath()));
+        }
+    }
+}
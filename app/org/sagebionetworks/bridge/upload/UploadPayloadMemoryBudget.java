@@ -0,0 +1,182 @@
+package org.sagebionetworks.bridge.upload;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Global memory budget for upload payloads (raw archives, decrypted archives, and unzipped entries). A single
+ * instance is shared by all upload validation workers, so that a burst of large uploads can't push the whole JVM
+ * into full GCs. Payloads that don't fit in the remaining budget are spilled to temp files by
+ * {@link org.sagebionetworks.bridge.upload.UploadPayloadStore}.
+ * </p>
+ * <p>
+ * Payloads smaller than the spill threshold are always kept on-heap and are not counted against the budget, since
+ * the cost of spilling them outweighs the memory saved.
+ * </p>
+ * <p>
+ * Spill files hold decrypted health data. They are written to a dedicated directory, and both the directory and the
+ * files are readable only by the server's user (on file systems that support POSIX permissions).
+ * </p>
+ */
+public class UploadPayloadMemoryBudget {
+    /** Budget that never spills. This is the default for contexts created outside of the validation task factory. */
+    public static final UploadPayloadMemoryBudget UNLIMITED = new UploadPayloadMemoryBudget(Long.MAX_VALUE,
+            Integer.MAX_VALUE);
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadPayloadMemoryBudget.class);
+
+    private static final String DEFAULT_SPILL_DIR_NAME = "bridge-upload-spill";
+    private static final String SPILL_FILE_PREFIX = "upload-payload-";
+    private static final String SPILL_FILE_SUFFIX = ".tmp";
+    private static final String OWNER_ONLY_DIR_PERMISSIONS = "rwx------";
+    private static final String OWNER_ONLY_FILE_PERMISSIONS = "rw-------";
+
+    private final long maxBytes;
+    private final int spillThresholdBytes;
+    private final Path spillDir;
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    /**
+     * Constructs a memory budget that spills to a directory under the system temp directory.
+     *
+     * @param maxBytes
+     *         max number of payload bytes kept on-heap across all validations, must be non-negative
+     * @param spillThresholdBytes
+     *         payloads smaller than this are always kept on-heap, must be non-negative
+     */
+    public UploadPayloadMemoryBudget(long maxBytes, int spillThresholdBytes) {
+        this(maxBytes, spillThresholdBytes, new File(System.getProperty("java.io.tmpdir"), DEFAULT_SPILL_DIR_NAME));
+    }
+
+    /**
+     * Constructs a memory budget.
+     *
+     * @param maxBytes
+     *         max number of payload bytes kept on-heap across all validations, must be non-negative
+     * @param spillThresholdBytes
+     *         payloads smaller than this are always kept on-heap, must be non-negative
+     * @param spillDir
+     *         directory to write spill files to, must be non-null, and must not be shared with other servers
+     */
+    public UploadPayloadMemoryBudget(long maxBytes, int spillThresholdBytes, @Nonnull File spillDir) {
+        checkArgument(maxBytes >= 0);
+        checkArgument(spillThresholdBytes >= 0);
+        checkNotNull(spillDir);
+        this.maxBytes = maxBytes;
+        this.spillThresholdBytes = spillThresholdBytes;
+        this.spillDir = spillDir.toPath();
+    }
+
+    /** Max number of payload bytes kept on-heap across all validations. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Number of payload bytes currently reserved on-heap. */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /** Payloads smaller than this are always kept on-heap and never counted against the budget. */
+    public int getSpillThresholdBytes() {
+        return spillThresholdBytes;
+    }
+
+    /** True if this budget can ever cause a payload to be spilled. */
+    public boolean canSpill() {
+        return spillThresholdBytes < Integer.MAX_VALUE && maxBytes < Long.MAX_VALUE;
+    }
+
+    /**
+     * Attempts to reserve the given number of bytes from the budget.
+     *
+     * @return true if the bytes were reserved, false if the budget is exhausted
+     */
+    /* package-scoped */ boolean tryReserve(long numBytes) {
+        while (true) {
+            long current = reservedBytes.get();
+            long updated = current + numBytes;
+            if (updated > maxBytes) {
+                return false;
+            }
+            if (reservedBytes.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /** Returns previously reserved bytes to the budget. */
+    /* package-scoped */ void release(long numBytes) {
+        reservedBytes.addAndGet(-numBytes);
+    }
+
+    /** Directory spill files are written to. */
+    public File getSpillDir() {
+        return spillDir.toFile();
+    }
+
+    /**
+     * Deletes spill files left behind by an earlier run of this server. Nothing else deletes them if the server dies
+     * mid-validation, and they hold decrypted health data. This is called once at startup, before any validation.
+     *
+     * @return number of spill files deleted
+     */
+    public int deleteStaleSpillFiles() {
+        if (!Files.isDirectory(spillDir)) {
+            return 0;
+        }
+        int deletedCount = 0;
+        try (DirectoryStream<Path> spillFiles = Files.newDirectoryStream(spillDir,
+                SPILL_FILE_PREFIX + "*" + SPILL_FILE_SUFFIX)) {
+            for (Path oneSpillFile : spillFiles) {
+                try {
+                    Files.delete(oneSpillFile);
+                    deletedCount++;
+                } catch (IOException ex) {
+                    logger.warn("Unable to delete stale upload payload spill file " + oneSpillFile, ex);
+                }
+            }
+        } catch (IOException ex) {
+            logger.warn("Unable to list upload payload spill directory " + spillDir, ex);
+        }
+        if (deletedCount > 0) {
+            logger.info(String.format("Deleted %d stale upload payload spill files from %s", deletedCount, spillDir));
+        }
+        return deletedCount;
+    }
+
+    /** Creates a new, empty spill file, readable only by this server's user. Creates the spill directory if needed. */
+    /* package-scoped */ File createSpillFile() throws IOException {
+        if (supportsPosixPermissions()) {
+            Files.createDirectories(spillDir, ownerOnly(OWNER_ONLY_DIR_PERMISSIONS));
+            return Files.createTempFile(spillDir, SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX,
+                    ownerOnly(OWNER_ONLY_FILE_PERMISSIONS)).toFile();
+        } else {
+            Files.createDirectories(spillDir);
+            return Files.createTempFile(spillDir, SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX).toFile();
+        }
+    }
+
+    private static boolean supportsPosixPermissions() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static FileAttribute<?> ownerOnly(String permissions) {
+        return PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions));
+    }
+}
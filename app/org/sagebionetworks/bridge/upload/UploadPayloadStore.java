@@ -0,0 +1,96 @@
+package org.sagebionetworks.bridge.upload;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Per-validation store for upload payloads. Payloads are kept on-heap while the shared
+ * {@link org.sagebionetworks.bridge.upload.UploadPayloadMemoryBudget} has room, and spilled to temp files once the
+ * budget is exhausted. Payloads smaller than the budget's spill threshold always stay on-heap. Spill files are written
+ * to the budget's spill directory, readable only by the server's user.
+ * </p>
+ * <p>
+ * The store owns every payload it creates. Closing the store returns all reserved bytes to the budget and deletes all
+ * spill files. UploadValidationTask closes the store when validation finishes.
+ * </p>
+ */
+public class UploadPayloadStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UploadPayloadStore.class);
+
+    private final UploadPayloadMemoryBudget budget;
+    private final List<UploadPayload> payloadList = new ArrayList<>();
+
+    /** Constructs a payload store backed by the given memory budget. */
+    public UploadPayloadStore(@Nonnull UploadPayloadMemoryBudget budget) {
+        checkNotNull(budget);
+        this.budget = budget;
+    }
+
+    /** True if payloads in this store may be spilled to disk. */
+    public boolean canSpill() {
+        return budget.canSpill();
+    }
+
+    /**
+     * Creates a payload for the given bytes. If the bytes fit in the memory budget (or are under the spill threshold),
+     * the payload wraps the given array. Otherwise, the bytes are written to a temp file, and the caller should drop
+     * its reference to the array so it can be garbage collected.
+     */
+    /* package-scoped */ UploadPayload create(@Nonnull byte[] bytes) {
+        checkNotNull(bytes);
+
+        UploadPayload payload;
+        if (bytes.length < budget.getSpillThresholdBytes()) {
+            payload = new UploadPayload(budget, bytes, 0);
+        } else if (budget.tryReserve(bytes.length)) {
+            payload = new UploadPayload(budget, bytes, bytes.length);
+        } else {
+            payload = spill(bytes);
+        }
+
+        synchronized (payloadList) {
+            payloadList.add(payload);
+        }
+        return payload;
+    }
+
+    private UploadPayload spill(byte[] bytes) {
+        File spillFile = null;
+        try {
+            spillFile = budget.createSpillFile();
+            Files.write(bytes, spillFile);
+            return new UploadPayload(budget, spillFile, bytes.length);
+        } catch (IOException ex) {
+            // Recover by keeping the payload on-heap. This is no worse than not having a budget at all.
+            logger.warn(String.format("Unable to spill %d byte upload payload to disk: %s", bytes.length,
+                    ex.getMessage()), ex);
+            if (spillFile != null && !spillFile.delete()) {
+                logger.warn(String.format("Unable to delete upload payload spill file %s",
+                        spillFile.getAbsolutePath()));
+            }
+            return new UploadPayload(budget, bytes, 0);
+        }
+    }
+
+    /** Discards all payloads in this store, releasing their budget reservations and deleting their spill files. */
+    @Override
+    public void close() {
+        synchronized (payloadList) {
+            for (UploadPayload onePayload : payloadList) {
+                onePayload.discard();
+            }
+            payloadList.clear();
+        }
+    }
+}
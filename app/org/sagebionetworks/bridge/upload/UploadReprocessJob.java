@@ -0,0 +1,338 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import org.sagebionetworks.bridge.util.LatencyHistogram;
+
+/**
+ * <p>
+ * Progress and metrics of a single upload reprocessing job. Reprocessing works through the job's upload IDs in sorted
+ * order. The checkpoint is the last upload ID such that it and every upload ID before it have been reprocessed, so a
+ * resumed job can skip everything up to and including the checkpoint.
+ * </p>
+ * <p>
+ * Per-stage metrics cover loading the upload metadata and study, plus every validation handler. They are kept
+ * separately from the server-wide upload validation metrics, so a large reprocessing job doesn't drown out live
+ * uploads. This class serializes to JSON through its public getters, for the admin status API.
+ * </p>
+ */
+public class UploadReprocessJob {
+    /** Name of the stage that loads the upload metadata and study, before the validation handlers run. */
+    public static final String LOAD_STAGE = "Load";
+
+    /** Job states. */
+    public enum State {
+        /** Waiting for an earlier job on this server to finish. */
+        QUEUED,
+
+        /** Listing the uploads in the upload date range. */
+        LISTING,
+
+        /** Reprocessing uploads. */
+        RUNNING,
+
+        /** All uploads were reprocessed. */
+        COMPLETED,
+
+        /** Cancelled by an admin or by server shutdown. Re-submit the same job ID to resume from the checkpoint. */
+        CANCELLED,
+
+        /** The job could not be started or failed outright. Individual upload failures don't fail the job. */
+        FAILED
+    }
+
+    private final String jobId;
+    private final UploadValidationMetrics handlerMetrics = new UploadValidationMetrics();
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+    private final AtomicLong succeededCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    private volatile State state = State.QUEUED;
+    private volatile String message;
+    private volatile boolean cancelRequested = false;
+    private volatile boolean lockLost = false;
+    private volatile long fencingToken = 0;
+    private volatile DateTime startedOn;
+    private volatile DateTime finishedOn;
+    private volatile int resumedCount = 0;
+
+    // Guarded by this. Upload IDs left to reprocess, in sorted order, and which of them are done.
+    private List<String> uploadIdList;
+    private boolean[] doneArray;
+    private int watermark = 0;
+    private int persistedWatermark = 0;
+    private String checkpoint;
+
+    /** Creates a queued job. */
+    public UploadReprocessJob(@Nonnull String jobId) {
+        this.jobId = jobId;
+    }
+
+    /** Job ID. */
+    public String getJobId() {
+        return jobId;
+    }
+
+    /** Job state. */
+    public State getState() {
+        return state;
+    }
+
+    /** Status message, if the job failed or was cancelled. */
+    public String getMessage() {
+        return message;
+    }
+
+    /** When the job started running (after waiting in the queue), or null if it hasn't started. */
+    public DateTime getStartedOn() {
+        return startedOn;
+    }
+
+    /** When the job finished, or null if it hasn't finished. */
+    public DateTime getFinishedOn() {
+        return finishedOn;
+    }
+
+    /** Total number of uploads in the job, including those skipped because they were before the checkpoint. */
+    public synchronized int getTotalCount() {
+        return resumedCount + (uploadIdList != null ? uploadIdList.size() : 0);
+    }
+
+    /** Number of uploads skipped because an earlier run of this job had already reprocessed them. */
+    public int getResumedCount() {
+        return resumedCount;
+    }
+
+    /** Number of uploads reprocessed by this run, whether they succeeded, failed, or were skipped. */
+    public long getProcessedCount() {
+        return succeededCount.get() + failedCount.get() + skippedCount.get();
+    }
+
+    /** Number of uploads that passed validation. */
+    public long getSucceededCount() {
+        return succeededCount.get();
+    }
+
+    /** Number of uploads that failed validation or could not be loaded. */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Number of uploads that were skipped, because they were never completed, are still being validated, or were
+     * linked to an earlier duplicate upload.
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /** Last upload ID such that it and every upload ID before it have been reprocessed, or null if none have. */
+    public synchronized String getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Overall throughput of this run, in uploads per second. */
+    public double getUploadsPerSecond() {
+        return perSecond(getProcessedCount());
+    }
+
+    /**
+     * Per-stage metrics and throughput, keyed and sorted by stage name. The load stage is always included, followed by
+     * each validation handler that has run.
+     */
+    public SortedMap<String, StageSnapshot> getStages() {
+        SortedMap<String, StageSnapshot> stageMap = new TreeMap<>();
+        LatencyHistogram.Snapshot loadSnapshot = loadLatency.getSnapshot();
+        stageMap.put(LOAD_STAGE, new StageSnapshot(new UploadValidationMetrics.HandlerStatsSnapshot(loadSnapshot,
+                loadSnapshot.getCount() - loadFailureCount.get(), loadFailureCount.get())));
+        for (Map.Entry<String, UploadValidationMetrics.HandlerStatsSnapshot> oneHandler :
+                handlerMetrics.getHandlerSnapshots().entrySet()) {
+            stageMap.put(oneHandler.getKey(), new StageSnapshot(oneHandler.getValue()));
+        }
+        return stageMap;
+    }
+
+    private double perSecond(long count) {
+        DateTime start = startedOn;
+        if (start == null) {
+            return 0.0;
+        }
+        DateTime end = finishedOn != null ? finishedOn : DateTime.now(DateTimeZone.UTC);
+        long elapsedMillis = end.getMillis() - start.getMillis();
+        return elapsedMillis > 0 ? count * 1000.0 / elapsedMillis : 0.0;
+    }
+
+    /** Requests the job to stop. Workers finish the uploads they are on, then stop. */
+    public void cancel() {
+        cancelRequested = true;
+    }
+
+    /** True if the job was asked to stop. */
+    /* package-scoped */ boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /**
+     * Stops the job because its lock was lost, so another server may be running it. Workers finish the uploads they
+     * are on, then stop, and the checkpoint is left to the new lock holder.
+     */
+    /* package-scoped */ void markLockLost() {
+        lockLost = true;
+        cancelRequested = true;
+    }
+
+    /** True if the job's lock was lost. */
+    /* package-scoped */ boolean isLockLost() {
+        return lockLost;
+    }
+
+    /** Fencing token of the job's lock, written with each checkpoint. */
+    /* package-scoped */ long getFencingToken() {
+        return fencingToken;
+    }
+
+    /** @see #getFencingToken */
+    /* package-scoped */ void setFencingToken(long fencingToken) {
+        this.fencingToken = fencingToken;
+    }
+
+    /** True if the job is queued or running. */
+    /* package-scoped */ boolean isActive() {
+        return state == State.QUEUED || state == State.LISTING || state == State.RUNNING;
+    }
+
+    /** Metrics registry for this job's validation handlers, passed to each validation task. */
+    /* package-scoped */ UploadValidationMetrics getHandlerMetrics() {
+        return handlerMetrics;
+    }
+
+    /* package-scoped */ void setState(State state) {
+        this.state = state;
+    }
+
+    /* package-scoped */ void setMessage(String message) {
+        this.message = message;
+    }
+
+    /* package-scoped */ void markStarted() {
+        startedOn = DateTime.now(DateTimeZone.UTC);
+    }
+
+    /* package-scoped */ void markFinished() {
+        finishedOn = DateTime.now(DateTimeZone.UTC);
+    }
+
+    /**
+     * Sets the upload IDs left to reprocess, which must be sorted, and the checkpoint they resume from.
+     *
+     * @param uploadIdList
+     *         upload IDs after the checkpoint, in sorted order
+     * @param resumedCount
+     *         number of upload IDs before the checkpoint, which are skipped
+     * @param checkpoint
+     *         checkpoint this run resumes from, or null if this is a new job
+     */
+    /* package-scoped */ synchronized void setUploadIdList(List<String> uploadIdList, int resumedCount,
+            String checkpoint) {
+        this.uploadIdList = uploadIdList;
+        this.doneArray = new boolean[uploadIdList.size()];
+        this.resumedCount = resumedCount;
+        this.checkpoint = checkpoint;
+    }
+
+    /** Claims the next upload to reprocess. Returns its index, or -1 if there are none left. */
+    /* package-scoped */ int claimNextIndex() {
+        int index = nextIndex.getAndIncrement();
+        return index < doneArraySize() ? index : -1;
+    }
+
+    private synchronized int doneArraySize() {
+        return doneArray.length;
+    }
+
+    /** Upload ID at the given index. */
+    /* package-scoped */ synchronized String getUploadId(int index) {
+        return uploadIdList.get(index);
+    }
+
+    /**
+     * Marks the upload at the given index as done, and advances the checkpoint past every contiguous done upload.
+     * Returns the new checkpoint if it has advanced by at least the given interval since it was last persisted, or
+     * null if it doesn't need to be persisted yet.
+     */
+    /* package-scoped */ synchronized String markDone(int index, int persistInterval) {
+        doneArray[index] = true;
+        while (watermark < doneArray.length && doneArray[watermark]) {
+            watermark++;
+        }
+        if (watermark > 0) {
+            checkpoint = uploadIdList.get(watermark - 1);
+        }
+
+        if (watermark - persistedWatermark >= persistInterval) {
+            persistedWatermark = watermark;
+            return checkpoint;
+        }
+        return null;
+    }
+
+    /* package-scoped */ void recordLoad(long elapsedMillis, boolean success) {
+        loadLatency.record(elapsedMillis);
+        if (!success) {
+            loadFailureCount.incrementAndGet();
+        }
+    }
+
+    /* package-scoped */ void recordSucceeded() {
+        succeededCount.incrementAndGet();
+    }
+
+    /* package-scoped */ void recordFailed() {
+        failedCount.incrementAndGet();
+    }
+
+    /* package-scoped */ void recordSkipped() {
+        skippedCount.incrementAndGet();
+    }
+
+    /** Metrics and throughput of a single reprocessing stage. Serializes to JSON through its getters. */
+    public class StageSnapshot {
+        private final UploadValidationMetrics.HandlerStatsSnapshot stats;
+
+        private StageSnapshot(UploadValidationMetrics.HandlerStatsSnapshot stats) {
+            this.stats = stats;
+        }
+
+        /** Stage latency, in milliseconds. */
+        public LatencyHistogram.Snapshot getLatencyMillis() {
+            return stats.getLatencyMillis();
+        }
+
+        /** Number of times the stage succeeded. */
+        public long getSuccessCount() {
+            return stats.getSuccessCount();
+        }
+
+        /** Number of times the stage failed. */
+        public long getFailureCount() {
+            return stats.getFailureCount();
+        }
+
+        /** Stage throughput, in uploads per second, over the job's run time so far. */
+        public double getUploadsPerSecond() {
+            return perSecond(stats.getSuccessCount() + stats.getFailureCount());
+        }
+    }
+}
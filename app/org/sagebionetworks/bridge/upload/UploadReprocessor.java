@@ -0,0 +1,483 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.dao.DistributedLockDao;
+import org.sagebionetworks.bridge.dao.HealthCodeDao;
+import org.sagebionetworks.bridge.dao.UploadDao;
+import org.sagebionetworks.bridge.exceptions.BadRequestException;
+import org.sagebionetworks.bridge.exceptions.ConcurrentModificationException;
+import org.sagebionetworks.bridge.exceptions.NotFoundException;
+import org.sagebionetworks.bridge.models.accounts.User;
+import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.models.upload.Upload;
+import org.sagebionetworks.bridge.models.upload.UploadReprocessRequest;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
+import org.sagebionetworks.bridge.redis.RedisKey;
+import org.sagebionetworks.bridge.services.StudyService;
+import org.sagebionetworks.bridge.services.UploadService;
+
+/**
+ * <p>
+ * Bulk upload reprocessing engine, for re-validating uploads after a schema fix. A job takes an upload date range or
+ * a list of upload IDs, and runs each upload through the full upload validation handler chain (the same chain live
+ * uploads go through) on a pool of worker threads. Only uploads that have finished validation are reprocessed;
+ * uploads that were never completed, are still being validated, or were linked to an earlier duplicate are skipped.
+ * </p>
+ * <p>
+ * Jobs run one at a time per server, and a Redis lock keeps two servers from running the same job. Progress is
+ * checkpointed to Redis as the last contiguously reprocessed upload ID, so a job that is cancelled or interrupted can
+ * be resumed by re-submitting the same job ID. Checkpoints carry the lock's fencing token, so a server that has lost
+ * the lock (after a long pause, say) can't overwrite the checkpoint of the server that took the job over. All workers
+ * share a rate limiter on estimated DynamoDB operations, so reprocessing doesn't starve live traffic of provisioned
+ * throughput.
+ * </p>
+ */
+public class UploadReprocessor {
+    private static final Logger logger = LoggerFactory.getLogger(UploadReprocessor.class);
+
+    /**
+     * Estimated DynamoDB operations per upload: load the upload, look up the study by health code, write the health
+     * data record, and write the validation status. Schema lookups are cached and aren't counted.
+     */
+    /* package-scoped */ static final int DDB_OPS_PER_UPLOAD = 4;
+
+    /** Persist the checkpoint every time it advances by this many uploads. */
+    /* package-scoped */ static final int CHECKPOINT_INTERVAL = 100;
+
+    // Checkpoints are kept for two weeks, so a job can be resumed long after it was interrupted.
+    private static final int CHECKPOINT_EXPIRE_SECONDS = 14 * 24 * 60 * 60;
+
+    // The lock is renewed while the job runs. If a server dies mid-job, the job can be resumed elsewhere once the lock
+    // expires.
+    private static final int LOCK_EXPIRE_SECONDS = 5 * 60;
+
+    // Sets KEYS[1] to "ARGV[1]:ARGV[2]", expiring in ARGV[3] seconds, unless it holds a checkpoint with a higher
+    // fencing token than ARGV[1]. Returns 1 if set, 0 if not.
+    private static final String CHECKPOINT_SCRIPT =
+            "local current = redis.call('GET', KEYS[1])\n" +
+            "if current then\n" +
+            "    local token = tonumber(string.match(current, '^(%d+):'))\n" +
+            "    if token and token > tonumber(ARGV[1]) then\n" +
+            "        return 0\n" +
+            "    end\n" +
+            "end\n" +
+            "redis.call('SET', KEYS[1], ARGV[1] .. ':' .. ARGV[2], 'EX', ARGV[3])\n" +
+            "return 1";
+
+    private static final String CHECKPOINT_TOKEN_SEPARATOR = ":";
+
+    // Number of recent jobs to keep status for.
+    private static final int MAX_JOB_HISTORY = 100;
+
+    private final int workerCount;
+    private final RateLimiter ddbRateLimiter;
+    private final ExecutorService jobExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService workerExecutor;
+    private final Cache<String, UploadReprocessJob> jobCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_JOB_HISTORY).build();
+
+    private DistributedLockDao lockDao;
+    private HealthCodeDao healthCodeDao;
+    private StudyService studyService;
+    private JedisStringOps stringOps;
+    private UploadDao uploadDao;
+    private UploadValidationTaskFactory taskFactory;
+
+    /**
+     * Creates the reprocessor.
+     *
+     * @param workerCount
+     *         number of uploads to reprocess concurrently, must be positive
+     * @param ddbOpsPerSecond
+     *         DynamoDB operations per second, across all workers, that reprocessing may use, must be positive
+     */
+    public UploadReprocessor(int workerCount, double ddbOpsPerSecond) {
+        Preconditions.checkArgument(workerCount > 0, "workerCount must be positive");
+        Preconditions.checkArgument(ddbOpsPerSecond > 0, "ddbOpsPerSecond must be positive");
+
+        this.workerCount = workerCount;
+        this.ddbRateLimiter = RateLimiter.create(ddbOpsPerSecond);
+        this.workerExecutor = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /** Lock DAO, used to keep two servers from running the same job. This is configured by Spring. */
+    public void setLockDao(DistributedLockDao lockDao) {
+        this.lockDao = lockDao;
+    }
+
+    /** Health code DAO, used to look up the study of each upload. This is configured by Spring. */
+    public void setHealthCodeDao(HealthCodeDao healthCodeDao) {
+        this.healthCodeDao = healthCodeDao;
+    }
+
+    /** Study service, used to load the study of each upload. This is configured by Spring. */
+    public void setStudyService(StudyService studyService) {
+        this.studyService = studyService;
+    }
+
+    /** Redis string ops, used to persist checkpoints. This is configured by Spring. */
+    public void setStringOps(JedisStringOps stringOps) {
+        this.stringOps = stringOps;
+    }
+
+    /** Upload DAO, used to list and load uploads. This is configured by Spring. */
+    public void setUploadDao(UploadDao uploadDao) {
+        this.uploadDao = uploadDao;
+    }
+
+    /** Task factory, used to create validation tasks with the full handler chain. This is configured by Spring. */
+    public void setTaskFactory(UploadValidationTaskFactory taskFactory) {
+        this.taskFactory = taskFactory;
+    }
+
+    /**
+     * Validates the request and queues the job. The job runs asynchronously; poll {@link #getJob} for its status.
+     *
+     * @param request
+     *         reprocess request, must be non-null
+     * @return the queued job
+     * @throws BadRequestException
+     *         if the request is invalid
+     * @throws ConcurrentModificationException
+     *         if a job with the same ID is already queued or running on this server
+     */
+    public UploadReprocessJob submit(@Nonnull final UploadReprocessRequest request) {
+        validateRequest(request);
+
+        final UploadReprocessJob job = new UploadReprocessJob(request.getJobId());
+        synchronized (jobCache) {
+            UploadReprocessJob existingJob = jobCache.getIfPresent(request.getJobId());
+            if (existingJob != null && existingJob.isActive()) {
+                throw new ConcurrentModificationException("Upload reprocessing job " + request.getJobId() +
+                        " is already queued or running");
+            }
+            jobCache.put(request.getJobId(), job);
+        }
+
+        jobExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runJob(job, request);
+            }
+        });
+        return job;
+    }
+
+    private static void validateRequest(UploadReprocessRequest request) {
+        if (request == null) {
+            throw new BadRequestException("Upload reprocess request is required");
+        }
+        if (Strings.isNullOrEmpty(request.getJobId())) {
+            throw new BadRequestException("jobId is required");
+        }
+
+        boolean hasDateRange = request.getStartDate() != null || request.getEndDate() != null;
+        boolean hasUploadIds = request.getUploadIdList() != null;
+        if (hasDateRange == hasUploadIds) {
+            throw new BadRequestException("Either startDate and endDate or uploadIds must be specified, but not both");
+        }
+        if (hasDateRange) {
+            if (request.getStartDate() == null || request.getEndDate() == null) {
+                throw new BadRequestException("Both startDate and endDate must be specified");
+            }
+            if (request.getEndDate().isBefore(request.getStartDate())) {
+                throw new BadRequestException("endDate can't be before startDate");
+            }
+        } else if (request.getUploadIdList().isEmpty()) {
+            throw new BadRequestException("uploadIds can't be empty");
+        }
+    }
+
+    /**
+     * Gets the status of a queued, running, or recently finished job on this server.
+     *
+     * @throws NotFoundException
+     *         if this server has no such job
+     */
+    public UploadReprocessJob getJob(@Nonnull String jobId) {
+        UploadReprocessJob job = jobCache.getIfPresent(jobId);
+        if (job == null) {
+            throw new NotFoundException("Upload reprocessing job " + jobId + " not found");
+        }
+        return job;
+    }
+
+    /**
+     * Cancels a job on this server. Workers finish the uploads they are on, then stop. The checkpoint is kept, so the
+     * job can be resumed by re-submitting it.
+     *
+     * @throws NotFoundException
+     *         if this server has no such job
+     */
+    public UploadReprocessJob cancel(@Nonnull String jobId) {
+        UploadReprocessJob job = getJob(jobId);
+        job.cancel();
+        return job;
+    }
+
+    /** Cancels all jobs and stops the worker threads. */
+    public void shutdown() {
+        for (UploadReprocessJob oneJob : jobCache.asMap().values()) {
+            oneJob.cancel();
+        }
+        jobExecutor.shutdownNow();
+        workerExecutor.shutdownNow();
+    }
+
+    /** Runs the job to completion on the calling thread. This is package-scoped to facilitate unit tests. */
+    /* package-scoped */ void runJob(final UploadReprocessJob job, UploadReprocessRequest request) {
+        String jobId = job.getJobId();
+        if (job.isCancelRequested()) {
+            finishJob(job, UploadReprocessJob.State.CANCELLED, "Cancelled before starting");
+            return;
+        }
+
+        job.markStarted();
+        String lock = null;
+        try {
+            lock = lockDao.acquireLock(UploadReprocessor.class, jobId, LOCK_EXPIRE_SECONDS);
+            job.setFencingToken(lockDao.getFencingToken(lock));
+            lockDao.startRenewal(UploadReprocessor.class, jobId, lock, LOCK_EXPIRE_SECONDS, new Runnable() {
+                @Override
+                public void run() {
+                    logger.error("Upload reprocessing job " + job.getJobId() + " lost its lock, stopping");
+                    job.markLockLost();
+                }
+            });
+        } catch (ConcurrentModificationException ex) {
+            finishJob(job, UploadReprocessJob.State.FAILED, "Job is already running on another server");
+            return;
+        } catch (RuntimeException ex) {
+            // Most likely Redis is unreachable. No uploads have been touched yet, so just fail the job.
+            logger.error("Upload reprocessing job " + jobId + " could not take its lock: " + ex.getMessage(), ex);
+            if (lock != null) {
+                releaseLock(jobId, lock);
+            }
+            finishJob(job, UploadReprocessJob.State.FAILED, "Could not take the job lock: " + ex.getClass().getName()
+                    + ": " + ex.getMessage());
+            return;
+        }
+
+        try {
+            // List and sort uploads, then skip everything up to the checkpoint of a previous run.
+            job.setState(UploadReprocessJob.State.LISTING);
+            List<String> uploadIdList = listUploadIds(request);
+            String checkpoint = parseCheckpoint(stringOps.get(RedisKey.UPLOAD_REPROCESS_CHECKPOINT.getRedisKey(
+                    jobId)));
+            int resumeIndex = 0;
+            if (checkpoint != null) {
+                int checkpointIndex = Collections.binarySearch(uploadIdList, checkpoint);
+                resumeIndex = checkpointIndex >= 0 ? checkpointIndex + 1 : -(checkpointIndex + 1);
+                logger.info(String.format("Resuming upload reprocessing job %s after upload %s, skipping %d uploads",
+                        jobId, checkpoint, resumeIndex));
+            }
+            job.setUploadIdList(uploadIdList.subList(resumeIndex, uploadIdList.size()), resumeIndex, checkpoint);
+            job.setState(UploadReprocessJob.State.RUNNING);
+            logger.info(String.format("Starting upload reprocessing job %s with %d uploads", jobId,
+                    job.getTotalCount() - resumeIndex));
+
+            runWorkers(job);
+
+            // Persist the final checkpoint, whether we finished or were cancelled.
+            persistCheckpoint(job, job.getCheckpoint());
+            if (job.isLockLost()) {
+                finishJob(job, UploadReprocessJob.State.FAILED, "Lost the job lock after upload "
+                        + job.getCheckpoint());
+            } else if (job.isCancelRequested()) {
+                finishJob(job, UploadReprocessJob.State.CANCELLED, "Cancelled after upload " + job.getCheckpoint());
+            } else {
+                finishJob(job, UploadReprocessJob.State.COMPLETED, null);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            persistCheckpoint(job, job.getCheckpoint());
+            finishJob(job, UploadReprocessJob.State.CANCELLED, "Interrupted after upload " + job.getCheckpoint());
+        } catch (RuntimeException ex) {
+            logger.error("Upload reprocessing job " + jobId + " failed: " + ex.getMessage(), ex);
+            persistCheckpoint(job, job.getCheckpoint());
+            finishJob(job, UploadReprocessJob.State.FAILED, ex.getClass().getName() + ": " + ex.getMessage());
+        } finally {
+            releaseLock(jobId, lock);
+        }
+    }
+
+    // The job has already finished by the time we release its lock, so a failure is only logged. The lock expires on
+    // its own.
+    private void releaseLock(String jobId, String lock) {
+        try {
+            lockDao.releaseLock(UploadReprocessor.class, jobId, lock);
+        } catch (RuntimeException ex) {
+            logger.warn("Could not release lock of upload reprocessing job " + jobId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private List<String> listUploadIds(UploadReprocessRequest request) {
+        List<String> uploadIdList;
+        if (request.getUploadIdList() != null) {
+            uploadIdList = request.getUploadIdList();
+        } else {
+            uploadIdList = uploadDao.getUploadIdsForDateRange(request.getStartDate(), request.getEndDate());
+        }
+
+        // Sorted and deduped, so the checkpoint is meaningful across runs.
+        return new ArrayList<>(ImmutableSortedSet.copyOf(uploadIdList));
+    }
+
+    private void runWorkers(final UploadReprocessJob job) throws InterruptedException {
+        final CountDownLatch doneLatch = new CountDownLatch(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+                        while (!job.isCancelRequested() && (index = job.claimNextIndex()) >= 0) {
+                            reprocessUpload(job, job.getUploadId(index));
+                            String checkpoint = job.markDone(index, CHECKPOINT_INTERVAL);
+                            if (checkpoint != null) {
+                                persistCheckpoint(job, checkpoint);
+                            }
+                        }
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            });
+        }
+        doneLatch.await();
+    }
+
+    /** Reprocesses a single upload. Never throws, so one bad upload can't stop the job. */
+    private void reprocessUpload(UploadReprocessJob job, String uploadId) {
+        ddbRateLimiter.acquire(DDB_OPS_PER_UPLOAD);
+
+        // Load stage: upload metadata and study.
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        UploadValidationTask task;
+        try {
+            Upload upload = uploadDao.getUpload(uploadId);
+            String skipReason = getSkipReason(upload);
+            if (skipReason != null) {
+                job.recordLoad(stopwatch.elapsed(TimeUnit.MILLISECONDS), true);
+                job.recordSkipped();
+                logger.info(String.format("Upload reprocessing job %s skipped upload %s: %s", job.getJobId(),
+                        uploadId, skipReason));
+                return;
+            }
+
+            String studyId = healthCodeDao.getStudyIdentifier(upload.getHealthCode());
+            if (studyId == null) {
+                throw new NotFoundException("No study found for upload " + uploadId);
+            }
+            Study study = studyService.getStudy(studyId);
+
+            // Validation only needs the user's health code, which is also on the upload.
+            User user = new User();
+            user.setHealthCode(upload.getHealthCode());
+            user.setStudyKey(studyId);
+
+            task = taskFactory.newTask(study, user, upload);
+            task.setMetrics(job.getHandlerMetrics());
+            job.recordLoad(stopwatch.elapsed(TimeUnit.MILLISECONDS), true);
+        } catch (RuntimeException ex) {
+            job.recordLoad(stopwatch.elapsed(TimeUnit.MILLISECONDS), false);
+            job.recordFailed();
+            logger.error(String.format("Upload reprocessing job %s could not load upload %s: %s", job.getJobId(),
+                    uploadId, ex.getMessage()), ex);
+            return;
+        }
+
+        // Handler stages. The task records per-handler metrics into the job and writes the validation status.
+        try {
+            task.run();
+            if (task.getContext().getSuccess()) {
+                job.recordSucceeded();
+            } else {
+                job.recordFailed();
+            }
+        } catch (RuntimeException ex) {
+            job.recordFailed();
+            logger.error(String.format("Upload reprocessing job %s failed on upload %s: %s", job.getJobId(),
+                    uploadId, ex.getMessage()), ex);
+        }
+    }
+
+    // Returns the reason to skip this upload, or null if it should be reprocessed.
+    private static String getSkipReason(Upload upload) {
+        UploadStatus status = upload.getStatus();
+        if (status != UploadStatus.SUCCEEDED && status != UploadStatus.VALIDATION_FAILED) {
+            return "status is " + status;
+        }
+        List<String> messageList = upload.getValidationMessageList();
+        if (messageList != null) {
+            for (String oneMessage : messageList) {
+                if (oneMessage.startsWith(UploadService.DUPLICATE_MESSAGE_PREFIX)) {
+                    return oneMessage;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Writes the checkpoint, unless a later holder of the job lock has written one. In that case, this server has lost
+    // the lock without noticing yet, and the job stops.
+    private void persistCheckpoint(UploadReprocessJob job, String checkpoint) {
+        if (checkpoint == null || job.isLockLost()) {
+            return;
+        }
+        String jobId = job.getJobId();
+        Long result = (Long) stringOps.eval(CHECKPOINT_SCRIPT,
+                ImmutableList.of(RedisKey.UPLOAD_REPROCESS_CHECKPOINT.getRedisKey(jobId)),
+                ImmutableList.of(Long.toString(job.getFencingToken()), checkpoint,
+                        Integer.toString(CHECKPOINT_EXPIRE_SECONDS)));
+        if (result == null) {
+            // Redis is unavailable. A resumed job redoes more uploads, but that's safe.
+            logger.warn("Could not persist checkpoint " + checkpoint + " for upload reprocessing job " + jobId);
+        } else if (result == 0L) {
+            logger.error("Upload reprocessing job " + jobId + " was taken over by another server, stopping");
+            job.markLockLost();
+        }
+    }
+
+    // Strips the fencing token from a persisted checkpoint. Checkpoints written before fencing have no token.
+    private static String parseCheckpoint(String value) {
+        if (value == null) {
+            return null;
+        }
+        int index = value.indexOf(CHECKPOINT_TOKEN_SEPARATOR);
+        if (index > 0 && CharMatcher.DIGIT.matchesAllOf(value.substring(0, index))) {
+            return value.substring(index + 1);
+        }
+        return value;
+    }
+
+    private static void finishJob(UploadReprocessJob job, UploadReprocessJob.State state, String message) {
+        job.setMessage(message);
+        job.markFinished();
+        job.setState(state);
+        logger.info(String.format("Upload reprocessing job %s %s after %d uploads (%d succeeded, %d failed, " +
+                "%d skipped)%s", job.getJobId(), state, job.getProcessedCount(), job.getSucceededCount(),
+                job.getFailedCount(), job.getSkippedCount(), message != null ? ": " + message : ""));
+    }
+}
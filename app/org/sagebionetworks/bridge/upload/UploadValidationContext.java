@@ -19,8 +19,9 @@ public class UploadValidationContext {
     private Upload upload;
     private boolean success = true;
     private List<String> messageList = new ArrayList<>();
-    private byte[] data;
-    private byte[] decryptedData;
+    private UploadPayloadStore payloadStore = new UploadPayloadStore(UploadPayloadMemoryBudget.UNLIMITED);
+    private UploadPayload data;
+    private UploadPayload decryptedData;
     private Map<String, byte[]> unzippedDataMap;
     private Map<String, JsonNode> jsonDataMap;
     private HealthDataRecordBuilder healthDataRecordBuilder;
@@ -94,30 +95,58 @@ public class UploadValidationContext {
         messageList.add(msg);
     }
 
-    /** Raw upload data as bytes. This is created by S3DownloadHandler and read by the DecryptHandler. */
+    /**
+     * Store that holds the raw, decrypted, and unzipped upload data, spilling it to disk once the shared memory budget
+     * is exhausted. This is initially set by the upload validation task factory and closed by UploadValidationTask
+     * when validation finishes. Contexts created elsewhere default to a store that never spills.
+     */
+    public UploadPayloadStore getPayloadStore() {
+        return payloadStore;
+    }
+
+    /** @see #getPayloadStore */
+    public void setPayloadStore(UploadPayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+    }
+
+    /**
+     * Raw upload data as bytes. This is created by S3DownloadHandler and read by the DecryptHandler. This is never
+     * set in streaming mode, where StreamingUnpackHandler reads the upload as a stream.
+     */
     public byte[] getData() {
-        return data;
+        return data != null ? data.getBytes() : null;
     }
 
     /** @see #getData */
     public void setData(byte[] data) {
-        this.data = data;
+        this.data = data != null ? payloadStore.create(data) : null;
     }
 
-    /** Decrypted upload data as bytes. This is created by DecryptHandler and read by UnzipHandler. */
+    /**
+     * Decrypted upload data as bytes. This is created by DecryptHandler and read by UnzipHandler. This is never set in
+     * streaming mode, where StreamingUnpackHandler decrypts the upload as a stream.
+     */
     public byte[] getDecryptedData() {
-        return decryptedData;
+        return decryptedData != null ? decryptedData.getBytes() : null;
     }
 
     /** @see #getDecryptedData */
     public void setDecryptedData(byte[] decryptedData) {
-        this.decryptedData = decryptedData;
+        this.decryptedData = decryptedData != null ? payloadStore.create(decryptedData) : null;
     }
 
     /**
+     * <p>
      * Unzipped data as bytes, keyed by filename. This is initially created by the UnzipHandler. The ParseJsonHandler
      * will read this and remove entries that can be parsed into JSON. Non-JSON entries will still remain in this map.
-     * This is also read by the IosSchemaValidationHandler.
+     * This is also read by the IosSchemaValidationHandler. In streaming mode, this is created by the
+     * StreamingUnpackHandler and only ever contains the non-JSON entries.
+     * </p>
+     * <p>
+     * If the payload store can spill, the given map is copied into a map backed by the payload store, and large
+     * entries may be read back from disk on each get. Callers should modify the map returned by this getter rather
+     * than the map they passed to the setter.
+     * </p>
      */
     public Map<String, byte[]> getUnzippedDataMap() {
         return unzippedDataMap;
@@ -125,12 +154,19 @@ public class UploadValidationContext {
 
     /** @see #getUnzippedDataMap */
     public void setUnzippedDataMap(Map<String, byte[]> unzippedDataMap) {
-        this.unzippedDataMap = unzippedDataMap;
+        if (unzippedDataMap != null && payloadStore.canSpill()
+                && !(unzippedDataMap instanceof SpillableByteArrayMap)) {
+            Map<String, byte[]> spillableMap = new SpillableByteArrayMap(payloadStore);
+            spillableMap.putAll(unzippedDataMap);
+            this.unzippedDataMap = spillableMap;
+        } else {
+            this.unzippedDataMap = unzippedDataMap;
+        }
     }
 
     /**
-     * Parsed JSON data, keyed by filename. This is created by the ParseJsonHandler and read by the
-     * IosSchemaValidationHandler.
+     * Parsed JSON data, keyed by filename. This is created by the ParseJsonHandler (or the StreamingUnpackHandler in
+     * streaming mode) and read by the IosSchemaValidationHandler.
      */
     public Map<String, JsonNode> getJsonDataMap() {
         return jsonDataMap;
@@ -175,7 +211,8 @@ public class UploadValidationContext {
      * Makes a shallow copy of this object. The fields of the returned copy can be get and set without affecting the
      * original. However, the field value themselves are shared between the original and the copy. Most notably,
      * modifying the unzippedDataMap (which is what ParseJsonHandler does) or the healthDataRecordBuilder (which is
-     * what TranscribeConsentHandler does) in the copy will affect the original, and vice versa.
+     * what TranscribeConsentHandler does) in the copy will affect the original, and vice versa. The payload store is
+     * also shared, so closing it discards the payloads of both.
      * </p>
      * <p>
      * The one notable exception is the message list, which will be deep copied. This is because the message list is
@@ -192,6 +229,7 @@ public class UploadValidationContext {
         copy.user = this.user;
         copy.upload = this.upload;
         copy.success = this.success;
+        copy.payloadStore = this.payloadStore;
         copy.data = this.data;
         copy.decryptedData = this.decryptedData;
         copy.unzippedDataMap = this.unzippedDataMap;
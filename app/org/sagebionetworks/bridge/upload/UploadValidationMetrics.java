@@ -0,0 +1,140 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.util.LatencyHistogram;
+
+/**
+ * In-process metrics registry for the upload validation chain. UploadValidationTask records the latency (in
+ * milliseconds) and outcome of every handler it runs, keyed by handler name and by study. Metrics are kept in memory
+ * for the lifetime of the server and are not shared across servers.
+ */
+@Component
+public class UploadValidationMetrics {
+    private final ConcurrentMap<String, HandlerStats> statsByHandler = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, HandlerStats>> statsByStudy =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Records a single handler run.
+     *
+     * @param studyId
+     *         study the upload belongs to
+     * @param handlerName
+     *         name of the handler that ran
+     * @param elapsedMillis
+     *         how long the handler took, in milliseconds
+     * @param success
+     *         true if the handler succeeded, false if it threw
+     */
+    public void recordHandler(@Nonnull String studyId, @Nonnull String handlerName, long elapsedMillis,
+            boolean success) {
+        getOrCreateStats(statsByHandler, handlerName).record(elapsedMillis, success);
+
+        ConcurrentMap<String, HandlerStats> studyStatsByHandler = statsByStudy.get(studyId);
+        if (studyStatsByHandler == null) {
+            ConcurrentMap<String, HandlerStats> newMap = new ConcurrentHashMap<>();
+            studyStatsByHandler = statsByStudy.putIfAbsent(studyId, newMap);
+            if (studyStatsByHandler == null) {
+                studyStatsByHandler = newMap;
+            }
+        }
+        getOrCreateStats(studyStatsByHandler, handlerName).record(elapsedMillis, success);
+    }
+
+    private static HandlerStats getOrCreateStats(ConcurrentMap<String, HandlerStats> statsMap, String handlerName) {
+        HandlerStats stats = statsMap.get(handlerName);
+        if (stats == null) {
+            HandlerStats newStats = new HandlerStats();
+            stats = statsMap.putIfAbsent(handlerName, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /** Snapshot of handler metrics across all studies, keyed and sorted by handler name. */
+    public SortedMap<String, HandlerStatsSnapshot> getHandlerSnapshots() {
+        return snapshot(statsByHandler);
+    }
+
+    /** Snapshot of handler metrics for each study, keyed and sorted by study ID, then handler name. */
+    public SortedMap<String, SortedMap<String, HandlerStatsSnapshot>> getStudySnapshots() {
+        SortedMap<String, SortedMap<String, HandlerStatsSnapshot>> snapshotsByStudy = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, HandlerStats>> oneStudy : statsByStudy.entrySet()) {
+            snapshotsByStudy.put(oneStudy.getKey(), snapshot(oneStudy.getValue()));
+        }
+        return snapshotsByStudy;
+    }
+
+    private static SortedMap<String, HandlerStatsSnapshot> snapshot(Map<String, HandlerStats> statsMap) {
+        SortedMap<String, HandlerStatsSnapshot> snapshotMap = new TreeMap<>();
+        for (Map.Entry<String, HandlerStats> oneStats : statsMap.entrySet()) {
+            snapshotMap.put(oneStats.getKey(), oneStats.getValue().getSnapshot());
+        }
+        return snapshotMap;
+    }
+
+    /** Clears all metrics. */
+    public void reset() {
+        statsByHandler.clear();
+        statsByStudy.clear();
+    }
+
+    /** Latency histogram and outcome counters for a single handler. */
+    private static class HandlerStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong successCount = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+
+        void record(long elapsedMillis, boolean success) {
+            latency.record(elapsedMillis);
+            if (success) {
+                successCount.incrementAndGet();
+            } else {
+                failureCount.incrementAndGet();
+            }
+        }
+
+        HandlerStatsSnapshot getSnapshot() {
+            return new HandlerStatsSnapshot(latency.getSnapshot(), successCount.get(), failureCount.get());
+        }
+    }
+
+    /** Immutable snapshot of a single handler's metrics. Serializes to JSON through its getters. */
+    public static class HandlerStatsSnapshot {
+        private final LatencyHistogram.Snapshot latencyMillis;
+        private final long successCount;
+        private final long failureCount;
+
+        HandlerStatsSnapshot(LatencyHistogram.Snapshot latencyMillis, long successCount, long failureCount) {
+            this.latencyMillis = latencyMillis;
+            this.successCount = successCount;
+            this.failureCount = failureCount;
+        }
+
+        /** Handler latency, in milliseconds. */
+        public LatencyHistogram.Snapshot getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /** Number of times the handler succeeded. */
+        public long getSuccessCount() {
+            return successCount;
+        }
+
+        /** Number of times the handler threw. */
+        public long getFailureCount() {
+            return failureCount;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.sagebionetworks.bridge.upload;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Bounded, per-study fair scheduler for upload validation tasks. Tasks are queued per study and dispatched to a fixed
+ * pool of workers in round-robin order across studies, so a single study with a large backlog can't starve the
+ * others. Each study can run at most a configured number of tasks at once, and the total number of queued tasks is
+ * capped. Callers should check {@link #hasCapacity} (or the return value of {@link #trySubmit}) and ask clients to
+ * retry later when the queue is full, rather than piling up work in memory.
+ * </p>
+ * <p>
+ * The scheduler also exposes gauges for queue depth, running tasks, and queue wait times.
+ * </p>
+ */
+public class UploadValidationScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(UploadValidationScheduler.class);
+
+    private final int workerCount;
+    private final int maxQueueDepth;
+    private final int maxConcurrencyPerStudy;
+    private final ExecutorService executor;
+
+    // All of the following are guarded by "this".
+    private final Map<String, Deque<QueuedTask>> queuesByStudy = new HashMap<>();
+    private final Deque<String> studyRotation = new ArrayDeque<>();
+    private final Map<String, Integer> runningCountByStudy = new HashMap<>();
+    private int queueDepth = 0;
+    private int runningCount = 0;
+    private long lastWaitMillis = 0;
+    private long maxWaitMillis = 0;
+    private long totalWaitMillis = 0;
+    private long dispatchedCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * Creates a scheduler and its worker pool.
+     *
+     * @param workerCount
+     *         number of worker threads, must be positive
+     * @param maxQueueDepth
+     *         maximum number of tasks waiting for a worker, across all studies, must be positive
+     * @param maxConcurrencyPerStudy
+     *         maximum number of tasks that can run at once for a single study, must be positive
+     */
+    public UploadValidationScheduler(int workerCount, int maxQueueDepth, int maxConcurrencyPerStudy) {
+        Preconditions.checkArgument(workerCount > 0, "workerCount must be positive");
+        Preconditions.checkArgument(maxQueueDepth > 0, "maxQueueDepth must be positive");
+        Preconditions.checkArgument(maxConcurrencyPerStudy > 0, "maxConcurrencyPerStudy must be positive");
+
+        this.workerCount = workerCount;
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxConcurrencyPerStudy = maxConcurrencyPerStudy;
+
+        // The dispatcher never hands the pool more tasks than it has workers, so the pool's own queue stays empty.
+        this.executor = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * Queues a task for the given study. Returns false without queueing the task if the queue is full.
+     *
+     * @param studyId
+     *         study the task belongs to, used for fairness and per-study concurrency caps
+     * @param task
+     *         task to run
+     * @return true if the task was queued, false if the queue is full
+     */
+    public boolean trySubmit(@Nonnull String studyId, @Nonnull Runnable task) {
+        synchronized (this) {
+            if (queueDepth >= maxQueueDepth) {
+                rejectedCount++;
+                logger.warn(String.format("Upload validation queue full (%d tasks), rejecting task for study %s",
+                        queueDepth, studyId));
+                return false;
+            }
+
+            Deque<QueuedTask> studyQueue = queuesByStudy.get(studyId);
+            if (studyQueue == null) {
+                studyQueue = new ArrayDeque<>();
+                queuesByStudy.put(studyId, studyQueue);
+                studyRotation.addLast(studyId);
+            }
+            studyQueue.addLast(new QueuedTask(studyId, task, System.nanoTime()));
+            queueDepth++;
+
+            dispatch();
+        }
+        return true;
+    }
+
+    /**
+     * Hands queued tasks to the worker pool, going round-robin across studies and skipping studies that have reached
+     * their concurrency cap. Must be called while holding the lock.
+     */
+    private void dispatch() {
+        while (runningCount < workerCount && !studyRotation.isEmpty()) {
+            // Find the next study in the rotation that's under its concurrency cap. If none are, we wait for a
+            // running task to finish.
+            String studyId = null;
+            int numStudies = studyRotation.size();
+            for (int i = 0; i < numStudies; i++) {
+                String candidate = studyRotation.pollFirst();
+                if (getRunningCountForStudy(candidate) < maxConcurrencyPerStudy) {
+                    studyId = candidate;
+                    break;
+                }
+                studyRotation.addLast(candidate);
+            }
+            if (studyId == null) {
+                return;
+            }
+
+            Deque<QueuedTask> studyQueue = queuesByStudy.get(studyId);
+            final QueuedTask queuedTask = studyQueue.pollFirst();
+            if (studyQueue.isEmpty()) {
+                queuesByStudy.remove(studyId);
+            } else {
+                // back of the line, so other studies get a turn
+                studyRotation.addLast(studyId);
+            }
+            queueDepth--;
+
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedTask.enqueuedNanos);
+            lastWaitMillis = waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+            totalWaitMillis += waitMillis;
+            dispatchedCount++;
+
+            runningCount++;
+            runningCountByStudy.put(studyId, getRunningCountForStudy(studyId) + 1);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queuedTask.task.run();
+                    } catch (RuntimeException ex) {
+                        logger.error("Upload validation task for study " + queuedTask.studyId + " failed: " +
+                                ex.getMessage(), ex);
+                    } finally {
+                        onTaskComplete(queuedTask.studyId);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Releases the worker and study slots for a finished task and dispatches the next queued tasks. */
+    private synchronized void onTaskComplete(String studyId) {
+        runningCount--;
+        int studyRunningCount = getRunningCountForStudy(studyId) - 1;
+        if (studyRunningCount > 0) {
+            runningCountByStudy.put(studyId, studyRunningCount);
+        } else {
+            runningCountByStudy.remove(studyId);
+        }
+        dispatch();
+    }
+
+    private int getRunningCountForStudy(String studyId) {
+        Integer count = runningCountByStudy.get(studyId);
+        return count != null ? count : 0;
+    }
+
+    /** True if the queue can accept more tasks. Used for admission control in front of {@link #trySubmit}. */
+    public synchronized boolean hasCapacity() {
+        return queueDepth < maxQueueDepth;
+    }
+
+    /** Number of worker threads. */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /** Maximum number of queued tasks, across all studies. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /** Maximum number of tasks that can run at once for a single study. */
+    public int getMaxConcurrencyPerStudy() {
+        return maxConcurrencyPerStudy;
+    }
+
+    /** Gauge: number of tasks waiting for a worker, across all studies. */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /** Gauge: number of tasks waiting for a worker for the given study. */
+    public synchronized int getQueueDepth(@Nonnull String studyId) {
+        Deque<QueuedTask> studyQueue = queuesByStudy.get(studyId);
+        return studyQueue != null ? studyQueue.size() : 0;
+    }
+
+    /** Gauge: number of tasks currently running, across all studies. */
+    public synchronized int getRunningCount() {
+        return runningCount;
+    }
+
+    /** Gauge: how long the oldest queued task has been waiting, in milliseconds. 0 if the queue is empty. */
+    public synchronized long getOldestQueuedWaitMillis() {
+        long oldestNanos = Long.MAX_VALUE;
+        for (Deque<QueuedTask> oneStudyQueue : queuesByStudy.values()) {
+            // tasks within a study queue are in submission order, so the first one is the oldest
+            QueuedTask first = oneStudyQueue.peekFirst();
+            if (first != null) {
+                oldestNanos = Math.min(oldestNanos, first.enqueuedNanos);
+            }
+        }
+        if (oldestNanos == Long.MAX_VALUE) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestNanos);
+    }
+
+    /** Gauge: queue wait time of the most recently dispatched task, in milliseconds. */
+    public synchronized long getLastWaitMillis() {
+        return lastWaitMillis;
+    }
+
+    /** Gauge: longest queue wait time of any dispatched task, in milliseconds. */
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /** Gauge: average queue wait time of all dispatched tasks, in milliseconds. 0 if nothing has been dispatched. */
+    public synchronized long getAverageWaitMillis() {
+        return dispatchedCount > 0 ? totalWaitMillis / dispatchedCount : 0;
+    }
+
+    /** Counter: total number of tasks handed to workers. */
+    public synchronized long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    /** Counter: total number of tasks rejected because the queue was full. */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /** Stops the worker pool. Running tasks are allowed to finish. Queued tasks are dropped. */
+    public void shutdown() {
+        synchronized (this) {
+            if (queueDepth > 0) {
+                logger.warn(String.format("Shutting down upload validation scheduler with %d queued tasks",
+                        queueDepth));
+            }
+            queuesByStudy.clear();
+            studyRotation.clear();
+            queueDepth = 0;
+        }
+        executor.shutdown();
+    }
+
+    /** A task waiting in a study queue, along with its study and when it was queued. */
+    private static class QueuedTask {
+        private final String studyId;
+        private final Runnable task;
+        private final long enqueuedNanos;
+
+        QueuedTask(String studyId, Runnable task, long enqueuedNanos) {
+            this.studyId = studyId;
+            this.task = task;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
@@ -22,6 +22,7 @@ public class UploadValidationTask implements Runnable {
 
     private List<UploadValidationHandler> handlerList;
     private UploadDao uploadDao;
+    private UploadValidationMetrics metrics;
 
     /**
      * Constructs an upload validation task instance with the given context. This should only be called by the
@@ -57,38 +58,63 @@ public class UploadValidationTask implements Runnable {
         return uploadDao;
     }
 
+    /**
+     * Metrics registry, for recording handler latencies and outcomes. This is configured by Spring through the task
+     * factory. If not set, metrics are only logged.
+     */
+    public void setMetrics(UploadValidationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** This is package-scoped to facilitate unit tests. */
+    /* package-scoped*/ UploadValidationMetrics getMetrics() {
+        return metrics;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void run() {
-        Stopwatch stopwatch = Stopwatch.createUnstarted();
-        for (UploadValidationHandler oneHandler : handlerList) {
-            String handlerName = oneHandler.getClass().getName();
-            stopwatch.start();
-
-            try {
-                oneHandler.handle(context);
-            } catch (RuntimeException | UploadValidationException ex) {
-                context.setSuccess(false);
-                context.addMessage(String.format("Exception thrown from upload validation handler %s: %s: %s",
-                        handlerName, ex.getClass().getName(), ex.getMessage()));
-                logger.info(String.format("Exception thrown from upload validation handler %s for study %s, " +
-                                "upload %s, filename %s: %s: %s", handlerName, context.getStudy().getIdentifier(),
-                        context.getUpload().getUploadId(), context.getUpload().getFilename(), ex.getClass().getName(),
-                        ex.getMessage()), ex);
-                break;
-            } finally {
-                long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
-                stopwatch.reset();
-                // TODO: send this to somewhere other than the logs
-                logger.info(String.format("Upload validation handler %s took %d ms", handlerName, elapsedMillis));
+        String studyId = context.getStudy().getIdentifier();
+        try {
+            Stopwatch stopwatch = Stopwatch.createUnstarted();
+            for (UploadValidationHandler oneHandler : handlerList) {
+                String handlerName = oneHandler.getClass().getName();
+                boolean handlerSuccess = false;
+                stopwatch.start();
+
+                try {
+                    oneHandler.handle(context);
+                    handlerSuccess = true;
+                } catch (RuntimeException | UploadValidationException ex) {
+                    context.setSuccess(false);
+                    context.addMessage(String.format("Exception thrown from upload validation handler %s: %s: %s",
+                            handlerName, ex.getClass().getName(), ex.getMessage()));
+                    logger.info(String.format("Exception thrown from upload validation handler %s for study %s, " +
+                                    "upload %s, filename %s: %s: %s", handlerName, studyId,
+                            context.getUpload().getUploadId(), context.getUpload().getFilename(),
+                            ex.getClass().getName(), ex.getMessage()), ex);
+                    break;
+                } finally {
+                    long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+                    stopwatch.reset();
+                    if (metrics != null) {
+                        metrics.recordHandler(studyId, oneHandler.getClass().getSimpleName(), elapsedMillis,
+                                handlerSuccess);
+                    }
+                    logger.info(String.format("Upload validation handler %s took %d ms", handlerName, elapsedMillis));
+                }
             }
-        }
 
-        // write validation status to the upload DAO
-        UploadStatus status = context.getSuccess() ? UploadStatus.SUCCEEDED : UploadStatus.VALIDATION_FAILED;
-        uploadDao.writeValidationStatus(context.getUpload(), status, context.getMessageList());
-        logger.info(String.format("Upload validation for study %s, upload %s, with status %s",
-                context.getStudy().getIdentifier(), context.getUpload().getUploadId(), status));
+            // write validation status to the upload DAO
+            UploadStatus status = context.getSuccess() ? UploadStatus.SUCCEEDED : UploadStatus.VALIDATION_FAILED;
+            uploadDao.writeValidationStatus(context.getUpload(), status, context.getMessageList());
+            logger.info(String.format("Upload validation for study %s, upload %s, with status %s",
+                    studyId, context.getUpload().getUploadId(), status));
+        } finally {
+            // Validation is done with the payloads. Release their memory budget and delete any spill files, even if a
+            // handler or the status write threw.
+            context.getPayloadStore().close();
+        }
 
         // TODO: if validation fails, wipe the files from S3
     }
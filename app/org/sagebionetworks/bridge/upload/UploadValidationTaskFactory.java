@@ -21,6 +21,8 @@ import org.springframework.stereotype.Component;
 public class UploadValidationTaskFactory {
     private List<UploadValidationHandler> handlerList;
     private UploadDao uploadDao;
+    private UploadPayloadMemoryBudget payloadMemoryBudget = UploadPayloadMemoryBudget.UNLIMITED;
+    private UploadValidationMetrics metrics;
 
     /** Validation handler list. This is configured by Spring. */
     @Resource(name = "uploadValidationHandlerList")
@@ -34,6 +36,21 @@ public class UploadValidationTaskFactory {
         this.uploadDao = uploadDao;
     }
 
+    /**
+     * Memory budget for upload payloads, shared by all validation tasks. This is configured by Spring. If not set,
+     * payloads are never spilled to disk.
+     */
+    @Resource(name = "uploadPayloadMemoryBudget")
+    public void setPayloadMemoryBudget(UploadPayloadMemoryBudget payloadMemoryBudget) {
+        this.payloadMemoryBudget = payloadMemoryBudget;
+    }
+
+    /** Metrics registry for handler latencies and outcomes, shared by all validation tasks. Configured by Spring. */
+    @Autowired
+    public void setMetrics(UploadValidationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Factory method for creating a validation task instance, for validating a single upload.
      *
@@ -51,11 +68,13 @@ public class UploadValidationTaskFactory {
         context.setStudy(study);
         context.setUser(user);
         context.setUpload(upload);
+        context.setPayloadStore(new UploadPayloadStore(payloadMemoryBudget));
 
         // task
         UploadValidationTask task = new UploadValidationTask(context);
         task.setHandlerList(handlerList);
         task.setUploadDao(uploadDao);
+        task.setMetrics(metrics);
         return task;
     }
 }
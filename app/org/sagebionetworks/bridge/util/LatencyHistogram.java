@@ -0,0 +1,132 @@
+package org.sagebionetworks.bridge.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process latency histogram. Percentiles (p50/p95/p99) are computed over a sliding window of the most recent
+ * samples, so they track current behavior. Count, mean, and max are over all samples since creation (or the last
+ * reset). This class is thread-safe.
+ *
+ * Recording is lock-free, since it sits on hot paths like borrowing a Redis connection. The price is that a snapshot
+ * taken while samples are being recorded may be off by the samples in flight.
+ */
+public class LatencyHistogram {
+    /** Default number of recent samples used for percentiles. */
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+
+    private final AtomicLongArray window;
+    // Number of samples recorded. Also picks the window slot of the next sample.
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Creates a histogram with the default window size. */
+    public LatencyHistogram() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /** Creates a histogram that computes percentiles over the given number of recent samples. */
+    public LatencyHistogram(int windowSize) {
+        checkArgument(windowSize > 0);
+        this.window = new AtomicLongArray(windowSize);
+    }
+
+    /** Records a single latency sample. Negative values are recorded as zero. */
+    public void record(long latency) {
+        long value = Math.max(0, latency);
+        long index = count.getAndIncrement();
+        window.set((int) (index % window.length()), value);
+        sum.addAndGet(value);
+
+        long curMax = max.get();
+        while (value > curMax && !max.compareAndSet(curMax, value)) {
+            curMax = max.get();
+        }
+    }
+
+    /** Clears all samples. */
+    public void reset() {
+        // Slots past the count are never read, so the window doesn't need clearing.
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /** Returns an immutable snapshot of the histogram. */
+    public Snapshot getSnapshot() {
+        long snapshotCount = count.get();
+        long snapshotSum = sum.get();
+        long snapshotMax = max.get();
+        int windowCount = (int) Math.min(snapshotCount, window.length());
+        long[] sorted = new long[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            sorted[i] = window.get(i);
+        }
+
+        Arrays.sort(sorted);
+        return new Snapshot(snapshotCount, snapshotCount > 0 ? snapshotSum / snapshotCount : 0,
+                percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), snapshotMax);
+    }
+
+    // Nearest-rank percentile. Returns 0 for an empty array.
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /** Immutable snapshot of a latency histogram. Serializes to JSON through its getters. */
+    public static class Snapshot {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        private final long max;
+
+        private Snapshot(long count, long mean, long p50, long p95, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        /** Number of samples recorded. */
+        public long getCount() {
+            return count;
+        }
+
+        /** Mean of all samples recorded. */
+        public long getMean() {
+            return mean;
+        }
+
+        /** 50th percentile of recent samples. */
+        public long getP50() {
+            return p50;
+        }
+
+        /** 95th percentile of recent samples. */
+        public long getP95() {
+            return p95;
+        }
+
+        /** 99th percentile of recent samples. */
+        public long getP99() {
+            return p99;
+        }
+
+        /** Maximum of all samples recorded. */
+        public long getMax() {
+            return max;
+        }
+    }
+}
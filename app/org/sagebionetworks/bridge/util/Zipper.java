@@ -6,27 +6,73 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nonnull;
 
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * <p>
+ * Zips and unzips archives, with limits on the number of entries, the size of each entry, and the compression ratio.
+ * </p>
+ * <p>
+ * Unzipping allocates as little as possible. When an entry declares its size, it is read straight into an array of
+ * exactly that size. Otherwise, it is read into a per-thread scratch buffer, which is reused across entries and
+ * archives, and copied once into an exact-size array. {@link #unzipView} skips even that copy, by handing the consumer
+ * a view of the scratch buffer.
+ * </p>
+ * <p>
+ * The compression ratio check rejects zip bombs as soon as the inflated size of an entry, or of the whole archive, is
+ * too large for the compressed bytes read so far, instead of after inflating the max entry size.
+ * </p>
+ */
 public class Zipper {
 
+    /** Default max ratio of uncompressed to compressed bytes. Zip bombs are typically in the thousands. */
+    public static final int DEFAULT_MAX_COMPRESSION_RATIO = 100;
+
+    /**
+     * The compression ratio is only checked once this many bytes have been inflated, since small, highly repetitive
+     * files legitimately compress very well.
+     */
+    /* package-scoped */ static final long COMPRESSION_RATIO_MIN_BYTES = 1024 * 1024;
+
+    // Per-thread scratch buffers start small, and are only kept between archives up to a modest size, so worker
+    // threads don't each pin a max-size buffer.
+    private static final int SCRATCH_INITIAL_SIZE = 64 * 1024;
+    private static final int SCRATCH_MAX_RETAINED_SIZE = 1024 * 1024;
+    private static final ThreadLocal<byte[]> SCRATCH_BUFFER = new ThreadLocal<>();
+
     /** Max number of uncompressed bytes per zip entry. */
     private final int maxZipEntrySize;
 
     /** Max number of zip entries per archive. */
     private final int maxNumZipEntries;
 
+    /** Max ratio of uncompressed to compressed bytes, per entry and per archive. */
+    private final int maxCompressionRatio;
+
     public Zipper(int maxZipEntrySize, int maxNumZipEntries) {
+        this(maxZipEntrySize, maxNumZipEntries, DEFAULT_MAX_COMPRESSION_RATIO);
+    }
+
+    public Zipper(int maxZipEntrySize, int maxNumZipEntries, int maxCompressionRatio) {
         checkArgument(maxZipEntrySize > 0);
         checkArgument(maxNumZipEntries > 0);
+        checkArgument(maxCompressionRatio > 0);
         this.maxZipEntrySize = maxZipEntrySize;
         this.maxNumZipEntries = maxNumZipEntries;
+        this.maxCompressionRatio = maxCompressionRatio;
     }
 
     /**
@@ -47,6 +93,46 @@ public class Zipper {
         }
     }
 
+    /**
+     * Callback for {@link Zipper#unzip(InputStream, EntryConsumer)}. This is called once for each zip entry, in the
+     * order the entries appear in the archive.
+     */
+    public interface EntryConsumer {
+        /**
+         * Accepts a single unzipped entry.
+         *
+         * @param entryName
+         *         filename of the zip entry
+         * @param data
+         *         unzipped contents of the zip entry
+         */
+        void accept(String entryName, byte[] data);
+    }
+
+    /**
+     * Callback for {@link Zipper#unzipView(InputStream, EntryViewConsumer)}. This is called once for each zip entry, in
+     * the order the entries appear in the archive.
+     */
+    public interface EntryViewConsumer {
+        /**
+         * Accepts a view of a single unzipped entry. The buffer is reused for the next entry, so it is only valid
+         * during this call. Consumers that keep the data must copy it.
+         *
+         * @param entryName
+         *         filename of the zip entry
+         * @param buffer
+         *         buffer holding the unzipped contents of the zip entry, starting at index 0
+         * @param length
+         *         number of bytes of the buffer that hold the zip entry
+         */
+        void accept(String entryName, byte[] buffer, int length);
+    }
+
+    // Internal callback. If the buffer is owned, it belongs to this entry alone and can be handed out as is.
+    private interface RawEntryConsumer {
+        void accept(String entryName, byte[] buffer, int length, boolean owned);
+    }
+
     /**
      * Unzips the given byte array. The resulting map keys are the filenames of the data entries. The values are the
      * unzipped data entries as a byte array.
@@ -58,50 +144,149 @@ public class Zipper {
     public Map<String, byte[]> unzip(@Nonnull byte[] bytes)
             throws IOException, ZipOverflowException, DuplicateZipEntryException {
         final Map<String, byte[]> dataMap = new HashMap<>();
-        try (final ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-                final ZipInputStream zis = new ZipInputStream(bais)) {
+        try (final ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
+            unzip(bais, new EntryConsumer() {
+                @Override
+                public void accept(String entryName, byte[] data) {
+                    dataMap.put(entryName, data);
+                }
+            });
+            return dataMap;
+        }
+    }
+
+    /**
+     * Unzips the given stream, handing each entry to the consumer as soon as it has been read. Only one entry is held
+     * in memory by this method at a time, so callers can process archives without materializing the whole archive.
+     * The same entry count, entry size, compression ratio, and duplicate filename limits apply as for
+     * {@link #unzip(byte[])}. The caller is responsible for closing the input stream.
+     */
+    public void unzip(@Nonnull InputStream inputStream, @Nonnull final EntryConsumer consumer)
+            throws IOException, ZipOverflowException, DuplicateZipEntryException {
+        unzip(inputStream, false, new RawEntryConsumer() {
+            @Override
+            public void accept(String entryName, byte[] buffer, int length, boolean owned) {
+                consumer.accept(entryName, owned && buffer.length == length ? buffer : Arrays.copyOf(buffer,
+                        length));
+            }
+        });
+    }
+
+    /**
+     * Unzips the given stream like {@link #unzip(InputStream, EntryConsumer)}, but hands the consumer a view of each
+     * entry in a reused per-thread buffer, instead of a new array. This avoids allocating and copying entries the
+     * consumer doesn't keep, for example entries it parses and then discards.
+     */
+    public void unzipView(@Nonnull InputStream inputStream, @Nonnull final EntryViewConsumer consumer)
+            throws IOException, ZipOverflowException, DuplicateZipEntryException {
+        unzip(inputStream, true, new RawEntryConsumer() {
+            @Override
+            public void accept(String entryName, byte[] buffer, int length, boolean owned) {
+                consumer.accept(entryName, buffer, length);
+            }
+        });
+    }
+
+    private void unzip(InputStream inputStream, boolean viewOnly, RawEntryConsumer consumer)
+            throws IOException, ZipOverflowException, DuplicateZipEntryException {
+        final Set<String> entryNameSet = new HashSet<>();
+
+        // Take the thread's scratch buffer for the duration, so a consumer that unzips another archive on this thread
+        // gets its own.
+        byte[] scratch = SCRATCH_BUFFER.get();
+        SCRATCH_BUFFER.remove();
+
+        // Shield the caller's stream from being closed, but still close the zip stream so its inflater is released.
+        // The counting stream sees compressed bytes, including headers and up to one read-ahead block, so compression
+        // ratios are slightly underestimated, which is the safe direction.
+        final CountingInputStream countingStream = new CountingInputStream(new CloseShieldInputStream(inputStream));
+        try (final ZipInputStream zis = new ZipInputStream(countingStream)) {
+            long archiveInflatedBytes = 0;
             ZipEntry zipEntry = zis.getNextEntry();
             while (zipEntry != null) {
-                if (dataMap.size() >= maxNumZipEntries) {
+                if (entryNameSet.size() >= maxNumZipEntries) {
                     throw new ZipOverflowException("The number of zip entries is over the max allowed");
                 }
                 final String entryName = zipEntry.getName();
-                if (dataMap.containsKey(entryName)) {
+                if (!entryNameSet.add(entryName)) {
                     throw new DuplicateZipEntryException(String.format("Duplicate filename %s", entryName));
                 }
                 final long entrySize = zipEntry.getSize();
                 if (entrySize > maxZipEntrySize) {
-                    throw new ZipOverflowException("Zip entry size is over the max allowed size. The entry " + entryName +
-                            " has size " + entrySize + ". The max allowed size is" + maxZipEntrySize + ".");
+                    throw new ZipOverflowException("Zip entry size is over the max allowed size. The entry " +
+                            entryName + " has size " + entrySize + ". The max allowed size is" + maxZipEntrySize +
+                            ".");
+                }
+
+                // If the header declares both sizes, we can reject a bomb before inflating anything.
+                if (entrySize >= 0 && zipEntry.getCompressedSize() >= 0) {
+                    checkCompressionRatio(entryName, entrySize, zipEntry.getCompressedSize());
+                }
+
+                // Size hint: read straight into an exact-size array. Otherwise, read into the scratch buffer.
+                byte[] buffer;
+                boolean owned = entrySize >= 0 && !viewOnly;
+                if (owned) {
+                    buffer = new byte[(int) entrySize];
+                } else {
+                    int minCapacity = Math.max(SCRATCH_INITIAL_SIZE, (int) Math.max(entrySize, 0));
+                    if (scratch == null || scratch.length < minCapacity) {
+                        scratch = new byte[minCapacity];
+                    }
+                    buffer = scratch;
+                }
+
+                final long entryCompressedStart = countingStream.getByteCount();
+                int length = 0;
+                while (true) {
+                    if (length == buffer.length) {
+                        if (owned) {
+                            // The entry should end exactly at its declared size.
+                            if (zis.read() < 0) {
+                                break;
+                            }
+                            throw new ZipException("Zip entry " + entryName + " is larger than its declared size " +
+                                    entrySize);
+                        }
+                        // Grow the scratch buffer, up to one byte past the max, so overflows can be detected.
+                        scratch = Arrays.copyOf(scratch, (int) Math.min(scratch.length * 2L, maxZipEntrySize + 1L));
+                        buffer = scratch;
+                    }
+
+                    int read = zis.read(buffer, length, buffer.length - length);
+                    if (read < 0) {
+                        break;
+                    }
+                    length += read;
+                    if (length > maxZipEntrySize) {
+                        throw new ZipOverflowException("Zip entry size is over the max allowed size. The entry " +
+                                entryName + " has size more than " + length + ". The max allowed size is" +
+                                maxZipEntrySize + ".");
+                    }
+                    checkCompressionRatio(entryName, length,
+                            countingStream.getByteCount() - entryCompressedStart);
+                    checkCompressionRatio("(whole archive)", archiveInflatedBytes + length,
+                            countingStream.getByteCount());
                 }
-                byte[] content = toByteArray(entryName, zis);
-                dataMap.put(entryName, content);
+                archiveInflatedBytes += length;
+
+                consumer.accept(entryName, buffer, length, owned);
                 zipEntry = zis.getNextEntry();
             }
-            return dataMap;
+        } finally {
+            if (scratch != null && scratch.length <= SCRATCH_MAX_RETAINED_SIZE) {
+                SCRATCH_BUFFER.set(scratch);
+            }
         }
     }
 
-    private byte[] toByteArray(final String entryName, final InputStream inputStream)
-            throws IOException, ZipOverflowException {
-        int offset = 0;
-        int length = 1024;
-        byte[] bytes = new byte[length];
-        int read = inputStream.read(bytes, offset, length - offset);
-        while (read >= 0) {
-            offset = offset + read;
-            if (offset > maxZipEntrySize) {
-                throw new ZipOverflowException("Zip entry size is over the max allowed size. The entry " + entryName +
-                        " has size more than " + offset + ". The max allowed size is" + maxZipEntrySize + ".");
-            }
-            length = length * 2;
-            byte[] newBytes = new byte[length];
-            System.arraycopy(bytes, 0, newBytes, 0, offset);
-            bytes = newBytes;
-            read = inputStream.read(bytes, offset, length - offset);
+    private void checkCompressionRatio(String entryName, long inflatedBytes, long compressedBytes)
+            throws ZipOverflowException {
+        if (inflatedBytes >= COMPRESSION_RATIO_MIN_BYTES &&
+                inflatedBytes > maxCompressionRatio * Math.max(compressedBytes, 1L)) {
+            throw new ZipOverflowException("Zip entry " + entryName + " is over the max allowed compression ratio. " +
+                    inflatedBytes + " bytes were inflated from " + compressedBytes + " compressed bytes. The max " +
+                    "allowed ratio is " + maxCompressionRatio + ".");
         }
-        byte[] newBytes = new byte[offset];
-        System.arraycopy(bytes, 0, newBytes, 0, offset);
-        return newBytes;
     }
 }
@@ -1,6 +1,8 @@
 package controllers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -160,6 +162,38 @@ public class BaseControllerTest {
         String retrievedIdentifier = controller.getStudyIdentifier();
         assertEquals(STUDY_IDENTIFIER, retrievedIdentifier);
     }
-    
-    
+
+    @Test
+    public void etagMatches() {
+        String etag = "\"abc123\"";
+        assertTrue(BaseController.etagMatches(etag, etag));
+        assertTrue(BaseController.etagMatches("W/" + etag, etag));
+        assertTrue(BaseController.etagMatches("\"other\", " + etag, etag));
+        assertTrue(BaseController.etagMatches("*", etag));
+        assertFalse(BaseController.etagMatches(null, etag));
+        assertFalse(BaseController.etagMatches("", etag));
+        assertFalse(BaseController.etagMatches("\"other\"", etag));
+        assertFalse(BaseController.etagMatches("abc123", etag));
+
+        // Views have weak ETags, which match with or without the W/ prefix.
+        String weakEtag = "W/" + etag;
+        assertTrue(BaseController.etagMatches(weakEtag, weakEtag));
+        assertTrue(BaseController.etagMatches(etag, weakEtag));
+        assertFalse(BaseController.etagMatches("W/\"other\"", weakEtag));
+    }
+
+    @Test
+    public void acceptsGzip() {
+        assertTrue(BaseController.acceptsGzip("gzip"));
+        assertTrue(BaseController.acceptsGzip("deflate, gzip, sdch"));
+        assertTrue(BaseController.acceptsGzip("GZIP;q=0.5"));
+        assertTrue(BaseController.acceptsGzip("*"));
+        assertTrue(BaseController.acceptsGzip("*;q=0, gzip"));
+        assertFalse(BaseController.acceptsGzip(null));
+        assertFalse(BaseController.acceptsGzip(""));
+        assertFalse(BaseController.acceptsGzip("deflate"));
+        assertFalse(BaseController.acceptsGzip("gzip;q=0"));
+        assertFalse(BaseController.acceptsGzip("gzip;q=0.0, *"));
+        assertFalse(BaseController.acceptsGzip("identity, *;q=0"));
+    }
 }
@@ -1,7 +1,10 @@
 package controllers;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyListOf;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
@@ -11,13 +14,17 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.sagebionetworks.bridge.BridgeConstants.BRIDGE_VIEW_EXPIRE_IN_SECONDS;
 
+import java.io.ByteArrayInputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.sagebionetworks.bridge.BridgeUtils;
@@ -38,10 +45,15 @@ import org.sagebionetworks.bridge.models.surveys.TestSurvey;
 import org.sagebionetworks.bridge.services.SurveyService;
 
 import play.mvc.Http;
+import play.mvc.Http.HeaderNames;
+import play.mvc.Result;
+import play.test.Helpers;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 
 /**
  * We know this controller works given the integration tests. Here I'm interested in finding a way 
@@ -56,7 +68,7 @@ public class SurveyControllerTest {
     
     private ViewCache viewCache;
     
-    private Map<String,String> cacheMap;
+    private Map<String,byte[]> cacheMap;
     
     private UserSession session;
 
@@ -69,22 +81,31 @@ public class SurveyControllerTest {
         cacheMap = Maps.newHashMap();
         viewCache = new ViewCache();
         CacheProvider provider = mock(CacheProvider.class);
-        when(provider.getString(anyString())).thenAnswer(new Answer<String>() {
+        when(provider.getBytes(anyString())).thenAnswer(new Answer<byte[]>() {
             @Override
-            public String answer(InvocationOnMock invocation) throws Throwable {
+            public byte[] answer(InvocationOnMock invocation) throws Throwable {
                 String key = invocation.getArgumentAt(0, String.class);
                 return cacheMap.get(key);
             }
         });
+        when(provider.getBytesAndTtl(anyString())).thenAnswer(new Answer<CacheProvider.CachedBytes>() {
+            @Override
+            public CacheProvider.CachedBytes answer(InvocationOnMock invocation) throws Throwable {
+                String key = invocation.getArgumentAt(0, String.class);
+                byte[] value = cacheMap.get(key);
+                return value != null ? new CacheProvider.CachedBytes(value, BRIDGE_VIEW_EXPIRE_IN_SECONDS) : null;
+            }
+        });
+        when(provider.setStringIfAbsent(anyString(), anyString(), anyInt())).thenReturn(true);
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
                 String key = invocation.getArgumentAt(0, String.class);
-                String value = invocation.getArgumentAt(1, String.class);
+                byte[] value = invocation.getArgumentAt(1, byte[].class);
                 cacheMap.put(key, value);
                 return null;
             }
-        }).when(provider).setString(anyString(), anyString());
+        }).when(provider).setBytes(anyString(), any(byte[].class));
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
@@ -93,6 +114,14 @@ public class SurveyControllerTest {
                 return null;
             }
         }).when(provider).removeString(anyString());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                List<?> keys = invocation.getArgumentAt(0, List.class);
+                cacheMap.keySet().removeAll(keys);
+                return null;
+            }
+        }).when(provider).removeStrings(anyListOf(String.class));
         viewCache.setCacheProvider(provider);
         
         controller = spy(new SurveyController());
@@ -222,6 +251,43 @@ public class SurveyControllerTest {
         verifyNoMoreInteractions(service);
     }
     
+    @Test
+    public void publishedSurveyReturnsNotModifiedForMatchingEtag() throws Exception {
+        setContext();
+        when(service.getSurveyMostRecentlyPublishedVersion(any(StudyIdentifier.class), anyString())).thenReturn(getSurvey(false));
+
+        Result result = controller.getSurveyMostRecentlyPublishedVersionForUser("bbb");
+        assertEquals(200, Helpers.status(result));
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(Http.Context.current().response()).setHeader(eq(HeaderNames.ETAG), etag.capture());
+
+        // The client sends the ETag back, and the survey hasn't changed
+        setContext();
+        when(Http.Context.current().request().getHeader(HeaderNames.IF_NONE_MATCH)).thenReturn(etag.getValue());
+        result = controller.getSurveyMostRecentlyPublishedVersionForUser("bbb");
+        assertEquals(304, Helpers.status(result));
+        verify(Http.Context.current().response()).setHeader(HeaderNames.ETAG, etag.getValue());
+
+        // The survey is only loaded once
+        verify(service).getSurveyMostRecentlyPublishedVersion(any(StudyIdentifier.class), eq("bbb"));
+    }
+
+    @Test
+    public void publishedSurveyIsServedPrecompressed() throws Exception {
+        setContext();
+        Survey survey = getSurvey(false);
+        when(service.getSurveyMostRecentlyPublishedVersion(any(StudyIdentifier.class), anyString())).thenReturn(survey);
+        when(Http.Context.current().request().getHeader(HeaderNames.ACCEPT_ENCODING)).thenReturn("deflate, gzip");
+
+        Result result = controller.getSurveyMostRecentlyPublishedVersionForUser("bbb");
+        assertEquals(200, Helpers.status(result));
+        verify(Http.Context.current().response()).setHeader(HeaderNames.CONTENT_ENCODING, "gzip");
+
+        String json = new String(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(
+                Helpers.contentAsBytes(result)))), Charsets.UTF_8);
+        assertEquals(survey.getName(), BridgeObjectMapper.get().readTree(json).get("name").asText());
+    }
+
     @Test
     public void cannotGetSurveyMostRecentlyPublishedVersionForUserFromOtherStudy() throws Exception {
         setContext();
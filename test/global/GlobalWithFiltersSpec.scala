@@ -46,6 +46,19 @@ object GlobalWithFiltersSpec extends PlaySpecification {
     }
   }
 
+  "gzip filter" should {
+    "not gzip a JSON response that is already compressed" in new WithApplication {
+      val compressed = Array[Byte](0x1f, 0x8b.toByte, 1, 2, 3)
+      val jsonAction = GlobalWithFilters.doFilter(Action {
+          Results.Ok(compressed).as("application/json").withHeaders(CONTENT_ENCODING -> "gzip")
+        })
+      val request = FakeRequest().withHeaders(ACCEPT_ENCODING -> "deflate,gzip,sdch")
+      val result = jsonAction(request).run
+      header(CONTENT_ENCODING, result) must beSome("gzip")
+      contentAsBytes(result) must equalTo(compressed)
+    }
+  }
+
   "HTTP" should {
     "redirect HTTP to HTTPS for Heroku" in new WithApplication {
       val uri = "/fakePath?fakeQuery=fake&p=q"
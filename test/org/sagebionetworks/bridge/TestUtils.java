@@ -65,6 +65,7 @@ public class TestUtils {
 
         Http.Context context = mock(Http.Context.class);
         when(context.request()).thenReturn(request);
+        when(context.response()).thenReturn(mock(Http.Response.class));
 
         return context;
     }
@@ -78,6 +79,7 @@ public class TestUtils {
 
         Http.Context context = mock(Http.Context.class);
         when(context.request()).thenReturn(request);
+        when(context.response()).thenReturn(mock(Http.Response.class));
 
         return context;
     }
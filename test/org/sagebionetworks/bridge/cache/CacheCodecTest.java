@@ -0,0 +1,97 @@
+package org.sagebionetworks.bridge.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
+import org.sagebionetworks.bridge.json.BridgeObjectMapper;
+import org.sagebionetworks.bridge.models.accounts.User;
+import org.sagebionetworks.bridge.models.accounts.UserSession;
+import org.sagebionetworks.bridge.models.studies.Study;
+
+public class CacheCodecTest {
+
+    private static final CacheCodec SMILE_CODEC = new CacheCodec(true);
+    private static final CacheCodec JSON_CODEC = new CacheCodec(false);
+
+    @Test
+    public void sessionRoundTrip() throws Exception {
+        UserSession session = makeSession();
+        byte[] bytes = SMILE_CODEC.encode(session);
+        assertEquals(CacheCodec.VERSION_SMILE_1, bytes[0]);
+
+        UserSession decoded = SMILE_CODEC.decode(bytes, UserSession.class);
+        assertEquals("session-token", decoded.getSessionToken());
+        assertEquals("user-id", decoded.getUser().getId());
+        assertEquals("email@example.com", decoded.getUser().getEmail());
+    }
+
+    @Test
+    public void studyRoundTrip() throws Exception {
+        Study study = makeStudy();
+        byte[] bytes = SMILE_CODEC.encode(study);
+
+        Study decoded = DynamoStudy.fromCacheJson(SMILE_CODEC.decodeTree(bytes));
+        assertEquals("test-study", decoded.getIdentifier());
+        assertEquals("Test Study", decoded.getName());
+        assertEquals("test-study_researcher", decoded.getResearcherRole());
+    }
+
+    @Test
+    public void smileIsSmallerThanJson() throws Exception {
+        Study study = makeStudy();
+        assertTrue(SMILE_CODEC.encode(study).length < BridgeObjectMapper.get().writeValueAsBytes(study).length);
+    }
+
+    @Test
+    public void readsLegacyJson() throws Exception {
+        // Written by servers from before the codec
+        byte[] legacyBytes = BridgeObjectMapper.get().writeValueAsBytes(makeSession());
+        assertEquals("session-token", SMILE_CODEC.decode(legacyBytes, UserSession.class).getSessionToken());
+
+        legacyBytes = BridgeObjectMapper.get().writeValueAsBytes(makeStudy());
+        assertEquals("test-study", DynamoStudy.fromCacheJson(SMILE_CODEC.decodeTree(legacyBytes)).getIdentifier());
+    }
+
+    @Test
+    public void jsonCodecWritesJsonText() throws Exception {
+        byte[] bytes = JSON_CODEC.encode(makeSession());
+        assertEquals('{', bytes[0]);
+
+        // And the Smile codec reads it, and vice versa
+        assertEquals("session-token", SMILE_CODEC.decode(bytes, UserSession.class).getSessionToken());
+        assertEquals("session-token", JSON_CODEC.decode(SMILE_CODEC.encode(makeSession()), UserSession.class)
+                .getSessionToken());
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownVersion() throws Exception {
+        SMILE_CODEC.decode(new byte[] { 7, 1, 2, 3 }, UserSession.class);
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyValue() throws Exception {
+        SMILE_CODEC.decode(new byte[0], UserSession.class);
+    }
+
+    private static UserSession makeSession() {
+        User user = new User();
+        user.setId("user-id");
+        user.setEmail("email@example.com");
+        UserSession session = new UserSession();
+        session.setSessionToken("session-token");
+        session.setUser(user);
+        return session;
+    }
+
+    private static Study makeStudy() {
+        Study study = new DynamoStudy();
+        study.setIdentifier("test-study");
+        study.setName("Test Study");
+        study.setResearcherRole("test-study_researcher");
+        return study;
+    }
+}
@@ -3,21 +3,35 @@ package org.sagebionetworks.bridge.cache;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sagebionetworks.bridge.BridgeConstants;
 import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
 import org.sagebionetworks.bridge.json.BridgeObjectMapper;
 import org.sagebionetworks.bridge.models.accounts.User;
 import org.sagebionetworks.bridge.models.accounts.UserSession;
 import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
 import org.sagebionetworks.bridge.redis.JedisStringOps;
 import org.sagebionetworks.bridge.redis.RedisKey;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
 public class CacheProviderTest {
@@ -76,6 +90,137 @@ public class CacheProviderTest {
     }
     
     
+    @Test
+    public void userSessionIsFetchedAndTouchedInOneCall() throws Exception {
+        User user = new User();
+        user.setId("id");
+        UserSession session = new UserSession();
+        session.setUser(user);
+        String redisKey = RedisKey.SESSION.getRedisKey("session-key");
+
+        JedisStringOps mockStringOps = mock(JedisStringOps.class);
+        // Sessions written as JSON text by older servers can still be read
+        when(mockStringOps.getAndTouchBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS,
+                BridgeConstants.BRIDGE_SESSION_REFRESH_BELOW_SECONDS)).thenReturn(
+                BridgeObjectMapper.get().writeValueAsBytes(session));
+        cacheProvider.setStringOps(mockStringOps);
+
+        UserSession cachedSession = cacheProvider.getUserSession("session-key");
+        assertEquals("id", cachedSession.getUser().getId());
+        verify(mockStringOps, never()).get(redisKey);
+        verify(mockStringOps, never()).expire(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS);
+    }
+
+    @Test
+    public void studyIsCachedLocally() throws Exception {
+        Study study = new DynamoStudy();
+        study.setIdentifier("test");
+        study.setName("This is a test study");
+        String redisKey = RedisKey.STUDY.getRedisKey("test");
+
+        JedisStringOps mockStringOps = mock(JedisStringOps.class);
+        when(mockStringOps.getAndTouchBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS,
+                BridgeConstants.BRIDGE_SESSION_REFRESH_BELOW_SECONDS)).thenReturn(new CacheCodec(true).encode(study));
+        cacheProvider.setStringOps(mockStringOps);
+
+        Study cachedStudy = cacheProvider.getStudy("test");
+        assertEquals("This is a test study", cachedStudy.getName());
+        assertEquals(cachedStudy, cacheProvider.getStudy("test"));
+
+        // Second call doesn't go to Redis
+        verify(mockStringOps, times(1)).getAndTouchBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS,
+                BridgeConstants.BRIDGE_SESSION_REFRESH_BELOW_SECONDS);
+    }
+
+    @Test
+    public void setAndRemoveStudyUpdateLocalCache() {
+        Study study = new DynamoStudy();
+        study.setIdentifier("test");
+        study.setName("This is a test study");
+
+        cacheProvider.setStudy(study);
+        assertEquals(study, cacheProvider.getStudy("test"));
+
+        cacheProvider.removeStudy("test");
+        assertNull(cacheProvider.getStudy("test"));
+    }
+
+    @Test
+    public void cachedStudyIsNotShared() {
+        Study study = new DynamoStudy();
+        study.setIdentifier("test");
+        study.setName("This is a test study");
+        study.getUserProfileAttributes().add("attr");
+        cacheProvider.setStudy(study);
+
+        // Changes to the study we set, or to studies we get, don't leak into the cache.
+        study.setName("Changed by caller");
+        Study cachedStudy = cacheProvider.getStudy("test");
+        assertNotSame(cachedStudy, cacheProvider.getStudy("test"));
+        cachedStudy.setName("Changed by another request");
+        cachedStudy.getUserProfileAttributes().add("other-attr");
+
+        Study otherStudy = cacheProvider.getStudy("test");
+        assertEquals("This is a test study", otherStudy.getName());
+        assertEquals(1, otherStudy.getUserProfileAttributes().size());
+    }
+
+    @Test
+    public void readThatRacesInvalidationIsNotCached() throws Exception {
+        Study study = new DynamoStudy();
+        study.setIdentifier("test");
+        study.setName("Old name");
+        final String redisKey = RedisKey.STUDY.getRedisKey("test");
+
+        final byte[] studyBytes = new CacheCodec(true).encode(study);
+        final CacheInvalidationBus bus = new CacheInvalidationBus();
+        bus.setJedisStringOps(mock(JedisStringOps.class));
+        JedisStringOps mockStringOps = mock(JedisStringOps.class);
+        when(mockStringOps.getAndTouchBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS,
+                BridgeConstants.BRIDGE_SESSION_REFRESH_BELOW_SECONDS)).thenAnswer(new Answer<byte[]>() {
+                    @Override
+                    public byte[] answer(InvocationOnMock invocation) {
+                        bus.invalidate(CacheProvider.STUDY_CACHE_NAME, redisKey);
+                        return studyBytes;
+                    }
+                });
+        cacheProvider.setStringOps(mockStringOps);
+        cacheProvider.setCacheInvalidationBus(bus);
+
+        // Another server updates the study while we're reading it, so we don't keep what we read.
+        assertEquals("Old name", cacheProvider.getStudy("test").getName());
+        cacheProvider.getStudy("test");
+        verify(mockStringOps, times(2)).getAndTouchBytes(redisKey, BridgeConstants.BRIDGE_SESSION_EXPIRE_IN_SECONDS,
+                BridgeConstants.BRIDGE_SESSION_REFRESH_BELOW_SECONDS);
+    }
+
+    @Test
+    public void removeStringIfEquals() {
+        JedisStringOps mockStringOps = mock(JedisStringOps.class);
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of("lease-key")), eq(ImmutableList.of("my-token"))))
+                .thenReturn(1L);
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of("lease-key")), eq(ImmutableList.of("other-token"))))
+                .thenReturn(0L);
+        cacheProvider.setStringOps(mockStringOps);
+
+        assertTrue(cacheProvider.removeStringIfEquals("lease-key", "my-token"));
+        assertFalse(cacheProvider.removeStringIfEquals("lease-key", "other-token"));
+        verify(mockStringOps, never()).delete("lease-key");
+    }
+
+    @Test
+    public void setAndRemoveStudyInvalidateOtherServers() {
+        CacheInvalidationBus mockBus = mock(CacheInvalidationBus.class);
+        cacheProvider.setCacheInvalidationBus(mockBus);
+        String redisKey = RedisKey.STUDY.getRedisKey("test");
+
+        Study study = new DynamoStudy();
+        study.setIdentifier("test");
+        cacheProvider.setStudy(study);
+        cacheProvider.removeStudy("test");
+        verify(mockBus, times(2)).invalidate(CacheProvider.STUDY_CACHE_NAME, redisKey);
+    }
+
     private JedisStringOps getSimpleStringOps() {
         return new JedisStringOps() {
             private Map<String,String> map = Maps.newHashMap();
@@ -93,10 +238,19 @@ public class CacheProviderTest {
             public String get(final String key) {
                 return map.get(key);
             }
+            // Binary values are kept as Latin-1 strings, which round-trip every byte
+            public String setexBytes(final String key, final int seconds, final byte[] value) {
+                map.put(key, new String(value, StandardCharsets.ISO_8859_1));
+                return "OK";
+            }
+            public byte[] getAndTouchBytes(final String key, final int seconds, final int refreshBelowSeconds) {
+                String value = map.get(key);
+                return value != null ? value.getBytes(StandardCharsets.ISO_8859_1) : null;
+            }
             public Long delete(final String key) {
                 map.remove(key);
                 return 1L;
             }
         };   
-    }    
+    }
 }
@@ -1,22 +1,54 @@
 package org.sagebionetworks.bridge.cache;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sagebionetworks.bridge.BridgeConstants;
 import org.sagebionetworks.bridge.cache.ViewCache.ViewCacheKey;
 import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
 import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
 import org.sagebionetworks.bridge.json.BridgeObjectMapper;
 import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
+import org.sagebionetworks.bridge.redis.RedisKey;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class ViewCacheTest {
     
@@ -36,8 +68,7 @@ public class ViewCacheTest {
     public void nothingWasCached() throws Exception {
         ViewCache cache = new ViewCache();
         ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
-        CacheProvider provider = mock(CacheProvider.class);
-        when(provider.getString(cacheKey.getKey())).thenReturn(null);
+        CacheProvider provider = mockCacheProvider();
         cache.setCacheProvider(provider);
         
         String json = cache.getView(cacheKey, new Supplier<Study>() {
@@ -57,8 +88,7 @@ public class ViewCacheTest {
         ViewCache cache = new ViewCache();
         ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
         
-        CacheProvider provider = mock(CacheProvider.class);
-        when(provider.getString(cacheKey.getKey())).thenReturn(null);
+        CacheProvider provider = mockCacheProvider();
         cache.setCacheProvider(provider);
         
         // It doesn't get wrapped or transformed or anything
@@ -81,8 +111,8 @@ public class ViewCacheTest {
         
         ViewCache cache = new ViewCache();
         ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
-        CacheProvider provider = mock(CacheProvider.class);
-        when(provider.getString(cacheKey.getKey())).thenReturn(originalStudyJson);
+        CacheProvider provider = mockCacheProvider();
+        when(provider.getBytesAndTtl(cacheKey.getKey())).thenReturn(fresh(originalStudyJson));
         cache.setCacheProvider(provider);
         
         String json = cache.getView(cacheKey, new Supplier<Study>() {
@@ -117,6 +147,357 @@ public class ViewCacheTest {
         assertEquals("Test Study 2", foundStudy.getName());
     }
     
+    @Test
+    public void viewIsCachedLocally() throws Exception {
+        String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mockCacheProvider();
+        when(provider.getBytesAndTtl(cacheKey.getKey())).thenReturn(fresh(originalStudyJson));
+        cache.setCacheProvider(provider);
+
+        Supplier<Study> failSupplier = new Supplier<Study>() {
+            @Override public Study get() {
+                fail("This should not be called");
+                return null;
+            }
+        };
+        assertEquals(originalStudyJson, cache.getView(cacheKey, failSupplier));
+        assertEquals(originalStudyJson, cache.getView(cacheKey, failSupplier));
+
+        // Second call doesn't go to Redis
+        verify(provider, times(1)).getBytesAndTtl(cacheKey.getKey());
+    }
+
+    @Test
+    public void readThatRacesRemoveIsNotCached() throws Exception {
+        final String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        final ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        final CacheInvalidationBus bus = new CacheInvalidationBus();
+        bus.setJedisStringOps(mock(JedisStringOps.class));
+        CacheProvider provider = mockCacheProvider();
+        when(provider.getBytesAndTtl(cacheKey.getKey())).thenAnswer(new Answer<CacheProvider.CachedBytes>() {
+            @Override
+            public CacheProvider.CachedBytes answer(InvocationOnMock invocation) {
+                // Another server removes the view while we're reading it.
+                bus.invalidate(ViewCache.CACHE_NAME, cacheKey.getKey());
+                return fresh(originalStudyJson);
+            }
+        });
+        cache.setCacheProvider(provider);
+        cache.setCacheInvalidationBus(bus);
+
+        Supplier<Study> failSupplier = new Supplier<Study>() {
+            @Override public Study get() {
+                fail("This should not be called");
+                return null;
+            }
+        };
+        assertEquals(originalStudyJson, cache.getView(cacheKey, failSupplier));
+
+        // What we read wasn't kept, so the next call goes back to Redis.
+        cache.getView(cacheKey, failSupplier);
+        verify(provider, times(2)).getBytesAndTtl(cacheKey.getKey());
+    }
+
+    @Test
+    public void cachedViewHasContentHashEtag() throws Exception {
+        String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mockCacheProvider();
+        when(provider.getBytesAndTtl(cacheKey.getKey())).thenReturn(fresh(originalStudyJson));
+        cache.setCacheProvider(provider);
+
+        Supplier<Study> failSupplier = new Supplier<Study>() {
+            @Override public Study get() {
+                fail("This should not be called");
+                return null;
+            }
+        };
+        ViewCache.CachedView view = cache.getCachedView(cacheKey, failSupplier);
+        assertEquals(originalStudyJson, view.getJson());
+        assertEquals("W/\"" + Hashing.md5().hashString(originalStudyJson, Charsets.UTF_8).toString() + "\"",
+                view.getEtag());
+
+        // The same JSON on another server has the same ETag
+        ViewCache otherCache = new ViewCache();
+        otherCache.setCacheProvider(provider);
+        assertEquals(view.getEtag(), otherCache.getCachedView(cacheKey, failSupplier).getEtag());
+    }
+
+    @Test
+    public void viewIsStoredGzipped() throws Exception {
+        ViewCache cache = new ViewCache();
+        cache.setGzipEnabled(true);
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mockCacheProvider();
+        cache.setCacheProvider(provider);
+
+        ViewCache.CachedView view = cache.getCachedView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                return study;
+            }
+        });
+        ArgumentCaptor<byte[]> storedBytes = ArgumentCaptor.forClass(byte[].class);
+        verify(provider).setBytes(eq(cacheKey.getKey()), storedBytes.capture());
+        assertArrayEquals(view.getGzippedJson(), storedBytes.getValue());
+        assertEquals(view.getJson(), new String(ByteStreams.toByteArray(new GZIPInputStream(
+                new ByteArrayInputStream(storedBytes.getValue()))), Charsets.UTF_8));
+        assertTrue(storedBytes.getValue().length < view.getJson().getBytes(Charsets.UTF_8).length);
+
+        // Another server reads it back
+        ViewCache.CachedView readView = ViewCache.CachedView.fromRedis(storedBytes.getValue());
+        assertEquals(view.getJson(), readView.getJson());
+        assertEquals(view.getEtag(), readView.getEtag());
+    }
+
+    @Test
+    public void viewIsStoredAsPlainJsonWhenGzipIsOff() throws Exception {
+        ViewCache cache = new ViewCache();
+        cache.setGzipEnabled(false);
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mockCacheProvider();
+        cache.setCacheProvider(provider);
+
+        ViewCache.CachedView view = cache.getCachedView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                return study;
+            }
+        });
+        verify(provider).setBytes(cacheKey.getKey(), view.getJson().getBytes(Charsets.UTF_8));
+
+        // Served gzipped all the same
+        assertEquals(view.getJson(), new String(ByteStreams.toByteArray(new GZIPInputStream(
+                new ByteArrayInputStream(view.getGzippedJson()))), Charsets.UTF_8));
+    }
+
+    @Test
+    public void removeViewInvalidatesLocalCache() throws Exception {
+        final String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        final ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        cache.setCacheProvider(getSimpleCacheProvider(cacheKey.getKey(), originalStudyJson));
+
+        // Load the view into the local cache, then remove it
+        assertEquals(originalStudyJson, cache.getView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                fail("This should not be called");
+                return null;
+            }
+        }));
+        cache.removeView(cacheKey);
+
+        String json = cache.getView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                Study study = new DynamoStudy();
+                study.setName("Test Study 2");
+                return study;
+            }
+        });
+        Study foundStudy = DynamoStudy.fromJson(mapper.readTree(json));
+        assertEquals("Test Study 2", foundStudy.getName());
+    }
+
+    @Test
+    public void removeViewInvalidatesOtherServers() throws Exception {
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mock(CacheProvider.class);
+        cache.setCacheProvider(provider);
+        CacheInvalidationBus mockBus = mock(CacheInvalidationBus.class);
+        cache.setCacheInvalidationBus(mockBus);
+
+        cache.removeView(cacheKey);
+        verify(provider).removeString(cacheKey.getKey());
+        verify(mockBus).invalidate(ViewCache.CACHE_NAME, cacheKey.getKey());
+    }
+
+    @Test
+    public void removeViewsDeletesInOneCommand() throws Exception {
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey1 = cache.getCacheKey(Study.class, "study1");
+        ViewCacheKey<Study> cacheKey2 = cache.getCacheKey(Study.class, "study2");
+        CacheProvider provider = mock(CacheProvider.class);
+        cache.setCacheProvider(provider);
+        CacheInvalidationBus mockBus = mock(CacheInvalidationBus.class);
+        cache.setCacheInvalidationBus(mockBus);
+
+        cache.removeViews(ImmutableList.<ViewCacheKey<?>>of(cacheKey1, cacheKey2));
+        verify(provider).removeStrings(ImmutableList.of(cacheKey1.getKey(), cacheKey2.getKey()));
+        verify(provider, never()).removeString(anyString());
+        verify(mockBus).invalidate(ViewCache.CACHE_NAME, cacheKey1.getKey());
+        verify(mockBus).invalidate(ViewCache.CACHE_NAME, cacheKey2.getKey());
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        final ViewCache cache = new ViewCache();
+        final ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        cache.setCacheProvider(mockCacheProvider());
+
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch finishLoad = new CountDownLatch(1);
+        final Supplier<Study> supplier = new Supplier<Study>() {
+            @Override public Study get() {
+                loadCount.incrementAndGet();
+                loadStarted.countDown();
+                Uninterruptibles.awaitUninterruptibly(finishLoad);
+                return study;
+            }
+        };
+        Callable<String> getView = new Callable<String>() {
+            @Override public String call() {
+                return cache.getView(cacheKey, supplier);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(getView);
+            loadStarted.await();
+            Future<String> second = executor.submit(getView);
+            // Give the second request time to join the first one's load
+            Thread.sleep(200);
+            finishLoad.countDown();
+
+            assertEquals(first.get(), second.get());
+            assertEquals(1, loadCount.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void missWaitsForServerHoldingLease() throws Exception {
+        String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mock(CacheProvider.class);
+        when(provider.setStringIfAbsent(anyString(), anyString(), anyInt())).thenReturn(false);
+        when(provider.getBytes(cacheKey.getKey())).thenReturn(null, gzip(originalStudyJson));
+        cache.setCacheProvider(provider);
+        cache.setLeaseWaitMillis(5000);
+
+        assertEquals(originalStudyJson, cache.getView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                fail("This should not be called");
+                return null;
+            }
+        }));
+        verify(provider, never()).setBytes(anyString(), any(byte[].class));
+        verify(provider, never()).removeStringIfEquals(anyString(), anyString());
+    }
+
+    @Test
+    public void missLoadsViewWhenServerHoldingLeaseIsSlow() throws Exception {
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mock(CacheProvider.class);
+        when(provider.setStringIfAbsent(anyString(), anyString(), anyInt())).thenReturn(false);
+        cache.setCacheProvider(provider);
+        cache.setLeaseWaitMillis(100);
+
+        String json = cache.getView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                return study;
+            }
+        });
+        assertEquals("Test Study", DynamoStudy.fromJson(mapper.readTree(json)).getName());
+        ArgumentCaptor<byte[]> storedBytes = ArgumentCaptor.forClass(byte[].class);
+        verify(provider).setBytes(eq(cacheKey.getKey()), storedBytes.capture());
+        assertEquals(json, ViewCache.CachedView.fromRedis(storedBytes.getValue()).getJson());
+        // We never held the lease, so we don't release it
+        verify(provider, never()).removeStringIfEquals(anyString(), anyString());
+    }
+
+    @Test
+    public void leaseIsReleasedWhenLoadFails() {
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mockCacheProvider();
+        cache.setCacheProvider(provider);
+
+        try {
+            cache.getView(cacheKey, new Supplier<Study>() {
+                @Override public Study get() {
+                    throw new BridgeServiceException("There has been a problem retrieving the study");
+                }
+            });
+            fail("This should have thrown an exception");
+        } catch(BridgeServiceException e) {
+            // expected
+        }
+        verifyLeaseReleased(provider, cacheKey);
+    }
+
+    @Test
+    public void staleViewIsServedAndRefreshed() throws Exception {
+        String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mockCacheProvider();
+        when(provider.getBytesAndTtl(cacheKey.getKey())).thenReturn(stale(originalStudyJson));
+        cache.setCacheProvider(provider);
+        // The default executor refreshes on the calling thread
+
+        String json = cache.getView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                Study study = new DynamoStudy();
+                study.setName("Test Study 2");
+                return study;
+            }
+        });
+        assertEquals(originalStudyJson, json);
+
+        ArgumentCaptor<byte[]> refreshedBytes = ArgumentCaptor.forClass(byte[].class);
+        verify(provider).setBytes(eq(cacheKey.getKey()), refreshedBytes.capture());
+        String refreshedJson = ViewCache.CachedView.fromRedis(refreshedBytes.getValue()).getJson();
+        assertEquals("Test Study 2", DynamoStudy.fromJson(mapper.readTree(refreshedJson)).getName());
+        verifyLeaseReleased(provider, cacheKey);
+    }
+
+    @Test
+    public void staleViewIsNotRefreshedWhenAnotherServerHoldsLease() throws Exception {
+        String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mock(CacheProvider.class);
+        when(provider.getBytesAndTtl(cacheKey.getKey())).thenReturn(stale(originalStudyJson));
+        when(provider.setStringIfAbsent(anyString(), anyString(), anyInt())).thenReturn(false);
+        cache.setCacheProvider(provider);
+
+        assertEquals(originalStudyJson, cache.getView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                fail("This should not be called");
+                return null;
+            }
+        }));
+        verify(provider, never()).setBytes(anyString(), any(byte[].class));
+    }
+
+    @Test
+    public void staleViewIsRefreshedInBackground() throws Exception {
+        String originalStudyJson = mapper.writeValueAsString(study);
+        ViewCache cache = new ViewCache();
+        ViewCacheKey<Study> cacheKey = cache.getCacheKey(Study.class, study.getIdentifier());
+        CacheProvider provider = mockCacheProvider();
+        when(provider.getBytesAndTtl(cacheKey.getKey())).thenReturn(stale(originalStudyJson));
+        cache.setCacheProvider(provider);
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        cache.setExecutorService(mockExecutor);
+
+        assertEquals(originalStudyJson, cache.getView(cacheKey, new Supplier<Study>() {
+            @Override public Study get() {
+                fail("This should not be called on the request thread");
+                return null;
+            }
+        }));
+        verify(mockExecutor).execute(any(Runnable.class));
+    }
+
     @Test
     public void getCacheKeyWorks() {
         ViewCache cache = new ViewCache();
@@ -127,20 +508,69 @@ public class ViewCacheTest {
     
     private CacheProvider getSimpleCacheProvider(final String cacheKey, final String originalStudyJson) {
         return new CacheProvider() {
-            private Map<String,String> map = Maps.newHashMap();
+            private Map<String,byte[]> map = Maps.newHashMap();
             {
-                map.put(cacheKey, originalStudyJson);
+                map.put(cacheKey, originalStudyJson.getBytes(Charsets.UTF_8));
             }
-            public String getString(String cacheKey) {
+            public byte[] getBytes(String cacheKey) {
                 return map.get(cacheKey);
             }
-            public void setString(String cacheKey, String value) {
+            public void setBytes(String cacheKey, byte[] value) {
                 map.put(cacheKey, value);
             }
             public void removeString(String cacheKey) {
                 map.remove(cacheKey);
             }
+            public CachedBytes getBytesAndTtl(String cacheKey) {
+                byte[] value = map.get(cacheKey);
+                return value != null ? new CachedBytes(value, BridgeConstants.BRIDGE_VIEW_EXPIRE_IN_SECONDS) : null;
+            }
+            public boolean setStringIfAbsent(String cacheKey, String value, int expireInSeconds) {
+                return map.put(cacheKey, value.getBytes(Charsets.UTF_8)) == null;
+            }
+            public boolean removeStringIfEquals(String cacheKey, String value) {
+                byte[] current = map.get(cacheKey);
+                if (current != null && value.equals(new String(current, Charsets.UTF_8))) {
+                    map.remove(cacheKey);
+                    return true;
+                }
+                return false;
+            }
         };   
     }
+
+    // The lease is released with the same token it was taken with.
+    private static void verifyLeaseReleased(CacheProvider provider, ViewCacheKey<?> cacheKey) {
+        String leaseKey = RedisKey.VIEW_LEASE.getRedisKey(cacheKey.getKey());
+        ArgumentCaptor<String> tokenCaptor = ArgumentCaptor.forClass(String.class);
+        verify(provider).setStringIfAbsent(eq(leaseKey), tokenCaptor.capture(), anyInt());
+        verify(provider).removeStringIfEquals(leaseKey, tokenCaptor.getValue());
+        verify(provider, never()).removeString(leaseKey);
+    }
+
+    private static CacheProvider mockCacheProvider() {
+        CacheProvider provider = mock(CacheProvider.class);
+        when(provider.setStringIfAbsent(anyString(), anyString(), anyInt())).thenReturn(true);
+        return provider;
+    }
+
+    // Views written as plain JSON, by older servers
+    private static CacheProvider.CachedBytes fresh(String json) {
+        return new CacheProvider.CachedBytes(json.getBytes(Charsets.UTF_8),
+                BridgeConstants.BRIDGE_VIEW_EXPIRE_IN_SECONDS);
+    }
+
+    private static CacheProvider.CachedBytes stale(String json) {
+        return new CacheProvider.CachedBytes(json.getBytes(Charsets.UTF_8),
+                BridgeConstants.BRIDGE_VIEW_REFRESH_BELOW_SECONDS - 1);
+    }
+
+    private static byte[] gzip(String json) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream)) {
+            gzipStream.write(json.getBytes(Charsets.UTF_8));
+        }
+        return byteStream.toByteArray();
+    }
     
 }
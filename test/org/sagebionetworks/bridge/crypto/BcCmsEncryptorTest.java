@@ -4,10 +4,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.security.KeyPair;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.cms.CMSException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -45,6 +49,32 @@ public class BcCmsEncryptorTest {
         assertEquals(text, new String(decrypted, "UTF-8"));
     }
 
+    @Test
+    public void testDecryptStream() throws Exception {
+        String text = "some streamed text";
+        byte[] encrypted = encryptor.encrypt(text.getBytes("UTF-8"));
+        try (InputStream decryptedStream = decryptor.decrypt(new ByteArrayInputStream(encrypted))) {
+            byte[] decrypted = ByteStreams.toByteArray(decryptedStream);
+            assertEquals(text, new String(decrypted, "UTF-8"));
+        }
+    }
+
+    @Test(expected = CMSException.class)
+    public void testDecryptWrongRecipient() throws Exception {
+        KeyPair otherKeyPair = KeyPairFactory.newRsa2048();
+        X509Certificate otherCert = new BcCertificateFactory().newCertificate(otherKeyPair, "*");
+        CmsEncryptor otherDecryptor = new BcCmsEncryptor(otherCert, otherKeyPair.getPrivate());
+        otherDecryptor.decrypt(encryptor.encrypt("secret text".getBytes("UTF-8")));
+    }
+
+    @Test(expected = CMSException.class)
+    public void testDecryptStreamWrongRecipient() throws Exception {
+        KeyPair otherKeyPair = KeyPairFactory.newRsa2048();
+        X509Certificate otherCert = new BcCertificateFactory().newCertificate(otherKeyPair, "*");
+        CmsEncryptor otherDecryptor = new BcCmsEncryptor(otherCert, otherKeyPair.getPrivate());
+        otherDecryptor.decrypt(new ByteArrayInputStream(encryptor.encrypt("secret text".getBytes("UTF-8"))));
+    }
+
     @Test
     public void testEncryptRandomized() throws Exception {
         String text = "some even more text";
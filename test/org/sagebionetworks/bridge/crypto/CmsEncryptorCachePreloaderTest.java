@@ -0,0 +1,89 @@
+package org.sagebionetworks.bridge.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
+import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.services.StudyService;
+
+public class CmsEncryptorCachePreloaderTest {
+    private LoadingCache<String, CmsEncryptor> mockCache;
+    private StudyService mockStudyService;
+    private CmsEncryptorCachePreloader preloader;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        mockCache = mock(LoadingCache.class);
+        mockStudyService = mock(StudyService.class);
+
+        // Run loads on the calling thread, so the test doesn't have to wait.
+        preloader = new CmsEncryptorCachePreloader(mockCache, MoreExecutors.sameThreadExecutor());
+        preloader.setStudyService(mockStudyService);
+    }
+
+    @Test
+    public void warmsAllStudies() throws Exception {
+        when(mockStudyService.getStudies()).thenReturn(ImmutableList.of(makeStudy("study-a"),
+                makeStudy("study-b")));
+
+        preloader.start();
+        verify(mockCache).get("study-a");
+        verify(mockCache).get("study-b");
+        assertEquals(2, preloader.getStudyCount());
+        assertEquals(2, preloader.getLoadedCount());
+        assertEquals(0, preloader.getFailedCount());
+        assertTrue(preloader.getDurationMillis() >= 0);
+    }
+
+    @Test
+    public void failedStudyDoesNotStopOthers() throws Exception {
+        when(mockStudyService.getStudies()).thenReturn(ImmutableList.of(makeStudy("study-a"),
+                makeStudy("study-b")));
+        when(mockCache.get("study-a")).thenThrow(new ExecutionException(new RuntimeException("S3 is down")));
+
+        preloader.start();
+        verify(mockCache).get("study-b");
+        assertEquals(1, preloader.getLoadedCount());
+        assertEquals(1, preloader.getFailedCount());
+        assertTrue(preloader.getDurationMillis() >= 0);
+    }
+
+    @Test
+    public void listingFails() throws Exception {
+        when(mockStudyService.getStudies()).thenThrow(new RuntimeException("DDB is down"));
+
+        preloader.start();
+        verifyZeroInteractions(mockCache);
+        assertEquals(0, preloader.getStudyCount());
+        assertEquals(-1, preloader.getDurationMillis());
+    }
+
+    @Test
+    public void noStudies() {
+        when(mockStudyService.getStudies()).thenReturn(ImmutableList.<Study>of());
+
+        preloader.start();
+        assertEquals(0, preloader.getStudyCount());
+        assertTrue(preloader.getDurationMillis() >= 0);
+    }
+
+    private static Study makeStudy(String studyId) {
+        Study study = new DynamoStudy();
+        study.setIdentifier(studyId);
+        return study;
+    }
+}
@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.dynamodb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Iterator;
@@ -77,6 +78,12 @@ public class DynamoBackfillDaoTest {
         backfillDao.updateTaskStatus(task.getId(), BackfillStatus.COMPLETED);
         task = backfillDao.getTask(task.getId());
         assertEquals(BackfillStatus.COMPLETED.name(), task.getStatus());
+        // Latest task by status
+        BackfillTask task2 = tasks.get(1);
+        backfillDao.updateTaskStatus(task2.getId(), BackfillStatus.IN_PROCESS);
+        assertEquals(task.getId(), backfillDao.getLatestTask("name", BackfillStatus.COMPLETED).getId());
+        assertEquals(task2.getId(), backfillDao.getLatestTask("name", BackfillStatus.IN_PROCESS).getId());
+        assertNull(backfillDao.getLatestTask("name", BackfillStatus.FAILED));
     }
 
     @Test
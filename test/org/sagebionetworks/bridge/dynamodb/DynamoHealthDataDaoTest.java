@@ -13,6 +13,7 @@ import java.util.List;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
@@ -125,4 +126,28 @@ public class DynamoHealthDataDaoTest {
         List<HealthDataRecord> retVal = dao.getRecordsForUploadDate("2015-02-11");
         assertSame(mockResult, retVal);
     }
+
+    @Test
+    public void getRecordsForUpload() {
+        // mock index helper - one of the user's records is for a different upload
+        List<HealthDataRecord> mockResult = ImmutableList.<HealthDataRecord>of(
+                makeRecord("record-1", "test-upload"), makeRecord("record-2", "other-upload"));
+        DynamoIndexHelper mockIndex = mock(DynamoIndexHelper.class);
+        when(mockIndex.query(HealthDataRecord.class, "healthCode", "test health code")).thenReturn(mockResult);
+
+        DynamoHealthDataDao dao = new DynamoHealthDataDao();
+        dao.setHealthCodeIndex(mockIndex);
+
+        // execute and validate
+        List<HealthDataRecord> retVal = dao.getRecordsForUpload("test health code", "test-upload");
+        assertEquals(1, retVal.size());
+        assertEquals("record-1", retVal.get(0).getId());
+    }
+
+    private static HealthDataRecord makeRecord(String id, String uploadId) {
+        DynamoHealthDataRecord record = new DynamoHealthDataRecord();
+        record.setId(id);
+        record.setUploadId(uploadId);
+        return record;
+    }
 }
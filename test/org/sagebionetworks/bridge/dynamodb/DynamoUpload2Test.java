@@ -1,13 +1,17 @@
 package org.sagebionetworks.bridge.dynamodb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 
 import com.google.common.collect.ImmutableList;
+import org.joda.time.LocalDate;
 import org.junit.Test;
 
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
+
 public class DynamoUpload2Test {
     @Test
     public void testGetSetValidationMessageList() {
@@ -109,4 +113,38 @@ public class DynamoUpload2Test {
         assertEquals(1, list4.size());
         assertEquals("third message", list4.get(0));
     }
+
+    @Test
+    public void copy() {
+        DynamoUpload2 upload2 = new DynamoUpload2();
+        upload2.setContentLength(42);
+        upload2.setContentMd5("test-md5");
+        upload2.setContentType("application/zip");
+        upload2.setFilename("test-filename");
+        upload2.setHealthCode("test-health-code");
+        upload2.setStatus(UploadStatus.SUCCEEDED);
+        upload2.setUploadDate(new LocalDate(2015, 6, 1));
+        upload2.setUploadId("test-upload");
+        upload2.setValidationMessageList(ImmutableList.of("first message"));
+        upload2.setVersion(7L);
+
+        DynamoUpload2 copy = upload2.copy();
+        assertNotSame(upload2, copy);
+        assertEquals(42, copy.getContentLength());
+        assertEquals("test-md5", copy.getContentMd5());
+        assertEquals("application/zip", copy.getContentType());
+        assertEquals("test-filename", copy.getFilename());
+        assertEquals("test-health-code", copy.getHealthCode());
+        assertEquals(UploadStatus.SUCCEEDED, copy.getStatus());
+        assertEquals(new LocalDate(2015, 6, 1), copy.getUploadDate());
+        assertEquals("test-upload", copy.getUploadId());
+        assertEquals(ImmutableList.of("first message"), copy.getValidationMessageList());
+        assertEquals(7L, copy.getVersion().longValue());
+
+        // changes to the copy don't affect the original
+        copy.appendValidationMessages(ImmutableList.of("second message"));
+        copy.setStatus(UploadStatus.VALIDATION_FAILED);
+        assertEquals(ImmutableList.of("first message"), upload2.getValidationMessageList());
+        assertEquals(UploadStatus.SUCCEEDED, upload2.getStatus());
+    }
 }
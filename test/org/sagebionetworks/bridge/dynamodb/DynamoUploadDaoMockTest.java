@@ -2,9 +2,15 @@ package org.sagebionetworks.bridge.dynamodb;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -17,12 +23,22 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sagebionetworks.bridge.exceptions.NotFoundException;
 import org.sagebionetworks.bridge.models.upload.Upload;
 import org.sagebionetworks.bridge.models.upload.UploadRequest;
 import org.sagebionetworks.bridge.models.upload.UploadStatus;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.PaginatedScanList;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableList;
@@ -57,7 +73,7 @@ public class DynamoUploadDaoMockTest {
         DynamoUpload2 upload = new DynamoUpload2();
         DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
         ArgumentCaptor<DynamoUpload2> arg = ArgumentCaptor.forClass(DynamoUpload2.class);
-        when(mockMapper.load(arg.capture())).thenReturn(upload);
+        when(mockMapper.load(arg.capture(), any(DynamoDBMapperConfig.class))).thenReturn(upload);
 
         // execute
         DynamoUploadDao dao = new DynamoUploadDao();
@@ -74,7 +90,7 @@ public class DynamoUploadDaoMockTest {
         // mock DDB mapper
         DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
         ArgumentCaptor<DynamoUpload2> arg = ArgumentCaptor.forClass(DynamoUpload2.class);
-        when(mockMapper.load(arg.capture())).thenReturn(null);
+        when(mockMapper.load(arg.capture(), any(DynamoDBMapperConfig.class))).thenReturn(null);
 
         // execute
         DynamoUploadDao dao = new DynamoUploadDao();
@@ -93,6 +109,43 @@ public class DynamoUploadDaoMockTest {
         assertEquals("test-get-404", arg.getValue().getUploadId());
     }
 
+    @Test
+    public void getUploadIdsForDateRange() {
+        DynamoUpload2 fooUpload = new DynamoUpload2();
+        fooUpload.setUploadId("foo-upload");
+        DynamoUpload2 barUpload = new DynamoUpload2();
+        barUpload.setUploadId("bar-upload");
+
+        // mock DDB mapper
+        @SuppressWarnings("unchecked")
+        PaginatedScanList<DynamoUpload2> mockScanList = mock(PaginatedScanList.class);
+        when(mockScanList.iterator()).thenReturn(ImmutableList.of(fooUpload, barUpload).iterator());
+
+        DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
+        ArgumentCaptor<DynamoDBScanExpression> scanCaptor = ArgumentCaptor.forClass(DynamoDBScanExpression.class);
+        when(mockMapper.scan(eq(DynamoUpload2.class), any(DynamoDBScanExpression.class))).thenReturn(mockScanList);
+
+        // execute
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mockMapper);
+        List<String> uploadIdList = dao.getUploadIdsForDateRange(new LocalDate(2015, 6, 1), new LocalDate(2015, 6, 7));
+        assertEquals(ImmutableList.of("foo-upload", "bar-upload"), uploadIdList);
+
+        // validate scan filter
+        verify(mockMapper).scan(eq(DynamoUpload2.class), scanCaptor.capture());
+        Condition dateCondition = scanCaptor.getValue().getScanFilter().get("uploadDate");
+        assertEquals(ComparisonOperator.BETWEEN.toString(), dateCondition.getComparisonOperator());
+        assertEquals("2015-06-01", dateCondition.getAttributeValueList().get(0).getS());
+        assertEquals("2015-06-07", dateCondition.getAttributeValueList().get(1).getS());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getUploadIdsForDateRangeEndBeforeStart() {
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mock(DynamoDBMapper.class));
+        dao.getUploadIdsForDateRange(new LocalDate(2015, 6, 7), new LocalDate(2015, 6, 1));
+    }
+
     @Test
     public void uploadComplete() {
         // mock DDB mapper
@@ -101,7 +154,9 @@ public class DynamoUploadDaoMockTest {
         // execute
         DynamoUploadDao dao = new DynamoUploadDao();
         dao.setDdbMapper(mockMapper);
-        dao.uploadComplete(new DynamoUpload2());
+        DynamoUpload2 upload2 = new DynamoUpload2();
+        upload2.setUploadId("test-upload");
+        dao.uploadComplete(upload2);
 
         // Verify our mock. We add status=VALIDATION_IN_PROGRESS and uploadDate on save, so only check for those
         // properties.
@@ -164,6 +219,140 @@ public class DynamoUploadDaoMockTest {
         assertEquals("appended this message", messageList.get(1));
     }
 
+    @Test
+    public void getUploadCached() {
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setUploadId("test-upload");
+        upload.setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+        upload.setVersion(3L);
+
+        DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
+        when(mockMapper.load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class))).thenReturn(upload);
+
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mockMapper);
+        assertSame(upload, dao.getUpload("test-upload"));
+
+        // Second call is served from cache, as a copy, so the caller's changes don't leak into the cache.
+        DynamoUpload2 cachedUpload = (DynamoUpload2) dao.getUpload("test-upload");
+        assertNotSame(upload, cachedUpload);
+        assertEquals(UploadStatus.VALIDATION_IN_PROGRESS, cachedUpload.getStatus());
+        assertEquals(3L, cachedUpload.getVersion().longValue());
+        cachedUpload.setStatus(UploadStatus.SUCCEEDED);
+        assertEquals(UploadStatus.VALIDATION_IN_PROGRESS, dao.getUpload("test-upload").getStatus());
+
+        verify(mockMapper, times(1)).load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class));
+    }
+
+    @Test
+    public void getUploadUsesConsistentRead() {
+        DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
+        ArgumentCaptor<DynamoDBMapperConfig> configCaptor = ArgumentCaptor.forClass(DynamoDBMapperConfig.class);
+        when(mockMapper.load(any(DynamoUpload2.class), configCaptor.capture())).thenReturn(new DynamoUpload2());
+
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mockMapper);
+        dao.getUpload("test-upload");
+        assertEquals(DynamoDBMapperConfig.ConsistentReads.CONSISTENT, configCaptor.getValue().getConsistentReads());
+    }
+
+    @Test
+    public void loadThatRacesInvalidationIsNotCached() {
+        final DynamoUpload2 staleUpload = new DynamoUpload2();
+        staleUpload.setUploadId("test-upload");
+        staleUpload.setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+        DynamoUpload2 freshUpload = new DynamoUpload2();
+        freshUpload.setUploadId("test-upload");
+        freshUpload.setStatus(UploadStatus.SUCCEEDED);
+
+        final CacheInvalidationBus bus = new CacheInvalidationBus();
+        bus.setJedisStringOps(mock(JedisStringOps.class));
+        DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
+        when(mockMapper.load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class))).thenAnswer(
+                new Answer<DynamoUpload2>() {
+                    @Override
+                    public DynamoUpload2 answer(InvocationOnMock invocation) {
+                        // Another server writes the upload while we're loading it.
+                        bus.invalidate(DynamoUploadDao.CACHE_NAME, "test-upload");
+                        return staleUpload;
+                    }
+                }).thenReturn(freshUpload);
+
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mockMapper);
+        dao.setCacheInvalidationBus(bus);
+        assertEquals(UploadStatus.VALIDATION_IN_PROGRESS, dao.getUpload("test-upload").getStatus());
+
+        // The stale upload wasn't cached, so the next get goes back to DynamoDB.
+        assertEquals(UploadStatus.SUCCEEDED, dao.getUpload("test-upload").getStatus());
+        verify(mockMapper, times(2)).load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class));
+    }
+
+    @Test
+    public void createUploadIsCached() {
+        DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mockMapper);
+
+        Upload upload = dao.createUpload(createUploadRequest(), "fakeHealthCode");
+        assertEquals(UploadStatus.REQUESTED, dao.getUpload(upload.getUploadId()).getStatus());
+        verify(mockMapper, never()).load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class));
+    }
+
+    @Test
+    public void writeValidationStatusWritesThroughAndInvalidatesOtherServers() {
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setUploadId("test-upload");
+        upload.setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+
+        DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
+        when(mockMapper.load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class))).thenReturn(upload);
+        CacheInvalidationBus mockBus = mock(CacheInvalidationBus.class);
+
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mockMapper);
+        dao.setCacheInvalidationBus(mockBus);
+
+        // load into cache, then write status through the cache
+        Upload loadedUpload = dao.getUpload("test-upload");
+        dao.writeValidationStatus(loadedUpload, UploadStatus.SUCCEEDED, ImmutableList.of("done"));
+        verify(mockBus).invalidate(DynamoUploadDao.CACHE_NAME, "test-upload");
+
+        // status poll sees the new status without going back to DynamoDB
+        Upload polledUpload = dao.getUpload("test-upload");
+        assertEquals(UploadStatus.SUCCEEDED, polledUpload.getStatus());
+        assertEquals(ImmutableList.of("done"), polledUpload.getValidationMessageList());
+        verify(mockMapper, times(1)).load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class));
+    }
+
+    @Test
+    public void saveFailureInvalidatesCache() {
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setUploadId("test-upload");
+        upload.setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+
+        DynamoDBMapper mockMapper = mock(DynamoDBMapper.class);
+        when(mockMapper.load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class))).thenReturn(upload);
+        doThrow(new ConditionalCheckFailedException("test exception")).when(mockMapper).save(
+                any(DynamoUpload2.class));
+
+        DynamoUploadDao dao = new DynamoUploadDao();
+        dao.setDdbMapper(mockMapper);
+        dao.getUpload("test-upload");
+
+        try {
+            dao.writeValidationStatus(dao.getUpload("test-upload"), UploadStatus.SUCCEEDED,
+                    ImmutableList.of("done"));
+            fail("expected exception");
+        } catch (ConditionalCheckFailedException ex) {
+            // expected exception
+        }
+
+        // next get reloads from DynamoDB
+        dao.getUpload("test-upload");
+        verify(mockMapper, times(2)).load(any(DynamoUpload2.class), any(DynamoDBMapperConfig.class));
+    }
+
     private static UploadRequest createUploadRequest() {
         final String text = "test upload dao";
         ObjectNode node = JsonNodeFactory.instance.objectNode();
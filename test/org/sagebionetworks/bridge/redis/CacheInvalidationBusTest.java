@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.redis;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sagebionetworks.bridge.config.BridgeConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+public class CacheInvalidationBusTest {
+    private CacheInvalidationBus bus;
+    private CacheInvalidationBus.Listener mockListener;
+    private JedisStringOps mockStringOps;
+
+    @Before
+    public void setup() {
+        // No Bridge config, so the subscriber never starts.
+        mockStringOps = mock(JedisStringOps.class);
+        bus = new CacheInvalidationBus();
+        bus.setJedisStringOps(mockStringOps);
+
+        mockListener = mock(CacheInvalidationBus.Listener.class);
+        bus.addListener("test-cache", mockListener);
+    }
+
+    @Test
+    public void invalidateNotifiesLocalAndPublishes() {
+        bus.invalidate("test-cache", "test-key");
+        verify(mockListener).invalidate("test-key");
+
+        ArgumentCaptor<String> messageCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockStringOps).publish(eq(CacheInvalidationBus.CHANNEL), messageCaptor.capture());
+        String message = messageCaptor.getValue();
+        assertTrue(message.startsWith("key|"));
+        assertTrue(message.endsWith("|test-cache|test-key"));
+    }
+
+    @Test
+    public void invalidateAllNotifiesLocalAndPublishes() {
+        bus.invalidateAll("test-cache");
+        verify(mockListener).invalidateAll();
+
+        ArgumentCaptor<String> messageCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockStringOps).publish(eq(CacheInvalidationBus.CHANNEL), messageCaptor.capture());
+        assertTrue(messageCaptor.getValue().startsWith("all|"));
+    }
+
+    @Test
+    public void ownMessagesAreSkipped() {
+        bus.invalidate("test-cache", "test-key");
+        ArgumentCaptor<String> messageCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockStringOps).publish(eq(CacheInvalidationBus.CHANNEL), messageCaptor.capture());
+
+        // Replaying our own message doesn't notify the listener a second time.
+        bus.onMessage(messageCaptor.getValue());
+        verify(mockListener).invalidate("test-key");
+    }
+
+    @Test
+    public void messageFromOtherServer() {
+        bus.onMessage("key|other-node|test-cache|key|with|separators");
+        verify(mockListener).invalidate("key|with|separators");
+    }
+
+    @Test
+    public void invalidateAllFromOtherServer() {
+        bus.onMessage("all|other-node|test-cache|");
+        verify(mockListener).invalidateAll();
+    }
+
+    @Test
+    public void messageForOtherCache() {
+        bus.onMessage("key|other-node|other-cache|test-key");
+        verifyZeroInteractions(mockListener);
+    }
+
+    @Test
+    public void malformedMessage() {
+        bus.onMessage("garbage");
+        verifyZeroInteractions(mockListener);
+    }
+
+    @Test
+    public void publishFailureIsNotFatal() {
+        // mock string ops returns null, same as when Redis is unreachable
+        bus.invalidate("test-cache", "test-key");
+        verify(mockListener).invalidate("test-key");
+        verify(mockListener, never()).invalidateAll();
+        verify(mockStringOps).publish(anyString(), anyString());
+    }
+
+    @Test
+    public void shutdownStopsSubscriber() throws Exception {
+        // Subscribing blocks until the connection is closed, like a real subscriber connection.
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final Jedis mockJedis = mock(Jedis.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                subscribed.countDown();
+                closed.await();
+                return null;
+            }
+        }).when(mockJedis).subscribe(any(JedisPubSub.class), eq(CacheInvalidationBus.CHANNEL));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                closed.countDown();
+                return null;
+            }
+        }).when(mockJedis).close();
+
+        CacheInvalidationBus subscribingBus = new CacheInvalidationBus() {
+            @Override
+            Jedis newSubscriberConnection() {
+                return mockJedis;
+            }
+        };
+        subscribingBus.setBridgeConfig(mock(BridgeConfig.class));
+        subscribingBus.setJedisStringOps(mockStringOps);
+        subscribingBus.addListener("test-cache", mockListener);
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+        assertTrue(subscribingBus.isSubscriberRunning());
+
+        subscribingBus.shutdown();
+        assertFalse(subscribingBus.isSubscriberRunning());
+        verify(mockJedis, atLeastOnce()).close();
+
+        // Listeners added after shutdown don't restart the subscriber.
+        subscribingBus.addListener("other-cache", mock(CacheInvalidationBus.Listener.class));
+        assertFalse(subscribingBus.isSubscriberRunning());
+    }
+}
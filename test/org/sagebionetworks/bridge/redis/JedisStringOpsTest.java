@@ -1,7 +1,14 @@
 package org.sagebionetworks.bridge.redis;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Resource;
 
@@ -10,6 +17,15 @@ import org.junit.runner.RunWith;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
 @ContextConfiguration("classpath:test-context.xml")
 @RunWith(SpringJUnit4ClassRunner.class)
 public class JedisStringOpsTest {
@@ -24,4 +40,90 @@ public class JedisStringOpsTest {
         Thread.sleep(3000);
         assertNull(stringOps.get("testKey"));
     }
+
+    @Test
+    public void getAndTouchBytes() throws Exception {
+        byte[] value = new byte[] { 0x00, (byte) 0xff, 0x7f };
+        assertEquals("OK", stringOps.setexBytes("testTouchKey", 100, value));
+        try {
+            // TTL is above the threshold, so the key isn't touched
+            assertArrayEquals(value, stringOps.getAndTouchBytes("testTouchKey", 1000, 50));
+            assertTrue(stringOps.ttl("testTouchKey") <= 100);
+
+            // TTL is below the threshold, so the key is touched
+            assertArrayEquals(value, stringOps.getAndTouchBytes("testTouchKey", 1000, 500));
+            assertTrue(stringOps.ttl("testTouchKey") > 100);
+        } finally {
+            stringOps.delete("testTouchKey");
+        }
+        assertNull(stringOps.getAndTouchBytes("testTouchKey", 1000, 500));
+    }
+
+    @Test
+    public void setexIfAbsent() throws Exception {
+        try {
+            assertEquals("OK", stringOps.setexIfAbsent("testIfAbsentKey", 100, "testValue"));
+            assertNull(stringOps.setexIfAbsent("testIfAbsentKey", 100, "otherValue"));
+            assertEquals("testValue", stringOps.get("testIfAbsentKey"));
+            assertTrue(stringOps.ttl("testIfAbsentKey") > 0);
+        } finally {
+            stringOps.delete("testIfAbsentKey");
+        }
+    }
+
+    @Test
+    public void batchOperations() throws Exception {
+        List<String> keys = ImmutableList.of("testBatchKey1", "testBatchKey2", "testBatchKey3");
+        try {
+            assertEquals(2L, stringOps.setex(ImmutableMap.of("testBatchKey1", "value1", "testBatchKey2", "value2"),
+                    100).longValue());
+            assertTrue(stringOps.ttl("testBatchKey2") > 0);
+            assertEquals(Arrays.asList("value1", "value2", null), stringOps.mget(keys));
+        } finally {
+            assertEquals(2L, stringOps.delete(keys).longValue());
+        }
+        assertEquals(Arrays.asList(null, null, null), stringOps.mget(keys));
+    }
+
+    @Test
+    public void pipeline() throws Exception {
+        try {
+            List<Object> results = stringOps.pipeline(new JedisStringOps.PipelineCallback() {
+                @Override
+                public void queue(Pipeline pipeline) {
+                    pipeline.setex("testPipelineKey", 100, "testValue");
+                    pipeline.incr("testPipelineCounter");
+                    pipeline.get("testPipelineKey");
+                }
+            });
+            assertEquals(ImmutableList.<Object>of("OK", 1L, "testValue"), results);
+        } finally {
+            stringOps.delete(ImmutableList.of("testPipelineKey", "testPipelineCounter"));
+        }
+        assertTrue(stringOps.getBorrowWaitMicros().getCount() > 0);
+    }
+
+    @Test
+    public void scanAndClear() throws Exception {
+        // More keys than fit in one delete batch
+        int keyCount = JedisStringOps.DELETE_BATCH_SIZE * 2 + 5;
+        Map<String, String> keyMap = Maps.newHashMap();
+        for (int i = 0; i < keyCount; i++) {
+            keyMap.put("testScanKey" + i + ":scan-test", "value" + i);
+        }
+        assertEquals(keyCount, stringOps.setex(keyMap, 100).longValue());
+
+        Set<String> scannedKeys = Sets.newHashSet();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> page = stringOps.scan(cursor, "*:scan-test", 50);
+            scannedKeys.addAll(page.getResult());
+            cursor = page.getStringCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        assertEquals(keyMap.keySet(), scannedKeys);
+
+        assertEquals(keyCount, stringOps.clearRedis("*:scan-test").longValue());
+        assertNull(stringOps.get("testScanKey0:scan-test"));
+        assertEquals(0L, stringOps.clearRedis("*:scan-test").longValue());
+    }
 }
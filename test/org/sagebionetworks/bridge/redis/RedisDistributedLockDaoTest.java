@@ -8,6 +8,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
@@ -15,7 +17,6 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.sagebionetworks.bridge.dao.DistributedLockDao;
 import org.sagebionetworks.bridge.exceptions.ConcurrentModificationException;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -27,7 +28,7 @@ public class RedisDistributedLockDaoTest {
     @Resource
     private JedisStringOps stringOps;
     @Resource
-    private DistributedLockDao lockDao;
+    private RedisDistributedLockDao lockDao;
     private String id;
 
     @Before
@@ -70,4 +71,81 @@ public class RedisDistributedLockDaoTest {
         lockId = lockDao.acquireLock(getClass(), id, 1);
         lockDao.releaseLock(getClass(), id, lockId);
     }
+
+    @Test
+    public void fencingTokensIncrease() {
+        String lockId = lockDao.acquireLock(getClass(), id, 60);
+        long token = lockDao.getFencingToken(lockId);
+        assertTrue(token > 0);
+        assertTrue(lockDao.releaseLock(getClass(), id, lockId));
+
+        lockId = lockDao.acquireLock(getClass(), id, 60);
+        assertTrue(lockDao.getFencingToken(lockId) > token);
+        assertTrue(lockDao.releaseLock(getClass(), id, lockId));
+    }
+
+    @Test
+    public void blockingAcquireWaitsForExpiration() {
+        lockDao.acquireLock(getClass(), id, 1);
+        try {
+            lockDao.acquireLock(getClass(), id, 60, 100L);
+            fail("expected exception");
+        } catch (ConcurrentModificationException e) {
+            // expected
+        }
+        String lockId = lockDao.acquireLock(getClass(), id, 60, 3000L);
+        assertTrue(lockDao.releaseLock(getClass(), id, lockId));
+    }
+
+    @Test
+    public void renewsOnlyItsOwnLock() {
+        String lockId = lockDao.acquireLock(getClass(), id, 60);
+        String redisKey = RedisKey.LOCK.getRedisKey(
+                id + RedisKey.SEPARATOR + getClass().getCanonicalName());
+        assertTrue(lockDao.renewLock(getClass(), id, lockId, 600));
+        assertTrue(stringOps.ttl(redisKey) > 60);
+        assertFalse(lockDao.renewLock(getClass(), id, "incorrect lock id", 600));
+        assertTrue(lockDao.releaseLock(getClass(), id, lockId));
+        assertFalse(lockDao.renewLock(getClass(), id, lockId, 600));
+    }
+
+    @Test
+    public void renewalKeepsLockPastExpiration() throws Exception {
+        String lockId = lockDao.acquireLock(getClass(), id, 3);
+        lockDao.startRenewal(getClass(), id, lockId, 3);
+        assertTrue(lockDao.isRenewing(lockId));
+        Thread.sleep(5000);
+
+        String redisKey = RedisKey.LOCK.getRedisKey(
+                id + RedisKey.SEPARATOR + getClass().getCanonicalName());
+        assertEquals(lockId, stringOps.get(redisKey));
+        assertTrue(lockDao.releaseLock(getClass(), id, lockId));
+        assertFalse(lockDao.isRenewing(lockId));
+    }
+
+    @Test
+    public void lostLockCallsBack() throws Exception {
+        String lockId = lockDao.acquireLock(getClass(), id, 3);
+        final CountDownLatch lostLatch = new CountDownLatch(1);
+        lockDao.startRenewal(getClass(), id, lockId, 3, new Runnable() {
+            @Override
+            public void run() {
+                lostLatch.countDown();
+            }
+        });
+
+        // Someone else takes the lock, as if it had expired while this server was paused.
+        String redisKey = RedisKey.LOCK.getRedisKey(
+                id + RedisKey.SEPARATOR + getClass().getCanonicalName());
+        stringOps.setex(redisKey, 60, "1:someone-else");
+
+        assertTrue(lostLatch.await(5, TimeUnit.SECONDS));
+        assertFalse(lockDao.isRenewing(lockId));
+        assertFalse(lockDao.releaseLock(getClass(), id, lockId));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lockWithoutFencingToken() {
+        lockDao.getFencingToken("d2ddc6b2-4c6c-4d84-a0c5-5d3d1b4b1c6e");
+    }
 }
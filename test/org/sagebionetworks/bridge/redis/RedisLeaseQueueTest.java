@@ -0,0 +1,139 @@
+package org.sagebionetworks.bridge.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+@SuppressWarnings("unchecked")
+public class RedisLeaseQueueTest {
+    private static final String READY_KEY = RedisKey.WORK_QUEUE.getRedisKey("test-queue:ready");
+    private static final String LEASED_KEY = RedisKey.WORK_QUEUE.getRedisKey("test-queue:leased");
+    private static final String DEAD_KEY = RedisKey.WORK_QUEUE.getRedisKey("test-queue:dead");
+
+    private JedisStringOps mockStringOps;
+    private RedisLeaseQueue queue;
+
+    @Before
+    public void setup() {
+        mockStringOps = mock(JedisStringOps.class);
+        queue = new RedisLeaseQueue("test-queue", mockStringOps, 60, 3);
+    }
+
+    @Test
+    public void enqueue() {
+        when(mockStringOps.lpush(READY_KEY, "0|test-payload")).thenReturn(1L);
+        assertTrue(queue.enqueue("test-payload"));
+    }
+
+    @Test
+    public void enqueueRedisUnavailable() {
+        when(mockStringOps.lpush(READY_KEY, "0|test-payload")).thenReturn(null);
+        assertFalse(queue.enqueue("test-payload"));
+    }
+
+    @Test
+    public void claim() {
+        // payload can itself contain the separator
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of(READY_KEY, LEASED_KEY)), anyListOf(String.class)))
+                .thenReturn("test-token|2|test-study|test-upload");
+        RedisLeaseQueue.Lease lease = queue.claim();
+        assertEquals(2, lease.getAttempt());
+        assertEquals("test-study|test-upload", lease.getPayload());
+
+        // renew and complete pass the whole member, so only the lease holder can renew or complete
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of(LEASED_KEY)), anyListOf(String.class)))
+                .thenReturn(1L);
+        assertTrue(queue.renew(lease));
+        assertTrue(queue.complete(lease));
+
+        ArgumentCaptor<List> argsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockStringOps, times(2)).eval(anyString(), eq(ImmutableList.of(LEASED_KEY)),
+                argsCaptor.capture());
+        List<List> argsList = argsCaptor.getAllValues();
+        assertEquals("test-token|2|test-study|test-upload", argsList.get(0).get(1));
+        assertEquals(ImmutableList.of("test-token|2|test-study|test-upload"), argsList.get(1));
+    }
+
+    @Test
+    public void claimEmptyQueue() {
+        assertNull(queue.claim());
+    }
+
+    @Test
+    public void lostLease() {
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of(READY_KEY, LEASED_KEY)), anyListOf(String.class)))
+                .thenReturn("test-token|1|test-payload");
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of(LEASED_KEY)), anyListOf(String.class)))
+                .thenReturn(0L);
+
+        RedisLeaseQueue.Lease lease = queue.claim();
+        assertFalse(queue.renew(lease));
+        assertFalse(queue.complete(lease));
+    }
+
+    @Test
+    public void release() {
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of(READY_KEY, LEASED_KEY)), anyListOf(String.class)))
+                .thenReturn("test-token|2|test-payload");
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of(LEASED_KEY, READY_KEY)), anyListOf(String.class)))
+                .thenReturn(1L, 0L);
+
+        // release passes the whole member, so only the lease holder can release
+        RedisLeaseQueue.Lease lease = queue.claim();
+        assertTrue(queue.release(lease));
+        verify(mockStringOps).eval(anyString(), eq(ImmutableList.of(LEASED_KEY, READY_KEY)),
+                eq(ImmutableList.of("test-token|2|test-payload")));
+
+        // lost lease
+        assertFalse(queue.release(lease));
+    }
+
+    @Test
+    public void reclaimExpired() {
+        when(mockStringOps.eval(anyString(), eq(ImmutableList.of(LEASED_KEY, READY_KEY, DEAD_KEY)),
+                anyListOf(String.class))).thenReturn(ImmutableList.<Object>of(2L, "dead-payload-1",
+                "dead-payload-2"));
+        assertEquals(ImmutableList.of("dead-payload-1", "dead-payload-2"), queue.reclaimExpired());
+
+        // max attempts is passed to the script
+        ArgumentCaptor<List> argsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockStringOps).eval(anyString(), any(List.class), argsCaptor.capture());
+        assertEquals("3", argsCaptor.getValue().get(1));
+    }
+
+    @Test
+    public void reclaimRedisUnavailable() {
+        assertTrue(queue.reclaimExpired().isEmpty());
+    }
+
+    @Test
+    public void counts() {
+        when(mockStringOps.llen(READY_KEY)).thenReturn(5L);
+        when(mockStringOps.zcard(LEASED_KEY)).thenReturn(2L);
+        when(mockStringOps.llen(DEAD_KEY)).thenReturn(1L);
+        assertEquals(5L, queue.getReadyCount().longValue());
+        assertEquals(2L, queue.getLeasedCount().longValue());
+        assertEquals(1L, queue.getDeadCount().longValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroLease() {
+        new RedisLeaseQueue("test-queue", mockStringOps, 0, 3);
+    }
+}
@@ -0,0 +1,65 @@
+package org.sagebionetworks.bridge.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisUploadDedupDaoTest {
+    private static final String REDIS_KEY = RedisKey.UPLOAD_DEDUP.getRedisKey("test-healthcode:test-md5");
+
+    private JedisStringOps mockStringOps;
+    private RedisUploadDedupDao dao;
+
+    @Before
+    public void setup() {
+        mockStringOps = mock(JedisStringOps.class);
+        dao = new RedisUploadDedupDao();
+        dao.setStringOps(mockStringOps);
+        dao.setWindowSeconds(3600);
+    }
+
+    @Test
+    public void getDuplicateExtendsWindow() {
+        when(mockStringOps.get(REDIS_KEY)).thenReturn("original-upload");
+        assertEquals("original-upload", dao.getDuplicateUploadId("test-healthcode", "test-md5"));
+        verify(mockStringOps).expire(REDIS_KEY, 3600);
+    }
+
+    @Test
+    public void getNoDuplicate() {
+        assertNull(dao.getDuplicateUploadId("test-healthcode", "test-md5"));
+        verify(mockStringOps, never()).expire(anyString(), anyInt());
+    }
+
+    @Test
+    public void registerUpload() {
+        when(mockStringOps.setex(REDIS_KEY, 3600, "new-upload")).thenReturn("OK");
+        dao.registerUpload("test-healthcode", "test-md5", "new-upload");
+        verify(mockStringOps).setex(REDIS_KEY, 3600, "new-upload");
+    }
+
+    @Test
+    public void registerUploadRedisUnavailable() {
+        // Redis errors return null. This is logged but not thrown.
+        dao.registerUpload("test-healthcode", "test-md5", "new-upload");
+        verify(mockStringOps).setex(REDIS_KEY, 3600, "new-upload");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void blankHealthCode() {
+        dao.getDuplicateUploadId("", "test-md5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void blankContentMd5() {
+        dao.registerUpload("test-healthcode", "  ", "new-upload");
+    }
+}
@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.s3;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
@@ -39,6 +40,16 @@ public class S3HelperTest {
         assertEquals(content, retVal);
     }
 
+    @Test
+    public void delete() {
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        S3Helper testS3Helper = new S3Helper();
+        testS3Helper.setS3Client(mockS3Client);
+
+        testS3Helper.deleteS3File("test-bucket", "test-key");
+        verify(mockS3Client).deleteObject("test-bucket", "test-key");
+    }
+
     private static S3Helper setupWithMockS3(String bucket, String key, String content) {
         // mock S3 stream
         byte[] contentBytes = content.getBytes(Charsets.UTF_8);
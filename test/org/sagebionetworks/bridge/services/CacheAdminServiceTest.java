@@ -1,33 +1,58 @@
 package org.sagebionetworks.bridge.services;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.sagebionetworks.bridge.cache.ViewCache;
+import org.sagebionetworks.bridge.exceptions.BadRequestException;
 import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
+import org.sagebionetworks.bridge.models.CacheItemPage;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.util.SafeEncoder;
 
 public class CacheAdminServiceTest {
 
+    // Keys returned by each SCAN call of the stub.
+    private static final int STUB_SCAN_COUNT = 2;
+
     private CacheAdminService adminService;
+    private JedisStringOps stringOps;
+    private Set<String> keySet;
+    private int scanCallCount;
     
     @Before
     public void before() {
         adminService = new CacheAdminService();
         
+        keySet = Sets.newTreeSet(Sets.newHashSet("foo:study", "bar:session", "baz:Survey:view"));
         JedisPool pool = mock(JedisPool.class);
         when(pool.getResource()).thenReturn(createStubJedis());
 
+        stringOps = mock(JedisStringOps.class);
+
         adminService.setJedisPool(pool);
+        adminService.setStringOps(stringOps);
     }
     
     @Test
@@ -65,19 +90,104 @@ public class CacheAdminServiceTest {
     public void throwsExceptionWhenKeyIsNull() {
         adminService.removeItem(null);
     }
+
+    @Test
+    public void listsItemsAPageAtATime() {
+        CacheItemPage page = adminService.listItems(null, null, 1);
+        assertEquals(1, scanCallCount);
+        assertEquals(Lists.newArrayList("baz:Survey:view"), page.getItems());
+        assertNotNull(page.getNextCursor());
+
+        page = adminService.listItems(null, page.getNextCursor(), 1);
+        assertEquals(Lists.newArrayList("foo:study"), page.getItems());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void listsItemsOfAType() {
+        CacheItemPage page = adminService.listItems("view", null, CacheAdminService.DEFAULT_PAGE_SIZE);
+        assertEquals(Lists.newArrayList("baz:Survey:view"), page.getItems());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void listingStopsAfterMaxScans() {
+        for (int i = 0; i < CacheAdminService.MAX_SCANS_PER_PAGE * STUB_SCAN_COUNT; i++) {
+            keySet.add("user" + i + ":user");
+        }
+        CacheItemPage page = adminService.listItems("num-of-participants", null, 1);
+        assertEquals(CacheAdminService.MAX_SCANS_PER_PAGE, scanCallCount);
+        assertTrue(page.getItems().isEmpty());
+        assertNotNull(page.getNextCursor());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void listingRejectsUnknownType() {
+        adminService.listItems("session", null, CacheAdminService.DEFAULT_PAGE_SIZE);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void listingRejectsPageSizeTooLarge() {
+        adminService.listItems(null, null, CacheAdminService.MAX_PAGE_SIZE + 1);
+    }
+
+    @Test
+    public void removesItemsOfAType() {
+        CacheInvalidationBus bus = mock(CacheInvalidationBus.class);
+        adminService.setCacheInvalidationBus(bus);
+        when(stringOps.clearRedis("*:view")).thenReturn(3L);
+
+        assertEquals(3L, adminService.removeItems("view"));
+        verify(bus).invalidateAll(ViewCache.CACHE_NAME);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void doesNotRemoveAllSessions() {
+        try {
+            adminService.removeItems("session");
+        } finally {
+            verifyZeroInteractions(stringOps);
+        }
+    }
+
+    @Test(expected = BridgeServiceException.class)
+    public void removeItemsThrowsWhenRedisIsDown() {
+        adminService.removeItems("study");
+    }
     
     private Jedis createStubJedis() {
         return new Jedis("") {
-            private Set<String> set = Sets.newHashSet("foo:study", "bar:session", "baz:Survey:view");
-
+            // Cursors are the index of the next key, in sorted order.
             @Override
-            public Set<String> keys(String pattern) {
-                return set;
+            public ScanResult<String> scan(String cursor, ScanParams params) {
+                scanCallCount++;
+                String pattern = getMatchPattern(params);
+                List<String> keyList = Lists.newArrayList(keySet);
+                int start = Integer.parseInt(cursor);
+                int end = Math.min(start + STUB_SCAN_COUNT, keyList.size());
+                List<String> result = Lists.newArrayList();
+                for (String key : keyList.subList(start, end)) {
+                    if ("*".equals(pattern) || key.endsWith(pattern.substring(1))) {
+                        result.add(key);
+                    }
+                }
+                String nextCursor = end < keyList.size() ? Integer.toString(end) : ScanParams.SCAN_POINTER_START;
+                return new ScanResult<String>(nextCursor, result);
             }
             @Override
             public Long del(String key) {
-                return (set.remove(key)) ? 1L : 0L;
+                return (keySet.remove(key)) ? 1L : 0L;
             }
         };
     }
+
+    private static String getMatchPattern(ScanParams params) {
+        Iterator<byte[]> iterator = params.getParams().iterator();
+        while (iterator.hasNext()) {
+            if ("MATCH".equalsIgnoreCase(SafeEncoder.encode(iterator.next()))) {
+                return SafeEncoder.encode(iterator.next());
+            }
+        }
+        return "*";
+    }
 }
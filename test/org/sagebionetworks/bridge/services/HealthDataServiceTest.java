@@ -1,19 +1,24 @@
 package org.sagebionetworks.bridge.services;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 
+import org.sagebionetworks.bridge.dao.HealthDataAttachmentDao;
 import org.sagebionetworks.bridge.dao.HealthDataDao;
+import org.sagebionetworks.bridge.dynamodb.DynamoHealthDataAttachment;
 import org.sagebionetworks.bridge.dynamodb.DynamoHealthDataDao;
 import org.sagebionetworks.bridge.dynamodb.DynamoHealthDataRecord;
 import org.sagebionetworks.bridge.exceptions.BadRequestException;
 import org.sagebionetworks.bridge.exceptions.InvalidEntityException;
+import org.sagebionetworks.bridge.models.healthdata.HealthDataAttachment;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataRecord;
 
 public class HealthDataServiceTest {
@@ -56,6 +61,37 @@ public class HealthDataServiceTest {
         assertEquals("mock record ID", retVal);
     }
 
+    @Test(expected = InvalidEntityException.class)
+    public void createOrUpdateAttachmentsNullList() {
+        new HealthDataService().createOrUpdateAttachments(null);
+    }
+
+    @Test(expected = InvalidEntityException.class)
+    public void createOrUpdateAttachmentsNullAttachment() {
+        List<HealthDataAttachment> attachmentList = new ArrayList<>();
+        attachmentList.add(null);
+        new HealthDataService().createOrUpdateAttachments(attachmentList);
+    }
+
+    @Test
+    public void createOrUpdateAttachmentsSuccess() {
+        // attachments
+        List<HealthDataAttachment> attachmentList = ImmutableList.<HealthDataAttachment>of(
+                new DynamoHealthDataAttachment.Builder().withRecordId("test record").build(),
+                new DynamoHealthDataAttachment.Builder().withRecordId("test record").build());
+
+        // mock dao
+        HealthDataAttachmentDao mockDao = mock(HealthDataAttachmentDao.class);
+        when(mockDao.createOrUpdateAttachments(attachmentList)).thenReturn(ImmutableList.of("foo", "bar"));
+
+        HealthDataService svc = new HealthDataService();
+        svc.setHealthDataAttachmentDao(mockDao);
+
+        // execute and validate
+        List<String> retVal = svc.createOrUpdateAttachments(attachmentList);
+        assertEquals(ImmutableList.of("foo", "bar"), retVal);
+    }
+
     @Test(expected = BadRequestException.class)
     public void deleteRecordsForHealthCodeNullHealthCode() {
         new HealthDataService().deleteRecordsForHealthCode(null);
@@ -123,4 +159,29 @@ public class HealthDataServiceTest {
         assertEquals("bar healthcode", recordList.get(1).getHealthCode());
         assertEquals("baz healthcode", recordList.get(2).getHealthCode());
     }
+
+    @Test(expected = BadRequestException.class)
+    public void getRecordsForUploadBlankHealthCode() {
+        new HealthDataService().getRecordsForUpload("", "test-upload");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void getRecordsForUploadNullUploadId() {
+        new HealthDataService().getRecordsForUpload("test health code", null);
+    }
+
+    @Test
+    public void getRecordsForUploadSuccess() {
+        List<HealthDataRecord> mockRecordList = ImmutableList.of(DAO.getRecordBuilder()
+                .withHealthCode("test health code").withSchemaId("dummy schema").withSchemaRevision(3)
+                .withStudyId("dummy study").withUploadId("test-upload").build());
+        HealthDataDao mockDao = mock(HealthDataDao.class);
+        when(mockDao.getRecordsForUpload("test health code", "test-upload")).thenReturn(mockRecordList);
+
+        HealthDataService svc = new HealthDataService();
+        svc.setHealthDataDao(mockDao);
+
+        // execute and validate
+        assertSame(mockRecordList, svc.getRecordsForUpload("test health code", "test-upload"));
+    }
 }
@@ -27,6 +27,7 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.cache.LoadingCache;
 
 @ContextConfiguration("classpath:test-context.xml")
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -43,6 +44,9 @@ public class UploadCertificateServiceImplTest {
     @Resource
     private UploadCertificateService uploadCertificateService;
 
+    @Resource(name = "cmsEncryptorCache")
+    private LoadingCache<String, CmsEncryptor> cmsEncryptorCache;
+
     @Before
     public void before() {
         assertNotNull(uploadCertificateService);
@@ -59,6 +63,11 @@ public class UploadCertificateServiceImplTest {
         s3Client.deleteObject(PRIV_BUCKET, STUDY_ID + ".pem");
     }
 
+    @After
+    public void cleanupCache() {
+        cmsEncryptorCache.invalidate(STUDY_ID);
+    }
+
     @Test
     public void test() throws Exception {
         uploadCertificateService.createCmsKeyPair(STUDY_ID);
@@ -77,6 +86,11 @@ public class UploadCertificateServiceImplTest {
         CmsEncryptor encryptor = new BcCmsEncryptor(cert, privateKey);
         assertNotNull(encryptor);
         assertEquals("something", new String(encryptor.decrypt(encryptor.encrypt("something".getBytes()))));
+
+        // The new key pair is cached, and decrypts what the stored key pair encrypts
+        CmsEncryptor cachedEncryptor = cmsEncryptorCache.getIfPresent(STUDY_ID);
+        assertNotNull(cachedEncryptor);
+        assertEquals("something", new String(cachedEncryptor.decrypt(encryptor.encrypt("something".getBytes()))));
     }
 
     private String readPem(S3Object s3Obj) {
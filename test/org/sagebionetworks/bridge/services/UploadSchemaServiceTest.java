@@ -1,7 +1,10 @@
 package org.sagebionetworks.bridge.services;
 
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -10,11 +13,13 @@ import java.util.List;
 
 import com.google.common.collect.ImmutableList;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import org.sagebionetworks.bridge.dao.UploadSchemaDao;
 import org.sagebionetworks.bridge.dynamodb.DynamoUploadFieldDefinition;
 import org.sagebionetworks.bridge.dynamodb.DynamoUploadSchema;
 import org.sagebionetworks.bridge.exceptions.BadRequestException;
+import org.sagebionetworks.bridge.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.exceptions.InvalidEntityException;
 import org.sagebionetworks.bridge.models.studies.StudyIdentifier;
 import org.sagebionetworks.bridge.models.studies.StudyIdentifierImpl;
@@ -22,6 +27,7 @@ import org.sagebionetworks.bridge.models.upload.UploadFieldDefinition;
 import org.sagebionetworks.bridge.models.upload.UploadFieldType;
 import org.sagebionetworks.bridge.models.upload.UploadSchema;
 import org.sagebionetworks.bridge.models.upload.UploadSchemaType;
+import org.sagebionetworks.bridge.redis.CacheInvalidationBus;
 
 public class UploadSchemaServiceTest {
     @Test(expected = InvalidEntityException.class)
@@ -160,6 +166,113 @@ public class UploadSchemaServiceTest {
         assertSame(daoRetVal, svcRetVal);
     }
 
+    @Test
+    public void getSchemaIsCached() {
+        // mock dao
+        UploadSchema daoRetVal = new DynamoUploadSchema();
+        UploadSchemaDao mockDao = mock(UploadSchemaDao.class);
+        when(mockDao.getUploadSchema("test-study", "test-schema")).thenReturn(daoRetVal);
+
+        // execute twice
+        UploadSchemaService svc = new UploadSchemaService();
+        svc.setUploadSchemaDao(mockDao);
+        assertSame(daoRetVal, svc.getUploadSchema(makeTestStudy(), "test-schema"));
+        assertSame(daoRetVal, svc.getUploadSchema(makeTestStudy(), "test-schema"));
+
+        // validate the DAO was only called once
+        verify(mockDao, times(1)).getUploadSchema("test-study", "test-schema");
+    }
+
+    @Test
+    public void getSchemaNotFoundIsNotCached() {
+        // mock dao - first call throws, second call succeeds
+        UploadSchema daoRetVal = new DynamoUploadSchema();
+        UploadSchemaDao mockDao = mock(UploadSchemaDao.class);
+        when(mockDao.getUploadSchema("test-study", "test-schema")).thenThrow(new EntityNotFoundException(
+                UploadSchema.class)).thenReturn(daoRetVal);
+
+        UploadSchemaService svc = new UploadSchemaService();
+        svc.setUploadSchemaDao(mockDao);
+        try {
+            svc.getUploadSchema(makeTestStudy(), "test-schema");
+            fail("expected exception");
+        } catch (EntityNotFoundException ex) {
+            // expected exception
+        }
+        assertSame(daoRetVal, svc.getUploadSchema(makeTestStudy(), "test-schema"));
+    }
+
+    @Test
+    public void createSchemaInvalidatesCache() {
+        // mock dao - return a different schema before and after the update
+        UploadSchema oldSchema = new DynamoUploadSchema();
+        UploadSchema newSchema = new DynamoUploadSchema();
+        UploadSchemaDao mockDao = mock(UploadSchemaDao.class);
+        when(mockDao.getUploadSchema("test-study", "happy-schema")).thenReturn(oldSchema, newSchema);
+
+        UploadSchemaService svc = new UploadSchemaService();
+        svc.setUploadSchemaDao(mockDao);
+        assertSame(oldSchema, svc.getUploadSchema(makeTestStudy(), "happy-schema"));
+
+        // update and fetch again
+        svc.createOrUpdateUploadSchema(makeTestStudy(), makeValidSchema());
+        assertSame(newSchema, svc.getUploadSchema(makeTestStudy(), "happy-schema"));
+    }
+
+    @Test
+    public void deleteSchemaInvalidatesCache() {
+        UploadSchema schema = new DynamoUploadSchema();
+        UploadSchemaDao mockDao = mock(UploadSchemaDao.class);
+        when(mockDao.getUploadSchema("test-study", "test-schema")).thenReturn(schema);
+
+        UploadSchemaService svc = new UploadSchemaService();
+        svc.setUploadSchemaDao(mockDao);
+        svc.getUploadSchema(makeTestStudy(), "test-schema");
+        svc.deleteUploadSchemaById(makeTestStudy(), "test-schema");
+        svc.getUploadSchema(makeTestStudy(), "test-schema");
+        verify(mockDao, times(2)).getUploadSchema("test-study", "test-schema");
+    }
+
+    @Test
+    public void deleteSchemaRevInvalidatesCache() {
+        UploadSchema schema = new DynamoUploadSchema();
+        UploadSchemaDao mockDao = mock(UploadSchemaDao.class);
+        when(mockDao.getUploadSchema("test-study", "test-schema")).thenReturn(schema);
+
+        UploadSchemaService svc = new UploadSchemaService();
+        svc.setUploadSchemaDao(mockDao);
+        svc.getUploadSchema(makeTestStudy(), "test-schema");
+        svc.deleteUploadSchemaByIdAndRev(makeTestStudy(), "test-schema", 1);
+        svc.getUploadSchema(makeTestStudy(), "test-schema");
+        verify(mockDao, times(2)).getUploadSchema("test-study", "test-schema");
+    }
+
+    @Test
+    public void invalidationFromBus() {
+        UploadSchema schema = new DynamoUploadSchema();
+        UploadSchemaDao mockDao = mock(UploadSchemaDao.class);
+        when(mockDao.getUploadSchema("test-study", "test-schema")).thenReturn(schema);
+
+        // capture the listener registered with the bus
+        CacheInvalidationBus mockBus = mock(CacheInvalidationBus.class);
+        UploadSchemaService svc = new UploadSchemaService();
+        svc.setUploadSchemaDao(mockDao);
+        svc.setCacheInvalidationBus(mockBus);
+        ArgumentCaptor<CacheInvalidationBus.Listener> listenerCaptor = ArgumentCaptor.forClass(
+                CacheInvalidationBus.Listener.class);
+        verify(mockBus).addListener(eq(UploadSchemaService.CACHE_NAME), listenerCaptor.capture());
+
+        // another server updated the schema
+        svc.getUploadSchema(makeTestStudy(), "test-schema");
+        listenerCaptor.getValue().invalidate("test-study:test-schema");
+        svc.getUploadSchema(makeTestStudy(), "test-schema");
+        verify(mockDao, times(2)).getUploadSchema("test-study", "test-schema");
+
+        // local deletes go through the bus
+        svc.deleteUploadSchemaById(makeTestStudy(), "test-schema");
+        verify(mockBus).invalidate(UploadSchemaService.CACHE_NAME, "test-study:test-schema");
+    }
+
     @Test
     public void getSchemasForStudy() {
         // mock dao
@@ -175,6 +288,16 @@ public class UploadSchemaServiceTest {
         assertSame(daoRetVal, svcRetVal);
     }
 
+    private static UploadSchema makeValidSchema() {
+        DynamoUploadSchema schema = new DynamoUploadSchema();
+        schema.setName("happy schema");
+        schema.setSchemaId("happy-schema");
+        schema.setSchemaType(UploadSchemaType.IOS_DATA);
+        schema.setFieldDefinitions(ImmutableList.<UploadFieldDefinition>of(new DynamoUploadFieldDefinition.Builder()
+                .withName("test-field").withType(UploadFieldType.ATTACHMENT_BLOB).build()));
+        return schema;
+    }
+
     private static StudyIdentifier makeTestStudy() {
         return new StudyIdentifierImpl("test-study");
     }
@@ -1,16 +1,29 @@
 package org.sagebionetworks.bridge.services;
 
+import static com.amazonaws.services.s3.model.ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 import org.sagebionetworks.bridge.dao.UploadDao;
+import org.sagebionetworks.bridge.dao.UploadDedupDao;
 import org.sagebionetworks.bridge.dynamodb.DynamoUpload2;
 import org.sagebionetworks.bridge.exceptions.BadRequestException;
 import org.sagebionetworks.bridge.exceptions.UnauthorizedException;
 import org.sagebionetworks.bridge.models.accounts.User;
 import org.sagebionetworks.bridge.models.upload.Upload;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
 
 public class UploadServiceMockTest {
     @Test(expected = BadRequestException.class)
@@ -58,6 +71,107 @@ public class UploadServiceMockTest {
         svc.getUpload(makeUser("right-health-code"), "mismatched-health-codes");
     }
 
+    @Test
+    public void uploadCompleteNoDuplicate() {
+        UploadDao mockDao = mock(UploadDao.class);
+        UploadDedupDao mockDedupDao = mock(UploadDedupDao.class);
+        UploadService svc = makeServiceForUploadComplete(mockDao, mockDedupDao);
+
+        DynamoUpload2 upload = makeRequestedUpload("new-upload");
+        assertTrue(svc.uploadComplete(upload));
+        verify(mockDao).uploadComplete(upload);
+        verify(mockDao, never()).writeValidationStatus(any(Upload.class), any(UploadStatus.class),
+                anyListOf(String.class));
+        verify(mockDedupDao).registerUpload("test-healthcode", "test-md5", "new-upload");
+    }
+
+    @Test
+    public void uploadCompleteDuplicateOfSucceededUpload() {
+        // mock dedup dao and original upload
+        UploadDao mockDao = mock(UploadDao.class);
+        UploadDedupDao mockDedupDao = mock(UploadDedupDao.class);
+        when(mockDedupDao.getDuplicateUploadId("test-healthcode", "test-md5")).thenReturn("original-upload");
+
+        DynamoUpload2 originalUpload = makeRequestedUpload("original-upload");
+        originalUpload.setStatus(UploadStatus.SUCCEEDED);
+        when(mockDao.getUpload("original-upload")).thenReturn(originalUpload);
+
+        // execute and validate
+        UploadService svc = makeServiceForUploadComplete(mockDao, mockDedupDao);
+        DynamoUpload2 upload = makeRequestedUpload("new-upload");
+        assertFalse(svc.uploadComplete(upload));
+        verify(mockDao).uploadComplete(upload);
+        verify(mockDao).writeValidationStatus(upload, UploadStatus.SUCCEEDED, ImmutableList.of(
+                "Duplicate of upload original-upload"));
+        verify(mockDedupDao, never()).registerUpload(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void uploadCompleteDuplicateOfFailedUpload() {
+        // Earlier upload failed validation. This one should be validated, and replace the earlier one in the index.
+        UploadDao mockDao = mock(UploadDao.class);
+        UploadDedupDao mockDedupDao = mock(UploadDedupDao.class);
+        when(mockDedupDao.getDuplicateUploadId("test-healthcode", "test-md5")).thenReturn("original-upload");
+
+        DynamoUpload2 originalUpload = makeRequestedUpload("original-upload");
+        originalUpload.setStatus(UploadStatus.VALIDATION_FAILED);
+        when(mockDao.getUpload("original-upload")).thenReturn(originalUpload);
+
+        UploadService svc = makeServiceForUploadComplete(mockDao, mockDedupDao);
+        DynamoUpload2 upload = makeRequestedUpload("new-upload");
+        assertTrue(svc.uploadComplete(upload));
+        verify(mockDedupDao).registerUpload("test-healthcode", "test-md5", "new-upload");
+    }
+
+    @Test
+    public void uploadCompleteDuplicateInProgress() {
+        // Earlier upload is still being validated. We don't know if it'll succeed, so validate this one too.
+        UploadDao mockDao = mock(UploadDao.class);
+        UploadDedupDao mockDedupDao = mock(UploadDedupDao.class);
+        when(mockDedupDao.getDuplicateUploadId("test-healthcode", "test-md5")).thenReturn("original-upload");
+
+        DynamoUpload2 originalUpload = makeRequestedUpload("original-upload");
+        originalUpload.setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+        when(mockDao.getUpload("original-upload")).thenReturn(originalUpload);
+
+        UploadService svc = makeServiceForUploadComplete(mockDao, mockDedupDao);
+        assertTrue(svc.uploadComplete(makeRequestedUpload("new-upload")));
+    }
+
+    @Test
+    public void uploadCompleteAlreadyComplete() {
+        UploadDao mockDao = mock(UploadDao.class);
+        UploadDedupDao mockDedupDao = mock(UploadDedupDao.class);
+        UploadService svc = makeServiceForUploadComplete(mockDao, mockDedupDao);
+
+        DynamoUpload2 upload = makeRequestedUpload("new-upload");
+        upload.setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+        assertTrue(svc.uploadComplete(upload));
+        verify(mockDao, never()).uploadComplete(upload);
+    }
+
+    private static UploadService makeServiceForUploadComplete(UploadDao mockDao, UploadDedupDao mockDedupDao) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setSSEAlgorithm(AES_256_SERVER_SIDE_ENCRYPTION);
+        AmazonS3 mockS3Client = mock(AmazonS3.class);
+        when(mockS3Client.getObjectMetadata(anyString(), anyString())).thenReturn(metadata);
+
+        UploadService svc = new UploadService();
+        svc.setS3Client(mockS3Client);
+        svc.setUploadDao(mockDao);
+        svc.setUploadDedupDao(mockDedupDao);
+        return svc;
+    }
+
+    private static DynamoUpload2 makeRequestedUpload(String uploadId) {
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setContentMd5("test-md5");
+        upload.setHealthCode("test-healthcode");
+        upload.setStatus(UploadStatus.REQUESTED);
+        upload.setUploadId(uploadId);
+        return upload;
+    }
+
     // Helper method for creating users. UploadService only cares about healthCode, so that's the only thing we set.
     private static User makeUser(String healthCode) {
         User user = new User();
@@ -1,28 +1,102 @@
 package org.sagebionetworks.bridge.services;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import java.util.concurrent.ExecutorService;
-
 import org.junit.Test;
 import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
 import org.sagebionetworks.bridge.dynamodb.DynamoUpload2;
 import org.sagebionetworks.bridge.models.accounts.User;
 import org.sagebionetworks.bridge.models.studies.Study;
 import org.sagebionetworks.bridge.models.upload.Upload;
+import org.sagebionetworks.bridge.upload.DurableUploadValidationQueue;
+import org.sagebionetworks.bridge.upload.UploadValidationScheduler;
 import org.sagebionetworks.bridge.upload.UploadValidationTask;
 import org.sagebionetworks.bridge.upload.UploadValidationTaskFactory;
 
 public class UploadValidationServiceTest {
     @Test
     public void test() {
-        // UploadValidationService is a simple call-through to the task factory and the async thread pool. As such, our
-        // test strategy is to verify that execution flows through to these dependencies.
+        // UploadValidationService is a simple call-through to the task factory and the validation scheduler. As such,
+        // our test strategy is to verify that execution flows through to these dependencies.
+        testWithSchedulerResult(true);
+    }
+
+    @Test
+    public void queueFull() {
+        testWithSchedulerResult(false);
+    }
 
+    @Test
+    public void durableQueue() {
         // inputs
         Study study = new DynamoStudy();
+        study.setIdentifier("test-study");
+        Upload upload = new DynamoUpload2();
+        User user = new User();
+
+        // mock durable queue
+        DurableUploadValidationQueue mockQueue = mock(DurableUploadValidationQueue.class);
+        when(mockQueue.isEnabled()).thenReturn(true);
+        when(mockQueue.hasCapacity()).thenReturn(true);
+        when(mockQueue.enqueue(study, upload)).thenReturn(true);
+
+        UploadValidationTaskFactory mockTaskFactory = mock(UploadValidationTaskFactory.class);
+        UploadValidationScheduler mockScheduler = mock(UploadValidationScheduler.class);
+
+        UploadValidationService svc = new UploadValidationService();
+        svc.setDurableQueue(mockQueue);
+        svc.setScheduler(mockScheduler);
+        svc.setTaskFactory(mockTaskFactory);
+
+        // execute and validate - upload goes to the durable queue, not the local scheduler
+        assertTrue(svc.hasCapacity());
+        assertTrue(svc.validateUpload(study, user, upload));
+        verify(mockQueue).enqueue(study, upload);
+        verify(mockScheduler, never()).hasCapacity();
+        verify(mockScheduler, never()).trySubmit(anyString(), any(Runnable.class));
+    }
+
+    @Test
+    public void durableQueueUnavailable() {
+        // inputs
+        Study study = new DynamoStudy();
+        study.setIdentifier("test-study");
+        Upload upload = new DynamoUpload2();
+        User user = new User();
+
+        // mock durable queue - Redis is down, so enqueue fails
+        DurableUploadValidationQueue mockQueue = mock(DurableUploadValidationQueue.class);
+        when(mockQueue.isEnabled()).thenReturn(true);
+        when(mockQueue.enqueue(study, upload)).thenReturn(false);
+
+        UploadValidationTask mockTask = mock(UploadValidationTask.class);
+        UploadValidationTaskFactory mockTaskFactory = mock(UploadValidationTaskFactory.class);
+        when(mockTaskFactory.newTask(study, user, upload)).thenReturn(mockTask);
+
+        UploadValidationScheduler mockScheduler = mock(UploadValidationScheduler.class);
+        when(mockScheduler.trySubmit("test-study", mockTask)).thenReturn(true);
+
+        UploadValidationService svc = new UploadValidationService();
+        svc.setDurableQueue(mockQueue);
+        svc.setScheduler(mockScheduler);
+        svc.setTaskFactory(mockTaskFactory);
+
+        // execute and validate - falls back to the local scheduler
+        assertTrue(svc.validateUpload(study, user, upload));
+        verify(mockScheduler).trySubmit("test-study", mockTask);
+    }
+
+    private static void testWithSchedulerResult(boolean submitted) {
+        // inputs
+        Study study = new DynamoStudy();
+        study.setIdentifier("test-study");
         Upload upload = new DynamoUpload2();
         User user = new User();
 
@@ -33,18 +107,24 @@ public class UploadValidationServiceTest {
         UploadValidationTaskFactory mockTaskFactory = mock(UploadValidationTaskFactory.class);
         when(mockTaskFactory.newTask(study, user, upload)).thenReturn(mockTask);
 
-        // mock async thread pool
-        ExecutorService mockExecutor = mock(ExecutorService.class);
+        // mock scheduler
+        UploadValidationScheduler mockScheduler = mock(UploadValidationScheduler.class);
+        when(mockScheduler.trySubmit("test-study", mockTask)).thenReturn(submitted);
+        when(mockScheduler.hasCapacity()).thenReturn(submitted);
 
         // set up service
         UploadValidationService svc = new UploadValidationService();
-        svc.setAsyncExecutorService(mockExecutor);
+        svc.setScheduler(mockScheduler);
         svc.setTaskFactory(mockTaskFactory);
 
-        // execute
-        svc.validateUpload(study, user, upload);
-
-        // validate
-        verify(mockExecutor).execute(mockTask);
+        // execute and validate
+        if (submitted) {
+            assertTrue(svc.hasCapacity());
+            assertTrue(svc.validateUpload(study, user, upload));
+        } else {
+            assertFalse(svc.hasCapacity());
+            assertFalse(svc.validateUpload(study, user, upload));
+        }
+        verify(mockScheduler).trySubmit("test-study", mockTask);
     }
 }
@@ -1,9 +1,6 @@
 package org.sagebionetworks.bridge.services.backfill;
 
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyLong;
-import static org.mockito.Matchers.eq;
-import static org.mockito.Matchers.longThat;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -11,16 +8,9 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import java.util.Arrays;
-import java.util.List;
-
-import org.hamcrest.Matcher;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.junit.Test;
-import org.mockito.ArgumentMatcher;
-import org.mockito.invocation.InvocationOnMock;
-import org.mockito.stubbing.Answer;
 import org.sagebionetworks.bridge.dao.BackfillDao;
 import org.sagebionetworks.bridge.dao.DistributedLockDao;
 import org.sagebionetworks.bridge.exceptions.ConcurrentModificationException;
@@ -71,6 +61,7 @@ public class AsyncBackfillTemplateTest {
 
         // Verify lock
         verify(lockDao, times(1)).acquireLock(lockClazz, lockObject, TestBackfillService.EXPIRE);
+        verify(lockDao, times(1)).startRenewal(lockClazz, lockObject, lock, TestBackfillService.EXPIRE);
         verify(lockDao, times(1)).releaseLock(lockClazz, lockObject, lock);
 
         // Verify backfill dao
@@ -96,19 +87,12 @@ public class AsyncBackfillTemplateTest {
         // Mock task and backfill dao
         final String taskName = "taskName";
         final String user = "user";
-        final long timestamp = DateTime.now(DateTimeZone.UTC).getMillis();
-        final String taskId1 = "taskId1";
-        final BackfillTask task1 = createBackfillTask(taskName, user, timestamp, taskId1, BackfillStatus.COMPLETED);
+        // An earlier task that is still running, long past the lock expiration, since its lock was renewed
+        final long timestamp = DateTime.now(DateTimeZone.UTC).minusHours(2).getMillis();
         final String taskId2 = "taskId2";
         final BackfillTask task2 = createBackfillTask(taskName, user, timestamp, taskId2, BackfillStatus.IN_PROCESS);
         BackfillDao backfillDao = mock(BackfillDao.class);
-        Answer<List<BackfillTask>> tasks = new Answer<List<BackfillTask>>() {
-            @Override
-            public List<BackfillTask> answer(InvocationOnMock invocation) throws Throwable {
-                return Arrays.asList(task1, task2);
-            }
-        };
-        when(backfillDao.getTasks(eq(taskName), anyLong())).thenAnswer(tasks);
+        when(backfillDao.getLatestTask(taskName, BackfillStatus.IN_PROCESS)).thenReturn(task2);
         backfillTemplate.setBackfillDao(backfillDao);
 
         // Mock
@@ -131,27 +115,15 @@ public class AsyncBackfillTemplateTest {
         backfillTemplate.setBackfillRecordFactory(recordFactory);
 
         // Do backfill
-        final long beforeBackfill = DateTime.now(DateTimeZone.UTC).getMillis();
         BackfillCallback callback = mock(BackfillCallback.class);
         backfillTemplate.backfill(user, taskName, callback);
         Thread.sleep(200L);
-        final long afterBackfill = DateTime.now(DateTimeZone.UTC).getMillis();
 
         // Verify lock
         verify(lockDao, times(1)).acquireLock(lockClazz, lockObject, TestBackfillService.EXPIRE);
 
         // Verify backfill dao
-        Matcher<Long> sinceMatcher = new ArgumentMatcher<Long>() {
-            @Override
-            public boolean matches(Object item) {
-                long since = ((Long)item).longValue();
-                long expireInMillis = TestBackfillService.EXPIRE * 1000L;
-                // Make sure the time point after which we look for the list of backfill tasks
-                // goes back for the duration of lock expiration
-                return beforeBackfill - expireInMillis < since && since < afterBackfill - expireInMillis;
-            }
-        };
-        verify(backfillDao, times(1)).getTasks(eq(taskName), longThat(sinceMatcher));
+        verify(backfillDao, times(1)).getLatestTask(taskName, BackfillStatus.IN_PROCESS);
         verify(backfillDao, times(1)).getRecordCount(taskId2);
 
         // Verify callback
@@ -0,0 +1,238 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.sagebionetworks.bridge.dao.UploadDao;
+import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
+import org.sagebionetworks.bridge.dynamodb.DynamoUpload2;
+import org.sagebionetworks.bridge.exceptions.NotFoundException;
+import org.sagebionetworks.bridge.models.accounts.User;
+import org.sagebionetworks.bridge.models.studies.Study;
+import org.sagebionetworks.bridge.models.upload.Upload;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
+import org.sagebionetworks.bridge.redis.RedisLeaseQueue;
+import org.sagebionetworks.bridge.services.StudyService;
+
+public class DurableUploadValidationQueueTest {
+    private RedisLeaseQueue mockLeaseQueue;
+    private UploadValidationScheduler mockScheduler;
+    private StudyService mockStudyService;
+    private UploadDao mockUploadDao;
+    private UploadValidationTaskFactory mockTaskFactory;
+    private DurableUploadValidationQueue queue;
+
+    @Before
+    public void setup() {
+        mockLeaseQueue = mock(RedisLeaseQueue.class);
+        when(mockLeaseQueue.reclaimExpired()).thenReturn(ImmutableList.<String>of());
+
+        // one idle worker
+        mockScheduler = mock(UploadValidationScheduler.class);
+        when(mockScheduler.getWorkerCount()).thenReturn(1);
+        when(mockScheduler.hasCapacity()).thenReturn(true);
+
+        mockStudyService = mock(StudyService.class);
+        mockUploadDao = mock(UploadDao.class);
+        mockTaskFactory = mock(UploadValidationTaskFactory.class);
+
+        queue = new DurableUploadValidationQueue(mockLeaseQueue, mockScheduler, 100, true, true, 1000);
+        queue.setStudyService(mockStudyService);
+        queue.setUploadDao(mockUploadDao);
+        queue.setTaskFactory(mockTaskFactory);
+    }
+
+    @Test
+    public void enqueue() {
+        Study study = new DynamoStudy();
+        study.setIdentifier("test-study");
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setUploadId("test-upload");
+
+        when(mockLeaseQueue.enqueue("test-study|test-upload")).thenReturn(true);
+        assertTrue(queue.enqueue(study, upload));
+    }
+
+    @Test
+    public void hasCapacity() {
+        when(mockLeaseQueue.getReadyCount()).thenReturn(99L);
+        assertTrue(queue.hasCapacity());
+
+        when(mockLeaseQueue.getReadyCount()).thenReturn(100L);
+        assertFalse(queue.hasCapacity());
+    }
+
+    @Test
+    public void hasCapacityRedisUnavailable() {
+        // falls back to the local scheduler
+        when(mockLeaseQueue.getReadyCount()).thenReturn(null);
+        when(mockScheduler.hasCapacity()).thenReturn(false);
+        assertFalse(queue.hasCapacity());
+    }
+
+    @Test
+    public void claimAndRun() {
+        // mock lease, upload, and study
+        RedisLeaseQueue.Lease mockLease = mockLease("test-study|test-upload");
+        when(mockLeaseQueue.claim()).thenReturn(mockLease, (RedisLeaseQueue.Lease) null);
+        when(mockLeaseQueue.complete(mockLease)).thenReturn(true);
+
+        DynamoUpload2 upload = makeInProgressUpload();
+        when(mockUploadDao.getUpload("test-upload")).thenReturn(upload);
+
+        Study study = new DynamoStudy();
+        when(mockStudyService.getStudy("test-study")).thenReturn(study);
+
+        UploadValidationTask mockTask = mock(UploadValidationTask.class);
+        ArgumentCaptor<User> userCaptor = ArgumentCaptor.forClass(User.class);
+        when(mockTaskFactory.newTask(eq(study), userCaptor.capture(), eq(upload))).thenReturn(mockTask);
+
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        when(mockScheduler.trySubmit(eq("test-study"), runnableCaptor.capture())).thenReturn(true);
+
+        // execute - task is submitted and its lease is held until it runs
+        queue.poll();
+        assertEquals("test-healthcode", userCaptor.getValue().getHealthCode());
+        assertEquals(1, queue.getActiveLeaseCount());
+
+        queue.renewLeases();
+        verify(mockLeaseQueue).renew(mockLease);
+
+        // run the task - lease is completed
+        runnableCaptor.getValue().run();
+        verify(mockTask).run();
+        verify(mockLeaseQueue).complete(mockLease);
+        assertEquals(0, queue.getActiveLeaseCount());
+    }
+
+    @Test
+    public void taskThrowsLeaseNotCompleted() {
+        RedisLeaseQueue.Lease mockLease = mockLease("test-study|test-upload");
+        when(mockLeaseQueue.claim()).thenReturn(mockLease, (RedisLeaseQueue.Lease) null);
+        when(mockUploadDao.getUpload("test-upload")).thenReturn(makeInProgressUpload());
+        when(mockStudyService.getStudy("test-study")).thenReturn(new DynamoStudy());
+
+        UploadValidationTask mockTask = mock(UploadValidationTask.class);
+        doThrow(new RuntimeException("test exception")).when(mockTask).run();
+        when(mockTaskFactory.newTask(any(Study.class), any(User.class), any(Upload.class))).thenReturn(mockTask);
+
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        when(mockScheduler.trySubmit(eq("test-study"), runnableCaptor.capture())).thenReturn(true);
+
+        queue.poll();
+        try {
+            runnableCaptor.getValue().run();
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+
+        // lease is left to expire, so the upload is retried, and we stop renewing it
+        verify(mockLeaseQueue, never()).complete(mockLease);
+        assertEquals(0, queue.getActiveLeaseCount());
+    }
+
+    @Test
+    public void schedulerFullReleasesLease() {
+        RedisLeaseQueue.Lease mockLease = mockLease("test-study|test-upload");
+        when(mockLeaseQueue.claim()).thenReturn(mockLease);
+        when(mockLeaseQueue.release(mockLease)).thenReturn(true);
+        when(mockUploadDao.getUpload("test-upload")).thenReturn(makeInProgressUpload());
+        when(mockStudyService.getStudy("test-study")).thenReturn(new DynamoStudy());
+        when(mockTaskFactory.newTask(any(Study.class), any(User.class), any(Upload.class))).thenReturn(
+                mock(UploadValidationTask.class));
+
+        // local queue filled up between the capacity check and the submit
+        when(mockScheduler.trySubmit(eq("test-study"), any(Runnable.class))).thenReturn(false);
+
+        queue.poll();
+
+        // lease is put back without using up an attempt, and we stop claiming until the next poll
+        verify(mockLeaseQueue).release(mockLease);
+        verify(mockLeaseQueue, times(1)).claim();
+        verify(mockLeaseQueue, never()).complete(mockLease);
+        assertEquals(0, queue.getActiveLeaseCount());
+    }
+
+    @Test
+    public void alreadyValidated() {
+        RedisLeaseQueue.Lease mockLease = mockLease("test-study|test-upload");
+        when(mockLeaseQueue.claim()).thenReturn(mockLease, (RedisLeaseQueue.Lease) null);
+
+        DynamoUpload2 upload = makeInProgressUpload();
+        upload.setStatus(UploadStatus.SUCCEEDED);
+        when(mockUploadDao.getUpload("test-upload")).thenReturn(upload);
+
+        queue.poll();
+        verify(mockLeaseQueue).complete(mockLease);
+        verify(mockScheduler, never()).trySubmit(anyString(), any(Runnable.class));
+    }
+
+    @Test
+    public void uploadNotFound() {
+        RedisLeaseQueue.Lease mockLease = mockLease("test-study|test-upload");
+        when(mockLeaseQueue.claim()).thenReturn(mockLease, (RedisLeaseQueue.Lease) null);
+        when(mockUploadDao.getUpload("test-upload")).thenThrow(new NotFoundException("test exception"));
+
+        queue.poll();
+        verify(mockLeaseQueue).complete(mockLease);
+        verify(mockScheduler, never()).trySubmit(anyString(), any(Runnable.class));
+    }
+
+    @Test
+    public void noIdleWorkers() {
+        when(mockScheduler.getRunningCount()).thenReturn(1);
+        queue.poll();
+        verify(mockLeaseQueue, never()).claim();
+    }
+
+    @Test
+    public void deadUploadsMarkedFailed() {
+        when(mockLeaseQueue.reclaimExpired()).thenReturn(ImmutableList.of("test-study|test-upload"));
+        DynamoUpload2 upload = makeInProgressUpload();
+        when(mockUploadDao.getUpload("test-upload")).thenReturn(upload);
+
+        queue.poll();
+        verify(mockUploadDao).writeValidationStatus(eq(upload), eq(UploadStatus.VALIDATION_FAILED),
+                anyListOf(String.class));
+    }
+
+    @Test
+    public void workerDisabledDoesNotStart() {
+        DurableUploadValidationQueue apiOnlyQueue = new DurableUploadValidationQueue(mockLeaseQueue, mockScheduler,
+                100, true, false, 1000);
+        apiOnlyQueue.start();
+        apiOnlyQueue.shutdown();
+        verify(mockLeaseQueue, never()).claim();
+    }
+
+    private static RedisLeaseQueue.Lease mockLease(String payload) {
+        RedisLeaseQueue.Lease mockLease = mock(RedisLeaseQueue.Lease.class);
+        when(mockLease.getPayload()).thenReturn(payload);
+        when(mockLease.getAttempt()).thenReturn(1);
+        return mockLease;
+    }
+
+    private static DynamoUpload2 makeInProgressUpload() {
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setHealthCode("test-healthcode");
+        upload.setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+        upload.setUploadId("test-upload");
+        return upload;
+    }
+}
@@ -1,10 +1,12 @@
 package org.sagebionetworks.bridge.upload;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Charsets;
@@ -37,4 +39,61 @@ public class ParseJsonHandlerTest {
         assertEquals(1, jsonInnerMap.size());
         assertTrue((boolean) jsonInnerMap.get("isJson"));
     }
+
+    @Test
+    public void parallelParse() {
+        // Enough likely-JSON entries to trigger parallel parsing, plus a binary entry and a text entry.
+        Map<String, byte[]> inputMap = new HashMap<>();
+        for (int i = 0; i < ParseJsonHandler.PARALLEL_PARSE_THRESHOLD; i++) {
+            inputMap.put("file" + i, ("{\"index\":" + i + "}").getBytes(Charsets.UTF_8));
+        }
+        inputMap.put("audio.m4a", new byte[] { 0x00, 0x00, 0x00, 0x20, 'f', 't', 'y', 'p' });
+        inputMap.put("not-json", "{this looks like JSON, but isn't".getBytes(Charsets.UTF_8));
+
+        UploadValidationContext ctx = new UploadValidationContext();
+        ctx.setUnzippedDataMap(inputMap);
+
+        // execute and validate
+        ParseJsonHandler handler = new ParseJsonHandler();
+        handler.setParsePool(new ForkJoinPool(2));
+        handler.handle(ctx);
+
+        Map<String, byte[]> byteMap = ctx.getUnzippedDataMap();
+        assertEquals(2, byteMap.size());
+        assertTrue(byteMap.containsKey("audio.m4a"));
+        assertTrue(byteMap.containsKey("not-json"));
+
+        Map<String, JsonNode> jsonDataMap = ctx.getJsonDataMap();
+        assertEquals(ParseJsonHandler.PARALLEL_PARSE_THRESHOLD, jsonDataMap.size());
+        for (int i = 0; i < ParseJsonHandler.PARALLEL_PARSE_THRESHOLD; i++) {
+            assertEquals(i, jsonDataMap.get("file" + i).get("index").intValue());
+        }
+    }
+
+    @Test
+    public void isLikelyJson() {
+        // JSON filename extension is always likely JSON
+        assertTrue(ParseJsonHandler.isLikelyJson("info.json", "garbage".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("INFO.JSON", new byte[0]));
+
+        // any character that can start a JSON value, with leading whitespace
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "  {}".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "\n[1]".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "\"str\"".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "-1".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "42".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "true".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "false".getBytes(Charsets.UTF_8)));
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", "null".getBytes(Charsets.UTF_8)));
+
+        // UTF-8 byte order mark
+        assertTrue(ParseJsonHandler.isLikelyJson("foo", new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '{',
+                '}' }));
+
+        // not JSON
+        assertFalse(ParseJsonHandler.isLikelyJson("foo", new byte[0]));
+        assertFalse(ParseJsonHandler.isLikelyJson("foo", " \t\r\n".getBytes(Charsets.UTF_8)));
+        assertFalse(ParseJsonHandler.isLikelyJson("foo", "This is not JSON".getBytes(Charsets.UTF_8)));
+        assertFalse(ParseJsonHandler.isLikelyJson("audio.m4a", new byte[] { 0x00, 0x00, 0x00, 0x20 }));
+    }
 }
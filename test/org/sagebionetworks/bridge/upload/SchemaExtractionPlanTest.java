@@ -0,0 +1,103 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import org.sagebionetworks.bridge.dynamodb.DynamoUploadFieldDefinition;
+import org.sagebionetworks.bridge.dynamodb.DynamoUploadSchema;
+import org.sagebionetworks.bridge.json.BridgeObjectMapper;
+import org.sagebionetworks.bridge.models.upload.UploadFieldDefinition;
+import org.sagebionetworks.bridge.models.upload.UploadFieldType;
+
+public class SchemaExtractionPlanTest {
+    @Test
+    public void compile() {
+        DynamoUploadSchema schema = new DynamoUploadSchema();
+        schema.setFieldDefinitions(ImmutableList.<UploadFieldDefinition>of(
+                new DynamoUploadFieldDefinition.Builder().withName("wholeFile").withType(UploadFieldType.STRING)
+                        .build(),
+                new DynamoUploadFieldDefinition.Builder().withName("foo.json.bar")
+                        .withType(UploadFieldType.ATTACHMENT_JSON_BLOB).build()));
+        List<SchemaExtractionPlan.FieldPlan> fieldPlanList = SchemaExtractionPlan.compile(schema)
+                .getFieldPlanList();
+        assertEquals(2, fieldPlanList.size());
+
+        // field with no dots can only be a whole file
+        SchemaExtractionPlan.FieldPlan wholeFilePlan = fieldPlanList.get(0);
+        assertEquals("wholeFile", wholeFilePlan.getFieldName());
+        assertFalse(wholeFilePlan.isAttachment());
+        assertTrue(wholeFilePlan.getKeySourceList().isEmpty());
+
+        // field with dots is split at every dot
+        SchemaExtractionPlan.FieldPlan keyPlan = fieldPlanList.get(1);
+        assertEquals("foo.json.bar", keyPlan.getFieldName());
+        assertTrue(keyPlan.isAttachment());
+
+        List<SchemaExtractionPlan.JsonKeySource> keySourceList = keyPlan.getKeySourceList();
+        assertEquals(2, keySourceList.size());
+        assertEquals("foo", keySourceList.get(0).getFilename());
+        assertEquals("json.bar", keySourceList.get(0).getKey());
+        assertEquals("foo.json", keySourceList.get(1).getFilename());
+        assertEquals("bar", keySourceList.get(1).getKey());
+    }
+
+    @Test
+    public void findJsonKeyValue() throws Exception {
+        SchemaExtractionPlan.FieldPlan fieldPlan = makeFieldPlan("foo.json.bar");
+
+        JsonNode fooNode = BridgeObjectMapper.get().readTree("{\"bar\":\"bar value\", \"baz\":\"baz value\"}");
+        Map<String, JsonNode> jsonDataMap = ImmutableMap.of("foo.json", fooNode);
+        assertEquals("bar value", fieldPlan.findJsonKeyValue(jsonDataMap, "info.json").textValue());
+    }
+
+    @Test
+    public void findJsonKeyValueNullValue() throws Exception {
+        SchemaExtractionPlan.FieldPlan fieldPlan = makeFieldPlan("foo.json.bar");
+
+        // Key is present with a null value. This is returned as a null node, so the handler can report it.
+        JsonNode fooNode = BridgeObjectMapper.get().readTree("{\"bar\":null}");
+        Map<String, JsonNode> jsonDataMap = ImmutableMap.of("foo.json", fooNode);
+        assertTrue(fieldPlan.findJsonKeyValue(jsonDataMap, "info.json").isNull());
+    }
+
+    @Test
+    public void findJsonKeyValueMissing() throws Exception {
+        SchemaExtractionPlan.FieldPlan fieldPlan = makeFieldPlan("foo.json.bar");
+
+        // missing key, non-object file, and missing file
+        Map<String, JsonNode> jsonDataMap = ImmutableMap.of("foo.json", BridgeObjectMapper.get().readTree(
+                "{\"baz\":\"baz value\"}"));
+        assertNull(fieldPlan.findJsonKeyValue(jsonDataMap, "info.json"));
+
+        jsonDataMap = ImmutableMap.of("foo.json", BridgeObjectMapper.get().readTree("[\"bar\"]"));
+        assertNull(fieldPlan.findJsonKeyValue(jsonDataMap, "info.json"));
+
+        assertNull(fieldPlan.findJsonKeyValue(ImmutableMap.<String, JsonNode>of(), "info.json"));
+    }
+
+    @Test
+    public void findJsonKeyValueSkipsInfoJson() throws Exception {
+        SchemaExtractionPlan.FieldPlan fieldPlan = makeFieldPlan("info.json.item");
+
+        Map<String, JsonNode> jsonDataMap = ImmutableMap.of("info.json", BridgeObjectMapper.get().readTree(
+                "{\"item\":\"test-schema\"}"));
+        assertNull(fieldPlan.findJsonKeyValue(jsonDataMap, "info.json"));
+    }
+
+    private static SchemaExtractionPlan.FieldPlan makeFieldPlan(String fieldName) {
+        DynamoUploadSchema schema = new DynamoUploadSchema();
+        schema.setFieldDefinitions(ImmutableList.<UploadFieldDefinition>of(new DynamoUploadFieldDefinition.Builder()
+                .withName(fieldName).withType(UploadFieldType.STRING).build()));
+        return SchemaExtractionPlan.compile(schema).getFieldPlanList().get(0);
+    }
+}
@@ -0,0 +1,82 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillableByteArrayMapTest {
+    private static final byte[] FOO_BYTES = "This is foo data".getBytes(Charsets.UTF_8);
+    private static final byte[] BAR_BYTES = "This is bar data".getBytes(Charsets.UTF_8);
+
+    private UploadPayloadMemoryBudget budget;
+    private SpillableByteArrayMap map;
+
+    @Before
+    public void before() {
+        // Budget only has room for one entry, so the second entry is spilled.
+        budget = new UploadPayloadMemoryBudget(FOO_BYTES.length, 1);
+        map = new SpillableByteArrayMap(new UploadPayloadStore(budget));
+        map.put("foo", FOO_BYTES);
+        map.put("bar", BAR_BYTES);
+    }
+
+    @Test
+    public void getAndContains() {
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey("foo"));
+        assertTrue(map.containsKey("bar"));
+        assertFalse(map.containsKey("baz"));
+        assertArrayEquals(FOO_BYTES, map.get("foo"));
+        assertArrayEquals(BAR_BYTES, map.get("bar"));
+        assertNull(map.get("baz"));
+    }
+
+    @Test
+    public void removeReleasesBudget() {
+        assertArrayEquals(FOO_BYTES, map.remove("foo"));
+        assertEquals(0, budget.getReservedBytes());
+        assertEquals(1, map.size());
+        assertNull(map.remove("foo"));
+    }
+
+    @Test
+    public void iteratorRemove() {
+        // Handlers may remove entries while iterating over the unzipped data map.
+        Iterator<Map.Entry<String, byte[]>> iter = map.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, byte[]> oneEntry = iter.next();
+            if (oneEntry.getKey().equals("foo")) {
+                assertArrayEquals(FOO_BYTES, oneEntry.getValue());
+                iter.remove();
+            }
+        }
+
+        assertEquals(1, map.size());
+        assertArrayEquals(BAR_BYTES, map.get("bar"));
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void replaceAndClear() {
+        // put returns the replaced value, on heap or spilled, like any map
+        assertArrayEquals(FOO_BYTES, map.put("foo", BAR_BYTES));
+        assertArrayEquals(BAR_BYTES, map.get("foo"));
+        assertArrayEquals(BAR_BYTES, map.put("bar", FOO_BYTES));
+        assertArrayEquals(FOO_BYTES, map.get("bar"));
+        assertNull(map.put("baz", FOO_BYTES));
+        assertEquals(3, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, budget.getReservedBytes());
+    }
+}
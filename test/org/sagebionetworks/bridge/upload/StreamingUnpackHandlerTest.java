@@ -0,0 +1,100 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.notNull;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Charsets;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.sagebionetworks.bridge.TestConstants;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CmsEncryptor;
+import org.sagebionetworks.bridge.crypto.PemUtils;
+import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
+import org.sagebionetworks.bridge.dynamodb.DynamoUpload2;
+import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.services.UploadArchiveService;
+
+@SuppressWarnings("unchecked")
+public class StreamingUnpackHandlerTest {
+    private UploadArchiveService archiveService;
+
+    @Before
+    public void before() throws Exception {
+        // Use a real archive service with real encryption materials, so we can test the whole streaming pipeline.
+        File certFile = new File("test/resources/cms/rsacert.pem");
+        byte[] certBytes = Files.readAllBytes(certFile.toPath());
+        X509Certificate cert = PemUtils.loadCertificateFromPem(new String(certBytes));
+        File privateKeyFile = new File("test/resources/cms/rsaprivkey.pem");
+        byte[] privateKeyBytes = Files.readAllBytes(privateKeyFile.toPath());
+        PrivateKey privateKey = PemUtils.loadPrivateKeyFromPem(new String(privateKeyBytes));
+        CmsEncryptor encryptor = new BcCmsEncryptor(cert, privateKey);
+
+        LoadingCache<String, CmsEncryptor> mockEncryptorCache = mock(LoadingCache.class);
+        when(mockEncryptorCache.get(notNull(String.class))).thenReturn(encryptor);
+
+        archiveService = new UploadArchiveService();
+        archiveService.setCmsEncryptorCache(mockEncryptorCache);
+    }
+
+    @Test
+    public void test() throws Exception {
+        // zip and encrypt test archive
+        Map<String, byte[]> archiveMap = ImmutableMap.of(
+                "info.json", "{\"item\":\"test-schema\"}".getBytes(Charsets.UTF_8),
+                "audio.m4a", "This is not JSON".getBytes(Charsets.UTF_8));
+        byte[] encryptedArchive = archiveService.encrypt("test-study", archiveService.zip(archiveMap));
+
+        // mock S3 helper
+        S3Helper mockS3Helper = mock(S3Helper.class);
+        when(mockS3Helper.getS3FileAsStream(TestConstants.UPLOAD_BUCKET, "test-upload-id")).thenReturn(
+                new ByteArrayInputStream(encryptedArchive));
+
+        // inputs
+        DynamoStudy study = new DynamoStudy();
+        study.setIdentifier("test-study");
+
+        DynamoUpload2 upload2 = new DynamoUpload2();
+        upload2.setUploadId("test-upload-id");
+
+        UploadValidationContext ctx = new UploadValidationContext();
+        ctx.setStudy(study);
+        ctx.setUpload(upload2);
+
+        // set up test handler
+        StreamingUnpackHandler handler = new StreamingUnpackHandler();
+        handler.setS3Helper(mockS3Helper);
+        handler.setUploadArchiveService(archiveService);
+
+        // execute and validate
+        handler.handle(ctx);
+
+        Map<String, byte[]> unzippedDataMap = ctx.getUnzippedDataMap();
+        assertEquals(1, unzippedDataMap.size());
+        assertEquals("This is not JSON", new String(unzippedDataMap.get("audio.m4a"), Charsets.UTF_8));
+
+        Map<String, JsonNode> jsonDataMap = ctx.getJsonDataMap();
+        assertEquals(1, jsonDataMap.size());
+        assertEquals("test-schema", jsonDataMap.get("info.json").get("item").textValue());
+
+        // the raw and decrypted archives are never materialized
+        assertNull(ctx.getData());
+        assertNull(ctx.getDecryptedData());
+        assertTrue(ctx.getMessageList().isEmpty());
+    }
+}
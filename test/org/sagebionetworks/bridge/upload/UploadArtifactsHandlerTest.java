@@ -1,21 +1,41 @@
 package org.sagebionetworks.bridge.upload;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
+import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
@@ -29,42 +49,26 @@ import org.sagebionetworks.bridge.models.healthdata.HealthDataAttachment;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataAttachmentBuilder;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataRecord;
 import org.sagebionetworks.bridge.models.healthdata.HealthDataRecordBuilder;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.services.HealthDataService;
 
+@SuppressWarnings({ "rawtypes", "unchecked" })
 public class UploadArtifactsHandlerTest {
-    private static final String ATTACHMENT_ID_BAR = "attachment-bar";
-    private static final String ATTACHMENT_ID_FOO = "attachment-foo";
     private static final String ATTACHMENT_TEXT_BAR = "This is bar";
     private static final String ATTACHMENT_TEXT_FOO = "This is foo";
     private static final byte[] BYTES_BAR = ATTACHMENT_TEXT_BAR.getBytes(Charsets.UTF_8);
     private static final byte[] BYTES_FOO = ATTACHMENT_TEXT_FOO.getBytes(Charsets.UTF_8);
-    private static final String TEST_RECORD_ID = "test-record";
     private static final String TEST_UPLOAD_ID = "test-upload";
 
-    @Test
-    public void test() throws Exception {
-        // Intermediate record w/o attachments.
-        String dataJsonText = "{\n" +
-                "   \"json.json.string\":\"This is a string\",\n" +
-                "   \"json.json.int\":42\n" +
-                "}";
-        JsonNode dataJson = BridgeObjectMapper.get().readTree(dataJsonText);
-        HealthDataRecord intermediateRecord = createValidRecordBuilder(dataJson).withId(TEST_RECORD_ID).build();
+    private HealthDataService mockHealthDataService;
+    private S3Helper mockS3Helper;
+    private UploadArtifactsHandler handler;
 
+    @Before
+    public void before() {
         // mock health data service
-        HealthDataService mockHealthDataService = mock(HealthDataService.class);
-
-        ArgumentCaptor<HealthDataRecord> createRecordArgCaptor = ArgumentCaptor.forClass(HealthDataRecord.class);
-        when(mockHealthDataService.createOrUpdateRecord(createRecordArgCaptor.capture())).thenReturn(TEST_RECORD_ID);
-
-        ArgumentCaptor<HealthDataAttachment> createAttachmentArgCaptor = ArgumentCaptor.forClass(
-                HealthDataAttachment.class);
-        when(mockHealthDataService.createOrUpdateAttachment(createAttachmentArgCaptor.capture())).thenReturn(
-                ATTACHMENT_ID_BAR, ATTACHMENT_ID_FOO);
-
-        when(mockHealthDataService.getRecordById(TEST_RECORD_ID)).thenReturn(intermediateRecord);
-
+        mockHealthDataService = mock(HealthDataService.class);
         when(mockHealthDataService.getAttachmentBuilder()).thenAnswer(new Answer<HealthDataAttachmentBuilder>() {
             @Override
             public HealthDataAttachmentBuilder answer(InvocationOnMock invocation) {
@@ -72,82 +76,212 @@ public class UploadArtifactsHandlerTest {
             }
         });
 
-        when(mockHealthDataService.getRecordBuilder()).thenAnswer(new Answer<HealthDataRecordBuilder>() {
-            @Override
-            public HealthDataRecordBuilder answer(InvocationOnMock invocation) {
-                return new DynamoHealthDataRecord.Builder();
-            }
-        });
-
         // mock S3 helper
-        S3Helper mockS3Helper = mock(S3Helper.class);
+        mockS3Helper = mock(S3Helper.class);
 
         // set up handler
-        UploadArtifactsHandler handler = new UploadArtifactsHandler();
+        handler = new UploadArtifactsHandler();
         handler.setHealthDataService(mockHealthDataService);
         handler.setS3Helper(mockS3Helper);
+        handler.setAttachmentExecutorService(MoreExecutors.newDirectExecutorService());
+    }
+
+    @Test
+    public void test() throws Exception {
+        // Record data w/o attachments.
+        String dataJsonText = "{\n" +
+                "   \"json.json.string\":\"This is a string\",\n" +
+                "   \"json.json.int\":42\n" +
+                "}";
+        JsonNode dataJson = BridgeObjectMapper.get().readTree(dataJsonText);
+
+        ArgumentCaptor<HealthDataRecord> createRecordArgCaptor = ArgumentCaptor.forClass(HealthDataRecord.class);
+        ArgumentCaptor<List> createAttachmentArgCaptor = ArgumentCaptor.forClass(List.class);
 
         // set up context
         // To make sure tests are consistent, use a TreeMap for the attachment map, so that the keys are returned in
         // alphabetical order.
         Map<String, byte[]> attachmentMap = new TreeMap<>();
-        attachmentMap.put("bar.txt", "This is bar".getBytes(Charsets.UTF_8));
-        attachmentMap.put("foo.txt", "This is foo".getBytes(Charsets.UTF_8));
-
-        // Most important thing in the record builder is the data map. It's the same as the one we expect back in the
-        // intermediate record
-        HealthDataRecordBuilder recordBuilder = createValidRecordBuilder(dataJson);
-
-        // only need upload ID from upload
-        DynamoUpload2 upload = new DynamoUpload2();
-        upload.setUploadId(TEST_UPLOAD_ID);
-
-        UploadValidationContext context = new UploadValidationContext();
-        context.setAttachmentsByFieldName(attachmentMap);
-        context.setHealthDataRecordBuilder(recordBuilder);
-        context.setUpload(upload);
+        attachmentMap.put("bar.txt", BYTES_BAR);
+        attachmentMap.put("foo.txt", BYTES_FOO);
+        UploadValidationContext context = createContext(dataJson, attachmentMap);
 
         // execute
         handler.handle(context);
 
-        // validate result - create record
-        List<HealthDataRecord> createRecordArgList = createRecordArgCaptor.getAllValues();
-        assertEquals(2, createRecordArgList.size());
-
-        // First record is the intermediate record. This will have data, but no record ID, since record ID is assigned
-        // by this call.
-        HealthDataRecord createIntermediateRecordArg = createRecordArgList.get(0);
-        JsonNode createIntermediateRecordDataJson = createIntermediateRecordArg.getData();
-        assertEquals(2, createIntermediateRecordDataJson.size());
-        assertEquals("This is a string", createIntermediateRecordDataJson.get("json.json.string").textValue());
-        assertEquals(42, createIntermediateRecordDataJson.get("json.json.int").intValue());
-
-        // Second record is the final record. This has data (with attachments) and record ID;
-        HealthDataRecord createFinalRecordArg = createRecordArgList.get(1);
-        assertEquals(TEST_RECORD_ID, createFinalRecordArg.getId());
-        JsonNode createFinalRecordDataJson = createFinalRecordArg.getData();
-        assertEquals(4, createFinalRecordDataJson.size());
-        assertEquals("This is a string", createFinalRecordDataJson.get("json.json.string").textValue());
-        assertEquals(42, createFinalRecordDataJson.get("json.json.int").intValue());
-        assertEquals(ATTACHMENT_ID_BAR, createFinalRecordDataJson.get("bar.txt").textValue());
-        assertEquals(ATTACHMENT_ID_FOO, createFinalRecordDataJson.get("foo.txt").textValue());
-
-        // validate - create attachment. The order doesn't matter, since the call to create
-        // attachment only includes the record ID, which is the same for all attachments in a given record.
-        List<HealthDataAttachment> createAttachmentArgList = createAttachmentArgCaptor.getAllValues();
+        // validate result - the record is created exactly once, and never read back
+        verify(mockHealthDataService, times(1)).createOrUpdateRecord(createRecordArgCaptor.capture());
+        verify(mockHealthDataService, never()).getRecordById(anyString());
+
+        // The record has its pre-assigned record ID and data (with attachments).
+        HealthDataRecord createRecordArg = createRecordArgCaptor.getValue();
+        String recordId = createRecordArg.getId();
+        assertFalse(Strings.isNullOrEmpty(recordId));
+        JsonNode createRecordDataJson = createRecordArg.getData();
+        assertEquals(4, createRecordDataJson.size());
+        assertEquals("This is a string", createRecordDataJson.get("json.json.string").textValue());
+        assertEquals(42, createRecordDataJson.get("json.json.int").intValue());
+        String attachmentIdBar = createRecordDataJson.get("bar.txt").textValue();
+        String attachmentIdFoo = createRecordDataJson.get("foo.txt").textValue();
+        assertFalse(Strings.isNullOrEmpty(attachmentIdBar));
+        assertFalse(Strings.isNullOrEmpty(attachmentIdFoo));
+        assertNotEquals(attachmentIdBar, attachmentIdFoo);
+
+        // validate - create attachment. Attachments are created in a single batch, with pre-assigned attachment IDs
+        // and the pre-assigned record ID.
+        verify(mockHealthDataService).createOrUpdateAttachments(createAttachmentArgCaptor.capture());
+        List<HealthDataAttachment> createAttachmentArgList = createAttachmentArgCaptor.getValue();
         assertEquals(2, createAttachmentArgList.size());
+        Set<String> attachmentIdSet = new HashSet<>();
         for (HealthDataAttachment oneAttachment : createAttachmentArgList) {
-            assertEquals(TEST_RECORD_ID, oneAttachment.getRecordId());
+            assertEquals(recordId, oneAttachment.getRecordId());
+            attachmentIdSet.add(oneAttachment.getId());
         }
+        assertEquals(ImmutableSet.of(attachmentIdBar, attachmentIdFoo), attachmentIdSet);
+
+        // attachment metadata is written only after the record
+        InOrder inOrder = inOrder(mockHealthDataService);
+        inOrder.verify(mockHealthDataService).createOrUpdateRecord(any(HealthDataRecord.class));
+        inOrder.verify(mockHealthDataService).createOrUpdateAttachments(any(List.class));
 
         // validate - S3 uploads
-        verify(mockS3Helper).writeBytesToS3(TestConstants.ATTACHMENT_BUCKET, ATTACHMENT_ID_BAR, BYTES_BAR);
-        verify(mockS3Helper).writeBytesToS3(TestConstants.ATTACHMENT_BUCKET, ATTACHMENT_ID_FOO, BYTES_FOO);
+        verify(mockS3Helper).writeBytesToS3(TestConstants.ATTACHMENT_BUCKET, attachmentIdBar, BYTES_BAR);
+        verify(mockS3Helper).writeBytesToS3(TestConstants.ATTACHMENT_BUCKET, attachmentIdFoo, BYTES_FOO);
 
         // validate no messages on the context
         assertTrue(context.getMessageList().isEmpty());
     }
 
+    @Test
+    public void noAttachments() throws Exception {
+        JsonNode dataJson = BridgeObjectMapper.get().readTree("{\"json.json.int\":42}");
+        UploadValidationContext context = createContext(dataJson, new TreeMap<String, byte[]>());
+
+        // execute
+        handler.handle(context);
+
+        // validate - record is created once, with no attachment writes
+        ArgumentCaptor<HealthDataRecord> createRecordArgCaptor = ArgumentCaptor.forClass(HealthDataRecord.class);
+        verify(mockHealthDataService, times(1)).createOrUpdateRecord(createRecordArgCaptor.capture());
+        assertFalse(Strings.isNullOrEmpty(createRecordArgCaptor.getValue().getId()));
+        assertEquals(1, createRecordArgCaptor.getValue().getData().size());
+        verify(mockHealthDataService, never()).createOrUpdateAttachments(any(List.class));
+        verifyZeroInteractions(mockS3Helper);
+        assertTrue(context.getMessageList().isEmpty());
+    }
+
+    @Test
+    public void attachmentS3Failure() throws Exception {
+        // mock S3 helper - bar fails, foo succeeds
+        doThrow(IOException.class).when(mockS3Helper).writeBytesToS3(eq(TestConstants.ATTACHMENT_BUCKET),
+                anyString(), eq(BYTES_BAR));
+
+        // set up context
+        Map<String, byte[]> attachmentMap = new TreeMap<>();
+        attachmentMap.put("bar.txt", BYTES_BAR);
+        attachmentMap.put("foo.txt", BYTES_FOO);
+        UploadValidationContext context = createContext(BridgeObjectMapper.get().createObjectNode(), attachmentMap);
+
+        // execute
+        handler.handle(context);
+
+        // validate - foo was still uploaded, the record was still written, and bar's failure is in the messages
+        verify(mockS3Helper).writeBytesToS3(eq(TestConstants.ATTACHMENT_BUCKET), anyString(), eq(BYTES_FOO));
+        verify(mockHealthDataService).createOrUpdateRecord(any(HealthDataRecord.class));
+        assertEquals(1, context.getMessageList().size());
+        assertTrue(context.getMessageList().get(0).contains("bar.txt"));
+    }
+
+    @Test
+    public void recordWriteFailureDeletesAttachments() throws Exception {
+        doThrow(new RuntimeException("test exception")).when(mockHealthDataService).createOrUpdateRecord(
+                any(HealthDataRecord.class));
+
+        Map<String, byte[]> attachmentMap = new TreeMap<>();
+        attachmentMap.put("foo.txt", BYTES_FOO);
+        UploadValidationContext context = createContext(BridgeObjectMapper.get().createObjectNode(), attachmentMap);
+
+        try {
+            handler.handle(context);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            assertEquals("test exception", ex.getMessage());
+        }
+
+        // the attachment was uploaded, then deleted, and no attachment metadata was written
+        ArgumentCaptor<String> attachmentIdCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockS3Helper).writeBytesToS3(eq(TestConstants.ATTACHMENT_BUCKET), attachmentIdCaptor.capture(),
+                eq(BYTES_FOO));
+        verify(mockS3Helper).deleteS3File(TestConstants.ATTACHMENT_BUCKET, attachmentIdCaptor.getValue());
+        verify(mockHealthDataService, never()).createOrUpdateAttachments(any(List.class));
+    }
+
+    @Test
+    public void reprocessingReplacesExistingRecord() throws Exception {
+        // existing record, from when the upload was first validated
+        JsonNode existingData = BridgeObjectMapper.get().readTree("{\"foo.txt\":\"existing-foo-id\"}");
+        HealthDataRecord existingRecord = createValidRecordBuilder(existingData).withId("existing-record-id")
+                .withUploadId(TEST_UPLOAD_ID).build();
+        ((DynamoHealthDataRecord) existingRecord).setVersion(3L);
+        when(mockHealthDataService.getRecordsForUpload("test-health-code", TEST_UPLOAD_ID)).thenReturn(
+                ImmutableList.of(existingRecord));
+
+        // set up context - bar is a new attachment field
+        Map<String, byte[]> attachmentMap = new TreeMap<>();
+        attachmentMap.put("bar.txt", BYTES_BAR);
+        attachmentMap.put("foo.txt", BYTES_FOO);
+        UploadValidationContext context = createContext(BridgeObjectMapper.get().createObjectNode(), attachmentMap);
+        DynamoUpload2 upload = (DynamoUpload2) context.getUpload();
+        upload.setHealthCode("test-health-code");
+        upload.setStatus(UploadStatus.SUCCEEDED);
+
+        // execute
+        handler.handle(context);
+
+        // validate - the existing record is overwritten, with its record ID and version
+        ArgumentCaptor<HealthDataRecord> createRecordArgCaptor = ArgumentCaptor.forClass(HealthDataRecord.class);
+        verify(mockHealthDataService, times(1)).createOrUpdateRecord(createRecordArgCaptor.capture());
+        HealthDataRecord createRecordArg = createRecordArgCaptor.getValue();
+        assertEquals("existing-record-id", createRecordArg.getId());
+        assertEquals(3L, createRecordArg.getVersion().longValue());
+
+        // foo keeps its attachment ID (and S3 key), bar gets a new one
+        assertEquals("existing-foo-id", createRecordArg.getData().get("foo.txt").textValue());
+        String attachmentIdBar = createRecordArg.getData().get("bar.txt").textValue();
+        assertNotEquals("existing-foo-id", attachmentIdBar);
+        verify(mockS3Helper).writeBytesToS3(TestConstants.ATTACHMENT_BUCKET, "existing-foo-id", BYTES_FOO);
+        verify(mockS3Helper).writeBytesToS3(TestConstants.ATTACHMENT_BUCKET, attachmentIdBar, BYTES_BAR);
+
+        ArgumentCaptor<List> createAttachmentArgCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockHealthDataService).createOrUpdateAttachments(createAttachmentArgCaptor.capture());
+        for (HealthDataAttachment oneAttachment : (List<HealthDataAttachment>) createAttachmentArgCaptor.getValue()) {
+            assertEquals("existing-record-id", oneAttachment.getRecordId());
+        }
+    }
+
+    @Test
+    public void firstValidationDoesNotLookUpRecords() throws Exception {
+        UploadValidationContext context = createContext(BridgeObjectMapper.get().createObjectNode(),
+                new TreeMap<String, byte[]>());
+        ((DynamoUpload2) context.getUpload()).setStatus(UploadStatus.VALIDATION_IN_PROGRESS);
+
+        handler.handle(context);
+        verify(mockHealthDataService, never()).getRecordsForUpload(anyString(), anyString());
+    }
+
+    private static UploadValidationContext createContext(JsonNode dataJson, Map<String, byte[]> attachmentMap) {
+        // only need upload ID from upload
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setUploadId(TEST_UPLOAD_ID);
+
+        // Most important thing in the record builder is the data map.
+        UploadValidationContext context = new UploadValidationContext();
+        context.setAttachmentsByFieldName(attachmentMap);
+        context.setHealthDataRecordBuilder(createValidRecordBuilder(dataJson));
+        context.setUpload(upload);
+        return context;
+    }
+
     // creates a record builder that has all the valid values filled in, with the data JsonNode specified
     private static HealthDataRecordBuilder createValidRecordBuilder(JsonNode dataNode) {
         // none of these values matter (except data, which is specified), so just fill in whatever
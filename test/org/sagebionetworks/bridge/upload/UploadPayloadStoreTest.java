@@ -0,0 +1,153 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadPayloadStoreTest {
+    private static final byte[] SMALL_BYTES = "small".getBytes(Charsets.UTF_8);
+    private static final byte[] LARGE_BYTES = "this is a large payload".getBytes(Charsets.UTF_8);
+
+    private File spillDir;
+
+    @Before
+    public void before() throws IOException {
+        spillDir = new File(Files.createTempDirectory("UploadPayloadStoreTest").toFile(), "spill");
+    }
+
+    @After
+    public void after() {
+        File[] spillFiles = spillDir.listFiles();
+        if (spillFiles != null) {
+            for (File oneSpillFile : spillFiles) {
+                oneSpillFile.delete();
+            }
+        }
+        spillDir.delete();
+        spillDir.getParentFile().delete();
+    }
+
+    @Test
+    public void unlimitedBudgetNeverSpills() {
+        UploadPayloadStore store = new UploadPayloadStore(UploadPayloadMemoryBudget.UNLIMITED);
+        assertFalse(store.canSpill());
+
+        UploadPayload payload = store.create(LARGE_BYTES);
+        assertFalse(payload.isSpilled());
+        assertSame(LARGE_BYTES, payload.getBytes());
+    }
+
+    @Test
+    public void smallPayloadsStayOnHeap() {
+        // budget of zero bytes, but a spill threshold large enough for SMALL_BYTES
+        UploadPayloadMemoryBudget budget = new UploadPayloadMemoryBudget(0, 10);
+        UploadPayloadStore store = new UploadPayloadStore(budget);
+
+        UploadPayload payload = store.create(SMALL_BYTES);
+        assertFalse(payload.isSpilled());
+        assertSame(SMALL_BYTES, payload.getBytes());
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void spillsWhenBudgetExhausted() {
+        // budget has room for exactly one large payload
+        UploadPayloadMemoryBudget budget = new UploadPayloadMemoryBudget(LARGE_BYTES.length, 10, spillDir);
+        UploadPayloadStore store = new UploadPayloadStore(budget);
+        assertTrue(store.canSpill());
+
+        UploadPayload onHeapPayload = store.create(LARGE_BYTES);
+        assertFalse(onHeapPayload.isSpilled());
+        assertEquals(LARGE_BYTES.length, budget.getReservedBytes());
+
+        UploadPayload spilledPayload = store.create(LARGE_BYTES);
+        assertTrue(spilledPayload.isSpilled());
+        assertEquals(LARGE_BYTES.length, spilledPayload.getLength());
+        assertArrayEquals(LARGE_BYTES, spilledPayload.getBytes());
+        assertEquals(LARGE_BYTES.length, budget.getReservedBytes());
+
+        // closing the store releases the budget
+        store.close();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void discardReleasesBudget() {
+        UploadPayloadMemoryBudget budget = new UploadPayloadMemoryBudget(100, 10);
+        UploadPayloadStore store = new UploadPayloadStore(budget);
+
+        UploadPayload payload = store.create(LARGE_BYTES);
+        assertEquals(LARGE_BYTES.length, budget.getReservedBytes());
+
+        payload.discard();
+        assertEquals(0, budget.getReservedBytes());
+
+        // discard is idempotent, including when the store is closed afterwards
+        payload.discard();
+        store.close();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void discardedPayloadCantBeRead() {
+        UploadPayloadStore store = new UploadPayloadStore(new UploadPayloadMemoryBudget(100, 10));
+        UploadPayload payload = store.create(LARGE_BYTES);
+        store.close();
+        payload.getBytes();
+    }
+
+    @Test
+    public void spillFilesAreOwnerOnly() throws IOException {
+        UploadPayloadMemoryBudget budget = new UploadPayloadMemoryBudget(0, 0, spillDir);
+        UploadPayloadStore store = new UploadPayloadStore(budget);
+
+        UploadPayload payload = store.create(LARGE_BYTES);
+        assertTrue(payload.isSpilled());
+        File[] spillFiles = spillDir.listFiles();
+        assertEquals(1, spillFiles.length);
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+                    PosixFilePermission.OWNER_EXECUTE), Files.getPosixFilePermissions(spillDir.toPath()));
+            assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+                    Files.getPosixFilePermissions(spillFiles[0].toPath()));
+        }
+
+        store.close();
+        assertEquals(0, spillDir.listFiles().length);
+    }
+
+    @Test
+    public void deleteStaleSpillFiles() throws IOException {
+        UploadPayloadMemoryBudget budget = new UploadPayloadMemoryBudget(0, 0, spillDir);
+
+        // no spill directory yet
+        assertEquals(0, budget.deleteStaleSpillFiles());
+
+        // left behind by a crash
+        budget.createSpillFile();
+        budget.createSpillFile();
+        // not a spill file, so it's left alone
+        File otherFile = new File(spillDir, "other.txt");
+        assertTrue(otherFile.createNewFile());
+
+        assertEquals(2, budget.deleteStaleSpillFiles());
+        File[] remainingFiles = spillDir.listFiles();
+        assertEquals(1, remainingFiles.length);
+        assertEquals(otherFile, remainingFiles[0]);
+    }
+}
@@ -0,0 +1,44 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+public class UploadReprocessJobTest {
+    @Test
+    public void checkpointOnlyAdvancesPastContiguousUploads() {
+        UploadReprocessJob job = new UploadReprocessJob("test-job");
+        job.setUploadIdList(ImmutableList.of("a", "b", "c", "d"), 0, null);
+        assertEquals(4, job.getTotalCount());
+        assertNull(job.getCheckpoint());
+
+        // Finishing out of order doesn't move the checkpoint past an unfinished upload.
+        assertNull(job.markDone(1, 2));
+        assertNull(job.getCheckpoint());
+
+        // Finishing the first upload moves it past both, which is enough to persist.
+        assertEquals("b", job.markDone(0, 2));
+        assertEquals("b", job.getCheckpoint());
+
+        // Advanced by one since the last persist, so not yet.
+        assertNull(job.markDone(2, 2));
+        assertEquals("c", job.getCheckpoint());
+        assertEquals("d", job.markDone(3, 2));
+    }
+
+    @Test
+    public void claimNextIndex() {
+        UploadReprocessJob job = new UploadReprocessJob("test-job");
+        job.setUploadIdList(ImmutableList.of("c", "d"), 2, "b");
+        assertEquals(4, job.getTotalCount());
+        assertEquals(2, job.getResumedCount());
+        assertEquals("b", job.getCheckpoint());
+
+        assertEquals(0, job.claimNextIndex());
+        assertEquals(1, job.claimNextIndex());
+        assertEquals(-1, job.claimNextIndex());
+        assertEquals("d", job.getUploadId(1));
+    }
+}
@@ -0,0 +1,371 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.sagebionetworks.bridge.dao.DistributedLockDao;
+import org.sagebionetworks.bridge.dao.HealthCodeDao;
+import org.sagebionetworks.bridge.dao.UploadDao;
+import org.sagebionetworks.bridge.dynamodb.DynamoHealthDataRecord;
+import org.sagebionetworks.bridge.dynamodb.DynamoStudy;
+import org.sagebionetworks.bridge.dynamodb.DynamoUpload2;
+import org.sagebionetworks.bridge.exceptions.BadRequestException;
+import org.sagebionetworks.bridge.exceptions.BridgeServiceException;
+import org.sagebionetworks.bridge.exceptions.ConcurrentModificationException;
+import org.sagebionetworks.bridge.json.BridgeObjectMapper;
+import org.sagebionetworks.bridge.models.healthdata.HealthDataRecord;
+import org.sagebionetworks.bridge.models.healthdata.HealthDataRecordBuilder;
+import org.sagebionetworks.bridge.models.upload.UploadReprocessRequest;
+import org.sagebionetworks.bridge.models.upload.UploadStatus;
+import org.sagebionetworks.bridge.redis.JedisStringOps;
+import org.sagebionetworks.bridge.redis.RedisKey;
+import org.sagebionetworks.bridge.services.HealthDataService;
+import org.sagebionetworks.bridge.services.StudyService;
+
+public class UploadReprocessorTest {
+    private static final String CHECKPOINT_KEY = RedisKey.UPLOAD_REPROCESS_CHECKPOINT.getRedisKey("test-job");
+
+    private DistributedLockDao mockLockDao;
+    private JedisStringOps mockStringOps;
+    private UploadDao mockUploadDao;
+    private UploadValidationTaskFactory taskFactory;
+    private UploadReprocessor reprocessor;
+
+    @Before
+    public void setup() {
+        mockLockDao = mock(DistributedLockDao.class);
+        when(mockLockDao.acquireLock(eq(UploadReprocessor.class), eq("test-job"), anyInt()))
+                .thenReturn("test-lock");
+        when(mockLockDao.getFencingToken("test-lock")).thenReturn(7L);
+
+        HealthCodeDao mockHealthCodeDao = mock(HealthCodeDao.class);
+        when(mockHealthCodeDao.getStudyIdentifier("test-health-code")).thenReturn("test-study");
+
+        DynamoStudy study = new DynamoStudy();
+        study.setIdentifier("test-study");
+        StudyService mockStudyService = mock(StudyService.class);
+        when(mockStudyService.getStudy("test-study")).thenReturn(study);
+
+        mockStringOps = mock(JedisStringOps.class);
+        when(mockStringOps.eval(anyString(), anyListOf(String.class), anyListOf(String.class))).thenReturn(1L);
+        mockUploadDao = mock(UploadDao.class);
+
+        // real task factory, with a handler that fails one specific upload
+        taskFactory = new UploadValidationTaskFactory();
+        taskFactory.setHandlerList(ImmutableList.<UploadValidationHandler>of(new FailingHandler()));
+        taskFactory.setUploadDao(mockUploadDao);
+
+        reprocessor = new UploadReprocessor(2, 1000.0);
+        reprocessor.setLockDao(mockLockDao);
+        reprocessor.setHealthCodeDao(mockHealthCodeDao);
+        reprocessor.setStudyService(mockStudyService);
+        reprocessor.setStringOps(mockStringOps);
+        reprocessor.setUploadDao(mockUploadDao);
+        reprocessor.setTaskFactory(taskFactory);
+    }
+
+    @After
+    public void teardown() {
+        reprocessor.shutdown();
+    }
+
+    @Test
+    public void uploadIdList() {
+        DynamoUpload2 uploadA = mockUpload("upload-a", UploadStatus.SUCCEEDED);
+        DynamoUpload2 uploadB = mockUpload("upload-b", UploadStatus.VALIDATION_FAILED);
+        DynamoUpload2 uploadC = mockUpload("upload-c", UploadStatus.REQUESTED);
+        DynamoUpload2 duplicate = mockUpload("upload-d", UploadStatus.SUCCEEDED);
+        duplicate.setValidationMessageList(ImmutableList.of("Duplicate of upload upload-a"));
+
+        // upload IDs are sorted and deduped
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-d", "upload-b", "upload-a", "upload-c", "upload-a")));
+
+        assertEquals(UploadReprocessJob.State.COMPLETED, job.getState());
+        assertEquals(4, job.getTotalCount());
+        assertEquals(0, job.getResumedCount());
+        assertEquals(4, job.getProcessedCount());
+        assertEquals(1, job.getSucceededCount());
+        assertEquals(1, job.getFailedCount());
+        assertEquals(2, job.getSkippedCount());
+        assertEquals("upload-d", job.getCheckpoint());
+        assertNotNull(job.getStartedOn());
+        assertNotNull(job.getFinishedOn());
+
+        // only reprocessed uploads get new validation status
+        verify(mockUploadDao).writeValidationStatus(eq(uploadA), eq(UploadStatus.SUCCEEDED),
+                anyListOf(String.class));
+        verify(mockUploadDao).writeValidationStatus(eq(uploadB), eq(UploadStatus.VALIDATION_FAILED),
+                anyListOf(String.class));
+        verify(mockUploadDao, never()).writeValidationStatus(eq(uploadC), eq(UploadStatus.SUCCEEDED),
+                anyListOf(String.class));
+        verify(mockUploadDao, never()).writeValidationStatus(eq(duplicate), eq(UploadStatus.SUCCEEDED),
+                anyListOf(String.class));
+
+        // per-stage metrics
+        Map<String, UploadReprocessJob.StageSnapshot> stageMap = job.getStages();
+        assertEquals(4, stageMap.get(UploadReprocessJob.LOAD_STAGE).getSuccessCount());
+        assertEquals(1, stageMap.get("FailingHandler").getSuccessCount());
+        assertEquals(1, stageMap.get("FailingHandler").getFailureCount());
+
+        // lock renewed while running, final checkpoint persisted, lock released
+        verify(mockLockDao).startRenewal(eq(UploadReprocessor.class), eq("test-job"), eq("test-lock"), anyInt(),
+                any(Runnable.class));
+        verifyCheckpoint("upload-d");
+        verify(mockLockDao).releaseLock(UploadReprocessor.class, "test-job", "test-lock");
+    }
+
+    @Test
+    public void dateRangeResumesFromCheckpoint() {
+        LocalDate startDate = new LocalDate(2015, 6, 1);
+        LocalDate endDate = new LocalDate(2015, 6, 7);
+        when(mockUploadDao.getUploadIdsForDateRange(startDate, endDate)).thenReturn(ImmutableList.of("upload-c",
+                "upload-a", "upload-b"));
+        when(mockStringOps.get(CHECKPOINT_KEY)).thenReturn("6:upload-b");
+        mockUpload("upload-c", UploadStatus.SUCCEEDED);
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", startDate, endDate, null));
+        assertEquals(UploadReprocessJob.State.COMPLETED, job.getState());
+        assertEquals(3, job.getTotalCount());
+        assertEquals(2, job.getResumedCount());
+        assertEquals(1, job.getSucceededCount());
+        assertEquals("upload-c", job.getCheckpoint());
+
+        // uploads before the checkpoint aren't loaded
+        verify(mockUploadDao, never()).getUpload("upload-a");
+        verify(mockUploadDao, never()).getUpload("upload-b");
+    }
+
+    @Test
+    public void missingUploadCountsAsFailure() {
+        when(mockUploadDao.getUpload("upload-a")).thenThrow(new RuntimeException("test exception"));
+        mockUpload("upload-b", UploadStatus.SUCCEEDED);
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a", "upload-b")));
+        assertEquals(UploadReprocessJob.State.COMPLETED, job.getState());
+        assertEquals(1, job.getFailedCount());
+        assertEquals(1, job.getSucceededCount());
+        assertEquals(1, job.getStages().get(UploadReprocessJob.LOAD_STAGE).getFailureCount());
+    }
+
+    @Test
+    public void lockedByAnotherServer() {
+        when(mockLockDao.acquireLock(eq(UploadReprocessor.class), eq("test-job"), anyInt()))
+                .thenThrow(new ConcurrentModificationException("Lock already set."));
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a")));
+        assertEquals(UploadReprocessJob.State.FAILED, job.getState());
+        verifyZeroInteractions(mockUploadDao);
+        verify(mockLockDao, never()).releaseLock(eq(UploadReprocessor.class), anyString(), anyString());
+    }
+
+    @Test
+    public void lockFailureFailsJob() {
+        when(mockLockDao.acquireLock(eq(UploadReprocessor.class), eq("test-job"), anyInt()))
+                .thenThrow(new BridgeServiceException("Lock not set."));
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a")));
+        assertEquals(UploadReprocessJob.State.FAILED, job.getState());
+        assertNotNull(job.getFinishedOn());
+        verifyZeroInteractions(mockUploadDao);
+        verify(mockLockDao, never()).releaseLock(eq(UploadReprocessor.class), anyString(), anyString());
+    }
+
+    @Test
+    public void renewalFailureFailsJobAndReleasesLock() {
+        doThrow(new RejectedExecutionException("shutting down")).when(mockLockDao).startRenewal(
+                eq(UploadReprocessor.class), eq("test-job"), eq("test-lock"), anyInt(), any(Runnable.class));
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a")));
+        assertEquals(UploadReprocessJob.State.FAILED, job.getState());
+        assertNotNull(job.getFinishedOn());
+        verifyZeroInteractions(mockUploadDao);
+        verify(mockLockDao).releaseLock(UploadReprocessor.class, "test-job", "test-lock");
+    }
+
+    @Test
+    public void checkpointWithoutFencingToken() {
+        // checkpoint written before fencing tokens
+        when(mockStringOps.get(CHECKPOINT_KEY)).thenReturn("upload-a");
+        mockUpload("upload-b", UploadStatus.SUCCEEDED);
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a", "upload-b")));
+        assertEquals(UploadReprocessJob.State.COMPLETED, job.getState());
+        assertEquals(1, job.getResumedCount());
+        verify(mockUploadDao, never()).getUpload("upload-a");
+        verifyCheckpoint("upload-b");
+    }
+
+    @Test
+    public void lostLockStopsJob() {
+        // the lock is lost as soon as renewal starts
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[4]).run();
+                return null;
+            }
+        }).when(mockLockDao).startRenewal(eq(UploadReprocessor.class), eq("test-job"), eq("test-lock"), anyInt(),
+                any(Runnable.class));
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a")));
+        assertEquals(UploadReprocessJob.State.FAILED, job.getState());
+        assertTrue(job.isLockLost());
+
+        // no uploads reprocessed, and the checkpoint is left to the new lock holder
+        verify(mockUploadDao, never()).getUpload("upload-a");
+        verify(mockStringOps, never()).eval(anyString(), anyListOf(String.class), anyListOf(String.class));
+        verify(mockLockDao).releaseLock(UploadReprocessor.class, "test-job", "test-lock");
+    }
+
+    @Test
+    public void checkpointFencedByNewerLock() {
+        // another server took the job over and wrote a checkpoint with a newer fencing token
+        when(mockStringOps.eval(anyString(), anyListOf(String.class), anyListOf(String.class))).thenReturn(0L);
+        mockUpload("upload-a", UploadStatus.SUCCEEDED);
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a")));
+        assertEquals(UploadReprocessJob.State.FAILED, job.getState());
+        assertTrue(job.isLockLost());
+    }
+
+    @Test
+    public void cancelledBeforeStarting() {
+        UploadReprocessJob job = new UploadReprocessJob("test-job");
+        job.cancel();
+        reprocessor.runJob(job, new UploadReprocessRequest("test-job", null, null, ImmutableList.of("upload-a")));
+        assertEquals(UploadReprocessJob.State.CANCELLED, job.getState());
+        verifyZeroInteractions(mockLockDao, mockUploadDao);
+    }
+
+    @Test
+    public void reprocessingDoesNotDuplicateRecords() {
+        mockUpload("upload-a", UploadStatus.SUCCEEDED);
+
+        // the record written when upload-a was first validated
+        DynamoHealthDataRecord existingRecord = (DynamoHealthDataRecord) makeRecordBuilder().withId("record-a")
+                .withUploadId("upload-a").build();
+        existingRecord.setVersion(1L);
+        HealthDataService mockHealthDataService = mock(HealthDataService.class);
+        when(mockHealthDataService.getRecordsForUpload("test-health-code", "upload-a")).thenReturn(
+                ImmutableList.<HealthDataRecord>of(existingRecord));
+
+        // real artifacts handler, after a handler that builds the record like schema validation does
+        UploadArtifactsHandler artifactsHandler = new UploadArtifactsHandler();
+        artifactsHandler.setHealthDataService(mockHealthDataService);
+        taskFactory.setHandlerList(ImmutableList.<UploadValidationHandler>of(new RecordBuilderHandler(),
+                artifactsHandler));
+
+        UploadReprocessJob job = runJob(new UploadReprocessRequest("test-job", null, null, ImmutableList.of(
+                "upload-a")));
+        assertEquals(1, job.getSucceededCount());
+
+        // exactly one record write, which replaces the existing record
+        ArgumentCaptor<HealthDataRecord> recordCaptor = ArgumentCaptor.forClass(HealthDataRecord.class);
+        verify(mockHealthDataService, times(1)).createOrUpdateRecord(recordCaptor.capture());
+        assertEquals("record-a", recordCaptor.getValue().getId());
+        assertEquals(1L, recordCaptor.getValue().getVersion().longValue());
+    }
+
+    @Test
+    public void invalidRequests() {
+        assertBadRequest(new UploadReprocessRequest(null, null, null, ImmutableList.of("upload-a")));
+        assertBadRequest(new UploadReprocessRequest("test-job", null, null, null));
+        assertBadRequest(new UploadReprocessRequest("test-job", null, null, ImmutableList.<String>of()));
+        assertBadRequest(new UploadReprocessRequest("test-job", new LocalDate(2015, 6, 1), null, null));
+        assertBadRequest(new UploadReprocessRequest("test-job", new LocalDate(2015, 6, 7), new LocalDate(2015, 6, 1),
+                null));
+        assertBadRequest(new UploadReprocessRequest("test-job", new LocalDate(2015, 6, 1), new LocalDate(2015, 6, 7),
+                ImmutableList.of("upload-a")));
+    }
+
+    private void assertBadRequest(UploadReprocessRequest request) {
+        try {
+            reprocessor.submit(request);
+            throw new AssertionError("expected BadRequestException");
+        } catch (BadRequestException ex) {
+            assertTrue(ex.getMessage().length() > 0);
+        }
+    }
+
+    private void verifyCheckpoint(String checkpoint) {
+        verify(mockStringOps).eval(anyString(), eq(ImmutableList.of(CHECKPOINT_KEY)), eq(ImmutableList.of("7",
+                checkpoint, Integer.toString(14 * 24 * 60 * 60))));
+    }
+
+    private UploadReprocessJob runJob(UploadReprocessRequest request) {
+        UploadReprocessJob job = new UploadReprocessJob(request.getJobId());
+        reprocessor.runJob(job, request);
+        return job;
+    }
+
+    private DynamoUpload2 mockUpload(String uploadId, UploadStatus status) {
+        DynamoUpload2 upload = new DynamoUpload2();
+        upload.setUploadId(uploadId);
+        upload.setHealthCode("test-health-code");
+        upload.setStatus(status);
+        upload.setValidationMessageList(ImmutableList.<String>of());
+        when(mockUploadDao.getUpload(uploadId)).thenReturn(upload);
+        return upload;
+    }
+
+    private static HealthDataRecordBuilder makeRecordBuilder() {
+        return new DynamoHealthDataRecord.Builder().withData(BridgeObjectMapper.get().createObjectNode())
+                .withHealthCode("test-health-code").withSchemaId("test-schema").withSchemaRevision(1)
+                .withStudyId("test-study");
+    }
+
+    // Builds the health data record, standing in for schema validation.
+    private static class RecordBuilderHandler implements UploadValidationHandler {
+        @Override
+        public void handle(@Nonnull UploadValidationContext context) {
+            context.setHealthDataRecordBuilder(makeRecordBuilder().withUploadId(context.getUpload().getUploadId()));
+            context.setAttachmentsByFieldName(ImmutableMap.<String, byte[]>of());
+        }
+    }
+
+    // Fails upload-b, passes everything else.
+    private static class FailingHandler implements UploadValidationHandler {
+        @Override
+        public void handle(@Nonnull UploadValidationContext context) throws UploadValidationException {
+            if ("upload-b".equals(context.getUpload().getUploadId())) {
+                throw new UploadValidationException("test failure");
+            }
+        }
+    }
+}
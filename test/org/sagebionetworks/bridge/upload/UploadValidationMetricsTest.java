@@ -0,0 +1,54 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.SortedMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import org.sagebionetworks.bridge.json.BridgeObjectMapper;
+import org.sagebionetworks.bridge.upload.UploadValidationMetrics.HandlerStatsSnapshot;
+
+public class UploadValidationMetricsTest {
+    @Test
+    public void test() {
+        UploadValidationMetrics metrics = new UploadValidationMetrics();
+        metrics.recordHandler("study-a", "UnzipHandler", 10, true);
+        metrics.recordHandler("study-a", "UnzipHandler", 30, false);
+        metrics.recordHandler("study-b", "UnzipHandler", 20, true);
+        metrics.recordHandler("study-b", "DecryptHandler", 5, true);
+
+        // across all studies
+        SortedMap<String, HandlerStatsSnapshot> handlerSnapshots = metrics.getHandlerSnapshots();
+        assertEquals(2, handlerSnapshots.size());
+
+        HandlerStatsSnapshot unzipSnapshot = handlerSnapshots.get("UnzipHandler");
+        assertEquals(2, unzipSnapshot.getSuccessCount());
+        assertEquals(1, unzipSnapshot.getFailureCount());
+        assertEquals(3, unzipSnapshot.getLatencyMillis().getCount());
+        assertEquals(20, unzipSnapshot.getLatencyMillis().getP50());
+        assertEquals(30, unzipSnapshot.getLatencyMillis().getP99());
+        assertEquals(30, unzipSnapshot.getLatencyMillis().getMax());
+        assertEquals(20, unzipSnapshot.getLatencyMillis().getMean());
+
+        // per study
+        SortedMap<String, SortedMap<String, HandlerStatsSnapshot>> studySnapshots = metrics.getStudySnapshots();
+        assertEquals(2, studySnapshots.size());
+        assertEquals(1, studySnapshots.get("study-a").size());
+        assertEquals(1, studySnapshots.get("study-a").get("UnzipHandler").getFailureCount());
+        assertEquals(2, studySnapshots.get("study-b").size());
+        assertEquals(5, studySnapshots.get("study-b").get("DecryptHandler").getLatencyMillis().getMax());
+
+        // snapshots serialize to JSON through their getters
+        JsonNode unzipNode = BridgeObjectMapper.get().valueToTree(unzipSnapshot);
+        assertEquals(2, unzipNode.get("successCount").longValue());
+        assertEquals(30, unzipNode.get("latencyMillis").get("p95").longValue());
+
+        // reset
+        metrics.reset();
+        assertTrue(metrics.getHandlerSnapshots().isEmpty());
+        assertTrue(metrics.getStudySnapshots().isEmpty());
+    }
+}
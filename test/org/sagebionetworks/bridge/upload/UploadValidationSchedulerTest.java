@@ -0,0 +1,147 @@
+package org.sagebionetworks.bridge.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Test;
+
+public class UploadValidationSchedulerTest {
+    private UploadValidationScheduler scheduler;
+
+    @After
+    public void after() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void roundRobinAcrossStudies() throws Exception {
+        // One worker, so tasks run one at a time in dispatch order. Block the worker with a gate task while we queue
+        // up tasks.
+        scheduler = new UploadValidationScheduler(1, 10, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        assertTrue(scheduler.trySubmit("gate-study", new GateTask(gate)));
+
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(5);
+        scheduler.trySubmit("big-study", new RecordingTask(runOrder, "big-1", done));
+        scheduler.trySubmit("big-study", new RecordingTask(runOrder, "big-2", done));
+        scheduler.trySubmit("big-study", new RecordingTask(runOrder, "big-3", done));
+        scheduler.trySubmit("small-study", new RecordingTask(runOrder, "small-1", done));
+        scheduler.trySubmit("small-study", new RecordingTask(runOrder, "small-2", done));
+        assertEquals(5, scheduler.getQueueDepth());
+        assertEquals(3, scheduler.getQueueDepth("big-study"));
+        assertEquals(2, scheduler.getQueueDepth("small-study"));
+        assertEquals(1, scheduler.getRunningCount());
+
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // small-study gets a turn between each big-study task
+        assertEquals(ImmutableList.of("big-1", "small-1", "big-2", "small-2", "big-3"), runOrder);
+        assertEquals(6, scheduler.getDispatchedCount());
+    }
+
+    @Test
+    public void perStudyConcurrencyCap() throws Exception {
+        // Two workers, but each study can only run one task at a time.
+        scheduler = new UploadValidationScheduler(2, 10, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        scheduler.trySubmit("study-a", new GateTask(gate));
+        scheduler.trySubmit("study-a", new GateTask(gate));
+
+        // second study-a task waits even though a worker is free
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueueDepth("study-a"));
+
+        // another study can use the free worker
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.trySubmit("study-b", new RecordingTask(runOrder, "b-1", done));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(ImmutableList.of("b-1"), runOrder);
+
+        gate.countDown();
+    }
+
+    @Test
+    public void rejectsWhenQueueFull() throws Exception {
+        scheduler = new UploadValidationScheduler(1, 2, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        // first task runs, next two are queued, fourth is rejected
+        assertTrue(scheduler.trySubmit("test-study", new GateTask(gate)));
+        assertTrue(scheduler.trySubmit("test-study", new GateTask(gate)));
+        assertTrue(scheduler.hasCapacity());
+        assertTrue(scheduler.trySubmit("other-study", new GateTask(gate)));
+        assertFalse(scheduler.hasCapacity());
+        assertFalse(scheduler.trySubmit("test-study", new GateTask(gate)));
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getRejectedCount());
+        assertTrue(scheduler.getOldestQueuedWaitMillis() >= 0);
+
+        gate.countDown();
+    }
+
+    @Test
+    public void failedTaskReleasesWorker() throws Exception {
+        scheduler = new UploadValidationScheduler(1, 10, 1);
+        scheduler.trySubmit("test-study", new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("test exception");
+            }
+        });
+
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.trySubmit("test-study", new RecordingTask(runOrder, "after-failure", done));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(ImmutableList.of("after-failure"), runOrder);
+    }
+
+    private static class GateTask implements Runnable {
+        private final CountDownLatch gate;
+
+        GateTask(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void run() {
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class RecordingTask implements Runnable {
+        private final List<String> runOrder;
+        private final String name;
+        private final CountDownLatch done;
+
+        RecordingTask(List<String> runOrder, String name, CountDownLatch done) {
+            this.runOrder = runOrder;
+            this.name = name;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            runOrder.add(name);
+            done.countDown();
+        }
+    }
+}
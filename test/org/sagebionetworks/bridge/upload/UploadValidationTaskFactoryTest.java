@@ -23,6 +23,9 @@ public class UploadValidationTaskFactoryTest {
         taskFactory.setHandlerList(handlerList);
         taskFactory.setUploadDao(dao);
 
+        UploadValidationMetrics metrics = new UploadValidationMetrics();
+        taskFactory.setMetrics(metrics);
+
         // inputs
         DynamoStudy study = new DynamoStudy();
         DynamoUpload2 upload2 = new DynamoUpload2();
@@ -34,5 +37,6 @@ public class UploadValidationTaskFactoryTest {
         assertSame(upload2, task.getContext().getUpload());
         assertSame(handlerList, task.getHandlerList());
         assertSame(dao, task.getUploadDao());
+        assertSame(metrics, task.getMetrics());
     }
 }
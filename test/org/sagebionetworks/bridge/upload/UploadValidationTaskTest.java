@@ -2,6 +2,9 @@ package org.sagebionetworks.bridge.upload;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyListOf;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.notNull;
@@ -14,6 +17,7 @@ import java.util.List;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import org.junit.Before;
 import org.junit.Test;
 
 import org.sagebionetworks.bridge.dao.UploadDao;
@@ -22,6 +26,13 @@ import org.sagebionetworks.bridge.dynamodb.DynamoUpload2;
 import org.sagebionetworks.bridge.models.upload.UploadStatus;
 
 public class UploadValidationTaskTest {
+    private static final UploadValidationMetrics METRICS = new UploadValidationMetrics();
+
+    @Before
+    public void before() {
+        METRICS.reset();
+    }
+
     @Test
     public void happyCase() {
         // test handlers
@@ -38,6 +49,13 @@ public class UploadValidationTaskTest {
         assertEquals("foo was here", messageList.get(0));
         assertEquals("bar was here", messageList.get(1));
         assertEquals("kilroy was here", messageList.get(2));
+
+        // validate metrics
+        UploadValidationMetrics.HandlerStatsSnapshot snapshot = METRICS.getStudySnapshots().get("test-study")
+                .get("MessageHandler");
+        assertEquals(3, snapshot.getSuccessCount());
+        assertEquals(0, snapshot.getFailureCount());
+        assertEquals(3, snapshot.getLatencyMillis().getCount());
     }
 
     @Test
@@ -50,6 +68,40 @@ public class UploadValidationTaskTest {
         testExceptionHelper(RuntimeException.class);
     }
 
+    @Test
+    public void payloadStoreClosedWhenStatusWriteFails() {
+        // budget with room for one payload, which a handler fills
+        UploadPayloadMemoryBudget budget = new UploadPayloadMemoryBudget(100, 0);
+        UploadValidationContext ctx = new UploadValidationContext();
+        ctx.setStudy(new DynamoStudy());
+        ctx.setUpload(new DynamoUpload2());
+        ctx.setPayloadStore(new UploadPayloadStore(budget));
+
+        UploadValidationHandler payloadHandler = new UploadValidationHandler() {
+            @Override
+            public void handle(@Nonnull UploadValidationContext context) {
+                context.getPayloadStore().create(new byte[10]);
+            }
+        };
+
+        UploadDao mockDao = mock(UploadDao.class);
+        doThrow(RuntimeException.class).when(mockDao).writeValidationStatus(any(DynamoUpload2.class),
+                any(UploadStatus.class), anyListOf(String.class));
+
+        UploadValidationTask task = new UploadValidationTask(ctx);
+        task.setHandlerList(ImmutableList.of(payloadHandler));
+        task.setUploadDao(mockDao);
+        try {
+            task.run();
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+
+        // payload memory is released, even though the task threw
+        assertEquals(0, budget.getReservedBytes());
+    }
+
     // helper test method for the exception tests
     private static void testExceptionHelper(Class<? extends Exception> exClass) throws Exception {
         // test handlers
@@ -72,6 +124,17 @@ public class UploadValidationTaskTest {
         assertEquals(2, messageList.size());
         assertEquals("foo succeeded", messageList.get(0));
         assertFalse(Strings.isNullOrEmpty(messageList.get(1)));
+
+        // validate metrics: foo succeeded, bar failed, baz never ran
+        UploadValidationMetrics.HandlerStatsSnapshot fooSnapshot = METRICS.getHandlerSnapshots().get(
+                "MessageHandler");
+        assertEquals(1, fooSnapshot.getSuccessCount());
+        assertEquals(0, fooSnapshot.getFailureCount());
+
+        UploadValidationMetrics.HandlerStatsSnapshot barSnapshot = METRICS.getHandlerSnapshots().get(
+                barHandler.getClass().getSimpleName());
+        assertEquals(0, barSnapshot.getSuccessCount());
+        assertEquals(1, barSnapshot.getFailureCount());
     }
 
     // helper test method, encapsulating core setup and validation
@@ -95,6 +158,7 @@ public class UploadValidationTaskTest {
         UploadValidationTask task = new UploadValidationTask(ctx);
         task.setHandlerList(handlerList);
         task.setUploadDao(mockDao);
+        task.setMetrics(METRICS);
 
         // execute
         task.run();
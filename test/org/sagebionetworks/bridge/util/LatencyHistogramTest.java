@@ -0,0 +1,89 @@
+package org.sagebionetworks.bridge.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void empty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMean());
+        assertEquals(0, snapshot.getP50());
+        assertEquals(0, snapshot.getP99());
+        assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // record 1 through 100, in reverse order to make sure we sort
+        for (int i = 100; i > 0; i--) {
+            histogram.record(i);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50, snapshot.getMean());
+        assertEquals(50, snapshot.getP50());
+        assertEquals(95, snapshot.getP95());
+        assertEquals(99, snapshot.getP99());
+        assertEquals(100, snapshot.getMax());
+    }
+
+    @Test
+    public void slidingWindow() {
+        // Percentiles only see the last 4 samples. Count, mean, and max see everything.
+        LatencyHistogram histogram = new LatencyHistogram(4);
+        histogram.record(1000);
+        for (int i = 0; i < 4; i++) {
+            histogram.record(10);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(5, snapshot.getCount());
+        assertEquals(208, snapshot.getMean());
+        assertEquals(10, snapshot.getP99());
+        assertEquals(1000, snapshot.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getSnapshot().getCount());
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram(16);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long value = t + 1;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(value);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // No samples are lost, even without a lock.
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(40000, snapshot.getCount());
+        assertEquals(2, snapshot.getMean());
+        assertEquals(4, snapshot.getMax());
+    }
+}
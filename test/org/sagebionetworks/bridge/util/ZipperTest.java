@@ -1,10 +1,20 @@
 package org.sagebionetworks.bridge.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
 
@@ -31,6 +41,201 @@ public class ZipperTest {
         zipper.unzip(zipped);
     }
 
+    @Test
+    public void testUnzipStream() throws Exception {
+        Zipper zipper = new Zipper(10, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("foo", "foo".getBytes());
+        dataMap.put("bar", "bar".getBytes());
+        byte[] zipped = zipper.zip(dataMap);
+
+        final Map<String, byte[]> unzippedMap = new HashMap<>();
+        zipper.unzip(new ByteArrayInputStream(zipped), new Zipper.EntryConsumer() {
+            @Override
+            public void accept(String entryName, byte[] data) {
+                unzippedMap.put(entryName, data);
+            }
+        });
+        assertEquals(2, unzippedMap.size());
+        assertEquals("foo", new String(unzippedMap.get("foo")));
+        assertEquals("bar", new String(unzippedMap.get("bar")));
+    }
+
+    @Test
+    public void testUnzipWithSizeHints() throws Exception {
+        // Stored entries declare their size in the header, so they're read straight into exact-size arrays.
+        Zipper zipper = new Zipper(10, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("foo", "foo".getBytes());
+        dataMap.put("empty", new byte[0]);
+        dataMap.put("full", "0123456789".getBytes());
+
+        Map<String, byte[]> unzippedMap = zipper.unzip(zipStored(dataMap));
+        assertEquals(3, unzippedMap.size());
+        assertEquals("foo", new String(unzippedMap.get("foo")));
+        assertEquals(0, unzippedMap.get("empty").length);
+        assertEquals("0123456789", new String(unzippedMap.get("full")));
+    }
+
+    @Test(expected=ZipOverflowException.class)
+    public void testStoredZipEntryTooBig() throws Exception {
+        Zipper zipper = new Zipper(2, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("foo", "foo".getBytes());
+        zipper.unzip(zipStored(dataMap));
+    }
+
+    @Test
+    public void testUnzipLargeEntry() throws Exception {
+        // Larger than the initial scratch buffer, and incompressible, so the scratch buffer has to grow.
+        byte[] data = new byte[300 * 1024];
+        new Random(1234).nextBytes(data);
+        Zipper zipper = new Zipper(data.length, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("large", data);
+
+        Map<String, byte[]> unzippedMap = zipper.unzip(zipper.zip(dataMap));
+        assertArrayEquals(data, unzippedMap.get("large"));
+    }
+
+    @Test(expected=ZipOverflowException.class)
+    public void testLargeZipEntryTooBig() throws Exception {
+        byte[] data = new byte[300 * 1024];
+        new Random(1234).nextBytes(data);
+        Zipper zipper = new Zipper(data.length - 1, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("large", data);
+        zipper.unzip(zipper.zip(dataMap));
+    }
+
+    @Test(expected=ZipOverflowException.class)
+    public void testCompressionBomb() throws Exception {
+        // 5 MB of zeros compresses to a few KB, well over the max ratio. This is rejected long before the max entry
+        // size is reached.
+        Zipper zipper = new Zipper(100 * 1024 * 1024, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("bomb", new byte[5 * 1024 * 1024]);
+        zipper.unzip(zipper.zip(dataMap));
+    }
+
+    @Test(expected=ZipOverflowException.class)
+    public void testCompressionBombAcrossEntries() throws Exception {
+        // Each entry is under the minimum size for the ratio check, but the archive as a whole is a bomb.
+        Zipper zipper = new Zipper(100 * 1024 * 1024, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        for (int i = 0; i < 4; i++) {
+            dataMap.put("bomb" + i, new byte[(int) Zipper.COMPRESSION_RATIO_MIN_BYTES / 2]);
+        }
+        zipper.unzip(zipper.zip(dataMap));
+    }
+
+    @Test
+    public void testSmallCompressibleEntryNotABomb() throws Exception {
+        // Highly compressible, but under the minimum size for the ratio check.
+        Zipper zipper = new Zipper(100 * 1024 * 1024, 20);
+        byte[] data = new byte[(int) Zipper.COMPRESSION_RATIO_MIN_BYTES / 2];
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("zeros", data);
+
+        Map<String, byte[]> unzippedMap = zipper.unzip(zipper.zip(dataMap));
+        assertArrayEquals(data, unzippedMap.get("zeros"));
+    }
+
+    @Test
+    public void testCompressionRatioConfigurable() throws Exception {
+        Zipper zipper = new Zipper(100 * 1024 * 1024, 20, 10000);
+        byte[] data = new byte[2 * 1024 * 1024];
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("zeros", data);
+
+        Map<String, byte[]> unzippedMap = zipper.unzip(zipper.zip(dataMap));
+        assertArrayEquals(data, unzippedMap.get("zeros"));
+    }
+
+    @Test
+    public void testUnzipView() throws Exception {
+        Zipper zipper = new Zipper(10, 20);
+        Map<String, byte[]> dataMap = new HashMap<>();
+        dataMap.put("foo", "foo".getBytes());
+        dataMap.put("bar", "barbar".getBytes());
+        byte[] zipped = zipper.zip(dataMap);
+
+        final Map<String, String> unzippedMap = new HashMap<>();
+        final List<byte[]> bufferList = new ArrayList<>();
+        zipper.unzipView(new ByteArrayInputStream(zipped), new Zipper.EntryViewConsumer() {
+            @Override
+            public void accept(String entryName, byte[] buffer, int length) {
+                unzippedMap.put(entryName, new String(buffer, 0, length));
+                bufferList.add(buffer);
+            }
+        });
+        assertEquals(2, unzippedMap.size());
+        assertEquals("foo", unzippedMap.get("foo"));
+        assertEquals("barbar", unzippedMap.get("bar"));
+
+        // Both entries are views of the same reused buffer.
+        assertSame(bufferList.get(0), bufferList.get(1));
+    }
+
+    @Test
+    public void testNestedUnzipView() throws Exception {
+        // Unzipping another archive from inside the callback must not clobber the outer buffer.
+        final Zipper zipper = new Zipper(1000, 20);
+        Map<String, byte[]> innerMap = new HashMap<>();
+        innerMap.put("inner", "inner data".getBytes());
+        final byte[] innerZipped = zipper.zip(innerMap);
+
+        Map<String, byte[]> outerMap = new HashMap<>();
+        outerMap.put("outer", "outer data".getBytes());
+        byte[] outerZipped = zipper.zip(outerMap);
+
+        final Map<String, String> unzippedMap = new HashMap<>();
+        zipper.unzipView(new ByteArrayInputStream(outerZipped), new Zipper.EntryViewConsumer() {
+            @Override
+            public void accept(String entryName, byte[] buffer, int length) {
+                try {
+                    unzippedMap.putAll(toStringMap(zipper.unzip(innerZipped)));
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+                unzippedMap.put(entryName, new String(buffer, 0, length));
+            }
+        });
+        assertEquals("outer data", unzippedMap.get("outer"));
+        assertEquals("inner data", unzippedMap.get("inner"));
+    }
+
+    private static Map<String, String> toStringMap(Map<String, byte[]> dataMap) {
+        Map<String, String> stringMap = new HashMap<>();
+        for (Map.Entry<String, byte[]> oneEntry : dataMap.entrySet()) {
+            stringMap.put(oneEntry.getKey(), new String(oneEntry.getValue()));
+        }
+        return stringMap;
+    }
+
+    // Zips with the stored (uncompressed) method, which writes entry sizes in the local headers.
+    private static byte[] zipStored(Map<String, byte[]> dataMap) throws Exception {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                ZipOutputStream zos = new ZipOutputStream(baos)) {
+            for (Map.Entry<String, byte[]> oneEntry : dataMap.entrySet()) {
+                byte[] data = oneEntry.getValue();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+
+                ZipEntry zipEntry = new ZipEntry(oneEntry.getKey());
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(data.length);
+                zipEntry.setCompressedSize(data.length);
+                zipEntry.setCrc(crc.getValue());
+                zos.putNextEntry(zipEntry);
+                zos.write(data);
+                zos.closeEntry();
+            }
+            zos.finish();
+            return baos.toByteArray();
+        }
+    }
+
     private void zipUnzip(final Zipper zipper, final int numEntries) throws Exception {
         Map<String, byte[]> dataMap = new HashMap<>();
         for (int i = 0; i < numEntries; i++) {